@@ -26,26 +26,85 @@ import com.android.tools.apk.analyzer.ZipEntryInfo;
 import com.android.zipflinger.Entry;
 import com.android.zipflinger.ZipRepo;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
-import java.util.zip.GZIPOutputStream;
 
+/**
+ * Estimates download sizes by re-compressing with gzip -9, as Google Play serves APKs.
+ *
+ * <p>The entries and the segments of the APK are compressed concurrently, each worker thread with
+ * its own {@link Deflater}. The download size of an entry is remembered by CRC-32 and size, so that
+ * entries which didn't change between builds are not compressed again.
+ */
 public class GzipSizeCalculator implements ApkSizeCalculator {
 
     private static final long OFFSET_4K = 4 * 1024;
 
     private static final long OFFSET_16K = 16 * 1024;
 
+    /** Size of the gzip header and trailer around the deflated data. */
+    private static final int GZIP_OVERHEAD = 18;
+
+    /** Size of the segments of the APK compressed independently of each other. */
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** Size of the deflate window, primed from the end of the previous segment. */
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Download sizes of the entries already compressed, by CRC-32 and uncompressed size. */
+    private static final Cache<EntryKey, Long> ENTRY_DOWNLOAD_SIZES =
+            CacheBuilder.newBuilder().maximumSize(100_000).build();
+
+    /** The estimated download sizes of an APK. */
+    public static final class DownloadSizes {
+        private final long fullApkDownloadSize;
+        @NonNull private final Map<String, Long> downloadSizePerFile;
+
+        private DownloadSizes(long fullApkDownloadSize, @NonNull Map<String, Long> sizes) {
+            this.fullApkDownloadSize = fullApkDownloadSize;
+            this.downloadSizePerFile = sizes;
+        }
+
+        /** See {@link ApkSizeCalculator#getFullApkDownloadSize}. */
+        public long getFullApkDownloadSize() {
+            return fullApkDownloadSize;
+        }
+
+        /** See {@link ApkSizeCalculator#getDownloadSizePerFile}. */
+        @NonNull
+        public Map<String, Long> getDownloadSizePerFile() {
+            return downloadSizePerFile;
+        }
+    }
+
     public GzipSizeCalculator() {}
 
     private static void verify(@NonNull Path apk) {
@@ -68,9 +127,8 @@ public class GzipSizeCalculator implements ApkSizeCalculator {
         // this should suffice. This also seems to be the same approach taken by
         // https://github.com/googlesamples/apk-patch-size-estimator
 
-        try (MaxGzipCountingOutputStream zos = new MaxGzipCountingOutputStream()) {
-            Files.copy(apk, zos);
-            return zos.getSize();
+        try {
+            return estimate(apk, false).getFullApkDownloadSize();
         } catch (IOException e) {
             return -1;
         }
@@ -92,20 +150,8 @@ public class GzipSizeCalculator implements ApkSizeCalculator {
     @Override
     public Map<String, Long> getDownloadSizePerFile(@NonNull Path apk) {
         verify(apk);
-        try (ZipRepo zipRepo = new ZipRepo(apk)) {
-            ImmutableMap.Builder<String, Long> sizes = new ImmutableMap.Builder<>();
-            for (Entry entry : zipRepo.getEntries().values()) {
-                if (entry.isDirectory()) {
-                    continue;
-                }
-                String name = entry.getName();
-                try (InputStream zip = zipRepo.getInputStream(name);
-                        MaxGzipCountingOutputStream gzip = new MaxGzipCountingOutputStream()) {
-                    ByteStreams.copy(zip, gzip);
-                    sizes.put("/" + name, gzip.getSize());
-                }
-            }
-            return sizes.build();
+        try {
+            return estimate(apk, true).getDownloadSizePerFile();
         } catch (IOException e) {
             String msg =
                     "Error while re-compressing apk to determine file by file download sizes: " + e;
@@ -114,6 +160,22 @@ public class GzipSizeCalculator implements ApkSizeCalculator {
         }
     }
 
+    /**
+     * Returns both the full APK download size and the download size of each file, computed in a
+     * single concurrent pass over the APK.
+     */
+    @NonNull
+    public DownloadSizes getDownloadSizes(@NonNull Path apk) {
+        verify(apk);
+        try {
+            return estimate(apk, true);
+        } catch (IOException e) {
+            String msg = "Error while re-compressing apk to determine download sizes: " + e;
+            Logger.getLogger(GzipSizeCalculator.class.getName()).severe(msg);
+            return new DownloadSizes(-1, ImmutableMap.of());
+        }
+    }
+
     @NonNull
     @Override
     public Map<String, ZipEntryInfo> getInfoPerFile(@NonNull Path apk) {
@@ -145,17 +207,255 @@ public class GzipSizeCalculator implements ApkSizeCalculator {
         return sizes.build();
     }
 
-    private static final class MaxGzipCountingOutputStream extends GZIPOutputStream {
+    @NonNull
+    private static DownloadSizes estimate(@NonNull Path apk, boolean perFile) throws IOException {
+        try (ZipRepo zipRepo = perFile ? new ZipRepo(apk) : null;
+                FileChannel channel = FileChannel.open(apk, StandardOpenOption.READ)) {
+            long apkSize = channel.size();
+            List<Task> tasks = new ArrayList<>();
+            // There is a difference between uncompressing the apk, and then compressing again
+            // using "gzip -9", versus just compressing the apk itself using "gzip -9". But the
+            // difference seems to be negligible, and we are only aiming at an estimate of what
+            // Play provides, so this should suffice. This also seems to be the same approach taken
+            // by https://github.com/googlesamples/apk-patch-size-estimator
+            List<SegmentTask> segments = new ArrayList<>();
+            long start = 0;
+            do {
+                segments.add(
+                        new SegmentTask(
+                                channel, start, Math.min(SEGMENT_SIZE, apkSize - start), apkSize));
+                start += SEGMENT_SIZE;
+            } while (start < apkSize);
+            tasks.addAll(segments);
+
+            Map<String, Long> cachedSizes = new HashMap<>();
+            List<EntryTask> entries = new ArrayList<>();
+            if (zipRepo != null) {
+                for (Entry entry : zipRepo.getEntries().values()) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    EntryKey key = new EntryKey(entry.getCrc(), entry.getUncompressedSize());
+                    Long size = ENTRY_DOWNLOAD_SIZES.getIfPresent(key);
+                    if (size != null) {
+                        cachedSizes.put(entry.getName(), size);
+                    } else {
+                        EntryTask task = new EntryTask(zipRepo, entry, key);
+                        entries.add(task);
+                        tasks.add(task);
+                    }
+                }
+            }
+            run(tasks);
+
+            long fullApkDownloadSize = GZIP_OVERHEAD;
+            for (SegmentTask segment : segments) {
+                fullApkDownloadSize += segment.deflatedSize;
+            }
+            for (EntryTask entry : entries) {
+                long size = GZIP_OVERHEAD + entry.deflatedSize;
+                ENTRY_DOWNLOAD_SIZES.put(entry.key, size);
+                cachedSizes.put(entry.entry.getName(), size);
+            }
+            ImmutableMap.Builder<String, Long> sizes = new ImmutableMap.Builder<>();
+            if (zipRepo != null) {
+                for (Entry entry : zipRepo.getEntries().values()) {
+                    Long size = cachedSizes.get(entry.getName());
+                    if (size != null) {
+                        sizes.put("/" + entry.getName(), size);
+                    }
+                }
+            }
+            return new DownloadSizes(fullApkDownloadSize, sizes.build());
+        }
+    }
+
+    /** Runs the tasks, largest first, on a worker thread per core, each with its own deflater. */
+    private static void run(@NonNull List<Task> tasks) throws IOException {
+        tasks.sort(Comparator.comparingLong((Task task) -> task.cost).reversed());
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            new Worker(tasks, new AtomicInteger()).call();
+            return;
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        threads,
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("gzip-size-calculator-%d")
+                                .build());
+        try {
+            AtomicInteger next = new AtomicInteger();
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Worker(tasks, next)));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while re-compressing apk", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Takes tasks from a shared list until there are none left. */
+    private static final class Worker implements Callable<Void> {
+        @NonNull private final List<Task> tasks;
+        @NonNull private final AtomicInteger next;
+
+        private Worker(@NonNull List<Task> tasks, @NonNull AtomicInteger next) {
+            this.tasks = tasks;
+            this.next = next;
+        }
 
-        public MaxGzipCountingOutputStream() throws IOException {
-            super(new CountingOutputStream(ByteStreams.nullOutputStream()));
+        @Override
+        public Void call() throws IOException {
             // Google Play serves an APK that is compressed using gzip -9
-            def.setLevel(Deflater.BEST_COMPRESSION);
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            byte[] output = new byte[BUFFER_SIZE];
+            try {
+                for (int i = next.getAndIncrement();
+                        i < tasks.size();
+                        i = next.getAndIncrement()) {
+                    deflater.reset();
+                    tasks.get(i).run(deflater, output);
+                }
+            } finally {
+                deflater.end();
+            }
+            return null;
+        }
+    }
+
+    private abstract static class Task {
+        /** The number of bytes to compress, used to start with the largest tasks. */
+        final long cost;
+
+        /** The number of bytes of deflated data, without the gzip header and trailer. */
+        long deflatedSize;
+
+        Task(long cost) {
+            this.cost = cost;
+        }
+
+        abstract void run(@NonNull Deflater deflater, @NonNull byte[] output) throws IOException;
+    }
+
+    /** Compresses the uncompressed content of an entry. */
+    private static final class EntryTask extends Task {
+        @NonNull private final ZipRepo zipRepo;
+        @NonNull private final Entry entry;
+        @NonNull private final EntryKey key;
+
+        EntryTask(@NonNull ZipRepo zipRepo, @NonNull Entry entry, @NonNull EntryKey key) {
+            super(entry.getUncompressedSize());
+            this.zipRepo = zipRepo;
+            this.entry = entry;
+            this.key = key;
+        }
+
+        @Override
+        void run(@NonNull Deflater deflater, @NonNull byte[] output) throws IOException {
+            byte[] input = new byte[BUFFER_SIZE];
+            long size = 0;
+            try (InputStream zip = zipRepo.getInputStream(entry.getName())) {
+                int read;
+                while ((read = zip.read(input)) != -1) {
+                    deflater.setInput(input, 0, read);
+                    while (!deflater.needsInput()) {
+                        size += deflater.deflate(output);
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                size += deflater.deflate(output);
+            }
+            deflatedSize = size;
+        }
+    }
+
+    /**
+     * Compresses a segment of the APK. The deflate window is primed with the end of the previous
+     * segment, and the segments other than the last one end with a sync flush, so that the sizes of
+     * the segments add up to the size of a single deflate stream of the APK.
+     */
+    private static final class SegmentTask extends Task {
+        @NonNull private final FileChannel channel;
+        private final long start;
+        private final long apkSize;
+
+        SegmentTask(@NonNull FileChannel channel, long start, long length, long apkSize) {
+            super(length);
+            this.channel = channel;
+            this.start = start;
+            this.apkSize = apkSize;
+        }
+
+        @Override
+        void run(@NonNull Deflater deflater, @NonNull byte[] output) throws IOException {
+            int window = (int) Math.min(WINDOW_SIZE, start);
+            byte[] input = new byte[window + (int) cost];
+            ByteBuffer buffer = ByteBuffer.wrap(input);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start - window + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of apk");
+                }
+            }
+            if (window > 0) {
+                deflater.setDictionary(input, 0, window);
+            }
+            deflater.setInput(input, window, (int) cost);
+            long size = 0;
+            if (start + cost < apkSize) {
+                int deflated;
+                do {
+                    deflated = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                    size += deflated;
+                } while (deflated == output.length);
+            } else {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    size += deflater.deflate(output);
+                }
+            }
+            deflatedSize = size;
+        }
+    }
+
+    private static final class EntryKey {
+        private final int crc;
+        private final long size;
+
+        EntryKey(int crc, long size) {
+            this.crc = crc;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey that = (EntryKey) o;
+            return crc == that.crc && size == that.size;
         }
 
-        public long getSize() throws IOException {
-            close();
-            return ((CountingOutputStream) out).getCount();
+        @Override
+        public int hashCode() {
+            return Objects.hash(crc, size);
         }
     }
 }
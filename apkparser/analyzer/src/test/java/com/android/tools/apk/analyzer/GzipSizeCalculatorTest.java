@@ -66,6 +66,21 @@ public class GzipSizeCalculatorTest {
                 .isNull(); // directories should not have any size
     }
 
+    @Test
+    public void getDownloadSizes() {
+        GzipSizeCalculator.DownloadSizes sizes = new GzipSizeCalculator().getDownloadSizes(apk);
+
+        assertThat(sizes.getFullApkDownloadSize())
+                .isEqualTo(calculator.getFullApkDownloadSize(apk));
+        assertThat(sizes.getDownloadSizePerFile())
+                .containsExactlyEntriesIn(calculator.getDownloadSizePerFile(apk));
+        assertThat(sizes.getDownloadSizePerFile().get("/AndroidManifest.xml")).isEqualTo(29);
+
+        // Unchanged entries are answered from the cache, with the same sizes.
+        assertThat(new GzipSizeCalculator().getDownloadSizes(apk).getDownloadSizePerFile())
+                .containsExactlyEntriesIn(sizes.getDownloadSizePerFile());
+    }
+
     @Test
     public void getInfoPerFile() {
         Map<String, ZipEntryInfo> infoPerFile = calculator.getInfoPerFile(apk);
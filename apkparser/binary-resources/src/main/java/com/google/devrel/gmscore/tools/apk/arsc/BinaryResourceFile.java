@@ -27,7 +27,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-/** Given an arsc file, maps the contents of the file. */
+/**
+ * Given an arsc file, maps the contents of the file.
+ *
+ * <p>For read-only lookups in large resource tables, see {@link LazyResourceTable}, which doesn't
+ * decode the whole file.
+ */
 public final class BinaryResourceFile implements SerializableResource {
 
   /** The chunks contained in this resource file. */
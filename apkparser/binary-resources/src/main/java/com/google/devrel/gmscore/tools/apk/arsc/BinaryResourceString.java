@@ -76,7 +76,15 @@ public final class BinaryResourceString {
     } else {
       length = characterCount * 2;
     }
-    return new String(buffer.array(), offset, length, type.charset());
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + offset, length, type.charset());
+    }
+    // Direct buffers, such as memory-mapped files, have no backing array.
+    byte[] bytes = new byte[length];
+    ByteBuffer reader = buffer.duplicate();
+    reader.position(offset);
+    reader.get(bytes);
+    return new String(bytes, type.charset());
   }
 
   /**
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2024 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.gmscore.tools.apk.arsc;
+
+import com.android.annotations.Nullable;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only view of a resource table (resources.arsc) which, unlike {@link BinaryResourceFile},
+ * doesn't build the chunk tree. Only the chunk headers are read up front; strings and resource
+ * entries are decoded when they are looked up, so the table can be backed by a memory-mapped file
+ * of any size.
+ *
+ * <p>Instances are safe to use from multiple threads.
+ */
+public final class LazyResourceTable {
+
+  /** Type chunk flag: the offsets are (entry index, offset / 4) pairs, sorted by entry index. */
+  private static final int FLAG_SPARSE = 0x01;
+
+  /** Type chunk flag: the offsets are 16-bit values of offset / 4. */
+  private static final int FLAG_OFFSET16 = 0x02;
+
+  /** A 16-bit entry offset that indicates that a given resource is not present. */
+  private static final int NO_ENTRY16 = 0xFFFF;
+
+  /** Entry flag set if this is a complex resource. */
+  private static final int FLAG_COMPLEX = 0x0001;
+
+  /** Offset in bytes, from the start of a package chunk, where its type strings offset is. */
+  private static final int TYPE_OFFSET_OFFSET = 268;
+
+  /** Offset in bytes, from the start of a package chunk, where its key strings offset is. */
+  private static final int KEY_OFFSET_OFFSET = 276;
+
+  /** Maximum number of decoded strings cached per string pool. Must be a power of 2. */
+  private static final int CACHE_SIZE = 4096;
+
+  private final ByteBuffer buffer;
+
+  private final StringPool stringPool;
+
+  private final List<PackageTypes> packages = new ArrayList<>();
+
+  /**
+   * Creates a table over the contents of {@code buffer}, from its position to its limit. The
+   * buffer must not be modified while the table is in use.
+   */
+  public LazyResourceTable(ByteBuffer buffer) {
+    this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    StringPool stringPool = null;
+    int tableOffset = findChunk(0, this.buffer.limit(), Chunk.Type.TABLE);
+    Preconditions.checkState(tableOffset >= 0, "No resource table found.");
+    int end = tableOffset + chunkSize(tableOffset);
+    for (int offset = tableOffset + headerSize(tableOffset);
+        offset < end;
+        offset += chunkSize(offset)) {
+      short type = this.buffer.getShort(offset);
+      if (type == Chunk.Type.STRING_POOL.code() && stringPool == null) {
+        stringPool = new StringPool(this.buffer, offset);
+      } else if (type == Chunk.Type.TABLE_PACKAGE.code()) {
+        packages.add(new PackageTypes(offset));
+      }
+    }
+    this.stringPool =
+        Preconditions.checkNotNull(stringPool, "Resource table must have a string pool.");
+  }
+
+  /** Maps {@code file} in memory and returns a table over its contents. */
+  public static LazyResourceTable map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new LazyResourceTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Returns the string pool containing all string resource values in the resource table. */
+  public StringPool getStringPool() {
+    return stringPool;
+  }
+
+  /** Returns the ids of the packages in this table, in the order they appear in. */
+  public List<Integer> getPackageIds() {
+    List<Integer> ids = new ArrayList<>();
+    for (PackageTypes packageTypes : packages) {
+      ids.add(packageTypes.id);
+    }
+    return ids;
+  }
+
+  /**
+   * Returns the entries defined for {@code resourceId}, one per configuration, in the order their
+   * type chunks appear in. Returns an empty list if the resource is not defined.
+   */
+  public List<Entry> getEntries(int resourceId) {
+    BinaryResourceIdentifier id = BinaryResourceIdentifier.create(resourceId);
+    List<Entry> result = new ArrayList<>();
+    for (PackageTypes packageTypes : packages) {
+      if (packageTypes.id == id.packageId()) {
+        for (int typeOffset : packageTypes.getTypeChunks(id.typeId())) {
+          int entryOffset = findEntry(typeOffset, id.entryId());
+          if (entryOffset >= 0) {
+            result.add(new Entry(packageTypes, typeOffset, entryOffset));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the name of {@code resourceId} in the form type/key (e.g. string/app_name), or null if
+   * the resource is not defined.
+   */
+  @Nullable
+  public String getResourceName(int resourceId) {
+    List<Entry> entries = getEntries(resourceId);
+    if (entries.isEmpty()) {
+      return null;
+    }
+    Entry entry = entries.get(0);
+    return entry.typeName() + "/" + entry.key();
+  }
+
+  /**
+   * Returns the offset of the entry at {@code index} in the type chunk at {@code typeOffset}, or
+   * -1 if there is no such entry.
+   */
+  private int findEntry(int typeOffset, int index) {
+    int flags = buffer.get(typeOffset + 9) & 0xFF;
+    int entryCount = buffer.getInt(typeOffset + 12);
+    int entriesStart = typeOffset + buffer.getInt(typeOffset + 16);
+    int offsets = typeOffset + headerSize(typeOffset);
+    if ((flags & FLAG_SPARSE) != 0) {
+      int low = 0;
+      int high = entryCount - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int entryIndex = buffer.getShort(offsets + middle * 4) & 0xFFFF;
+        if (entryIndex < index) {
+          low = middle + 1;
+        } else if (entryIndex > index) {
+          high = middle - 1;
+        } else {
+          return entriesStart + (buffer.getShort(offsets + middle * 4 + 2) & 0xFFFF) * 4;
+        }
+      }
+      return -1;
+    }
+    if (index >= entryCount) {
+      return -1;
+    }
+    if ((flags & FLAG_OFFSET16) != 0) {
+      int offset = buffer.getShort(offsets + index * 2) & 0xFFFF;
+      return offset == NO_ENTRY16 ? -1 : entriesStart + offset * 4;
+    }
+    int offset = buffer.getInt(offsets + index * 4);
+    return offset == TypeChunk.Entry.NO_ENTRY ? -1 : entriesStart + offset;
+  }
+
+  /**
+   * Returns the offset of the first chunk of the given type between {@code start} and {@code end},
+   * or -1 if there is none.
+   */
+  private int findChunk(int start, int end, Chunk.Type type) {
+    for (int offset = start; offset < end; offset += chunkSize(offset)) {
+      if (buffer.getShort(offset) == type.code()) {
+        return offset;
+      }
+    }
+    return -1;
+  }
+
+  private int headerSize(int chunkOffset) {
+    return buffer.getShort(chunkOffset + 2) & 0xFFFF;
+  }
+
+  private int chunkSize(int chunkOffset) {
+    int size = buffer.getInt(chunkOffset + 4);
+    Preconditions.checkState(size >= Chunk.METADATA_SIZE, "Invalid chunk size at %s.", chunkOffset);
+    return size;
+  }
+
+  /** Returns a copy of the buffer positioned at {@code offset}, for relative reads. */
+  private static ByteBuffer readerAt(ByteBuffer buffer, int offset) {
+    ByteBuffer reader = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    reader.position(offset);
+    return reader;
+  }
+
+  /** The type and key strings, and the type chunks of a package. */
+  private final class PackageTypes {
+
+    private final int id;
+
+    private final StringPool typeStringPool;
+
+    private final StringPool keyStringPool;
+
+    /** The offsets of the type chunks of each type, indexed by (1-based) type id. */
+    private final List<List<Integer>> typeChunks = new ArrayList<>();
+
+    /** The decoded configurations of the type chunks, by offset. */
+    private final Map<Integer, BinaryResourceConfiguration> configurations =
+        Collections.synchronizedMap(new HashMap<>());
+
+    private PackageTypes(int packageOffset) {
+      id = buffer.getInt(packageOffset + Chunk.METADATA_SIZE);
+      typeStringPool =
+          new StringPool(buffer, packageOffset + buffer.getInt(packageOffset + TYPE_OFFSET_OFFSET));
+      keyStringPool =
+          new StringPool(buffer, packageOffset + buffer.getInt(packageOffset + KEY_OFFSET_OFFSET));
+      int end = packageOffset + chunkSize(packageOffset);
+      for (int offset = packageOffset + headerSize(packageOffset);
+          offset < end;
+          offset += chunkSize(offset)) {
+        if (buffer.getShort(offset) == Chunk.Type.TABLE_TYPE.code()) {
+          int typeId = buffer.get(offset + Chunk.METADATA_SIZE) & 0xFF;
+          while (typeChunks.size() <= typeId) {
+            typeChunks.add(new ArrayList<>());
+          }
+          typeChunks.get(typeId).add(offset);
+        }
+      }
+    }
+
+    private List<Integer> getTypeChunks(int typeId) {
+      return typeId < typeChunks.size() ? typeChunks.get(typeId) : ImmutableList.of();
+    }
+
+    private BinaryResourceConfiguration getConfiguration(int typeOffset) {
+      return configurations.computeIfAbsent(
+          typeOffset,
+          offset -> BinaryResourceConfiguration.create(readerAt(buffer, offset + 20)));
+    }
+  }
+
+  /**
+   * A resource entry for one configuration. The values of the entry are decoded from the table
+   * when they are requested.
+   */
+  public final class Entry {
+
+    private final PackageTypes packageTypes;
+
+    private final int typeOffset;
+
+    private final int entryOffset;
+
+    private Entry(PackageTypes packageTypes, int typeOffset, int entryOffset) {
+      this.packageTypes = packageTypes;
+      this.typeOffset = typeOffset;
+      this.entryOffset = entryOffset;
+    }
+
+    /** Returns the resource configuration that this entry corresponds to. */
+    public BinaryResourceConfiguration configuration() {
+      return packageTypes.getConfiguration(typeOffset);
+    }
+
+    /** Resource entry flags. */
+    public int flags() {
+      return buffer.getShort(entryOffset + 2) & 0xFFFF;
+    }
+
+    /** Returns true if this is a complex resource. */
+    public boolean isComplex() {
+      return (flags() & FLAG_COMPLEX) != 0;
+    }
+
+    /** Returns the name of the type of this entry (e.g. string, attr, id). */
+    public String typeName() {
+      int typeId = buffer.get(typeOffset + Chunk.METADATA_SIZE) & 0xFF;
+      return packageTypes.typeStringPool.getString(typeId - 1);
+    }
+
+    /** Returns the key name identifying this resource entry. */
+    public String key() {
+      return packageTypes.keyStringPool.getString(buffer.getInt(entryOffset + 4));
+    }
+
+    /** The value of this resource entry, if this is not a complex entry. Else, null. */
+    @Nullable
+    public BinaryResourceValue value() {
+      if (isComplex()) {
+        return null;
+      }
+      return BinaryResourceValue.create(readerAt(buffer, entryOffset + headerSize()));
+    }
+
+    /** The values in this resource entry if this {@link #isComplex}. */
+    public Map<Integer, BinaryResourceValue> values() {
+      Map<Integer, BinaryResourceValue> values = new LinkedHashMap<>();
+      if (isComplex()) {
+        int valueCount = buffer.getInt(entryOffset + 12);
+        ByteBuffer reader = readerAt(buffer, entryOffset + headerSize());
+        for (int i = 0; i < valueCount; ++i) {
+          values.put(reader.getInt(), BinaryResourceValue.create(reader));
+        }
+      }
+      return values;
+    }
+
+    /** The parent entry of this entry, if this {@link #isComplex}. Else, 0. */
+    public int parentEntry() {
+      return isComplex() ? buffer.getInt(entryOffset + 8) : 0;
+    }
+
+    private int headerSize() {
+      return buffer.getShort(entryOffset) & 0xFFFF;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Entry{key=%s}", key());
+    }
+  }
+
+  /**
+   * A string pool whose strings are decoded when they are requested. Recently decoded strings are
+   * cached.
+   */
+  public static final class StringPool {
+
+    private static final int UTF8_FLAG = 1 << 8;
+
+    private final ByteBuffer buffer;
+
+    private final int stringCount;
+
+    private final int offsets;
+
+    private final int stringsStart;
+
+    private final BinaryResourceString.Type stringType;
+
+    /** Recently decoded strings, indexed by the low bits of their index. */
+    private final CachedString[] cache;
+
+    private StringPool(ByteBuffer buffer, int offset) {
+      Preconditions.checkState(
+          buffer.getShort(offset) == Chunk.Type.STRING_POOL.code(),
+          "Expected a string pool at %s.",
+          offset);
+      this.buffer = buffer;
+      stringCount = buffer.getInt(offset + Chunk.METADATA_SIZE);
+      int flags = buffer.getInt(offset + 16);
+      stringsStart = offset + buffer.getInt(offset + 20);
+      offsets = offset + (buffer.getShort(offset + 2) & 0xFFFF);
+      stringType =
+          (flags & UTF8_FLAG) != 0
+              ? BinaryResourceString.Type.UTF8
+              : BinaryResourceString.Type.UTF16;
+      cache =
+          new CachedString
+              [stringCount >= CACHE_SIZE ? CACHE_SIZE : Integer.highestOneBit(stringCount) * 2];
+    }
+
+    /** Returns the number of strings in this pool. */
+    public int getStringCount() {
+      return stringCount;
+    }
+
+    /**
+     * Returns a string at the given (0-based) index.
+     *
+     * @param index The (0-based) index of the string to return.
+     * @throws IndexOutOfBoundsException If the index is out of range (index < 0 || index >=
+     *     getStringCount()).
+     */
+    public String getString(int index) {
+      if (index < 0 || index >= stringCount) {
+        throw new IndexOutOfBoundsException(
+            String.format("Index %d out of range for %d strings.", index, stringCount));
+      }
+      int slot = index & (cache.length - 1);
+      // CachedString is immutable, so a racy read of the slot is safe.
+      CachedString cached = cache[slot];
+      if (cached != null && cached.index == index) {
+        return cached.value;
+      }
+      String value =
+          BinaryResourceString.decodeString(
+              buffer, stringsStart + buffer.getInt(offsets + index * 4), stringType);
+      cache[slot] = new CachedString(index, value);
+      return value;
+    }
+
+    /** Returns the type of strings in this pool. */
+    public BinaryResourceString.Type getStringType() {
+      return stringType;
+    }
+  }
+
+  private static final class CachedString {
+
+    private final int index;
+
+    private final String value;
+
+    private CachedString(int index, String value) {
+      this.index = index;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.gmscore.tools.apk.arsc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.testutils.TestResources;
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+@RunWith(JUnit4.class)
+/** Tests {@link LazyResourceTable}. */
+public final class LazyResourceTableTest {
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /** Tests that the lazily decoded strings and entries match the ones of the chunk tree. */
+  @Test
+  public void testMatchesResourceTableChunk() throws Exception {
+    byte[] arsc = getResourceTable();
+    assertMatches(arsc, new LazyResourceTable(ByteBuffer.wrap(arsc)));
+  }
+
+  /** Tests a table backed by a memory-mapped file. */
+  @Test
+  public void testMap() throws Exception {
+    byte[] arsc = getResourceTable();
+    Path file = temporaryFolder.newFile("resources.arsc").toPath();
+    Files.write(file, arsc);
+    assertMatches(arsc, LazyResourceTable.map(file));
+  }
+
+  @Test
+  public void testUndefinedResource() throws Exception {
+    LazyResourceTable table = new LazyResourceTable(ByteBuffer.wrap(getResourceTable()));
+    assertThat(table.getEntries(0x7f7f0000)).isEmpty();
+    assertThat(table.getEntries(0x7f01ffff)).isEmpty();
+    assertThat(table.getResourceName(0x7f01ffff)).isNull();
+  }
+
+  private static void assertMatches(byte[] arsc, LazyResourceTable lazyTable) {
+    ResourceTableChunk table =
+        (ResourceTableChunk) new BinaryResourceFile(arsc).getChunks().get(0);
+
+    StringPoolChunk stringPool = table.getStringPool();
+    assertThat(lazyTable.getStringPool().getStringCount())
+        .isEqualTo(stringPool.getStringCount());
+    assertThat(lazyTable.getStringPool().getStringType()).isEqualTo(stringPool.getStringType());
+    for (int i = 0; i < stringPool.getStringCount(); ++i) {
+      assertThat(lazyTable.getStringPool().getString(i)).isEqualTo(stringPool.getString(i));
+    }
+
+    int entryCount = 0;
+    for (PackageChunk packageChunk : table.getPackages()) {
+      assertThat(lazyTable.getPackageIds()).contains(packageChunk.getId());
+      StringPoolChunk typePool = packageChunk.getTypeStringPool();
+      for (int typeId = 1; typeId <= typePool.getStringCount(); ++typeId) {
+        int maxEntries = 0;
+        for (TypeChunk typeChunk : packageChunk.getTypeChunks(typeId)) {
+          maxEntries = Math.max(maxEntries, typeChunk.getTotalEntryCount());
+        }
+        for (int index = 0; index < maxEntries; ++index) {
+          List<TypeChunk.Entry> expected = new ArrayList<>();
+          for (TypeChunk typeChunk : packageChunk.getTypeChunks(typeId)) {
+            TypeChunk.Entry entry = typeChunk.getEntries().get(index);
+            if (entry != null) {
+              expected.add(entry);
+            }
+          }
+          int resourceId =
+              BinaryResourceIdentifier.create(packageChunk.getId(), typeId, index).resourceId();
+          List<LazyResourceTable.Entry> actual = lazyTable.getEntries(resourceId);
+          assertThat(actual).hasSize(expected.size());
+          for (int i = 0; i < expected.size(); ++i) {
+            assertEntry(actual.get(i), expected.get(i));
+          }
+          if (!expected.isEmpty()) {
+            assertThat(lazyTable.getResourceName(resourceId))
+                .isEqualTo(expected.get(0).typeName() + "/" + expected.get(0).key());
+          }
+          entryCount += expected.size();
+        }
+      }
+    }
+    assertThat(entryCount).isGreaterThan(0);
+  }
+
+  private static void assertEntry(LazyResourceTable.Entry actual, TypeChunk.Entry expected) {
+    assertThat(actual.key()).isEqualTo(expected.key());
+    assertThat(actual.typeName()).isEqualTo(expected.typeName());
+    assertThat(actual.flags()).isEqualTo(expected.flags());
+    assertThat(actual.isComplex()).isEqualTo(expected.isComplex());
+    assertThat(actual.value()).isEqualTo(expected.value());
+    assertThat(actual.values()).isEqualTo(expected.values());
+    assertThat(actual.parentEntry()).isEqualTo(expected.parentEntry());
+    assertThat(actual.configuration().toByteArray(false))
+        .isEqualTo(expected.parent().getConfiguration().toByteArray(false));
+  }
+
+  private byte[] getResourceTable() throws IOException {
+    File apk = TestResources.getFile(getClass(), "/test.apk");
+    try (ZipFile apkZip = new ZipFile(apk);
+        InputStream is = apkZip.getInputStream(apkZip.getEntry("resources.arsc"))) {
+      return ByteStreams.toByteArray(is);
+    }
+  }
+}
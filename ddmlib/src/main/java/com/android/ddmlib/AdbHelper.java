@@ -865,7 +865,18 @@ public final class AdbHelper {
      */
     @Slow
     static void read(SocketChannel chan, byte[] data, int length, long timeout) throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
+        read(chan, data, 0, length != -1 ? length : data.length, timeout);
+    }
+
+    /**
+     * Reads {@code length} bytes from the socket into {@code data}, starting at {@code offset}.
+     *
+     * @see #read(SocketChannel, byte[], int, long)
+     */
+    @Slow
+    static void read(SocketChannel chan, byte[] data, int offset, int length, long timeout)
+            throws TimeoutException, IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
         int numWaits = 0;
 
         while (buf.position() != buf.limit()) {
@@ -82,6 +82,13 @@ public final class DdmPreferences {
     /** Port used by JdwpProxy feature */
     private static int sDdmCommandPort =
             getPropertyOrDefault("DDMLIB_COMMAND_PORT", 8598, Integer::parseInt);
+    /** Number of threads selecting the JDWP sockets of the clients. */
+    private static int sMonitorThreadCount =
+            getPropertyOrDefault("DDMLIB_MONITOR_THREAD_COUNT", 1, Integer::parseInt);
+    /** Maximum number of bytes waiting to be sent to a client or a debugger. */
+    private static int sJdwpMaxSendQueueSize =
+            getPropertyOrDefault(
+                    "DDMLIB_JDWP_MAX_SEND_QUEUE_SIZE", 16 * 1024 * 1024, Integer::parseInt);
 
 
   /**
@@ -269,6 +276,42 @@ public final class DdmPreferences {
         sJdwpMaxPacketSize = size;
     }
 
+    /**
+     * Returns the number of threads selecting the JDWP sockets of the clients, each thread
+     * handling a share of the clients, so that a client sending a lot of data only delays the
+     * clients of its thread.
+     */
+    public static int getMonitorThreadCount() {
+        return sMonitorThreadCount;
+    }
+
+    /**
+     * Sets the number of threads selecting the JDWP sockets of the clients.
+     *
+     * <p>With more than one thread, the DDM chunk handlers are called on the threads of the
+     * clients, and so run on more than one thread at once.
+     *
+     * <p>This must be called before {@link AndroidDebugBridge#init}.
+     */
+    public static void setMonitorThreadCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        sMonitorThreadCount = count;
+    }
+
+    /**
+     * Returns the maximum number of bytes waiting to be sent to a client or a debugger which does
+     * not read them fast enough. Clients are dropped when their queue is full.
+     */
+    public static int getJdwpMaxSendQueueSize() {
+        return sJdwpMaxSendQueueSize;
+    }
+
+    public static void setJdwpMaxSendQueueSize(int size) {
+        sJdwpMaxSendQueueSize = size;
+    }
+
     /**
      * Non accessible constructor.
      */
@@ -22,7 +22,11 @@ import com.android.ddmlib.FileListingService.FileEntry;
 import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.utils.ArrayHelper;
 import com.android.ddmlib.utils.FilePermissionUtil;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -33,13 +37,32 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
  *
  * <p>To get a {@link SyncService} object, use {@link IDevice#getSyncService()}.
+ *
+ * <p>Transfers are pipelined: the local files are read or written on a background I/O thread,
+ * through a pair of buffers, while the current thread sends or receives the other buffer. Batches
+ * of files (see {@link #pushFiles} and {@link #pullFiles}) do not wait for a round trip with the
+ * device per file.
  */
 public class SyncService implements AutoCloseable {
 
@@ -84,6 +107,18 @@ public class SyncService implements AutoCloseable {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /**
+     * Size of the buffers exchanged with the I/O thread. Several DATA packets (or several small
+     * files) are sent or received per buffer.
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 4 * (SYNC_DATA_MAX + 8);
+    /** A push does not start a DATA packet smaller than this at the end of a transfer buffer. */
+    private static final int MIN_DATA_PACKET = 4 * 1024;
+    /** Maximum number of pushed files whose OKAY has not been read yet. */
+    private static final int MAX_PENDING_ACKS = 32;
+    /** Maximum number of RECV requests sent ahead of the file being pulled. */
+    private static final int MAX_PENDING_REQUESTS = 32;
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -174,6 +209,12 @@ public class SyncService implements AutoCloseable {
      */
     private byte[] mBuffer;
 
+    /** Buffers used to pipeline transfers. Allocated when needed and reused afterward. */
+    private TransferBuffer[] mTransferBuffers;
+
+    /** The thread reading or writing the local files of transfers, started when needed. */
+    private ExecutorService mExecutor;
+
     /**
      * Creates a Sync service object.
      *
@@ -244,6 +285,10 @@ public class SyncService implements AutoCloseable {
      * Closes the connection.
      */
     public void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
         if (mChannel != null) {
             try {
                 mChannel.close();
@@ -297,7 +342,9 @@ public class SyncService implements AutoCloseable {
         // start the monitor
         monitor.start(total);
 
-        doPull(entries, localPath, fls, monitor);
+        List<TransferEntry> transferEntries = new ArrayList<>();
+        collectPullEntries(entries, localPath, fls, transferEntries);
+        doPull(transferEntries, monitor);
 
         monitor.stop();
     }
@@ -320,7 +367,10 @@ public class SyncService implements AutoCloseable {
         int total = remote.getSizeValue();
         monitor.start(total);
 
-        doPullFile(remote.getFullPath(), localFilename, monitor);
+        doPull(
+                Collections.singletonList(
+                        TransferEntry.file(remote.getFullPath(), new File(localFilename), false)),
+                monitor);
 
         monitor.stop();
     }
@@ -352,7 +402,10 @@ public class SyncService implements AutoCloseable {
         monitor.start(0);
         //TODO: use the {@link FileListingService} to get the file size.
 
-        doPullFile(remoteFilepath, localFilename, monitor);
+        doPull(
+                Collections.singletonList(
+                        TransferEntry.file(remoteFilepath, new File(localFilename), false)),
+                monitor);
 
         // Set modification and access time by default, same as adb pull -a
         if (fileStat != null) {
@@ -412,7 +465,9 @@ public class SyncService implements AutoCloseable {
 
         monitor.start(total);
 
-        doPush(fileArray, remote, monitor);
+        List<TransferEntry> transferEntries = new ArrayList<>();
+        collectPushEntries(fileArray, remote, transferEntries);
+        doPush(transferEntries, monitor);
 
         monitor.stop();
     }
@@ -440,7 +495,69 @@ public class SyncService implements AutoCloseable {
 
         monitor.start((int)f.length());
 
-        doPushFile(local, remote, monitor);
+        doPush(Collections.singletonList(TransferEntry.file(remote, f, false)), monitor);
+
+        monitor.stop();
+    }
+
+    /**
+     * Pushes several files in a single batch. This is much faster than pushing the files one by
+     * one when they are small, as the files are sent without waiting for the device to acknowledge
+     * the previous ones.
+     *
+     * @param files the local filepaths, mapped to their remote filepath. The files are pushed in
+     *     the iteration order of the map.
+     * @param monitor The progress monitor. Cannot be null.
+     * @throws SyncException if a file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void pushFiles(@NonNull Map<String, String> files, @NonNull ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        List<TransferEntry> transferEntries = new ArrayList<>(files.size());
+        int total = 0;
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            File f = new File(file.getKey());
+            if (!f.exists()) {
+                throw new SyncException(SyncError.NO_LOCAL_FILE);
+            }
+            if (f.isDirectory()) {
+                throw new SyncException(SyncError.LOCAL_IS_DIRECTORY);
+            }
+            transferEntries.add(TransferEntry.file(file.getValue(), f, true));
+            total += f.length();
+        }
+
+        monitor.start(total);
+
+        doPush(transferEntries, monitor);
+
+        monitor.stop();
+    }
+
+    /**
+     * Pulls several files in a single batch. This is much faster than pulling the files one by
+     * one when they are small, as the files are requested ahead of time. Unlike {@link
+     * #pullFile(String, String, ISyncProgressMonitor)}, this does not set the modification time of
+     * the local files, and the size of the files is unknown to the progress monitor.
+     *
+     * @param files the full paths of the remote files, mapped to their local destination. The
+     *     files are pulled in the iteration order of the map.
+     * @param monitor The progress monitor. Cannot be null.
+     * @throws SyncException if a file could not be pulled
+     * @throws IOException in case of an IO exception.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void pullFiles(@NonNull Map<String, String> files, @NonNull ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        List<TransferEntry> transferEntries = new ArrayList<>(files.size());
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            transferEntries.add(TransferEntry.file(file.getKey(), new File(file.getValue()), true));
+        }
+
+        monitor.start(0);
+
+        doPull(transferEntries, monitor);
 
         monitor.stop();
     }
@@ -497,265 +614,372 @@ public class SyncService implements AutoCloseable {
     }
 
     /**
-     * Pulls multiple files/folders recursively.
+     * Lists the files and directories to pull, in transfer order, and creates the local
+     * directories.
+     *
      * @param entries The list of entry to pull
      * @param localPath the localpath to a directory
      * @param fileListingService a FileListingService object to browse through remote directories.
-     * @param monitor the progress monitor. Must be started already.
-     *
-     * @throws SyncException if file could not be pushed
-     * @throws IOException in case of I/O error on the connection.
-     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @param transferEntries the list to add the entries to
+     * @throws SyncException if a remote path is too long
      */
-    private void doPull(FileEntry[] entries, String localPath,
+    private static void collectPullEntries(
+            FileEntry[] entries,
+            String localPath,
             FileListingService fileListingService,
-            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
-
+            List<TransferEntry> transferEntries)
+            throws SyncException {
         for (FileEntry e : entries) {
-            // check if we're cancelled
-            if (monitor.isCanceled()) {
-                throw new SyncException(SyncError.CANCELED);
-            }
-
             // get type (we only pull directory and files for now)
             int type = e.getType();
             if (type == FileListingService.TYPE_DIRECTORY) {
-                monitor.startSubTask(e.getFullPath());
                 String dest = localPath + File.separator + e.getName();
 
                 // make the directory
                 File d = new File(dest);
                 d.mkdir();
 
+                transferEntries.add(TransferEntry.directoryStart(e.getFullPath()));
                 // then recursively call the content. Since we did a ls command
                 // to get the number of files, we can use the cache
                 FileEntry[] children = fileListingService.getChildren(e, true, null);
-                doPull(children, dest, fileListingService, monitor);
-                monitor.advance(1);
+                collectPullEntries(children, dest, fileListingService, transferEntries);
+                transferEntries.add(TransferEntry.directoryEnd(e.getFullPath()));
             } else if (type == FileListingService.TYPE_FILE) {
-                monitor.startSubTask(e.getFullPath());
                 String dest = localPath + File.separator + e.getName();
-                doPullFile(e.getFullPath(), dest, monitor);
+                transferEntries.add(TransferEntry.file(e.getFullPath(), new File(dest), true));
             }
         }
     }
 
     /**
-     * Pulls a remote file
-     * @param remotePath the remote file (length max is 1024)
-     * @param localPath the local destination
+     * Pulls files. The RECV requests of up to {@link #MAX_PENDING_REQUESTS} files are sent ahead
+     * of the file being received, and the received data is written to the local files by the I/O
+     * thread, while the next packets are read from the socket into the other transfer buffer.
+     *
+     * @param entries the files to pull, in transfer order
      * @param monitor the monitor. The monitor must be started already.
-     * @throws SyncException if file could not be pushed
+     * @throws SyncException if a file could not be pulled
      * @throws IOException in case of I/O error on the connection.
      * @throws TimeoutException in case of a timeout reading responses from the device.
      */
-    private void doPullFile(String remotePath, String localPath,
-            ISyncProgressMonitor monitor) throws IOException, SyncException, TimeoutException {
-        byte[] msg = null;
-        byte[] pullResult = new byte[8];
-
+    private void doPull(List<TransferEntry> entries, ISyncProgressMonitor monitor)
+            throws IOException, SyncException, TimeoutException {
         final int timeOut = DdmPreferences.getTimeOut();
-        byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_CHARSET);
-
-        if (remotePathContent.length > REMOTE_PATH_MAX_LENGTH) {
-            throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
+        TransferBuffer[] buffers = getTransferBuffers();
+        // the buffers still hold the segments of the previous transfer, which were written already
+        for (TransferBuffer b : buffers) {
+            b.reset();
+            b.mWrite = null;
         }
+        TransferBuffer buffer = buffers[0];
+        PullWriter writer = new PullWriter();
+        byte[] pullResult = new byte[8];
+        int requested = 0;
 
-        // create the full request message
-        msg = createFileReq(ID_RECV, remotePathContent);
-
-        // and send it.
-        AdbHelper.write(mChannel, msg, -1, timeOut);
-
-        // read the result, in a byte array containing 2 ints (id, size)
-        AdbHelper.read(mChannel, pullResult, -1, timeOut);
-
-        // check we have the proper data back
-        if (!checkResult(pullResult, ID_DATA) && !checkResult(pullResult, ID_DONE)) {
-            throw new SyncException(
-                    SyncError.TRANSFER_PROTOCOL_ERROR, readErrorMessage(pullResult, timeOut));
-        }
-
-        // access the destination file
-        File f = new File(localPath);
-
-        // create the stream to write in the file. We use a new try/catch block to differentiate
-        // between file and network io exceptions.
-        FileOutputStream fos = null;
         try {
-            fos = new FileOutputStream(f);
-
-            // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            for (int i = 0; i < entries.size(); i++) {
+                TransferEntry entry = entries.get(i);
+                if (entry.mKind == TransferEntry.Kind.DIRECTORY_START) {
+                    monitor.startSubTask(entry.mRemotePath);
+                    continue;
+                } else if (entry.mKind == TransferEntry.Kind.DIRECTORY_END) {
+                    monitor.advance(1);
+                    continue;
+                }
 
-            // loop to get data until we're done.
-            while (true) {
-                // check if we're cancelled
-                if (monitor.isCanceled()) {
-                    throw new SyncException(SyncError.CANCELED);
+                // keep the device busy with the next files
+                if (requested - i < MAX_PENDING_REQUESTS / 2) {
+                    requested = sendRecvRequests(entries, requested, i + MAX_PENDING_REQUESTS);
                 }
 
-                // if we're done, we stop the loop
-                if (checkResult(pullResult, ID_DONE)) {
-                    break;
+                if (entry.mSubTask) {
+                    monitor.startSubTask(entry.mRemotePath);
                 }
-                if (!checkResult(pullResult, ID_DATA)) {
-                    // hmm there's an error
-                    throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
+
+                // read the result, in a byte array containing 2 ints (id, size)
+                AdbHelper.read(mChannel, pullResult, -1, timeOut);
+
+                // check we have the proper data back
+                if (!checkResult(pullResult, ID_DATA) && !checkResult(pullResult, ID_DONE)) {
+                    throw new SyncException(
+                            SyncError.TRANSFER_PROTOCOL_ERROR,
                             readErrorMessage(pullResult, timeOut));
                 }
-                int length = ArrayHelper.swap32bitFromArray(pullResult, 4);
-                if (length > SYNC_DATA_MAX) {
-                    // buffer overrun!
-                    // error and exit
-                    throw new SyncException(SyncError.BUFFER_OVERRUN);
-                }
 
-                // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
+                // loop to get data until we're done.
+                boolean first = true;
+                while (true) {
+                    // check if we're cancelled
+                    if (monitor.isCanceled()) {
+                        throw new SyncException(SyncError.CANCELED);
+                    }
 
-                // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
+                    // if we're done, we stop the loop
+                    if (checkResult(pullResult, ID_DONE)) {
+                        buffer.addSegment(entry.mLocalFile, 0, first, true);
+                        break;
+                    }
+                    if (!checkResult(pullResult, ID_DATA)) {
+                        // hmm there's an error
+                        throw new SyncException(
+                                SyncError.TRANSFER_PROTOCOL_ERROR,
+                                readErrorMessage(pullResult, timeOut));
+                    }
+                    int length = ArrayHelper.swap32bitFromArray(pullResult, 4);
+                    if (length > SYNC_DATA_MAX) {
+                        // buffer overrun!
+                        // error and exit
+                        throw new SyncException(SyncError.BUFFER_OVERRUN);
+                    }
 
-                // write the content in the file
-                fos.write(data, 0, length);
+                    if (buffer.remaining() < length) {
+                        // let the I/O thread write this buffer while we fill the other one
+                        buffer = writeInBackground(writer, buffer, otherBuffer(buffers, buffer));
+                    }
+
+                    // now read the length we received, and the header for the next packet
+                    AdbHelper.read(mChannel, buffer.mData, buffer.mLength, length, timeOut);
+                    buffer.addSegment(entry.mLocalFile, length, first, false);
+                    first = false;
+                    AdbHelper.read(mChannel, pullResult, -1, timeOut);
 
-                monitor.advance(length);
+                    monitor.advance(length);
+                }
             }
 
-            fos.flush();
-        } catch (IOException e) {
-            Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
-                    f.getAbsolutePath(), e.toString()));
-            throw new SyncException(SyncError.FILE_WRITE_ERROR);
+            writeInBackground(writer, buffer, otherBuffer(buffers, buffer));
+            awaitWrite(buffer);
         } finally {
-            if (fos != null) {
-                fos.close();
+            // the buffers must not be in use by the I/O thread after we return
+            for (TransferBuffer b : buffers) {
+                if (b.mWrite != null) {
+                    awaitQuietly(b.mWrite);
+                    b.mWrite = null;
+                }
             }
+            awaitQuietly(getExecutor().submit(writer::close));
+        }
+    }
+
+    /**
+     * Sends the RECV requests of the files in {@code entries}, from {@code start} to {@code end}
+     * (exclusive, clamped to the size of {@code entries}) in a single write.
+     *
+     * @return the index of the first entry not requested yet
+     */
+    private int sendRecvRequests(List<TransferEntry> entries, int start, int end)
+            throws TimeoutException, IOException {
+        end = Math.min(end, entries.size());
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = start; i < end; i++) {
+            TransferEntry entry = entries.get(i);
+            if (entry.mKind == TransferEntry.Kind.FILE) {
+                requests.write(
+                        createFileReq(
+                                ID_RECV, entry.mRemotePath.getBytes(AdbHelper.DEFAULT_CHARSET)));
+            }
+        }
+        if (requests.size() > 0) {
+            AdbHelper.write(mChannel, requests.toByteArray(), -1, DdmPreferences.getTimeOut());
+        }
+        return end;
+    }
+
+    /**
+     * Submits the write of {@code buffer} to the local files on the I/O thread, and returns
+     * {@code next} once it is available to receive more data.
+     */
+    private TransferBuffer writeInBackground(
+            PullWriter writer, TransferBuffer buffer, TransferBuffer next)
+            throws IOException, SyncException, TimeoutException {
+        buffer.mWrite =
+                getExecutor()
+                        .submit(
+                                () -> {
+                                    writer.write(buffer);
+                                    return null;
+                                });
+        awaitWrite(next);
+        next.reset();
+        return next;
+    }
+
+    /** Waits for the pending write of {@code buffer}, if any, and rethrows its failure. */
+    private static void awaitWrite(TransferBuffer buffer)
+            throws IOException, SyncException, TimeoutException {
+        Future<?> write = buffer.mWrite;
+        if (write == null) {
+            return;
+        }
+        buffer.mWrite = null;
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Throw a timeout exception in place of interrupted exception to avoid API changes.
+            throw new TimeoutException("Pull interrupted with immediate timeout via interruption.");
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), SyncException.class);
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** Waits for a task of the I/O thread, ignoring its failure. */
+    private static void awaitQuietly(Future<?> future) {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            // we want to throw the original exception, so we ignore this one.
         }
     }
 
+    private static TransferBuffer otherBuffer(TransferBuffer[] buffers, TransferBuffer buffer) {
+        return buffers[0] == buffer ? buffers[1] : buffers[0];
+    }
 
     /**
-     * Push multiple files
-     * @param fileArray
-     * @param remotePath
-     * @param monitor
+     * Lists the files and directories to push, in transfer order.
      *
-     * @throws SyncException if file could not be pushed
-     * @throws IOException in case of I/O error on the connection.
-     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @param fileArray the local files and directories
+     * @param remotePath the remote directory
+     * @param transferEntries the list to add the entries to
+     * @throws SyncException if a remote path is too long
      */
-    private void doPush(File[] fileArray, String remotePath, ISyncProgressMonitor monitor)
-            throws SyncException, IOException, TimeoutException {
+    private static void collectPushEntries(
+            File[] fileArray, String remotePath, List<TransferEntry> transferEntries)
+            throws SyncException {
         for (File f : fileArray) {
-            // check if we're canceled
-            if (monitor.isCanceled()) {
-                throw new SyncException(SyncError.CANCELED);
-            }
             if (f.exists()) {
                 if (f.isDirectory()) {
                     // append the name of the directory to the remote path
                     String dest = remotePath + "/" + f.getName(); // $NON-NLS-1S
-                    monitor.startSubTask(dest);
-                    doPush(f.listFiles(), dest, monitor);
-
-                    monitor.advance(1);
+                    transferEntries.add(TransferEntry.directoryStart(dest));
+                    File[] children = f.listFiles();
+                    if (children != null) {
+                        collectPushEntries(children, dest, transferEntries);
+                    }
+                    transferEntries.add(TransferEntry.directoryEnd(dest));
                 } else if (f.isFile()) {
                     // append the name of the file to the remote path
                     String remoteFile = remotePath + "/" + f.getName(); // $NON-NLS-1S
-                    monitor.startSubTask(remoteFile);
-                    doPushFile(f.getAbsolutePath(), remoteFile, monitor);
+                    transferEntries.add(TransferEntry.file(remoteFile, f, true));
                 }
             }
         }
     }
 
     /**
-     * Push a single file
-     * @param localPath the local file to push
-     * @param remotePath the remote file (length max is 1024)
-     * @param monitor the monitor. The monitor must be started already.
+     * Pushes files. A {@link PushReader} reads the local files on the I/O thread and packs their
+     * SEND, DATA and DONE packets in transfer buffers, while the current thread sends the other
+     * buffer to the device. The OKAY acknowledging a file is only read once more than {@link
+     * #MAX_PENDING_ACKS} files are sent, so that small files do not wait for a round trip each.
      *
-     * @throws SyncException if file could not be pushed
+     * @param entries the files to push, in transfer order
+     * @param monitor the monitor. The monitor must be started already.
+     * @throws SyncException if a file could not be pushed
      * @throws IOException in case of I/O error on the connection.
      * @throws TimeoutException in case of a timeout reading responses from the device.
      */
-    private void doPushFile(String localPath, String remotePath,
-            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
-        FileInputStream fis = null;
-        byte[] msg;
-
+    private void doPush(List<TransferEntry> entries, ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
         final int timeOut = DdmPreferences.getTimeOut();
-        File f = new File(localPath);
+        TransferBuffer[] buffers = getTransferBuffers();
+        for (TransferBuffer buffer : buffers) {
+            buffer.reset();
+        }
+        PushReader reader = new PushReader(entries, buffers);
+        Future<?> readerFuture = getExecutor().submit(reader);
+        // The remote paths of the files whose SEND was written but whose reply was not read yet.
+        // The device replies to each file in order, with an OKAY or a FAIL.
+        Deque<String> pendingFiles = new ArrayDeque<>();
+        int pendingAcks = 0;
 
         try {
-            byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_CHARSET);
-
-            if (remotePathContent.length > REMOTE_PATH_MAX_LENGTH) {
-                throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
-            }
-
-            // create the stream to read the file
-            fis = new FileInputStream(f);
-
-            int permissions = FilePermissionUtil.getFilePosixPermission(f);
-            // create the header for the action
-            msg = createSendFileReq(ID_SEND, remotePathContent, permissions);
-
-            // and send it. We use a custom try/catch block to make the difference between
-            // file and network IO exceptions.
-            AdbHelper.write(mChannel, msg, -1, timeOut);
-
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
-
-            // look while there is something to read
             while (true) {
+                TransferBuffer buffer = reader.takeFilled();
+                if (buffer.mError != null) {
+                    Throwables.throwIfInstanceOf(buffer.mError, IOException.class);
+                    Throwables.throwIfUnchecked(buffer.mError);
+                    throw new RuntimeException(buffer.mError);
+                }
+
+                for (String subTask : buffer.mSubTasks) {
+                    monitor.startSubTask(subTask);
+                }
                 // check if we're canceled
                 if (monitor.isCanceled()) {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
-
-                if (readCount == -1) {
-                    // we reached the end of the file
-                    break;
+                // now send the data to the device
+                pendingFiles.addAll(buffer.mSentFiles);
+                try {
+                    AdbHelper.write(mChannel, buffer.mData, buffer.mLength, timeOut);
+                } catch (IOException e) {
+                    // The device ends the sync service after failing a file, so a write fails if
+                    // the FAIL of a file sent earlier was not read yet.
+                    readPushFailure(pendingFiles, e, timeOut);
+                    throw e;
                 }
+                monitor.advance(buffer.mWork);
 
-                // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
+                pendingAcks += buffer.mDoneCount;
+                boolean last = buffer.mLast;
+                reader.release(buffer);
 
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+                // read the results, in byte arrays containing 2 ints (id, size)
+                while (pendingAcks > (last ? 0 : MAX_PENDING_ACKS)) {
+                    readPushResult(pendingFiles.remove(), timeOut);
+                    pendingAcks--;
+                }
 
-                // and advance the monitor
-                monitor.advance(readCount);
+                if (last) {
+                    break;
+                }
             }
         } finally {
-            // close the local file
-            if (fis != null) {
-                fis.close();
-            }
+            // the buffers must not be in use by the I/O thread after we return
+            reader.cancel();
+            awaitQuietly(readerFuture);
         }
+    }
 
-        // create the DONE message
-        long time = f.lastModified() / 1000;
-        msg = createReq(ID_DONE, (int)time);
-
-        // and send it.
-        AdbHelper.write(mChannel, msg, -1, timeOut);
-
-        // read the result, in a byte array containing 2 ints
-        // (id, size)
+    /**
+     * Reads the reply of the device to the push of {@code remotePath}.
+     *
+     * @throws SyncException if the device failed to write the file
+     */
+    private void readPushResult(String remotePath, int timeOut)
+            throws SyncException, IOException, TimeoutException {
         byte[] result = new byte[8];
         AdbHelper.read(mChannel, result, -1 /* full length */, timeOut);
-
         if (!checkResult(result, ID_OKAY)) {
-            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
-                    readErrorMessage(result, timeOut));
+            throw new SyncException(
+                    SyncError.TRANSFER_PROTOCOL_ERROR,
+                    remotePath + ": " + readErrorMessage(result, timeOut));
+        }
+    }
+
+    /**
+     * Reads the replies to the files pushed before a write to the device failed.
+     *
+     * @throws SyncException naming the file the device failed, if it replied with a FAIL
+     */
+    private void readPushFailure(Deque<String> pendingFiles, IOException writeError, int timeOut)
+            throws SyncException {
+        try {
+            while (!pendingFiles.isEmpty()) {
+                readPushResult(pendingFiles.remove(), timeOut);
+            }
+        } catch (SyncException e) {
+            e.initCause(writeError);
+            throw e;
+        } catch (IOException | TimeoutException e) {
+            // the connection is gone, the write error is reported instead
+            writeError.addSuppressed(e);
         }
     }
 
@@ -933,4 +1157,348 @@ public class SyncService implements AutoCloseable {
         }
         return mBuffer;
     }
+
+    private TransferBuffer[] getTransferBuffers() {
+        if (mTransferBuffers == null) {
+            mTransferBuffers = new TransferBuffer[] {new TransferBuffer(), new TransferBuffer()};
+        }
+        return mTransferBuffers;
+    }
+
+    private ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor =
+                    Executors.newSingleThreadExecutor(
+                            r -> {
+                                Thread thread = new Thread(r, "Sync Service I/O");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        }
+        return mExecutor;
+    }
+
+    /** A file, or the start or end of a directory, in a transfer. */
+    private static final class TransferEntry {
+
+        enum Kind {
+            FILE,
+            DIRECTORY_START,
+            DIRECTORY_END
+        }
+
+        @NonNull final Kind mKind;
+
+        @NonNull final String mRemotePath;
+
+        /** The local file, for {@link Kind#FILE} entries. */
+        @Nullable final File mLocalFile;
+
+        /** Whether the transfer of the file is reported as a sub task. */
+        final boolean mSubTask;
+
+        private TransferEntry(
+                @NonNull Kind kind,
+                @NonNull String remotePath,
+                @Nullable File localFile,
+                boolean subTask) {
+            mKind = kind;
+            mRemotePath = remotePath;
+            mLocalFile = localFile;
+            mSubTask = subTask;
+        }
+
+        static TransferEntry file(
+                @NonNull String remotePath, @NonNull File localFile, boolean subTask)
+                throws SyncException {
+            if (remotePath.getBytes(AdbHelper.DEFAULT_CHARSET).length > REMOTE_PATH_MAX_LENGTH) {
+                throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
+            }
+            return new TransferEntry(Kind.FILE, remotePath, localFile, subTask);
+        }
+
+        static TransferEntry directoryStart(@NonNull String remotePath) {
+            return new TransferEntry(Kind.DIRECTORY_START, remotePath, null, true);
+        }
+
+        static TransferEntry directoryEnd(@NonNull String remotePath) {
+            return new TransferEntry(Kind.DIRECTORY_END, remotePath, null, false);
+        }
+    }
+
+    /** The part of a pulled file held by a {@link TransferBuffer}. */
+    private static final class FileSegment {
+
+        @NonNull final File mFile;
+
+        final int mStart;
+
+        int mEnd;
+
+        /** Whether the segment starts the file. */
+        final boolean mOpen;
+
+        /** Whether the segment ends the file. */
+        boolean mClose;
+
+        FileSegment(@NonNull File file, int start, int end, boolean open, boolean close) {
+            mFile = file;
+            mStart = start;
+            mEnd = end;
+            mOpen = open;
+            mClose = close;
+        }
+    }
+
+    /**
+     * A buffer exchanged between the thread talking to the device and the I/O thread. For a push,
+     * it holds the packets to send; for a pull, the data received for the local files.
+     */
+    private static final class TransferBuffer {
+
+        final byte[] mData = new byte[TRANSFER_BUFFER_SIZE];
+
+        /** The number of bytes used in {@link #mData}. */
+        int mLength;
+
+        /** The progress made by the transfer of this buffer. */
+        int mWork;
+
+        /** The sub tasks started by the transfer of this buffer. */
+        final List<String> mSubTasks = new ArrayList<>();
+
+        /** Push: the remote paths of the files started (with a SEND packet) in this buffer. */
+        final List<String> mSentFiles = new ArrayList<>();
+
+        /** Push: the number of files ended (with a DONE packet) in this buffer. */
+        int mDoneCount;
+
+        /** Push: whether this is the last buffer of the transfer. */
+        boolean mLast;
+
+        /** Push: the error reading the local files, if any. Always set on the last buffer. */
+        @Nullable Exception mError;
+
+        /** Pull: the parts of local files held by this buffer. */
+        final List<FileSegment> mSegments = new ArrayList<>();
+
+        /** Pull: the pending write of this buffer to the local files, if any. */
+        @Nullable Future<?> mWrite;
+
+        void reset() {
+            mLength = 0;
+            mWork = 0;
+            mSubTasks.clear();
+            mSentFiles.clear();
+            mDoneCount = 0;
+            mLast = false;
+            mError = null;
+            mSegments.clear();
+        }
+
+        int remaining() {
+            return mData.length - mLength;
+        }
+
+        void put(byte[] bytes) {
+            System.arraycopy(bytes, 0, mData, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+
+        /** Adds the header of a packet whose {@code length} bytes of data were already copied. */
+        void putPacket(byte[] id, int length) {
+            System.arraycopy(id, 0, mData, mLength, id.length);
+            ArrayHelper.swap32bitsToArray(length, mData, mLength + 4);
+            mLength += 8 + length;
+        }
+
+        /** Adds {@code length} bytes of {@code file}, which were already copied to the buffer. */
+        void addSegment(@NonNull File file, int length, boolean open, boolean close) {
+            FileSegment last = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+            if (!open && last != null) {
+                last.mEnd += length;
+                last.mClose = close;
+            } else {
+                mSegments.add(new FileSegment(file, mLength, mLength + length, open, close));
+            }
+            mLength += length;
+        }
+    }
+
+    /**
+     * Reads the local files of a push on the I/O thread, and packs their packets in transfer
+     * buffers. A buffer is handed to the sending thread once full, and handed back once sent.
+     */
+    private static final class PushReader implements Runnable {
+
+        private final List<TransferEntry> mEntries;
+
+        private final BlockingQueue<TransferBuffer> mFree;
+
+        private final BlockingQueue<TransferBuffer> mFilled;
+
+        private volatile boolean mCanceled;
+
+        private TransferBuffer mBuffer;
+
+        PushReader(@NonNull List<TransferEntry> entries, @NonNull TransferBuffer[] buffers) {
+            mEntries = entries;
+            mFree = new ArrayBlockingQueue<>(buffers.length, false, Arrays.asList(buffers));
+            mFilled = new ArrayBlockingQueue<>(buffers.length);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mBuffer = takeFree();
+                for (TransferEntry entry : mEntries) {
+                    switch (entry.mKind) {
+                        case DIRECTORY_START:
+                            mBuffer.mSubTasks.add(entry.mRemotePath);
+                            break;
+                        case DIRECTORY_END:
+                            mBuffer.mWork++;
+                            break;
+                        case FILE:
+                            readFile(entry);
+                            break;
+                    }
+                }
+                mBuffer.mLast = true;
+            } catch (CancellationException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                mBuffer.mError = e;
+                mBuffer.mLast = true;
+            }
+            mFilled.add(mBuffer);
+        }
+
+        private void readFile(@NonNull TransferEntry entry) throws IOException {
+            File f = entry.mLocalFile;
+            try (FileInputStream fis = new FileInputStream(f)) {
+                int permissions = FilePermissionUtil.getFilePosixPermission(f);
+                // create the header for the action
+                byte[] msg =
+                        createSendFileReq(
+                                ID_SEND,
+                                entry.mRemotePath.getBytes(AdbHelper.DEFAULT_CHARSET),
+                                permissions);
+                ensureRemaining(msg.length);
+                mBuffer.put(msg);
+                mBuffer.mSentFiles.add(entry.mRemotePath);
+                if (entry.mSubTask) {
+                    mBuffer.mSubTasks.add(entry.mRemotePath);
+                }
+
+                // read DATA packets until the end of the file
+                while (true) {
+                    ensureRemaining(8 + MIN_DATA_PACKET);
+                    int capacity = Math.min(SYNC_DATA_MAX, mBuffer.remaining() - 8);
+                    int readCount = ByteStreams.read(fis, mBuffer.mData, mBuffer.mLength + 8,
+                            capacity);
+                    if (readCount > 0) {
+                        mBuffer.putPacket(ID_DATA, readCount);
+                        mBuffer.mWork += readCount;
+                    }
+                    if (readCount < capacity) {
+                        // we reached the end of the file
+                        break;
+                    }
+                }
+            }
+
+            // create the DONE message
+            long time = f.lastModified() / 1000;
+            ensureRemaining(8);
+            mBuffer.put(createReq(ID_DONE, (int) time));
+            mBuffer.mDoneCount++;
+        }
+
+        private void ensureRemaining(int length) {
+            if (mBuffer.remaining() < length) {
+                mFilled.add(mBuffer);
+                mBuffer = takeFree();
+            }
+        }
+
+        @NonNull
+        private TransferBuffer takeFree() {
+            try {
+                while (!mCanceled) {
+                    // poll, so that a cancellation is noticed while the buffers are being sent
+                    TransferBuffer buffer = mFree.poll(100, TimeUnit.MILLISECONDS);
+                    if (buffer != null) {
+                        return buffer;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new CancellationException();
+        }
+
+        /** Returns the next buffer to send, waiting for it if needed. */
+        @NonNull
+        TransferBuffer takeFilled() throws TimeoutException {
+            try {
+                return mFilled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // Throw a timeout exception in place of interrupted exception to avoid API changes.
+                throw new TimeoutException(
+                        "Push interrupted with immediate timeout via interruption.");
+            }
+        }
+
+        /** Hands back a buffer once sent. */
+        void release(@NonNull TransferBuffer buffer) {
+            buffer.reset();
+            mFree.add(buffer);
+        }
+
+        void cancel() {
+            mCanceled = true;
+        }
+    }
+
+    /** Writes the data received by a pull to the local files, on the I/O thread. */
+    private static final class PullWriter {
+
+        @Nullable private FileOutputStream mOutput;
+
+        void write(@NonNull TransferBuffer buffer) throws SyncException {
+            for (FileSegment segment : buffer.mSegments) {
+                try {
+                    if (segment.mOpen) {
+                        close();
+                        mOutput = new FileOutputStream(segment.mFile);
+                    }
+                    mOutput.write(buffer.mData, segment.mStart, segment.mEnd - segment.mStart);
+                    if (segment.mClose) {
+                        FileOutputStream output = mOutput;
+                        mOutput = null;
+                        output.close();
+                    }
+                } catch (IOException e) {
+                    Log.e("ddms", String.format(
+                            "Failed to open local file %s for writing, Reason: %s",
+                            segment.mFile.getAbsolutePath(), e.toString()));
+                    throw new SyncException(SyncError.FILE_WRITE_ERROR);
+                }
+            }
+        }
+
+        /** Closes the file being written, if any. */
+        void close() {
+            if (mOutput != null) {
+                try {
+                    mOutput.close();
+                } catch (IOException e) {
+                    // nothing to be done really...
+                }
+                mOutput = null;
+            }
+        }
+    }
 }
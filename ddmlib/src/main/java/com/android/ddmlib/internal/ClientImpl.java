@@ -67,6 +67,9 @@ public class ClientImpl extends JdwpPipe implements Client {
      */
     private volatile SocketChannel mChan;
 
+    /** Packets waiting for the client to read them. */
+    private final JdwpSendQueue mSendQueue;
+
     // debugger we're associated with, if any
     private Debugger mDebugger;
 
@@ -122,6 +125,7 @@ public class ClientImpl extends JdwpPipe implements Client {
         super(new JdwpProtocol());
         mDevice = device;
         mChan = chan;
+        mSendQueue = new JdwpSendQueue(chan, DdmPreferences.getJdwpMaxSendQueueSize());
         mReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
 
         mConnState = ST_INIT;
@@ -529,10 +533,20 @@ public class ClientImpl extends JdwpPipe implements Client {
         // synchronization here.
         SocketChannel chan = mChan;
         if (chan != null) {
-            chan.register(sel, SelectionKey.OP_READ, this);
+            mSendQueue.setKey(chan.register(sel, SelectionKey.OP_READ, this));
         }
     }
 
+    /** Writes the queued packets the client is ready to read, called when selected for WRITE. */
+    void flushSendQueue() throws IOException {
+        mSendQueue.flush();
+    }
+
+    /** Returns the queue of the packets waiting for the client to read them. */
+    JdwpSendQueue getSendQueue() {
+        return mSendQueue;
+    }
+
     /**
      * Tell the client to open a server socket channel and listen for connections on the specified
      * port.
@@ -554,7 +568,8 @@ public class ClientImpl extends JdwpPipe implements Client {
             int expectedLen = tempBuffer.position();
             tempBuffer.flip();
             // synchronization on mChan not needed because it's called only once immediately after
-            // object creation.
+            // object creation. For the same reason it does not go through mSendQueue: the channel
+            // is not registered with the selector yet, and the queue only holds packets once it is.
             if (Log.Config.LOGV) {
                 Log.v("ddms-client", ">>> Writing " + tempBuffer.remaining() + " bytes to socket (handshake)");
                 Log.hexDump("ddms", Log.LogLevel.VERBOSE, tempBuffer.array(),
@@ -622,13 +637,11 @@ public class ClientImpl extends JdwpPipe implements Client {
             return;
         }
 
-        synchronized (chan) {
-            try {
-                p.write(chan);
-            } catch (IOException ioe) {
-                removeReplyInterceptor(p.getId());
-                throw ioe;
-            }
+        try {
+            mSendQueue.send(p);
+        } catch (IOException ioe) {
+            removeReplyInterceptor(p.getId());
+            throw ioe;
         }
     }
 
@@ -25,6 +25,7 @@ import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.ClientData;
 import com.android.ddmlib.ClientData.DebuggerStatus;
 import com.android.ddmlib.DDMLibJdwpTracer;
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.JdwpHandshake;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.internal.jdwp.chunkhandler.JdwpPacket;
@@ -75,6 +76,9 @@ public class Debugger extends JdwpPipe {
     /* this goes up and down; synchronize methods that access the field */
     private SocketChannel mChannel;
 
+    /* packets waiting for the debugger to read them, while mChannel is connected */
+    private JdwpSendQueue mSendQueue;
+
     // JDWP events are forwarded to this tracer. In the default DDMLib configuration this is a
     // no-op.
     private final DDMLibJdwpTracer jdwpTracer;
@@ -160,6 +164,28 @@ public class Debugger extends JdwpPipe {
         mListenChannel.register(sel, SelectionKey.OP_ACCEPT, this);
     }
 
+    /**
+     * Registers the debugger's data socket, returned by {@link #accept}, with the Selector for
+     * READ.
+     */
+    synchronized void registerData(Selector sel) throws IOException {
+        if (mChannel != null) {
+            mSendQueue.setKey(mChannel.register(sel, SelectionKey.OP_READ, this));
+        }
+    }
+
+    /** Writes the queued packets the debugger is ready to read, called when selected for WRITE. */
+    synchronized void flushSendQueue() throws IOException {
+        if (mSendQueue != null) {
+            mSendQueue.flush();
+        }
+    }
+
+    /** Returns the number of bytes waiting for the debugger to read them. */
+    synchronized int getQueuedBytes() {
+        return mSendQueue != null ? mSendQueue.getQueuedBytes() : 0;
+    }
+
     /** Return the Client being debugged. */
     ClientImpl getClient() {
         return mClient;
@@ -200,6 +226,7 @@ public class Debugger extends JdwpPipe {
             }
             mChannel = newChan;
             mChannel.configureBlocking(false);         // required for Selector
+            mSendQueue = new JdwpSendQueue(mChannel, DdmPreferences.getJdwpMaxSendQueueSize());
             mConnState = ST_AWAIT_SHAKE;
             return mChannel;
         }
@@ -215,6 +242,7 @@ public class Debugger extends JdwpPipe {
             if (mChannel != null) {
                 mChannel.close();
                 mChannel = null;
+                mSendQueue = null;
                 mConnState = ST_NOT_CONNECTED;
 
                 ClientData cd = mClient.getClientData();
@@ -405,22 +433,18 @@ public class Debugger extends JdwpPipe {
      * if anything at all).
      */
     private synchronized void sendHandshake() throws IOException {
+        // Through the send queue, like the packets of the client, since the debugger may not
+        // read them all at once.
         ByteBuffer tempBuffer = ByteBuffer.allocate(JdwpHandshake.HANDSHAKE_LEN);
         JdwpHandshake.putHandshake(tempBuffer);
-        int expectedLength = tempBuffer.position();
         tempBuffer.flip();
-        if (mChannel.write(tempBuffer) != expectedLength) {
-            throw new IOException("partial handshake write");
-        }
+        mSendQueue.send(tempBuffer);
 
-        expectedLength = mPreDataBuffer.position();
-        if (expectedLength > 0) {
+        if (mPreDataBuffer.position() > 0) {
             Log.d("ddms", "Sending " + mPreDataBuffer.position()
                     + " bytes of saved data");
             mPreDataBuffer.flip();
-            if (mChannel.write(mPreDataBuffer) != expectedLength) {
-                throw new IOException("partial pre-data write");
-            }
+            mSendQueue.send(mPreDataBuffer);
             mPreDataBuffer.clear();
         }
     }
@@ -458,7 +482,7 @@ public class Debugger extends JdwpPipe {
                         + Integer.toHexString(packet.getId()));
                 packet.move(mPreDataBuffer);
             } else {
-                packet.write(mChannel);
+                mSendQueue.send(packet);
             }
         }
     }
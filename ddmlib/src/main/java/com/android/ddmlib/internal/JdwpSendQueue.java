@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.internal;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.internal.jdwp.chunkhandler.JdwpPacket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of the bytes waiting to be written to the non-blocking {@link SocketChannel} of a
+ * client or a debugger.
+ *
+ * <p>A packet is written directly to the channel when nothing is queued. What the channel does not
+ * accept is copied to the queue and the channel is selected for WRITE, so that the {@link
+ * MonitorThread} writes the rest when the peer reads, instead of the sending thread spinning on
+ * the channel.
+ *
+ * <p>Until the channel is registered with a selector, packets are written by spinning on the
+ * channel, as before.
+ */
+final class JdwpSendQueue {
+
+    @NonNull private final SocketChannel mChannel;
+
+    private final int mMaxQueuedBytes;
+
+    @Nullable private volatile SelectionKey mKey;
+
+    @NonNull private final ArrayDeque<ByteBuffer> mQueue = new ArrayDeque<>();
+
+    private volatile int mQueuedBytes;
+
+    private volatile int mQueuedBytesHighWaterMark;
+
+    JdwpSendQueue(@NonNull SocketChannel channel, int maxQueuedBytes) {
+        mChannel = channel;
+        mMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    /** Sets the key of the channel, from which point writes no longer block. */
+    void setKey(@NonNull SelectionKey key) {
+        mKey = key;
+    }
+
+    /**
+     * Writes the packet to the channel, queuing what the channel does not accept.
+     *
+     * @throws IOException if the channel fails, or if the queue is full, in which case the peer is
+     *     not reading its data and should be dropped.
+     */
+    synchronized void send(@NonNull JdwpPacket packet) throws IOException {
+        if (mKey == null) {
+            packet.write(mChannel);
+            return;
+        }
+        send(packet.getPacketBuffer());
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer to the channel, after the queued ones, such as a
+     * handshake or bytes saved before the channel was connected.
+     *
+     * @throws IOException if the channel fails, or if the queue is full
+     */
+    synchronized void send(@NonNull ByteBuffer buffer) throws IOException {
+        SelectionKey key = mKey;
+        if (key == null) {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+            return;
+        }
+
+        if (mQueue.isEmpty()) {
+            mChannel.write(buffer);
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+        } else if (mQueuedBytes + buffer.remaining() > mMaxQueuedBytes) {
+            throw new IOException(
+                    "Send queue full (" + mQueuedBytes + " bytes), peer is not reading");
+        }
+
+        // The packet may be a view of a read buffer which is about to be reused, so copy it.
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        mQueue.add(copy);
+        mQueuedBytes += copy.remaining();
+        mQueuedBytesHighWaterMark = Math.max(mQueuedBytesHighWaterMark, mQueuedBytes);
+        if (Log.Config.LOGV) {
+            Log.v("jdwp", "Queued " + copy.remaining() + " bytes, " + mQueuedBytes + " in queue");
+        }
+        setInterest(key, key.interestOps() | SelectionKey.OP_WRITE);
+        key.selector().wakeup();
+    }
+
+    /**
+     * Writes the queued bytes the channel accepts, called when the channel is selected for WRITE.
+     * The channel is no longer selected for WRITE once the queue is empty.
+     */
+    synchronized void flush() throws IOException {
+        while (!mQueue.isEmpty()) {
+            ByteBuffer buffer = mQueue.peek();
+            int written = mChannel.write(buffer);
+            mQueuedBytes -= written;
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            mQueue.remove();
+        }
+        SelectionKey key = mKey;
+        if (key != null) {
+            setInterest(key, key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /** Returns the number of bytes waiting to be written. */
+    int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /** Returns the largest number of bytes which have been waiting to be written at once. */
+    int getQueuedBytesHighWaterMark() {
+        return mQueuedBytesHighWaterMark;
+    }
+
+    private static void setInterest(@NonNull SelectionKey key, int ops) throws IOException {
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            throw new IOException("Channel closed", e);
+        }
+    }
+}
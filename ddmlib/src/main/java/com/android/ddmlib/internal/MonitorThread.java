@@ -16,7 +16,9 @@
 
 package com.android.ddmlib.internal;
 
+import com.android.annotations.NonNull;
 import com.android.ddmlib.DdmJdwpExtension;
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
@@ -31,9 +33,11 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /* Singleton Thread (which should really be named JDWPThread), bridging JDWP duplex traffic between
@@ -51,8 +55,9 @@ import java.util.Set;
  *
  *  Then data is incoming, the selector triggers. A full JDWP packet is read and forwarded to
  *  the ClientImpl.
- *  - WRITE operations (toward the Android VM) do NOT go through the selector, the socket write()
- *    are directly performed from the ClientImpl.
+ *  - WRITE operations (toward the Android VM) are performed from the ClientImpl. Only what the
+ *    socket does not accept is queued in the client's [JdwpSendQueue], and the socket is then
+ *    selected for WRITE until the queue is drained.
  *  - In this case, the traffic consist in JDWP extension (ID > 127).
  *
  *
@@ -77,6 +82,11 @@ import java.util.Set;
  *
  *     3/ When either of the socket pair triggers for READ, the socket buffer is emptied and written
  *        in the matching paired socket.
+ *
+ *  Clients are spread over DdmPreferences#getMonitorThreadCount() selectors, each with its own
+ *  thread, so that a client with a lot of traffic (e.g. a heap dump) does not delay the others.
+ *  The first selector is run by this thread, the others by "Monitor-N" threads. A client and its
+ *  debugger are always on the same selector.
  */
 public final class MonitorThread extends Thread {
 
@@ -88,8 +98,11 @@ public final class MonitorThread extends Thread {
     // Used for locking so final.
     private final ArrayList<ClientImpl> mClientList;
 
-    // The almighty mux
-    private Selector mSelector;
+    // The almighty muxes, the first one run by this thread
+    private final SelectorLoop[] mLoops;
+
+    // Selector loop of each client, guarded by mClientList
+    private final Map<ClientImpl, SelectorLoop> mClientLoops = new HashMap<>();
 
     private final List<JdwpExtension> mJdwpExtensions;
 
@@ -105,6 +118,10 @@ public final class MonitorThread extends Thread {
         mDdmJdwpExtension = new DdmJdwpExtension();
         mJdwpExtensions = new LinkedList<>();
         mJdwpExtensions.add(mDdmJdwpExtension);
+        mLoops = new SelectorLoop[Math.max(1, DdmPreferences.getMonitorThreadCount())];
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i] = new SelectorLoop(i == 0 ? getName() : getName() + "-" + i);
+        }
     }
 
     /**
@@ -134,7 +151,13 @@ public final class MonitorThread extends Thread {
         }
     }
 
-    /** Register "handler" as the handler for type "type". */
+    /**
+     * Register "handler" as the handler for type "type".
+     *
+     * <p>With more than one selector thread (see {@link DdmPreferences#getMonitorThreadCount()}),
+     * the handler is called on the threads of the clients it handles chunks for, so it may run on
+     * several threads at once and must be thread-safe.
+     */
     public synchronized void registerChunkHandler(int type, ChunkHandler handler) {
         if (sInstance == null) {
             return;
@@ -149,73 +172,58 @@ public final class MonitorThread extends Thread {
     public void run() {
         Log.d("ddms", "Monitor is up");
 
-        // create a selector
+        // create the selectors
         try {
-            mSelector = Selector.open();
+            for (SelectorLoop loop : mLoops) {
+                loop.mSelector = Selector.open();
+            }
         } catch (IOException ioe) {
             Log.logAndDisplay(LogLevel.ERROR, "ddms",
                     "Failed to initialize Monitor Thread: " + ioe.getMessage());
             return;
         }
 
-        while (!mQuit) {
-
-            try {
-                /*
-                 * sync with new registrations: we wait until addClient is done before going through
-                 * and doing mSelector.select() again.
-                 * @see {@link #addClient(Client)}
-                 */
-                synchronized (mClientList) {
-                }
-
-                int count;
-                try {
-                    count = mSelector.select();
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                    continue;
-                } catch (CancelledKeyException cke) {
-                    continue;
-                }
-
-                if (count == 0) {
-                    // somebody called wakeup() ?
-                    // Log.i("ddms", "selector looping");
-                    continue;
-                }
-
-                Set<SelectionKey> keys = mSelector.selectedKeys();
-                Iterator<SelectionKey> iter = keys.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
+        for (int i = 1; i < mLoops.length; i++) {
+            Thread thread = new Thread(mLoops[i]::run, mLoops[i].mName);
+            thread.setDaemon(isDaemon());
+            mLoops[i].mThread = thread;
+            thread.start();
+        }
+        mLoops[0].run();
+    }
 
-                    try {
-                        if (key.attachment() instanceof ClientImpl) {
-                            processClientActivity(key);
-                        }
-                        else if (key.attachment() instanceof Debugger) {
-                            processDebuggerActivity(key);
-                        }
-                        else {
-                            Log.e("ddms", "unknown activity key");
+    /** Returns the activity statistics of each selector, the first one being run by this thread. */
+    @NonNull
+    public List<SelectorStats> getSelectorStats() {
+        List<SelectorStats> stats = new ArrayList<>(mLoops.length);
+        synchronized (mClientList) {
+            for (SelectorLoop loop : mLoops) {
+                int queuedBytes = 0;
+                int maxQueuedBytes = 0;
+                for (Map.Entry<ClientImpl, SelectorLoop> entry : mClientLoops.entrySet()) {
+                    if (entry.getValue() == loop) {
+                        JdwpSendQueue queue = entry.getKey().getSendQueue();
+                        Debugger debugger = entry.getKey().getDebugger();
+                        queuedBytes += queue.getQueuedBytes();
+                        if (debugger != null) {
+                            queuedBytes += debugger.getQueuedBytes();
                         }
-                    } catch (Exception e) {
-                        // we don't want to have our thread be killed because of any uncaught
-                        // exception, so we intercept all here.
-                        Log.e("ddms", "Exception during activity from Selector.");
-                        Log.e("ddms", e);
+                        maxQueuedBytes =
+                                Math.max(maxQueuedBytes, queue.getQueuedBytesHighWaterMark());
                     }
                 }
-            } catch (Exception e) {
-                // we don't want to have our thread be killed because of any uncaught
-                // exception, so we intercept all here.
-                Log.e("ddms", "Exception MonitorThread.run()");
-                Log.e("ddms", e);
+                stats.add(
+                        new SelectorStats(
+                                loop.mName,
+                                loop.mClientCount,
+                                loop.mDispatchCount,
+                                loop.mDispatchNanos,
+                                loop.mMaxDispatchNanos,
+                                queuedBytes,
+                                maxQueuedBytes));
             }
         }
+        return stats;
     }
 
     /*
@@ -225,14 +233,19 @@ public final class MonitorThread extends Thread {
         ClientImpl client = (ClientImpl) key.attachment();
 
         try {
-            if (!key.isReadable() || !key.isValid()) {
+            if (!key.isValid() || !(key.isReadable() || key.isWritable())) {
                 Log.d("ddms", "Invalid key from " + client + ". Dropping client.");
                 dropClient(client, true /* notify */);
                 return;
             }
 
-            client.read();
-            client.consumeReadBuffer();
+            if (key.isWritable()) {
+                client.flushSendQueue();
+            }
+            if (key.isReadable()) {
+                client.read();
+                client.consumeReadBuffer();
+            }
         } catch (CancelledKeyException e) {
             // key was canceled probably due to a disconnected client before we could
             // read stuff coming from the client, so we drop it.
@@ -275,6 +288,10 @@ public final class MonitorThread extends Thread {
             if (!mClientList.remove(client)) {
                 return;
             }
+            SelectorLoop loop = mClientLoops.remove(client);
+            if (loop != null) {
+                loop.mClientCount--;
+            }
         }
         client.close(notify);
         mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, client);
@@ -306,13 +323,24 @@ public final class MonitorThread extends Thread {
         try {
             if (key.isAcceptable()) {
                 try {
-                    acceptNewDebugger(dbg, null);
+                    acceptNewDebugger(dbg, null, key.selector());
                 } catch (IOException ioe) {
                     Log.w("ddms", "debugger accept() failed");
                     ioe.printStackTrace();
                 }
-            } else if (key.isReadable()) {
-                processDebuggerData(key);
+            } else if (key.isReadable() || key.isWritable()) {
+                if (key.isWritable()) {
+                    try {
+                        dbg.flushSendQueue();
+                    } catch (IOException ioe) {
+                        Log.d("ddms", "Failed to write to " + dbg + ": " + ioe.getMessage());
+                        dbg.closeData();
+                        return;
+                    }
+                }
+                if (key.isReadable()) {
+                    processDebuggerData(key);
+                }
             } else {
                 Log.d("ddm-debugger", "key in unknown state");
             }
@@ -325,8 +353,8 @@ public final class MonitorThread extends Thread {
      * Accept a new connection from a debugger. If successful, register it with
      * the Selector.
      */
-    private void acceptNewDebugger(Debugger dbg, ServerSocketChannel acceptChan)
-            throws IOException {
+    private void acceptNewDebugger(
+            Debugger dbg, ServerSocketChannel acceptChan, Selector selector) throws IOException {
 
         synchronized (mClientList) {
             SocketChannel chan;
@@ -338,10 +366,10 @@ public final class MonitorThread extends Thread {
 
             if (chan != null) {
                 chan.socket().setTcpNoDelay(true);
-                wakeup();
+                selector.wakeup();
 
                 try {
-                    chan.register(mSelector, SelectionKey.OP_READ, dbg);
+                    dbg.registerData(selector);
                 } catch (IOException ioe) {
                     // failed, drop the connection
                     dbg.closeData();
@@ -371,9 +399,8 @@ public final class MonitorThread extends Thread {
      * Tell the thread that something has changed.
      */
     private void wakeup() {
-        // If we didn't started running yet, we might not have a selector set.
-        if (mSelector != null) {
-            mSelector.wakeup();
+        for (SelectorLoop loop : mLoops) {
+            loop.wakeup();
         }
     }
 
@@ -386,6 +413,11 @@ public final class MonitorThread extends Thread {
         Log.d("ddms", "Waiting for Monitor thread");
         try {
             this.join();
+            for (SelectorLoop loop : mLoops) {
+                if (loop.mThread != null) {
+                    loop.mThread.join();
+                }
+            }
             // since we're quitting, lets drop all the client and disconnect
             // the DebugSelectedPort
             synchronized (mClientList) {
@@ -394,10 +426,13 @@ public final class MonitorThread extends Thread {
                     mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, c);
                 }
                 mClientList.clear();
+                mClientLoops.clear();
             }
 
-            if (mSelector != null) {
-                mSelector.close();
+            for (SelectorLoop loop : mLoops) {
+                if (loop.mSelector != null) {
+                    loop.mSelector.close();
+                }
             }
         } catch (InterruptedException ie) {
             ie.printStackTrace();
@@ -424,6 +459,16 @@ public final class MonitorThread extends Thread {
         synchronized (mClientList) {
             mClientList.add(client);
 
+            // Put the client on the selector with the fewest clients.
+            SelectorLoop loop = mLoops[0];
+            for (SelectorLoop l : mLoops) {
+                if (l.mClientCount < loop.mClientCount) {
+                    loop = l;
+                }
+            }
+            loop.mClientCount++;
+            mClientLoops.put(client, loop);
+
             for (JdwpExtension extension : mJdwpExtensions) {
                 extension.intercept(client);
             }
@@ -437,13 +482,13 @@ public final class MonitorThread extends Thread {
              * back to sleep.
              */
             try {
-                wakeup();
+                loop.wakeup();
 
-                client.register(mSelector);
+                client.register(loop.mSelector);
 
                 Debugger dbg = client.getDebugger();
                 if (dbg != null) {
-                    dbg.registerListener(mSelector);
+                    dbg.registerListener(loop.mSelector);
                 }
             } catch (IOException ioe) {
                 // not really expecting this to happen
@@ -455,4 +500,177 @@ public final class MonitorThread extends Thread {
     public DdmJdwpExtension getDdmExtension() {
         return mDdmJdwpExtension;
     }
+
+    /** One of the selectors, with the statistics of the activity it dispatched. */
+    private final class SelectorLoop {
+        @NonNull private final String mName;
+
+        private volatile Selector mSelector;
+
+        // Thread running this loop, null for the MonitorThread itself
+        private Thread mThread;
+
+        // Number of clients registered with this selector, guarded by mClientList
+        private int mClientCount;
+
+        // Written by the thread of this loop only
+        private volatile long mDispatchCount;
+        private volatile long mDispatchNanos;
+        private volatile long mMaxDispatchNanos;
+
+        SelectorLoop(@NonNull String name) {
+            mName = name;
+        }
+
+        void run() {
+            Selector selector = mSelector;
+            while (!mQuit) {
+
+                try {
+                    /*
+                     * sync with new registrations: we wait until addClient is done before going
+                     * through and doing selector.select() again.
+                     * @see {@link #addClient(Client)}
+                     */
+                    synchronized (mClientList) {
+                    }
+
+                    int count;
+                    try {
+                        count = selector.select();
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                        continue;
+                    } catch (CancelledKeyException cke) {
+                        continue;
+                    }
+
+                    if (count == 0) {
+                        // somebody called wakeup() ?
+                        continue;
+                    }
+
+                    Set<SelectionKey> keys = selector.selectedKeys();
+                    Iterator<SelectionKey> iter = keys.iterator();
+
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+
+                        long start = System.nanoTime();
+                        try {
+                            if (key.attachment() instanceof ClientImpl) {
+                                processClientActivity(key);
+                            } else if (key.attachment() instanceof Debugger) {
+                                processDebuggerActivity(key);
+                            } else {
+                                Log.e("ddms", "unknown activity key");
+                            }
+                        } catch (Exception e) {
+                            // we don't want to have our thread be killed because of any uncaught
+                            // exception, so we intercept all here.
+                            Log.e("ddms", "Exception during activity from Selector.");
+                            Log.e("ddms", e);
+                        }
+                        long nanos = System.nanoTime() - start;
+                        mDispatchCount++;
+                        mDispatchNanos += nanos;
+                        if (nanos > mMaxDispatchNanos) {
+                            mMaxDispatchNanos = nanos;
+                        }
+                    }
+                } catch (Exception e) {
+                    // we don't want to have our thread be killed because of any uncaught
+                    // exception, so we intercept all here.
+                    Log.e("ddms", "Exception MonitorThread.run()");
+                    Log.e("ddms", e);
+                }
+            }
+        }
+
+        void wakeup() {
+            // If we didn't started running yet, we might not have a selector set.
+            Selector selector = mSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /** Activity statistics of one of the selectors of the monitor. */
+    public static final class SelectorStats {
+        @NonNull private final String mThreadName;
+        private final int mClientCount;
+        private final long mDispatchCount;
+        private final long mDispatchNanos;
+        private final long mMaxDispatchNanos;
+        private final int mQueuedBytes;
+        private final int mMaxQueuedBytes;
+
+        SelectorStats(
+                @NonNull String threadName,
+                int clientCount,
+                long dispatchCount,
+                long dispatchNanos,
+                long maxDispatchNanos,
+                int queuedBytes,
+                int maxQueuedBytes) {
+            mThreadName = threadName;
+            mClientCount = clientCount;
+            mDispatchCount = dispatchCount;
+            mDispatchNanos = dispatchNanos;
+            mMaxDispatchNanos = maxDispatchNanos;
+            mQueuedBytes = queuedBytes;
+            mMaxQueuedBytes = maxQueuedBytes;
+        }
+
+        /** Returns the name of the thread running the selector. */
+        @NonNull
+        public String getThreadName() {
+            return mThreadName;
+        }
+
+        /** Returns the number of clients registered with the selector. */
+        public int getClientCount() {
+            return mClientCount;
+        }
+
+        /** Returns the number of socket events dispatched by the selector. */
+        public long getDispatchCount() {
+            return mDispatchCount;
+        }
+
+        /** Returns the total time spent handling the dispatched socket events. */
+        public long getDispatchNanos() {
+            return mDispatchNanos;
+        }
+
+        /** Returns the longest time spent handling a socket event. */
+        public long getMaxDispatchNanos() {
+            return mMaxDispatchNanos;
+        }
+
+        /** Returns the number of bytes waiting for the clients and debuggers to read them. */
+        public int getQueuedBytes() {
+            return mQueuedBytes;
+        }
+
+        /** Returns the largest number of bytes which have been waiting for one of the clients. */
+        public int getMaxQueuedBytes() {
+            return mMaxQueuedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: %d clients, %d events in %d ms (max %d us), %d bytes queued (max %d)",
+                    mThreadName,
+                    mClientCount,
+                    mDispatchCount,
+                    mDispatchNanos / 1_000_000,
+                    mMaxDispatchNanos / 1_000,
+                    mQueuedBytes,
+                    mMaxQueuedBytes);
+        }
+    }
 }
@@ -158,6 +158,14 @@ public final class JdwpPacket {
         return mLength;
     }
 
+    /** Returns a view of the whole packet, from its JDWP header to its last byte. */
+    public ByteBuffer getPacketBuffer() {
+        ByteBuffer buf = mBuffer.duplicate();
+        buf.position(0);
+        buf.limit(mLength);
+        return buf;
+    }
+
     /**
      * Write our packet to "chan".
      *
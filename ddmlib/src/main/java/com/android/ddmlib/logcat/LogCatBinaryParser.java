@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class to parse the raw output of {@code adb logcat -B} to {@link LogCatMessage} objects.
+ *
+ * <p>The output is a sequence of {@code logger_entry} records (see liblog's {@code
+ * log/log_read.h}): a little endian header with the length of the payload, the size of the header
+ * (0 for the 20 bytes of the version 1 header), the pid, the tid, the seconds and nanoseconds of
+ * the timestamp and, from version 3, the id of the log buffer. The payload of text log buffers is
+ * the priority, the NUL terminated tag and the NUL terminated message.
+ *
+ * <p>Like {@link LogCatMessageParser}, a message is split into one {@link LogCatMessage} per
+ * non-empty line. Records of the binary log buffers (events, stats and security) are skipped.
+ *
+ * <p>This class is not thread safe.
+ */
+public class LogCatBinaryParser {
+
+    /** Size of the version 1 header, which has 0 for its header size. */
+    private static final int V1_HEADER_SIZE = 20;
+
+    /** Offset of the log buffer id in headers of version 3 and later. */
+    private static final int LOG_ID_OFFSET = 20;
+
+    private static final int LOG_ID_EVENTS = 2;
+    private static final int LOG_ID_STATS = 4;
+    private static final int LOG_ID_SECURITY = 6;
+
+    /** Log levels by the priority of android/log.h, ANDROID_LOG_FATAL being mapped to ASSERT. */
+    private static final LogLevel[] LOG_LEVELS = {
+        LogLevel.VERBOSE, // ANDROID_LOG_UNKNOWN
+        LogLevel.VERBOSE, // ANDROID_LOG_DEFAULT
+        LogLevel.VERBOSE,
+        LogLevel.DEBUG,
+        LogLevel.INFO,
+        LogLevel.WARN,
+        LogLevel.ERROR,
+        LogLevel.ASSERT,
+    };
+
+    @NonNull private final LogCatTagInterner mTags = new LogCatTagInterner();
+
+    /** The bytes of the unfinished record at the end of the last chunk of bytes. */
+    @NonNull private byte[] mUnfinishedRecord = new byte[4096];
+
+    private int mUnfinishedRecordLength;
+
+    /**
+     * Parses a chunk of the output of logcat -B into {@link LogCatMessage} objects. The unfinished
+     * record at the end of the chunk is kept for the next call.
+     *
+     * @param bytes the remaining bytes of the buffer are consumed
+     * @param device device from which these log messages have been received
+     * @return list of LogMessage objects parsed from the input
+     */
+    @NonNull
+    public List<LogCatMessage> processLogBytes(
+            @NonNull ByteBuffer bytes, @Nullable IDevice device) {
+        byte[] data;
+        int start;
+        int end;
+        if (bytes.hasArray()) {
+            data = bytes.array();
+            start = bytes.arrayOffset() + bytes.position();
+            end = bytes.arrayOffset() + bytes.limit();
+            bytes.position(bytes.limit());
+        } else {
+            data = new byte[bytes.remaining()];
+            bytes.get(data);
+            start = 0;
+            end = data.length;
+        }
+
+        List<LogCatMessage> messages = new ArrayList<>();
+        if (mUnfinishedRecordLength > 0) {
+            // Complete the unfinished record, reading its size first.
+            int missing = getMissingLength(mUnfinishedRecord, 0, mUnfinishedRecordLength);
+            while (missing > 0 && start < end) {
+                int length = Math.min(missing, end - start);
+                appendToUnfinishedRecord(data, start, start + length);
+                start += length;
+                missing = getMissingLength(mUnfinishedRecord, 0, mUnfinishedRecordLength);
+            }
+            if (missing > 0) {
+                return messages;
+            }
+            processRecord(mUnfinishedRecord, 0, device, messages);
+            mUnfinishedRecordLength = 0;
+        }
+
+        int recordStart = start;
+        while (getMissingLength(data, recordStart, end) == 0) {
+            processRecord(data, recordStart, device, messages);
+            recordStart += getRecordLength(data, recordStart);
+        }
+        appendToUnfinishedRecord(data, recordStart, end);
+
+        return messages;
+    }
+
+    /**
+     * Returns the number of bytes missing after {@code end} to have a full record at {@code
+     * start}, or to know its size.
+     */
+    private static int getMissingLength(@NonNull byte[] data, int start, int end) {
+        if (end - start < 4) {
+            return 4 - (end - start);
+        }
+        return Math.max(0, getRecordLength(data, start) - (end - start));
+    }
+
+    private static int getRecordLength(@NonNull byte[] data, int start) {
+        return getHeaderSize(data, start) + readUnsignedShort(data, start);
+    }
+
+    private static int getHeaderSize(@NonNull byte[] data, int start) {
+        return Math.max(V1_HEADER_SIZE, readUnsignedShort(data, start + 2));
+    }
+
+    private void processRecord(
+            @NonNull byte[] data,
+            int start,
+            @Nullable IDevice device,
+            @NonNull List<LogCatMessage> messages) {
+        int headerSize = getHeaderSize(data, start);
+        if (headerSize >= LOG_ID_OFFSET + 4) {
+            int logId = readInt(data, start + LOG_ID_OFFSET);
+            if (logId == LOG_ID_EVENTS || logId == LOG_ID_STATS || logId == LOG_ID_SECURITY) {
+                return;
+            }
+        }
+        int payloadStart = start + headerSize;
+        int payloadEnd = payloadStart + readUnsignedShort(data, start);
+        if (payloadStart == payloadEnd) {
+            return;
+        }
+
+        int priority = data[payloadStart] & 0xFF;
+        int tagStart = payloadStart + 1;
+        int tagEnd = indexOfNul(data, tagStart, payloadEnd);
+        int messageStart = Math.min(tagEnd + 1, payloadEnd);
+        int messageEnd = indexOfNul(data, messageStart, payloadEnd);
+
+        int pid = readInt(data, start + 4);
+        LogCatHeader header =
+                new LogCatHeader(
+                        priority < LOG_LEVELS.length ? LOG_LEVELS[priority] : LogLevel.ASSERT,
+                        pid,
+                        readInt(data, start + 8),
+                        LogCatHeaderParser.getPackageName(device, pid),
+                        mTags.intern(data, tagStart, tagEnd),
+                        Instant.ofEpochSecond(
+                                readInt(data, start + 12) & 0xFFFFFFFFL,
+                                readInt(data, start + 16) & 0xFFFFFFFFL));
+
+        int lineStart = messageStart;
+        for (int i = messageStart; i <= messageEnd; i++) {
+            if (i < messageEnd && data[i] != '\n') {
+                continue;
+            }
+            int lineEnd = i > lineStart && data[i - 1] == '\r' ? i - 1 : i;
+            if (lineEnd > lineStart) {
+                messages.add(
+                        new LogCatMessage(
+                                header,
+                                new String(
+                                        data,
+                                        lineStart,
+                                        lineEnd - lineStart,
+                                        StandardCharsets.UTF_8)));
+            }
+            lineStart = i + 1;
+        }
+    }
+
+    private static int indexOfNul(@NonNull byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int readUnsignedShort(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xFF)
+                | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private void appendToUnfinishedRecord(@NonNull byte[] data, int start, int end) {
+        int length = end - start;
+        if (mUnfinishedRecordLength + length > mUnfinishedRecord.length) {
+            mUnfinishedRecord =
+                    Arrays.copyOf(
+                            mUnfinishedRecord,
+                            Math.max(
+                                    2 * mUnfinishedRecord.length,
+                                    mUnfinishedRecordLength + length));
+        }
+        System.arraycopy(data, start, mUnfinishedRecord, mUnfinishedRecordLength, length);
+        mUnfinishedRecordLength += length;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.logcat.LogCatHeaderParser.PidToPackageName;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Hand written equivalent of {@link LogCatHeaderParser} working on the UTF-8 bytes of a line, for
+ * {@link LogCatMessageParser#processLogBytes}. It accepts exactly the lines matched by the regular
+ * expression of {@link LogCatHeaderParser}, without allocating anything but the {@link
+ * LogCatHeader} for most headers: tags are interned, and the start of the current hour is cached
+ * to compute the timestamps of {@code logcat -v long} headers.
+ *
+ * <p>This class is not thread safe.
+ */
+final class LogCatHeaderByteParser {
+
+    private static final int SECONDS_PER_HOUR = 3600;
+
+    private final int mYear;
+
+    @NonNull private final ZoneId mZoneId;
+
+    @NonNull private final ZoneRules mZoneRules;
+
+    /** The month, day and hour of {@link #mHourEpochSecond}, or -1. */
+    private int mHourKey = -1;
+
+    private long mHourEpochSecond;
+
+    @NonNull private final LogCatTagInterner mTags = new LogCatTagInterner();
+
+    LogCatHeaderByteParser(int year, @NonNull ZoneId zoneId) {
+        mYear = year;
+        mZoneId = zoneId;
+        mZoneRules = zoneId.getRules();
+    }
+
+    /**
+     * Parses the header line in {@code data} from {@code start} to {@code end} (exclusive).
+     *
+     * @return the header, or null if the line is not a header
+     */
+    @Nullable
+    LogCatHeader parseHeader(
+            @NonNull byte[] data, int start, int end, @NonNull PidToPackageName pidToPackageName) {
+        // [ +((MM-DD +HH:MM:SS.mmm)|(S+.mmm)) +PID: *TID +P/TAG +]
+        int i = start;
+        if (i == end || data[i++] != '[') {
+            return null;
+        }
+        i = skipSpaces(data, i, end, 1);
+        if (i < 0) {
+            return null;
+        }
+
+        Instant timestamp;
+        int digitsEnd = skipDigits(data, i, end);
+        if (digitsEnd - i == 2 && digitsEnd < end && data[digitsEnd] == '-') {
+            int month = parseTwoDigits(data, i, end);
+            int day = parseTwoDigits(data, i + 3, end);
+            i = skipSpaces(data, i + 5, end, 1);
+            if (day < 0 || i < 0 || end - i < 12
+                    || data[i + 2] != ':' || data[i + 5] != ':' || data[i + 8] != '.') {
+                return null;
+            }
+            int hour = parseTwoDigits(data, i, end);
+            int minute = parseTwoDigits(data, i + 3, end);
+            int second = parseTwoDigits(data, i + 6, end);
+            int milli = parseThreeDigits(data, i + 9, end);
+            if (hour < 0 || minute < 0 || second < 0 || milli < 0) {
+                return null;
+            }
+            timestamp = getTimestamp(month, day, hour, minute, second, milli);
+            i += 12;
+        } else if (digitsEnd > i && digitsEnd < end && data[digitsEnd] == '.') {
+            long epochSecond = parseLong(data, i, digitsEnd, 0);
+            int milli = parseThreeDigits(data, digitsEnd + 1, end);
+            if (milli < 0) {
+                return null;
+            }
+            timestamp = Instant.ofEpochSecond(epochSecond, milli * 1_000_000L);
+            i = digitsEnd + 4;
+        } else {
+            return null;
+        }
+
+        i = skipSpaces(data, i, end, 1);
+        if (i < 0) {
+            return null;
+        }
+        digitsEnd = skipDigits(data, i, end);
+        if (digitsEnd == i || digitsEnd == end || data[digitsEnd] != ':') {
+            return null;
+        }
+        long pid = parseLong(data, i, digitsEnd, -1);
+        if (pid > Integer.MAX_VALUE) {
+            pid = -1;
+        }
+
+        i = skipSpaces(data, digitsEnd + 1, end, 0);
+        int tidStart = i;
+        while (i < end && isWordCharacter(data[i])) {
+            i++;
+        }
+        if (i == tidStart) {
+            return null;
+        }
+        int tid = decodeThreadId(data, tidStart, i);
+
+        i = skipSpaces(data, i, end, 1);
+        if (i < 0 || end - i < 2 || data[i + 1] != '/') {
+            return null;
+        }
+        Log.LogLevel level = parsePriority(data[i]);
+        if (level == null) {
+            return null;
+        }
+
+        // The tag ends with the spaces before the final ']'.
+        int tagStart = i + 2;
+        if (end - tagStart < 2 || data[end - 1] != ']' || data[end - 2] != ' ') {
+            return null;
+        }
+        int tagEnd = end - 2;
+        while (tagEnd > tagStart && data[tagEnd - 1] == ' ') {
+            tagEnd--;
+        }
+        if (containsLineTerminator(data, tagStart, tagEnd)) {
+            return null;
+        }
+
+        int intPid = (int) pid;
+        return new LogCatHeader(
+                level,
+                intPid,
+                tid,
+                pidToPackageName.apply(intPid),
+                mTags.intern(data, tagStart, tagEnd),
+                timestamp);
+    }
+
+    @NonNull
+    private Instant getTimestamp(int month, int day, int hour, int minute, int second, int milli) {
+        if (minute > 59 || second > 59) {
+            // Let ZonedDateTime report the invalid time.
+            return Instant.from(
+                    ZonedDateTime.of(
+                            mYear, month, day, hour, minute, second, milli * 1_000_000, mZoneId));
+        }
+        int hourKey = (month * 100 + day) * 100 + hour;
+        if (hourKey != mHourKey) {
+            ZonedDateTime hourStart = ZonedDateTime.of(mYear, month, day, hour, 0, 0, 0, mZoneId);
+            long epochSecond = hourStart.toEpochSecond();
+            ZoneOffsetTransition transition = mZoneRules.nextTransition(hourStart.toInstant());
+            if (transition != null
+                    && transition.toEpochSecond() < epochSecond + SECONDS_PER_HOUR) {
+                // The offset changes within this hour, compute the timestamp the long way.
+                mHourKey = -1;
+                return Instant.from(
+                        ZonedDateTime.of(
+                                mYear, month, day, hour, minute, second, milli * 1_000_000,
+                                mZoneId));
+            }
+            mHourKey = hourKey;
+            mHourEpochSecond = epochSecond;
+        }
+        return Instant.ofEpochSecond(
+                mHourEpochSecond + minute * 60 + second, milli * 1_000_000L);
+    }
+
+    /**
+     * Skips at least {@code min} spaces.
+     *
+     * @return the index of the first non space byte, or -1 if there are less than {@code min}
+     *     spaces
+     */
+    private static int skipSpaces(@NonNull byte[] data, int i, int end, int min) {
+        int start = i;
+        while (i < end && data[i] == ' ') {
+            i++;
+        }
+        return i - start >= min ? i : -1;
+    }
+
+    private static int skipDigits(@NonNull byte[] data, int i, int end) {
+        while (i < end && isDigit(data[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // Matches \w, i.e. [a-zA-Z_0-9].
+    private static boolean isWordCharacter(byte b) {
+        return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_';
+    }
+
+    private static int parseTwoDigits(@NonNull byte[] data, int i, int end) {
+        if (end - i < 2 || !isDigit(data[i]) || !isDigit(data[i + 1])) {
+            return -1;
+        }
+        return (data[i] - '0') * 10 + (data[i + 1] - '0');
+    }
+
+    private static int parseThreeDigits(@NonNull byte[] data, int i, int end) {
+        if (end - i < 3 || !isDigit(data[i + 2])) {
+            return -1;
+        }
+        int twoDigits = parseTwoDigits(data, i, end);
+        return twoDigits < 0 ? -1 : twoDigits * 10 + (data[i + 2] - '0');
+    }
+
+    /** Parses the decimal digits in {@code data}, or returns {@code overflow} if too long. */
+    private static long parseLong(@NonNull byte[] data, int start, int end, long overflow) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = data[i] - '0';
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return overflow;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the word characters of a thread id like {@link Integer#decode} (some versions of
+     * logcat return hexadecimal thread IDs), or returns -1 if it is not a valid number.
+     */
+    private static int decodeThreadId(@NonNull byte[] data, int start, int end) {
+        int radix = 10;
+        if (end - start > 1 && data[start] == '0') {
+            if (data[start + 1] == 'x' || data[start + 1] == 'X') {
+                radix = 16;
+                start += 2;
+            } else {
+                radix = 8;
+                start += 1;
+            }
+        }
+        if (start == end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(data[i], radix);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * radix + digit;
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    @Nullable
+    private static Log.LogLevel parsePriority(byte letter) {
+        switch (letter) {
+            case 'V':
+            case 'D':
+            case 'I':
+            case 'W':
+            case 'E':
+            case 'A':
+                return Log.LogLevel.getByLetter((char) letter);
+            case 'F':
+                return Log.LogLevel.ASSERT;
+            default:
+                return null;
+        }
+    }
+
+    /** Whether the UTF-8 bytes contain a character not matched by '.' in a regular expression. */
+    private static boolean containsLineTerminator(@NonNull byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+            // U+0085, U+2028 and U+2029
+            if (b == (byte) 0xC2 && i + 1 < end && data[i + 1] == (byte) 0x85) {
+                return true;
+            }
+            if (b == (byte) 0xE2 && i + 2 < end && data[i + 1] == (byte) 0x80
+                    && (data[i + 2] == (byte) 0xA8 || data[i + 2] == (byte) 0xA9)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -19,15 +19,23 @@ package com.android.ddmlib.logcat;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.IDevice;
+import com.android.ddmlib.logcat.LogCatHeaderParser.PidToPackageName;
 import com.google.common.annotations.VisibleForTesting;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Class to parse raw output of {@code adb logcat -v long} to {@link LogCatMessage} objects.
  *
+ * <p>The output can be given as lines ({@link #processLogLines}), or as the raw bytes read from the
+ * shell stream ({@link #processLogBytes}), which is much cheaper for busy devices: the lines are
+ * split and the headers are decoded from the bytes, without regular expressions.
+ *
  * <p>TODO(187522636): Remove this class?
  */
 public class LogCatMessageParser {
@@ -37,6 +45,13 @@ public class LogCatMessageParser {
 
     @NonNull private final LogCatHeaderParser mHeaderParser;
 
+    @NonNull private final LogCatHeaderByteParser mHeaderByteParser;
+
+    /** The bytes of the unfinished line at the end of the last chunk of bytes. */
+    @NonNull private byte[] mUnfinishedLine = new byte[256];
+
+    private int mUnfinishedLineLength;
+
     public LogCatMessageParser() {
         this(ZonedDateTime.now().getYear(), ZoneId.systemDefault());
     }
@@ -44,6 +59,7 @@ public class LogCatMessageParser {
     @VisibleForTesting
     LogCatMessageParser(int year, @NonNull ZoneId zoneId) {
         mHeaderParser = new LogCatHeaderParser(year, zoneId);
+        mHeaderByteParser = new LogCatHeaderByteParser(year, zoneId);
     }
 
     /**
@@ -100,4 +116,111 @@ public class LogCatMessageParser {
 
         return messages;
     }
+
+    /**
+     * Parses a chunk of the UTF-8 output of logcat -v long into {@link LogCatMessage} objects.
+     * The unfinished line at the end of the chunk is kept for the next call (see {@link
+     * #processUnfinishedLine}). This method maintains state from previous calls regarding the last
+     * seen header of logcat messages.
+     *
+     * @param bytes the remaining bytes of the buffer are consumed
+     * @param device device from which these log messages have been received
+     * @return list of LogMessage objects parsed from the input
+     */
+    @NonNull
+    public List<LogCatMessage> processLogBytes(
+            @NonNull ByteBuffer bytes, @Nullable IDevice device) {
+        byte[] data;
+        int start;
+        int end;
+        if (bytes.hasArray()) {
+            data = bytes.array();
+            start = bytes.arrayOffset() + bytes.position();
+            end = bytes.arrayOffset() + bytes.limit();
+            bytes.position(bytes.limit());
+        } else {
+            data = new byte[bytes.remaining()];
+            bytes.get(data);
+            start = 0;
+            end = data.length;
+        }
+
+        List<LogCatMessage> messages = new ArrayList<>();
+        PidToPackageName pidToPackageName = pid -> LogCatHeaderParser.getPackageName(device, pid);
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mUnfinishedLineLength > 0) {
+                appendToUnfinishedLine(data, lineStart, i);
+                processLine(mUnfinishedLine, 0, mUnfinishedLineLength, pidToPackageName, messages);
+                mUnfinishedLineLength = 0;
+            } else {
+                processLine(data, lineStart, i, pidToPackageName, messages);
+            }
+            lineStart = i + 1;
+        }
+        appendToUnfinishedLine(data, lineStart, end);
+
+        return messages;
+    }
+
+    /**
+     * Parses the unfinished line kept by {@link #processLogBytes}, once the end of the output is
+     * reached.
+     *
+     * @param device device from which these log messages have been received
+     * @return list of LogMessage objects parsed from the unfinished line
+     */
+    @NonNull
+    public List<LogCatMessage> processUnfinishedLine(@Nullable IDevice device) {
+        List<LogCatMessage> messages = new ArrayList<>(1);
+        processLine(
+                mUnfinishedLine,
+                0,
+                mUnfinishedLineLength,
+                pid -> LogCatHeaderParser.getPackageName(device, pid),
+                messages);
+        mUnfinishedLineLength = 0;
+        return messages;
+    }
+
+    private void processLine(
+            @NonNull byte[] data,
+            int start,
+            int end,
+            @NonNull PidToPackageName pidToPackageName,
+            @NonNull List<LogCatMessage> messages) {
+        // in older devices, the \n is preceded by a \r
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return;
+        }
+
+        LogCatHeader header = mHeaderByteParser.parseHeader(data, start, end, pidToPackageName);
+        if (header != null) {
+            mPrevHeader = header;
+        } else if (mPrevHeader != null) {
+            // See processLogLines for lines without a header
+            messages.add(
+                    new LogCatMessage(
+                            mPrevHeader,
+                            new String(data, start, end - start, StandardCharsets.UTF_8)));
+        }
+    }
+
+    private void appendToUnfinishedLine(@NonNull byte[] data, int start, int end) {
+        int length = end - start;
+        if (mUnfinishedLineLength + length > mUnfinishedLine.length) {
+            mUnfinishedLine =
+                    Arrays.copyOf(
+                            mUnfinishedLine,
+                            Math.max(2 * mUnfinishedLine.length, mUnfinishedLineLength + length));
+        }
+        System.arraycopy(data, start, mUnfinishedLine, mUnfinishedLineLength, length);
+        mUnfinishedLineLength += length;
+    }
 }
@@ -22,22 +22,29 @@ import static java.time.Instant.EPOCH;
 import com.android.annotations.NonNull;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.AdbHelper.AdbService;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogCatReceiverTask implements Runnable {
 
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
 
+    private static final String BINARY_LOGCAT_COMMAND = "logcat -B"; //$NON-NLS-1$
+
+    /** API level of the exec service, which does not alter the binary output of logcat. */
+    private static final int EXEC_SERVICE_API_LEVEL = 21;
+
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -55,16 +62,33 @@ public class LogCatReceiverTask implements Runnable {
 
     private final LogCatMessageParser mParser;
 
+    private final LogCatBinaryParser mBinaryParser;
+
+    private final boolean mBinary;
+
     private final AtomicBoolean mCancelled;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, false);
+    }
+
+    /**
+     * Creates a task receiving the log of {@code device}.
+     *
+     * @param binary whether to read the binary records of {@code logcat -B} instead of the text
+     *     output of {@code logcat -v long}, which reads fewer bytes and does not need to parse
+     *     headers. The text output is still used on devices older than Lollipop.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, boolean binary) {
         mDevice = device;
+        mBinary = binary;
 
         mReceiver = new LogCatOutputReceiver();
         mParser = new LogCatMessageParser();
+        mBinaryParser = new LogCatBinaryParser();
         mCancelled = new AtomicBoolean();
     }
 
@@ -79,8 +103,21 @@ public class LogCatReceiverTask implements Runnable {
             }
         }
 
+        mReceiver.mBinaryOutput =
+                mBinary && mDevice.getVersion().getApiLevel() >= EXEC_SERVICE_API_LEVEL;
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (mReceiver.mBinaryOutput) {
+                // The shell service of older devices converts \n to \r\n, use exec instead
+                mDevice.executeRemoteCommand(
+                        AdbService.EXEC,
+                        BINARY_LOGCAT_COMMAND,
+                        mReceiver,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        null);
+            } else {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
@@ -98,11 +135,11 @@ public class LogCatReceiverTask implements Runnable {
         mCancelled.set(true);
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
+    /** Parses the output of logcat straight from the bytes of the shell stream. */
+    private class LogCatOutputReceiver implements IShellOutputReceiver {
 
-        public LogCatOutputReceiver() {
-            setTrimLine(false);
-        }
+        /** Whether the output is the one of {@link #BINARY_LOGCAT_COMMAND}. */
+        private volatile boolean mBinaryOutput;
 
         /** Implements {@link IShellOutputReceiver#isCancelled() }. */
         @Override
@@ -111,14 +148,24 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(@NonNull String[] lines) {
+        public void addOutput(byte[] data, int offset, int length) {
             if (!mCancelled.get()) {
-                processLogLines(lines);
+                ByteBuffer bytes = ByteBuffer.wrap(data, offset, length);
+                processLogMessages(
+                        mBinaryOutput
+                                ? mBinaryParser.processLogBytes(bytes, mDevice)
+                                : mParser.processLogBytes(bytes, mDevice));
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (!mCancelled.get() && !mBinaryOutput) {
+                processLogMessages(mParser.processUnfinishedLine(mDevice));
             }
         }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
+        private void processLogMessages(List<LogCatMessage> newMessages) {
             if (!newMessages.isEmpty()) {
                 notifyListeners(newMessages);
             }
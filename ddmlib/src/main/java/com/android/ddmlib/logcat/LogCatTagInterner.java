@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interns the tags of log messages from their UTF-8 bytes, so that the few tags of a device are
+ * only decoded once.
+ *
+ * <p>This class is not thread safe.
+ */
+final class LogCatTagInterner {
+
+    /** Maximum number of interned tags, the cache is cleared when it is full. */
+    private static final int MAX_TAGS = 4096;
+
+    // Open addressing hash table of the interned tags.
+    private byte[][] mTagBytes = new byte[2 * MAX_TAGS][];
+    private String[] mTags = new String[2 * MAX_TAGS];
+    private int mTagCount;
+
+    /** Returns the interned UTF-8 decoding of the tag in {@code data}. */
+    @NonNull
+    String intern(@NonNull byte[] data, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int mask = mTags.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (mTagBytes[slot] != null) {
+            if (bytesEqual(mTagBytes[slot], data, start, end)) {
+                return mTags[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String tag = new String(data, start, end - start, StandardCharsets.UTF_8);
+        if (mTagCount == MAX_TAGS) {
+            // The tags are not a small set, start over.
+            mTagBytes = new byte[mTagBytes.length][];
+            mTags = new String[mTags.length];
+            mTagCount = 0;
+            return intern(data, start, end);
+        }
+        byte[] bytes = new byte[end - start];
+        System.arraycopy(data, start, bytes, 0, bytes.length);
+        mTagBytes[slot] = bytes;
+        mTags[slot] = tag;
+        mTagCount++;
+        return tag;
+    }
+
+    private static boolean bytesEqual(@NonNull byte[] bytes, @NonNull byte[] data, int start,
+            int end) {
+        if (bytes.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != data[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.testrunner;
+
+import static com.android.ddmlib.testrunner.IInstrumentationResultParser.StatusKeys.KNOWN_KEYS;
+import static com.android.ddmlib.testrunner.InstrumentationResultParser.FATAL_EXCEPTION_MSG;
+import static com.android.ddmlib.testrunner.InstrumentationResultParser.INCOMPLETE_RUN_ERR_MSG_PREFIX;
+import static com.android.ddmlib.testrunner.InstrumentationResultParser.INCOMPLETE_TEST_ERR_MSG_POSTFIX;
+import static com.android.ddmlib.testrunner.InstrumentationResultParser.INCOMPLETE_TEST_ERR_MSG_PREFIX;
+import static com.android.ddmlib.testrunner.InstrumentationResultParser.INSTRUMENTATION_FAILURES_PATTERN;
+import static com.android.ddmlib.testrunner.InstrumentationResultParser.NO_TEST_RESULTS_MSG;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.testrunner.IInstrumentationResultParser.StatusCodes;
+import com.android.ddmlib.testrunner.IInstrumentationResultParser.StatusKeys;
+import com.android.ddmlib.testrunner.InstrumentationResultParser.Prefixes;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the status key/value pairs and codes of the 'raw output mode' of an instrumentation test
+ * run into {@link ITestRunListener} events. The text output is parsed into these pairs by {@link
+ * InstrumentationResultParser} or {@link StreamingInstrumentationResultParser}.
+ */
+final class InstrumentationResultReporter {
+
+    private static final String LOG_TAG = "InstrumentationResultParser";
+
+    /** Pattern of the elapsed time, which uses comma separation above 1000. */
+    private static final Pattern TIME_PATTERN =
+            Pattern.compile(Pattern.quote(Prefixes.TIME_REPORT) + "\\s*([\\d\\,]*[\\d\\.]+)");
+
+    private final Collection<ITestRunListener> mTestListeners;
+
+    /**
+     * Test result data
+     */
+    private static class TestResult {
+        private Integer mCode = null;
+        private String mTestName = null;
+        private String mTestClass = null;
+        private String mStackTrace = null;
+        private Integer mNumTests = null;
+        private String mCurrentTestNumber = null;
+
+        /** Returns true if all expected values have been parsed */
+        boolean isComplete() {
+            return mCode != null && mTestName != null && mTestClass != null;
+        }
+
+        /** Provides a more user readable string for TestResult, if possible */
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder();
+            if (mTestClass != null ) {
+                output.append(mTestClass);
+                output.append('#');
+            }
+            if (mTestName != null) {
+                output.append(mTestName);
+            }
+            if (output.length() > 0) {
+                return output.toString();
+            }
+            return "unknown result";
+        }
+    }
+
+    /** the name to provide to {@link ITestRunListener#testRunStarted(String, int)} */
+    private final String mTestRunName;
+
+    /** Stores the status values for the test result currently being parsed */
+    private TestResult mCurrentTestResult = null;
+
+    /** Stores the status values for the test result last parsed */
+    private TestResult mLastTestResult = null;
+
+    /** True if start of test has already been reported to listener. */
+    private boolean mTestStartReported = false;
+
+    /** True if the completion of the test run has been detected. */
+    private boolean mTestRunFinished = false;
+
+    /** True if test run failure has already been reported to listener. */
+    private boolean mTestRunFailReported = false;
+
+    /** The elapsed time of the test run, in milliseconds. */
+    private Long mTestTime = null;
+
+    /** The number of tests currently run  */
+    private int mNumTestsRun = 0;
+
+    /** The number of tests expected to run  */
+    private int mNumTestsExpected = 0;
+
+    /** Contains the full error available in 'stream=' in case of test runner fatal exception. */
+    private String mStreamError = null;
+
+    /** Contains the error message associated with the onError callback output. */
+    private String mOnError = null;
+
+    /**
+     * Stores key-value pairs under INSTRUMENTATION_RESULT header, keeping the order in which they
+     * were reported. The {@link ITestRunListener}s may choose to display some or all of them when
+     * the test run ends.
+     */
+    private Map<String, String> mInstrumentationResultBundle = new LinkedHashMap<>();
+
+    /**
+     * Stores key-value pairs of metrics emitted during the execution of each test case, keeping the
+     * order in which they were reported. Note that standard keys that are stored in the TestResults
+     * class are filtered out of this Map. The {@link ITestRunListener}s may choose to display some
+     * or all of them when the test case ends.
+     */
+    private Map<String, String> mTestMetrics = new LinkedHashMap<>();
+
+    InstrumentationResultReporter(String runName, Collection<ITestRunListener> listeners) {
+        mTestRunName = runName;
+        mTestListeners = new ArrayList<ITestRunListener>(listeners);
+    }
+
+    /**
+     * Stores a parsed key-value pair in the appropriate place.
+     *
+     * @param key the key of the pair
+     * @param statusValue the value of the pair
+     * @param instrumentationResult true if the pair is an INSTRUMENTATION_RESULT, false if it is
+     *     an INSTRUMENTATION_STATUS
+     */
+    void keyValue(
+            @NonNull String key, @NonNull String statusValue, boolean instrumentationResult) {
+        if (instrumentationResult) {
+            if (!KNOWN_KEYS.contains(key)) {
+                mInstrumentationResultBundle.put(key, statusValue);
+            } else if (key.equals(StatusKeys.SHORTMSG)) {
+                // test run must have failed
+                handleTestRunFailed(String.format("Instrumentation run failed due to '%1$s'",
+                        statusValue));
+            } else if (StatusKeys.STREAM.equals(key)) {
+                if (statusValue.contains(FATAL_EXCEPTION_MSG)) {
+                    mStreamError = statusValue.trim();
+                } else if (INSTRUMENTATION_FAILURES_PATTERN
+                        .matcher(statusValue.trim())
+                        .matches()) {
+                    mStreamError = statusValue.trim();
+                }
+            }
+        } else {
+            TestResult testInfo = getCurrentTestInfo();
+
+            if (key.equals(StatusKeys.CLASS)) {
+                testInfo.mTestClass = statusValue.trim();
+            } else if (key.equals(StatusKeys.TEST)) {
+                testInfo.mTestName = statusValue.trim();
+            } else if (key.equals(StatusKeys.NUMTESTS)) {
+                try {
+                    testInfo.mNumTests = Integer.parseInt(statusValue);
+                } catch (NumberFormatException e) {
+                    Log.w(LOG_TAG, "Unexpected integer number of tests, received "
+                            + statusValue);
+                }
+            } else if (key.equals(StatusKeys.ERROR)) {
+                // test run must have failed
+                handleTestRunFailed(statusValue);
+            } else if (key.equals(StatusKeys.STACK)) {
+                testInfo.mStackTrace = statusValue;
+            } else if (StatusKeys.CURRENT.equals(key)) {
+                testInfo.mCurrentTestNumber = statusValue;
+            } else if (!KNOWN_KEYS.contains(key)) {
+                // Not one of the recognized key/value pairs, so dump it in mTestMetrics
+                String previousValue = mTestMetrics.put(key, statusValue);
+                if (previousValue != null) {
+                    Log.d(LOG_TAG,
+                            String.format("Received a duplicate metric key '%s' which value "
+                                    + "will be overridden.", key));
+                }
+            }
+        }
+    }
+
+    /**
+     * A utility method to return the test metrics from the current test case execution and get
+     * ready for the next one.
+     */
+    private Map<String, String> getAndResetTestMetrics() {
+        Map<String, String> retVal = mTestMetrics;
+        mTestMetrics = new HashMap<String, String>();
+        return retVal;
+    }
+
+    private TestResult getCurrentTestInfo() {
+        if (mCurrentTestResult == null) {
+            mCurrentTestResult = new TestResult();
+        }
+        return mCurrentTestResult;
+    }
+
+    private void clearCurrentTestInfo() {
+        mLastTestResult = mCurrentTestResult;
+        mCurrentTestResult = null;
+    }
+
+    /**
+     * Handles a status code result.
+     *
+     * @param value the trimmed text of the code
+     */
+    void statusCode(@NonNull String value) {
+        TestResult testInfo = getCurrentTestInfo();
+        testInfo.mCode = StatusCodes.ERROR;
+        try {
+            testInfo.mCode = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Expected integer status code, received: " + value);
+            testInfo.mCode = StatusCodes.ERROR;
+        }
+        if (testInfo.mCode != StatusCodes.IN_PROGRESS) {
+            // this means we're done with current test result bundle
+            reportResult(testInfo);
+            clearCurrentTestInfo();
+        }
+    }
+
+    /** Records that the output signaled the end of the instrumentation run. */
+    void runFinished() {
+        mTestRunFinished = true;
+    }
+
+    /** Records the output line of the onError callback. */
+    void onError(@NonNull String line) {
+        mOnError = line;
+    }
+
+    /** Records an INSTRUMENTATION_ABORTED line, unless there was an onError line. */
+    void aborted(@NonNull String line) {
+        if (mOnError == null) {
+            mOnError = line;
+        }
+    }
+
+    /**
+     * Reports a test result to the test run listener. Must be called when a individual test result
+     * has been fully parsed.
+     *
+     * @param testInfo The {@link TestResult} holding the current test infos.
+     */
+    private void reportResult(TestResult testInfo) {
+        if (!testInfo.isComplete()) {
+            Log.w(LOG_TAG, "invalid instrumentation status bundle " + testInfo.toString());
+            return;
+        }
+        reportTestRunStarted(testInfo);
+        TestIdentifier testId = new TestIdentifier(testInfo.mTestClass, testInfo.mTestName);
+        Map<String, String> metrics;
+
+        switch (testInfo.mCode) {
+            case StatusCodes.START:
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testStarted(testId);
+                }
+                break;
+            case StatusCodes.FAILURE:
+                // If a test failure was already reported for the same test number
+                // ('current' number), we avoid reporting a second repeated failure since it would
+                // cause inconsistent events.
+                if (mLastTestResult.mCurrentTestNumber != null
+                        && mLastTestResult.mCurrentTestNumber.equals(
+                                mCurrentTestResult.mCurrentTestNumber)
+                        && mLastTestResult.mStackTrace != null) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Ignoring repeated failed event for %s. Stack: %s",
+                                    mCurrentTestResult.toString(), mCurrentTestResult.mStackTrace));
+                    break;
+                }
+                metrics = getAndResetTestMetrics();
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testFailed(testId, getTrace(testInfo));
+                    listener.testEnded(testId, metrics);
+                }
+                mNumTestsRun++;
+                break;
+            case StatusCodes.ERROR:
+                // we're dealing with a legacy JUnit3 runner that still reports errors.
+                // just report this as a failure, since thats what upstream JUnit4 does
+                metrics = getAndResetTestMetrics();
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testFailed(testId, getTrace(testInfo));
+                    listener.testEnded(testId, metrics);
+                }
+                mNumTestsRun++;
+                break;
+            case StatusCodes.IGNORED:
+                metrics = getAndResetTestMetrics();
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testIgnored(testId);
+                    listener.testEnded(testId, metrics);
+                }
+                mNumTestsRun++;
+                break;
+            case StatusCodes.ASSUMPTION_FAILURE:
+                metrics = getAndResetTestMetrics();
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testAssumptionFailure(testId, getTrace(testInfo));
+                    listener.testEnded(testId, metrics);
+                }
+                mNumTestsRun++;
+                break;
+            case StatusCodes.OK:
+                metrics = getAndResetTestMetrics();
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testEnded(testId, metrics);
+                }
+                mNumTestsRun++;
+                break;
+            default:
+                metrics = getAndResetTestMetrics();
+                Log.e(LOG_TAG, "Unknown status code received: " + testInfo.mCode);
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testEnded(testId, metrics);
+                }
+                mNumTestsRun++;
+                break;
+        }
+
+    }
+
+    /**
+     * Reports the start of a test run, and the total test count, if it has not been previously
+     * reported.
+     *
+     * @param testInfo current test status values
+     */
+    private void reportTestRunStarted(TestResult testInfo) {
+        // if start test run not reported yet
+        if (!mTestStartReported && testInfo.mNumTests != null) {
+            for (ITestRunListener listener : mTestListeners) {
+                listener.testRunStarted(mTestRunName, testInfo.mNumTests);
+            }
+            mNumTestsExpected = testInfo.mNumTests;
+            mTestStartReported = true;
+        }
+    }
+
+    /**
+     * Returns the stack trace of the current failed test, from the provided testInfo.
+     */
+    private String getTrace(TestResult testInfo) {
+        if (testInfo.mStackTrace != null) {
+            return testInfo.mStackTrace;
+        } else {
+            Log.e(LOG_TAG, "Could not find stack trace for failed test ");
+            return new Throwable("Unknown failure").toString();
+        }
+    }
+
+    /**
+     * Parses out and store the elapsed time. Elapsed time format use comma separation above 1000.
+     * For example: "Time: 1,745.755" which should be handled.
+     */
+    void time(@NonNull String line) {
+        Matcher timeMatcher = TIME_PATTERN.matcher(line);
+        if (timeMatcher.find()) {
+            String timeString = timeMatcher.group(1);
+            try {
+                Number n = NumberFormat.getInstance().parse(timeString);
+                float timeSeconds = n.floatValue();
+                mTestTime = (long) (timeSeconds * 1000);
+            } catch (ParseException e) {
+                Log.w(LOG_TAG, String.format("Unexpected time format %1$s", line));
+            }
+        } else {
+            Log.w(LOG_TAG, String.format("Unexpected time format %1$s", line));
+        }
+    }
+
+    /** Implements {@link IInstrumentationResultParser#handleTestRunFailed(String)}. */
+    void handleTestRunFailed(@NonNull String errorMsg) {
+        Log.i(LOG_TAG, String.format("test run failed: '%1$s'", errorMsg));
+        if (mOnError != null) {
+            errorMsg = String.format("%s. %s", errorMsg, mOnError);
+        } else if (mStreamError != null) {
+            errorMsg = String.format("%s. %s", errorMsg, mStreamError);
+        }
+        if (mLastTestResult != null &&
+            mLastTestResult.isComplete() &&
+            StatusCodes.START == mLastTestResult.mCode) {
+
+            // received test start msg, but not test complete
+            // assume test caused this, report as test failure
+            TestIdentifier testId = new TestIdentifier(mLastTestResult.mTestClass,
+                    mLastTestResult.mTestName);
+            for (ITestRunListener listener : mTestListeners) {
+                listener.testFailed(testId,
+                    String.format("%1$s. Reason: '%2$s'. %3$s", INCOMPLETE_TEST_ERR_MSG_PREFIX,
+                            errorMsg, INCOMPLETE_TEST_ERR_MSG_POSTFIX));
+                listener.testEnded(testId, getAndResetTestMetrics());
+            }
+        }
+        for (ITestRunListener listener : mTestListeners) {
+            if (!mTestStartReported) {
+                // test run wasn't started - must have crashed before it started
+                listener.testRunStarted(mTestRunName, 0);
+            }
+            listener.testRunFailed(errorMsg);
+
+            if (mTestTime == null) {
+                // We don't report an extra failure due to missing time stamp.
+                mTestTime = 0l;
+            }
+            listener.testRunEnded(mTestTime, mInstrumentationResultBundle);
+        }
+        mOnError = null;
+        mTestStartReported = true;
+        mTestRunFailReported = true;
+    }
+
+    /** Handles the end of the adb session. */
+    void done() {
+        if (!mTestRunFailReported) {
+            handleOutputDone();
+        }
+    }
+
+    /**
+     * Handles the end of the adb session when a test run failure has not been reported yet
+     */
+    private void handleOutputDone() {
+        if (!mTestStartReported && !mTestRunFinished) {
+            // no results
+            handleTestRunFailed(NO_TEST_RESULTS_MSG);
+        } else if (mNumTestsExpected > mNumTestsRun) {
+            String message =
+                    String.format(
+                            "%1$s. Expected %2$d tests, received %3$d",
+                            INCOMPLETE_RUN_ERR_MSG_PREFIX, mNumTestsExpected, mNumTestsRun);
+            if (mTestRunFinished) {
+                // If test run did complete but the count doesn't match report it.
+                message =
+                        String.format(
+                                Locale.US,
+                                "Instrumentation reported numtests=%d but only ran %d",
+                                mNumTestsExpected, mNumTestsRun);
+            }
+            handleTestRunFailed(message);
+        } else {
+            if (!mTestStartReported) {
+                // test run wasn't started, but it finished successfully. Must be a run with
+                // no tests
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testRunStarted(mTestRunName, 0);
+                }
+            }
+            if (mTestTime == null) {
+                mTestTime = 0l;
+            }
+            for (ITestRunListener listener : mTestListeners) {
+                // If we haven't reported a failure yet
+                if (!mTestRunFailReported
+                        && mStreamError != null
+                        && mStreamError.contains(FATAL_EXCEPTION_MSG)) {
+                    // If we reach here, this means the instrumentation fatally failed while being
+                    // in -e log true mode. Resulting in only the stream containing the exception.
+                    listener.testRunFailed(mStreamError.trim());
+                }
+                listener.testRunEnded(mTestTime, mInstrumentationResultBundle);
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.testrunner;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.testrunner.InstrumentationResultParser.Prefixes;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Parses the 'raw output mode' results of an instrumentation test run from shell, like {@link
+ * InstrumentationResultParser}, and informs the {@link ITestRunListener}s of the same events.
+ *
+ * <p>The output is parsed in a single pass over the bytes of the shell stream: lines are only
+ * decoded when they carry a key or a value, and each status value keeps at most {@code
+ * maxValueLength} bytes (the rest of a long stack trace or metric is replaced with a note of the
+ * number of dropped bytes). The memory used does not depend on the size of the output, which is
+ * large for suites of thousands of tests.
+ *
+ * <p>It can be returned from {@link RemoteAndroidTestRunner#createParser} for the {@link
+ * RemoteAndroidTestRunner.StatusReporterMode#RAW_TEXT} mode.
+ */
+public class StreamingInstrumentationResultParser implements IInstrumentationResultParser {
+
+    /** Default maximum number of bytes kept for each status value. */
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 256 * 1024;
+
+    private static final String LOG_TAG = "InstrumentationResultParser";
+
+    /** Prefixes used to identify output, encoded once from {@link Prefixes}. */
+    private static final byte[] STATUS = bytes(Prefixes.STATUS);
+    private static final byte[] STATUS_CODE = bytes(Prefixes.STATUS_CODE);
+    private static final byte[] STATUS_FAILED = bytes(Prefixes.STATUS_FAILED);
+    private static final byte[] STATUS_ABORTED = bytes(Prefixes.STATUS_ABORTED);
+    private static final byte[] ON_ERROR = bytes(Prefixes.ON_ERROR);
+    private static final byte[] CODE = bytes(Prefixes.CODE);
+    private static final byte[] RESULT = bytes(Prefixes.RESULT);
+    private static final byte[] TIME_REPORT = bytes(Prefixes.TIME_REPORT);
+
+    /** Separator of the lines of a value, as in {@link InstrumentationResultParser}. */
+    private static final byte[] VALUE_LINE_SEPARATOR = bytes("\r\n");
+
+    /** Room kept in an unfinished line for the prefix and the key before the value. */
+    private static final int MAX_LINE_HEADER_LENGTH = 1024;
+
+    @NonNull private final InstrumentationResultReporter mReporter;
+
+    private final int mMaxValueLength;
+
+    /** The bytes of the unfinished line at the end of the last chunk of bytes. */
+    @NonNull private byte[] mUnfinishedLine = new byte[256];
+
+    private int mUnfinishedLineLength;
+
+    /** The number of bytes of the unfinished line not kept in {@link #mUnfinishedLine}. */
+    private long mUnfinishedLineDropped;
+
+    /** Stores the current "key" portion of the status key-value being parsed, or null. */
+    private String mCurrentKey;
+
+    /** True if the current key is an INSTRUMENTATION_RESULT. */
+    private boolean mInInstrumentationResultKey;
+
+    /** Stores the kept bytes of the current "value" portion of the status key-value. */
+    @NonNull private byte[] mCurrentValue = new byte[256];
+
+    private int mCurrentValueLength;
+
+    /** The number of bytes of the current value which were not kept. */
+    private long mCurrentValueDropped;
+
+    private volatile boolean mIsCancelled;
+
+    /**
+     * Creates the StreamingInstrumentationResultParser.
+     *
+     * @param runName the test run name to provide to {@link
+     *     ITestRunListener#testRunStarted(String, int)}
+     * @param listeners informed of test results as the tests are executing
+     */
+    public StreamingInstrumentationResultParser(
+            @NonNull String runName, @NonNull Collection<ITestRunListener> listeners) {
+        this(runName, listeners, DEFAULT_MAX_VALUE_LENGTH);
+    }
+
+    /**
+     * Creates the StreamingInstrumentationResultParser for a single listener.
+     *
+     * @param runName the test run name to provide to {@link
+     *     ITestRunListener#testRunStarted(String, int)}
+     * @param listener informed of test results as the tests are executing
+     */
+    public StreamingInstrumentationResultParser(
+            @NonNull String runName, @NonNull ITestRunListener listener) {
+        this(runName, Collections.singletonList(listener));
+    }
+
+    /**
+     * Creates the StreamingInstrumentationResultParser.
+     *
+     * @param runName the test run name to provide to {@link
+     *     ITestRunListener#testRunStarted(String, int)}
+     * @param listeners informed of test results as the tests are executing
+     * @param maxValueLength the maximum number of bytes kept for each status value, such as the
+     *     stack trace of a failed test
+     */
+    public StreamingInstrumentationResultParser(
+            @NonNull String runName,
+            @NonNull Collection<ITestRunListener> listeners,
+            int maxValueLength) {
+        if (maxValueLength <= 0) {
+            throw new IllegalArgumentException("maxValueLength must be positive");
+        }
+        mReporter = new InstrumentationResultReporter(runName, listeners);
+        mMaxValueLength = maxValueLength;
+    }
+
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        if (mIsCancelled) {
+            return;
+        }
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mUnfinishedLineLength > 0 || mUnfinishedLineDropped > 0) {
+                appendToUnfinishedLine(data, lineStart, i);
+                processLine(
+                        mUnfinishedLine, 0, mUnfinishedLineLength, mUnfinishedLineDropped, true);
+                mUnfinishedLineLength = 0;
+                mUnfinishedLineDropped = 0;
+            } else {
+                processLine(data, lineStart, i, 0, true);
+            }
+            lineStart = i + 1;
+        }
+        appendToUnfinishedLine(data, lineStart, end);
+    }
+
+    @Override
+    public void flush() {
+        if (mUnfinishedLineLength > 0 || mUnfinishedLineDropped > 0) {
+            // As in MultiLineReceiver, the last line is not trimmed
+            processLine(
+                    mUnfinishedLine, 0, mUnfinishedLineLength, mUnfinishedLineDropped, false);
+            mUnfinishedLineLength = 0;
+            mUnfinishedLineDropped = 0;
+        }
+        mReporter.done();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    @Override
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    @Override
+    public void handleTestRunFailed(@NonNull String errorMsg) {
+        mReporter.handleTestRunFailed(errorMsg);
+    }
+
+    /**
+     * Parses a line of the output, without its line terminator.
+     *
+     * @param dropped the number of bytes at the end of the line which were not kept
+     * @param trim whether the line is trimmed like {@link String#trim()}
+     */
+    private void processLine(
+            @NonNull byte[] data, int start, int end, long dropped, boolean trim) {
+        if (trim) {
+            // in older devices, the \n is preceded by a \r
+            if (dropped == 0 && end > start && data[end - 1] == '\r') {
+                end--;
+            }
+            while (start < end && isWhitespace(data[start])) {
+                start++;
+            }
+            while (dropped == 0 && end > start && isWhitespace(data[end - 1])) {
+                end--;
+            }
+        }
+        if (Log.isAtLeast(LogLevel.VERBOSE)) {
+            // in verbose mode, dump all adb output to log
+            Log.v(LOG_TAG, decode(data, start, end));
+        }
+
+        if (startsWith(data, start, end, STATUS_CODE)) {
+            // Previous status key-value has been collected. Store it.
+            submitCurrentKeyValue();
+            mReporter.statusCode(decode(data, start + STATUS_CODE.length, end).trim());
+        } else if (startsWith(data, start, end, STATUS)) {
+            submitCurrentKeyValue();
+            parseKey(data, start + STATUS.length, end, dropped, false);
+        } else if (startsWith(data, start, end, RESULT)) {
+            submitCurrentKeyValue();
+            parseKey(data, start + RESULT.length, end, dropped, true);
+        } else if (startsWith(data, start, end, STATUS_FAILED)
+                || startsWith(data, start, end, CODE)) {
+            submitCurrentKeyValue();
+            // these codes signal the end of the instrumentation run
+            mReporter.runFinished();
+        } else if (startsWith(data, start, end, TIME_REPORT)) {
+            mReporter.time(decode(data, start, end));
+        } else if (startsWith(data, start, end, ON_ERROR)) {
+            mReporter.onError(decode(data, start, end));
+        } else if (startsWith(data, start, end, STATUS_ABORTED)) {
+            mReporter.aborted(decode(data, start, end));
+        } else if (mCurrentKey != null) {
+            // this is a value that has wrapped to next line.
+            appendToCurrentValue(VALUE_LINE_SEPARATOR, 0, VALUE_LINE_SEPARATOR.length);
+            appendToCurrentValue(data, start, end);
+            mCurrentValueDropped += dropped;
+        } else if (end > start) {
+            Log.d(LOG_TAG, "unrecognized line " + decode(data, start, end));
+        }
+    }
+
+    /** Parses the start of a key=value pair. */
+    private void parseKey(
+            @NonNull byte[] data, int start, int end, long dropped, boolean result) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == '=') {
+                mCurrentKey = decode(data, start, i).trim();
+                mInInstrumentationResultKey = result;
+                mCurrentValueLength = 0;
+                mCurrentValueDropped = 0;
+                appendToCurrentValue(data, i + 1, end);
+                mCurrentValueDropped += dropped;
+                return;
+            }
+        }
+    }
+
+    /** Stores the currently parsed key-value pair in the appropriate place. */
+    private void submitCurrentKeyValue() {
+        if (mCurrentKey == null) {
+            return;
+        }
+        String value = decode(mCurrentValue, 0, mCurrentValueLength);
+        if (mCurrentValueDropped > 0) {
+            value += String.format("\r\n[%d more bytes]", mCurrentValueDropped);
+        }
+        String key = mCurrentKey;
+        mCurrentKey = null;
+        mReporter.keyValue(key, value, mInInstrumentationResultKey);
+        if (mCurrentValue.length > 4096) {
+            // Do not hold on to the memory of a large value
+            mCurrentValue = new byte[256];
+        }
+    }
+
+    /**
+     * Keeps the bytes of a value until it reaches {@link #mMaxValueLength} bytes. Once bytes were
+     * dropped, the rest of the value is dropped too.
+     */
+    private void appendToCurrentValue(@NonNull byte[] data, int start, int end) {
+        int length =
+                mCurrentValueDropped > 0
+                        ? 0
+                        : keptLength(data, start, end, mMaxValueLength - mCurrentValueLength);
+        mCurrentValueDropped += end - start - length;
+        if (length <= 0) {
+            return;
+        }
+        if (mCurrentValueLength + length > mCurrentValue.length) {
+            mCurrentValue =
+                    Arrays.copyOf(
+                            mCurrentValue,
+                            Math.min(
+                                    mMaxValueLength,
+                                    Math.max(
+                                            2 * mCurrentValue.length,
+                                            mCurrentValueLength + length)));
+        }
+        System.arraycopy(data, start, mCurrentValue, mCurrentValueLength, length);
+        mCurrentValueLength += length;
+    }
+
+    /**
+     * Keeps the start of an unfinished line. As lines are only kept for their prefix or as values,
+     * they are bounded like values, plus room for the prefix and the key.
+     */
+    private void appendToUnfinishedLine(@NonNull byte[] data, int start, int end) {
+        int length =
+                mUnfinishedLineDropped > 0
+                        ? 0
+                        : keptLength(
+                                data,
+                                start,
+                                end,
+                                mMaxValueLength + MAX_LINE_HEADER_LENGTH - mUnfinishedLineLength);
+        mUnfinishedLineDropped += end - start - length;
+        if (length <= 0) {
+            return;
+        }
+        if (mUnfinishedLineLength + length > mUnfinishedLine.length) {
+            mUnfinishedLine =
+                    Arrays.copyOf(
+                            mUnfinishedLine,
+                            Math.max(2 * mUnfinishedLine.length, mUnfinishedLineLength + length));
+        }
+        System.arraycopy(data, start, mUnfinishedLine, mUnfinishedLineLength, length);
+        mUnfinishedLineLength += length;
+    }
+
+    /**
+     * Returns the number of bytes to keep from {@code data[start, end)} when at most {@code
+     * capacity} bytes fit, without cutting a UTF-8 encoded character in half.
+     */
+    private static int keptLength(@NonNull byte[] data, int start, int end, int capacity) {
+        if (end - start <= capacity) {
+            return end - start;
+        }
+        int length = Math.max(0, capacity);
+        // the first dropped byte must not be a continuation byte (10xxxxxx)
+        while (length > 0 && (data[start + length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return length;
+    }
+
+    private static boolean startsWith(
+            @NonNull byte[] data, int start, int end, @NonNull byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        // UTF-8 bytes of non ASCII characters are negative
+        return b >= 0 && b <= ' ';
+    }
+
+    @NonNull
+    private static String decode(@NonNull byte[] data, int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    private static byte[] bytes(@NonNull String prefix) {
+        return prefix.getBytes(StandardCharsets.UTF_8);
+    }
+}
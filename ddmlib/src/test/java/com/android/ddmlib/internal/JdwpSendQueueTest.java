@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ddmlib.internal.jdwp.chunkhandler.JdwpPacket;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class JdwpSendQueueTest {
+
+    private static final int PACKET_SIZE = 64 * 1024;
+
+    private Selector selector;
+    private SocketChannel sender;
+    private SocketChannel receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            sender = SocketChannel.open(server.socket().getLocalSocketAddress());
+            receiver = server.accept();
+        }
+        sender.configureBlocking(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+        selector.close();
+    }
+
+    @Test
+    public void sendQueuesWhatTheChannelDoesNotAccept() throws IOException {
+        JdwpSendQueue queue = new JdwpSendQueue(sender, Integer.MAX_VALUE);
+        SelectionKey key = sender.register(selector, SelectionKey.OP_READ);
+        queue.setKey(key);
+
+        // Send more than the socket buffers can hold, without anybody reading.
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; queue.getQueuedBytes() == 0; i++) {
+            JdwpPacket packet = newPacket(i);
+            ByteBuffer bytes = packet.getPacketBuffer();
+            sent.write(bytes.array(), 0, bytes.limit());
+            queue.send(packet);
+            assertTrue("socket buffers never filled", i < 10_000);
+        }
+        JdwpPacket last = newPacket(-1);
+        queue.send(last);
+        sent.write(last.getPacketBuffer().array(), 0, PACKET_SIZE);
+        assertTrue((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+        assertEquals(queue.getQueuedBytes(), queue.getQueuedBytesHighWaterMark());
+
+        // Read everything, flushing the queue as the receiver makes room.
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(PACKET_SIZE);
+        while (received.size() < sent.size()) {
+            buffer.clear();
+            receiver.read(buffer);
+            received.write(buffer.array(), 0, buffer.position());
+            queue.flush();
+        }
+
+        assertEquals(0, queue.getQueuedBytes());
+        assertEquals(0, key.interestOps() & SelectionKey.OP_WRITE);
+        assertArrayEquals(sent.toByteArray(), received.toByteArray());
+    }
+
+    @Test
+    public void sendBytesAfterQueuedPackets() throws IOException {
+        JdwpSendQueue queue = new JdwpSendQueue(sender, Integer.MAX_VALUE);
+        queue.setKey(sender.register(selector, SelectionKey.OP_READ));
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; queue.getQueuedBytes() == 0; i++) {
+            JdwpPacket packet = newPacket(i);
+            sent.write(packet.getPacketBuffer().array(), 0, PACKET_SIZE);
+            queue.send(packet);
+            assertTrue("socket buffers never filled", i < 10_000);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(new byte[] {'J', 'D', 'W', 'P'});
+        queue.send(bytes);
+        sent.write(bytes.array(), 0, bytes.limit());
+        // The queue keeps a copy, so the buffer can be reused.
+        bytes.clear();
+        bytes.put(new byte[] {0, 0, 0, 0});
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(PACKET_SIZE);
+        while (received.size() < sent.size()) {
+            buffer.clear();
+            receiver.read(buffer);
+            received.write(buffer.array(), 0, buffer.position());
+            queue.flush();
+        }
+        assertArrayEquals(sent.toByteArray(), received.toByteArray());
+    }
+
+    @Test
+    public void sendFailsWhenQueueIsFull() throws IOException {
+        JdwpSendQueue queue = new JdwpSendQueue(sender, 4 * PACKET_SIZE);
+        queue.setKey(sender.register(selector, SelectionKey.OP_READ));
+
+        try {
+            for (int i = 0; i < 10_000; i++) {
+                queue.send(newPacket(i));
+            }
+            fail("queue never filled");
+        } catch (IOException expected) {
+            assertTrue(queue.getQueuedBytes() <= 4 * PACKET_SIZE);
+        }
+    }
+
+    private static JdwpPacket newPacket(int seed) {
+        ByteBuffer buffer = ByteBuffer.allocate(PACKET_SIZE);
+        int payloadLength = PACKET_SIZE - JdwpPacket.JDWP_HEADER_LEN;
+        for (int i = JdwpPacket.JDWP_HEADER_LEN; i < PACKET_SIZE; i++) {
+            buffer.put(i, (byte) (seed + i));
+        }
+        JdwpPacket packet = new JdwpPacket(buffer);
+        packet.finishPacket(0xc7, 0x01, payloadLength);
+        return packet;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncService;
+import com.android.fakeadbserver.DeviceFileState;
+import com.android.fakeadbserver.DeviceState;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SyncServiceIntegrationTest {
+    @Rule public FakeAdbTestRule myFakeAdb = new FakeAdbTestRule();
+
+    @Rule public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void pushAndPullFiles() throws Exception {
+        DeviceState state = myFakeAdb.connectAndWaitForDevice();
+        IDevice device = AndroidDebugBridge.getBridge().getDevices()[0];
+
+        // Sizes around the DATA packet and transfer buffer sizes, and many small files.
+        int[] sizes = {0, 1, 64 * 1024, 64 * 1024 + 1, 4 * (64 * 1024 + 8), 1_000_000};
+        Random random = new Random(1);
+        Map<String, String> pushed = new LinkedHashMap<>();
+        Map<String, String> pulled = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = new byte[i < sizes.length ? sizes[i] : random.nextInt(10_000)];
+            random.nextBytes(bytes);
+            File local = myTemporaryFolder.newFile("push" + i);
+            Files.write(local.toPath(), bytes);
+            pushed.put(local.getPath(), "/data/local/tmp/file" + i);
+            File pulledFile = new File(local.getParent(), "pull" + i);
+            pulled.put("/data/local/tmp/file" + i, pulledFile.getPath());
+        }
+
+        try (SyncService sync = device.getSyncService()) {
+            sync.pushFiles(pushed, SyncService.getNullProgressMonitor());
+            for (Map.Entry<String, String> entry : pushed.entrySet()) {
+                assertThat(state.getFile(entry.getValue()).getBytes())
+                        .isEqualTo(Files.readAllBytes(new File(entry.getKey()).toPath()));
+            }
+
+            sync.pullFiles(pulled, SyncService.getNullProgressMonitor());
+            for (Map.Entry<String, String> entry : pulled.entrySet()) {
+                assertThat(Files.readAllBytes(new File(entry.getValue()).toPath()))
+                        .isEqualTo(state.getFile(entry.getKey()).getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void pullMissingFile() throws Exception {
+        myFakeAdb.connectAndWaitForDevice();
+        IDevice device = AndroidDebugBridge.getBridge().getDevices()[0];
+        File local = new File(myTemporaryFolder.getRoot(), "missing");
+
+        try (SyncService sync = device.getSyncService()) {
+            sync.pullFiles(
+                    Collections.singletonMap("/data/local/tmp/missing", local.getPath()),
+                    SyncService.getNullProgressMonitor());
+            fail("Expected a SyncException");
+        } catch (SyncException e) {
+            assertThat(e.getMessage()).contains("/data/local/tmp/missing");
+        }
+        assertThat(local.exists()).isFalse();
+    }
+
+    @Test
+    public void pullTwiceWithTheSameService() throws Exception {
+        DeviceState state = myFakeAdb.connectAndWaitForDevice();
+        IDevice device = AndroidDebugBridge.getBridge().getDevices()[0];
+        byte[] first = new byte[100_000];
+        byte[] second = new byte[1_000];
+        Random random = new Random(1);
+        random.nextBytes(first);
+        random.nextBytes(second);
+        state.createFile(new DeviceFileState("/data/local/tmp/first", 0644, 0, first));
+        state.createFile(new DeviceFileState("/data/local/tmp/second", 0644, 0, second));
+        File firstLocal = new File(myTemporaryFolder.getRoot(), "first");
+        File secondLocal = new File(myTemporaryFolder.getRoot(), "second");
+
+        try (SyncService sync = device.getSyncService()) {
+            sync.pullFile(
+                    "/data/local/tmp/first",
+                    firstLocal.getPath(),
+                    SyncService.getNullProgressMonitor());
+            assertThat(Files.readAllBytes(firstLocal.toPath())).isEqualTo(first);
+
+            // The second pull must not write the data of the first one again.
+            Files.delete(firstLocal.toPath());
+            sync.pullFile(
+                    "/data/local/tmp/second",
+                    secondLocal.getPath(),
+                    SyncService.getNullProgressMonitor());
+        }
+        assertThat(firstLocal.exists()).isFalse();
+        assertThat(Files.readAllBytes(secondLocal.toPath())).isEqualTo(second);
+    }
+
+    @Test
+    public void pushFailsInTheMiddleOfABatch() throws Exception {
+        DeviceState state = myFakeAdb.connectAndWaitForDevice();
+        IDevice device = AndroidDebugBridge.getBridge().getDevices()[0];
+        // The fake device fails to overwrite a read-only file, and then ends the sync service.
+        String readOnly = "/data/local/tmp/file5";
+        state.createFile(new DeviceFileState(readOnly, 0444, 0, new byte[0]));
+
+        // Large files follow the failed one, so that writes fail once the device stops reading.
+        Map<String, String> pushed = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            File local = myTemporaryFolder.newFile("push" + i);
+            Files.write(local.toPath(), new byte[i > 5 ? 1_000_000 : 100]);
+            pushed.put(local.getPath(), "/data/local/tmp/file" + i);
+        }
+
+        try (SyncService sync = device.getSyncService()) {
+            sync.pushFiles(pushed, SyncService.getNullProgressMonitor());
+            fail("Expected a SyncException");
+        } catch (SyncException e) {
+            assertThat(e.getErrorCode())
+                    .isEqualTo(SyncException.SyncError.TRANSFER_PROTOCOL_ERROR);
+            assertThat(e.getMessage()).contains(readOnly);
+            assertThat(e.getMessage()).contains("Permission denied");
+        }
+        assertThat(state.getFile("/data/local/tmp/file4")).isNotNull();
+        assertThat(state.getFile("/data/local/tmp/file6")).isNull();
+    }
+}
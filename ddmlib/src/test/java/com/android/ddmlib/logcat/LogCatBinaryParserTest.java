@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.android.ddmlib.Log.LogLevel;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LogCatBinaryParserTest {
+
+    private static final int LOG_ID_MAIN = 0;
+    private static final int LOG_ID_EVENTS = 2;
+
+    @Test
+    public void parseRecords() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeRecord(output, 0, LOG_ID_MAIN, 3, "dtag", "debug message");
+        writeRecord(output, 24, LOG_ID_MAIN, 6, "etag", "first line\nsecond line\n");
+        writeRecord(output, 24, LOG_ID_EVENTS, 4, "event", "binary");
+        writeRecord(output, 28, LOG_ID_MAIN, 7, "wtftag", "wtf message");
+        writeRecord(output, 28, LOG_ID_MAIN, 4, "dtag", "");
+
+        LogCatBinaryParser parser = new LogCatBinaryParser();
+        List<LogCatMessage> messages =
+                parser.processLogBytes(ByteBuffer.wrap(output.toByteArray()), null);
+
+        assertEquals(
+                Arrays.asList(
+                        message(LogLevel.DEBUG, "dtag", "debug message"),
+                        message(LogLevel.ERROR, "etag", "first line"),
+                        message(LogLevel.ERROR, "etag", "second line"),
+                        message(LogLevel.ASSERT, "wtftag", "wtf message")),
+                messages);
+        assertSame(messages.get(1).getHeader(), messages.get(2).getHeader());
+    }
+
+    @Test
+    public void parseRecordsSplitAcrossChunks() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        List<LogCatMessage> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String tag = "tag" + i % 3;
+            String message = "message " + i;
+            writeRecord(output, 24, LOG_ID_MAIN, 4, tag, message);
+            expected.add(message(LogLevel.INFO, tag, message));
+        }
+        byte[] bytes = output.toByteArray();
+
+        for (int chunkSize : new int[] {1, 3, 17, 100, bytes.length}) {
+            LogCatBinaryParser parser = new LogCatBinaryParser();
+            List<LogCatMessage> messages = new ArrayList<>();
+            for (int i = 0; i < bytes.length; i += chunkSize) {
+                messages.addAll(
+                        parser.processLogBytes(
+                                ByteBuffer.wrap(bytes, i, Math.min(chunkSize, bytes.length - i)),
+                                null));
+            }
+            assertEquals("chunks of " + chunkSize, expected, messages);
+            assertSame(
+                    messages.get(0).getHeader().getTag(), messages.get(3).getHeader().getTag());
+        }
+    }
+
+    private static LogCatMessage message(LogLevel level, String tag, String message) {
+        Instant timestamp = Instant.ofEpochSecond(1619728495, 554_000_001);
+        return new LogCatMessage(
+                new LogCatHeader(level, 2977, 2988, "?", tag, timestamp), message);
+    }
+
+    /** Writes a logger_entry record, with a v1 header if {@code headerSize} is 0. */
+    private static void writeRecord(
+            ByteArrayOutputStream output,
+            int headerSize,
+            int logId,
+            int priority,
+            String tag,
+            String message) {
+        byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+        ByteBuffer record =
+                ByteBuffer.allocate(Math.max(headerSize, 20) + payloadLength)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        record.putShort((short) payloadLength);
+        record.putShort((short) headerSize);
+        record.putInt(2977);
+        record.putInt(2988);
+        record.putInt(1619728495);
+        record.putInt(554_000_001);
+        if (headerSize >= 24) {
+            record.putInt(logId);
+        }
+        if (headerSize >= 28) {
+            record.putInt(2000); // uid
+        }
+        record.put((byte) priority);
+        record.put(tagBytes).put((byte) 0);
+        record.put(messageBytes).put((byte) 0);
+        output.write(record.array(), 0, record.capacity());
+    }
+}
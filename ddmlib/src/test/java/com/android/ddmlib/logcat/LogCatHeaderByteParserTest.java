@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.android.ddmlib.logcat.LogCatHeaderParser.PidToPackageName;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LogCatHeaderByteParserTest {
+
+    private static final PidToPackageName PACKAGE_NAMES = pid -> pid == 2977 ? "com.app" : "?";
+
+    /** Pieces of headers, most of them valid. */
+    private static final String[][] PIECES = {
+        {"[", "[", "[", "(", ""},
+        {" ", "   ", ""},
+        {
+            "08-18 16:39:11.760",
+            "12-31  23:59:59.999",
+            "03-30 02:30:00.000",
+            "10-26 01:30:00.000",
+            "02-30 10:00:00.000",
+            "1619728495.554",
+            "0.000",
+            "1234567890123456789012345678901234567890.001",
+            "1619728495.5540",
+            "08-1816:39:11.760",
+            "8-18 16:39:11.760",
+            "16:39:11.760"
+        },
+        {" ", "  ", ""},
+        {"2977", "0", "1234567890123456789012", "12a", ""},
+        {":", ": ", ":   ", " :"},
+        {"2988", "0x1ef", "0X1EF", "017", "09", "0x", "abc_1", "99999999999", ""},
+        {" ", "  ", ""},
+        {"D", "V", "I", "W", "E", "A", "F", "X", "d"},
+        {"/", "", " /"},
+        {"Tag", "", "my tag", "tag ]", "tég", "t\rg", "t g", "a/b:c"},
+        {" ]", "   ]", "]", " ] ", " ]]"}
+    };
+
+    @Test
+    public void sameHeadersAsRegularExpression() {
+        ZoneId zoneId = ZoneId.of("Europe/Paris");
+        LogCatHeaderParser expectedParser = new LogCatHeaderParser(2021, zoneId);
+        LogCatHeaderByteParser parser = new LogCatHeaderByteParser(2021, zoneId);
+        Random random = new Random(1);
+        int headers = 0;
+        for (int i = 0; i < 100_000; i++) {
+            StringBuilder line = new StringBuilder();
+            for (String[] piece : PIECES) {
+                // Favor the first, valid, pieces
+                int index = random.nextInt(4) == 0 ? random.nextInt(piece.length) : 0;
+                line.append(piece[index]);
+            }
+            LogCatHeader expected;
+            try {
+                expected = expectedParser.parseHeader(line.toString(), PACKAGE_NAMES);
+            } catch (RuntimeException e) {
+                // Invalid dates are rejected by both parsers
+                expected = null;
+            }
+            LogCatHeader actual;
+            try {
+                actual = parse(parser, "  " + line + "\n");
+            } catch (RuntimeException e) {
+                actual = null;
+            }
+            assertEquals(line.toString(), expected, actual);
+            if (expected != null) {
+                headers++;
+            }
+        }
+        // Most lines are headers
+        assertEquals(true, headers > 10_000);
+    }
+
+    @Test
+    public void timestampsAroundOffsetChanges() {
+        ZoneId zoneId = ZoneId.of("America/New_York");
+        LogCatHeaderParser expectedParser = new LogCatHeaderParser(2014, zoneId);
+        LogCatHeaderByteParser parser = new LogCatHeaderByteParser(2014, zoneId);
+        for (String date : new String[] {"03-09", "11-02"}) {
+            for (int minutes = 0; minutes < 4 * 60; minutes += 7) {
+                String line =
+                        String.format(
+                                "[ %s %02d:%02d:17.250  2977: 2988 I/Tag ]",
+                                date, minutes / 60, minutes % 60);
+                assertEquals(
+                        line,
+                        expectedParser.parseHeader(line, PACKAGE_NAMES),
+                        parse(parser, "  " + line + "\n"));
+            }
+        }
+    }
+
+    @Test
+    public void tagsAreInterned() {
+        LogCatHeaderByteParser parser = new LogCatHeaderByteParser(2021, ZoneId.of("UTC"));
+        LogCatHeader first = parse(parser, "  [ 1619728495.554  2977: 2988 D/Tag ]\n");
+        LogCatHeader second = parse(parser, "  [ 1619728496.554  2977: 2989 E/Tag   ]\n");
+        assertSame(first.getTag(), second.getTag());
+        assertEquals("com.app", second.getAppName());
+    }
+
+    /** Parses the text between the first two bytes and the last byte of {@code text}. */
+    private static LogCatHeader parse(LogCatHeaderByteParser parser, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return parser.parseHeader(bytes, 2, bytes.length - 1, PACKAGE_NAMES);
+    }
+}
@@ -22,10 +22,13 @@ import static org.mockito.Mockito.when;
 import com.android.annotations.NonNull;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 import junit.framework.TestCase;
 
@@ -177,6 +180,51 @@ public final class LogCatMessageParserTest extends TestCase {
         assertEquals("Log[1] logline1", mParsedMessages.get(0).getMessage());
     }
 
+    public void testProcessLogBytes() {
+        List<LogCatMessage> expected =
+                new LogCatMessageParser(2014, ZONE_ID).processLogLines(MESSAGES, null);
+
+        // Split the output in chunks of a few bytes, some lines ending with \r\n
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < MESSAGES.length; i++) {
+            output.append(MESSAGES[i]).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+        LogCatMessageParser parser = new LogCatMessageParser(2014, ZONE_ID);
+        List<LogCatMessage> messages = new ArrayList<>();
+        for (int start = 0; start < bytes.length; start += 1 + start % 7) {
+            int end = Math.min(bytes.length, start + 1 + start % 7);
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, start, end - start);
+            messages.addAll(parser.processLogBytes(chunk, null));
+        }
+        messages.addAll(parser.processUnfinishedLine(null));
+
+        assertEquals(expected, messages);
+        // Tags are interned
+        assertSame(messages.get(0).getHeader().getTag(), messages.get(6).getHeader().getTag());
+    }
+
+    public void testProcessLogBytesUnfinishedLine() {
+        LogCatMessageParser parser = new LogCatMessageParser(2014, ZONE_ID);
+        byte[] bytes =
+                "[ 1619728495.554  2977: 2988 D/PhoneInterfaceManager ]\nmessage \u00e9"
+                        .getBytes(StandardCharsets.UTF_8);
+
+        // The é is split between the chunks
+        assertTrue(
+                parser.processLogBytes(ByteBuffer.wrap(bytes, 0, bytes.length - 1), null)
+                        .isEmpty());
+        assertTrue(
+                parser.processLogBytes(ByteBuffer.wrap(bytes, bytes.length - 1, 1), null)
+                        .isEmpty());
+        List<LogCatMessage> messages = parser.processUnfinishedLine(null);
+
+        assertEquals(1, messages.size());
+        assertEquals("message \u00e9", messages.get(0).getMessage());
+        assertEquals("PhoneInterfaceManager", messages.get(0).getHeader().getTag());
+        assertTrue(parser.processUnfinishedLine(null).isEmpty());
+    }
+
     @NonNull
     private static String formatTimestamp(@NonNull Instant timestamp) {
         return DATE_TIME_FORMATTER.format(LocalDateTime.ofInstant(timestamp, ZONE_ID));
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.testrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StreamingInstrumentationResultParserTest {
+
+    private static final String RUN_NAME = "foo";
+
+    @Test
+    public void sameEventsAsInstrumentationResultParser() {
+        for (String lineSeparator : new String[] {"\n", "\r\n"}) {
+            byte[] output = generateOutput(2000, lineSeparator, new Random(1));
+            for (int maxChunkSize : new int[] {1, 100, 16 * 1024, output.length}) {
+                List<String> expected = new ArrayList<>();
+                send(
+                        output,
+                        new InstrumentationResultParser(RUN_NAME, recordingListener(expected)),
+                        maxChunkSize);
+                List<String> actual = new ArrayList<>();
+                send(
+                        output,
+                        new StreamingInstrumentationResultParser(
+                                RUN_NAME, recordingListener(actual)),
+                        maxChunkSize);
+
+                assertTrue(expected.size() > 2 * 2000);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void incompleteOutput() {
+        byte[] output = generateOutput(10, "\n", new Random(2));
+        for (int length = 0; length < output.length; length += 37) {
+            List<String> expected = new ArrayList<>();
+            send(
+                    Arrays.copyOf(output, length),
+                    new InstrumentationResultParser(RUN_NAME, recordingListener(expected)),
+                    length + 1);
+            List<String> actual = new ArrayList<>();
+            send(
+                    Arrays.copyOf(output, length),
+                    new StreamingInstrumentationResultParser(RUN_NAME, recordingListener(actual)),
+                    length + 1);
+
+            assertEquals("length " + length, expected, actual);
+        }
+    }
+
+    @Test
+    public void valuesAreTruncated() {
+        StringBuilder output = new StringBuilder();
+        output.append("INSTRUMENTATION_STATUS: numtests=1\n")
+                .append("INSTRUMENTATION_STATUS: class=com.foo.FooTest\n")
+                .append("INSTRUMENTATION_STATUS: test=testFoo\n")
+                .append("INSTRUMENTATION_STATUS_CODE: 1\n")
+                .append("INSTRUMENTATION_STATUS: class=com.foo.FooTest\n")
+                .append("INSTRUMENTATION_STATUS: test=testFoo\n")
+                .append("INSTRUMENTATION_STATUS: stack=java.lang.StackOverflowError\n");
+        for (int i = 0; i < 10_000; i++) {
+            output.append("\tat com.foo.FooTest.recurse(FooTest.java:12)\n");
+        }
+        output.append("INSTRUMENTATION_STATUS_CODE: -2\n")
+                .append("INSTRUMENTATION_CODE: -1\n");
+
+        List<String> events = new ArrayList<>();
+        send(
+                output.toString().getBytes(StandardCharsets.UTF_8),
+                new StreamingInstrumentationResultParser(
+                        RUN_NAME, Arrays.asList(recordingListener(events)), 1000),
+                4096);
+
+        String failure = events.get(2);
+        assertTrue(failure, failure.startsWith("testFailed [com.foo.FooTest#testFoo, "
+                + "java.lang.StackOverflowError\r\nat com.foo.FooTest.recurse(FooTest.java:12)"));
+        assertTrue(failure, failure.length() < 1100);
+        assertTrue(failure, failure.endsWith("more bytes]]"));
+        assertEquals("testRunEnded [0, {}]", events.get(events.size() - 1));
+    }
+
+    @Test
+    public void valuesAreTruncatedAtCharacterBoundaries() {
+        // 'é' is 2 bytes and '€' is 3 bytes in UTF-8, so most limits fall inside a character
+        String stack = "java.lang.AssertionError: éé€€é€é€€é€éé€";
+        String output =
+                "INSTRUMENTATION_STATUS: numtests=1\n"
+                        + "INSTRUMENTATION_STATUS: class=com.foo.FooTest\n"
+                        + "INSTRUMENTATION_STATUS: test=testFoo\n"
+                        + "INSTRUMENTATION_STATUS_CODE: 1\n"
+                        + "INSTRUMENTATION_STATUS: class=com.foo.FooTest\n"
+                        + "INSTRUMENTATION_STATUS: test=testFoo\n"
+                        + "INSTRUMENTATION_STATUS: stack="
+                        + stack
+                        + "\n"
+                        + "INSTRUMENTATION_STATUS_CODE: -2\n"
+                        + "INSTRUMENTATION_CODE: -1\n";
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        for (int maxValueLength = 27; maxValueLength < 60; maxValueLength++) {
+            for (int maxChunkSize : new int[] {1, 7, bytes.length}) {
+                List<String> events = new ArrayList<>();
+                send(
+                        bytes,
+                        new StreamingInstrumentationResultParser(
+                                RUN_NAME, Arrays.asList(recordingListener(events)), maxValueLength),
+                        maxChunkSize);
+
+                String failure = events.get(2);
+                assertTrue(failure, failure.startsWith("testFailed [com.foo.FooTest#testFoo, "));
+                assertTrue(failure, failure.indexOf('\uFFFD') < 0);
+                String kept =
+                        failure.substring(failure.indexOf(", ") + 2, failure.indexOf("\r\n["));
+                assertTrue(failure, stack.startsWith(kept));
+                int keptLength = kept.getBytes(StandardCharsets.UTF_8).length;
+                assertTrue(failure, keptLength > maxValueLength - 3);
+            }
+        }
+    }
+
+    /** Sends {@code output} to the receiver, in chunks of random sizes. */
+    private static void send(byte[] output, IShellOutputReceiver receiver, int maxChunkSize) {
+        Random random = new Random(maxChunkSize);
+        for (int i = 0; i < output.length; ) {
+            int length = Math.min(1 + random.nextInt(maxChunkSize), output.length - i);
+            receiver.addOutput(output, i, length);
+            i += length;
+        }
+        receiver.flush();
+    }
+
+    /** Returns a listener adding a description of each event to {@code events}. */
+    private static ITestRunListener recordingListener(List<String> events) {
+        return (ITestRunListener)
+                Proxy.newProxyInstance(
+                        ITestRunListener.class.getClassLoader(),
+                        new Class<?>[] {ITestRunListener.class},
+                        (proxy, method, args) -> {
+                            events.add(method.getName() + " " + Arrays.toString(args));
+                            return null;
+                        });
+    }
+
+    /** Generates the output of a test run, in the format documented by the parser. */
+    static byte[] generateOutput(int numTests, String lineSeparator, Random random) {
+        StringBuilder output = new StringBuilder();
+        for (int i = 1; i <= numTests; i++) {
+            String bundle =
+                    "INSTRUMENTATION_STATUS: class=com.foo.FooTest" + i % 50 + "\n"
+                            + "INSTRUMENTATION_STATUS: current=" + i + "\n"
+                            + "INSTRUMENTATION_STATUS: id=AndroidJUnitRunner\n"
+                            + "INSTRUMENTATION_STATUS: numtests=" + numTests + "\n"
+                            + "INSTRUMENTATION_STATUS: stream=\n"
+                            + "com.foo.FooTest" + i % 50 + ":\n"
+                            + "INSTRUMENTATION_STATUS: test=testFoo" + i + "\n";
+            output.append(bundle).append("INSTRUMENTATION_STATUS_CODE: 1\n").append(bundle);
+            int code = new int[] {0, 0, 0, 0, -1, -2, -3, -4}[random.nextInt(8)];
+            if (code == -2 || code == -1 || code == -4) {
+                output.append("INSTRUMENTATION_STATUS: stack=java.lang.AssertionError: ")
+                        .append(i)
+                        .append('\n');
+                for (int j = random.nextInt(40); j > 0; j--) {
+                    output.append("\tat com.foo.FooTest.testFoo(FooTest.java:")
+                            .append(j)
+                            .append(")\n");
+                }
+                output.append('\n');
+            }
+            if (random.nextInt(4) == 0) {
+                output.append("INSTRUMENTATION_STATUS: metric=").append(i).append('\n');
+            }
+            output.append("INSTRUMENTATION_STATUS_CODE: ").append(code).append('\n');
+            if (random.nextInt(100) == 0) {
+                output.append("some unrecognized output\n");
+            }
+        }
+        output.append("INSTRUMENTATION_RESULT: stream=\n")
+                .append("\n")
+                .append("Time: 1,234.5\n")
+                .append("\n")
+                .append("OK (").append(numTests).append(" tests)\n")
+                .append("INSTRUMENTATION_RESULT: coverage=42\n")
+                .append("INSTRUMENTATION_CODE: -1\n");
+        return output.toString()
+                .replace("\n", lineSeparator)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.deployer;
+
+import com.android.tools.deployer.model.Apk;
+import com.android.tools.tracer.Trace;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The content-defined chunks of an APK, used to find the parts of a changed entry which the device
+ * already has, anywhere in the installed APK.
+ *
+ * <p>Chunk boundaries are placed where a rolling hash of the last 64 bytes matches a mask, rather
+ * than at fixed offsets, so that inserting or removing bytes only changes the chunks around the
+ * edit. The chunks which follow are found again, at a different offset.
+ *
+ * <p>The device only reports the central directory of the installed APKs, so the chunks of an APK
+ * are recorded on the host when it is deployed, and looked up by APK checksum the next time.
+ */
+class ApkChunkIndex {
+
+    static final int MIN_CHUNK_SIZE = 2 * 1024;
+
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    // 13 bits, for a boundary every 8 KiB on average past the minimum chunk size. The top bits of
+    // the gear hash depend on the last 64 bytes, the bottom ones only on the last few.
+    private static final long BOUNDARY_MASK = 0x1FFFL << 51;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // The APKs last deployed, by checksum.
+    private static final int MAX_INDEXED_APKS = 16;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // The chunk boundaries must be the same in every process.
+        Random random = new Random(0x6c8e9cf570932bd5L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+    private static final Cache<String, ApkChunkIndex> INDEXES =
+            CacheBuilder.newBuilder().maximumSize(MAX_INDEXED_APKS).build();
+
+    static class Chunk {
+        final long offset;
+        final int length;
+
+        Chunk(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    interface ChunkConsumer {
+        void accept(long offset, int length, HashCode hash) throws IOException;
+    }
+
+    private final Map<HashCode, Chunk> chunks;
+
+    private ApkChunkIndex(Map<HashCode, Chunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    /** Returns the chunks of the APK if it was recorded by this process, null otherwise. */
+    static ApkChunkIndex get(Apk apk) {
+        return INDEXES.getIfPresent(apk.checksum);
+    }
+
+    /** Chunks the APK, unless it was already recorded, for its next deployment to be a delta. */
+    static void record(Apk apk) throws IOException {
+        if (INDEXES.getIfPresent(apk.checksum) != null) {
+            return;
+        }
+        try (Trace ignored = Trace.begin("chunking " + apk.name)) {
+            INDEXES.put(apk.checksum, create(Paths.get(apk.path)));
+        }
+    }
+
+    static ApkChunkIndex create(Path file) throws IOException {
+        Map<HashCode, Chunk> chunks = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            chunk(
+                    channel,
+                    0,
+                    channel.size(),
+                    (offset, length, hash) -> chunks.putIfAbsent(hash, new Chunk(offset, length)));
+        }
+        return new ApkChunkIndex(chunks);
+    }
+
+    /** Returns a chunk of the APK with the given hash, or null if there is none. */
+    Chunk find(HashCode hash) {
+        return chunks.get(hash);
+    }
+
+    int size() {
+        return chunks.size();
+    }
+
+    /** Splits the bytes of the channel from start (inclusive) to end (exclusive) into chunks. */
+    static void chunk(FileChannel channel, long start, long end, ChunkConsumer consumer)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, end - start));
+        byte[] bytes = buffer.array();
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        long chunkStart = start;
+        long hash = 0;
+        for (long position = start; position < end; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            readFully(channel, buffer, position);
+
+            int read = buffer.position();
+            int from = 0;
+            for (int i = 0; i < read; i++) {
+                hash = (hash << 1) + GEAR[bytes[i] & 0xFF];
+                long length = position + i + 1 - chunkStart;
+                if (length >= MIN_CHUNK_SIZE
+                        && ((hash & BOUNDARY_MASK) == 0 || length >= MAX_CHUNK_SIZE)) {
+                    hasher.putBytes(bytes, from, i + 1 - from);
+                    consumer.accept(chunkStart, (int) length, hasher.hash());
+                    hasher = HASH_FUNCTION.newHasher();
+                    chunkStart = position + i + 1;
+                    from = i + 1;
+                }
+            }
+            hasher.putBytes(bytes, from, read - from);
+            position += read;
+        }
+        if (chunkStart < end) {
+            consumer.accept(chunkStart, (int) (end - chunkStart), hasher.hash());
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+}
@@ -71,12 +71,23 @@ public class ApkInstaller {
     private final UIService service;
     private final Installer installer;
     private final ILogger logger;
+    private final boolean useChunkedPatches;
 
     public ApkInstaller(AdbClient adb, UIService service, Installer installer, ILogger logger) {
+        this(adb, service, installer, logger, false);
+    }
+
+    public ApkInstaller(
+            AdbClient adb,
+            UIService service,
+            Installer installer,
+            ILogger logger,
+            boolean useChunkedPatches) {
         this.adb = adb;
         this.service = service;
         this.installer = installer;
         this.logger = logger;
+        this.useChunkedPatches = useChunkedPatches;
     }
 
     /** @return true if if installation happened. False if installation was skipped */
@@ -304,6 +315,7 @@ public class ApkInstaller {
                                 installMode == Deployer.InstallMode.DELTA_NO_SKIP
                                         ? PatchSetGenerator.WhenNoChanges.GENERATE_PATCH_ANYWAY
                                         : PatchSetGenerator.WhenNoChanges.GENERATE_EMPTY_PATCH,
+                                useChunkedPatches,
                                 logger)
                         .generateFromApks(localApks, dump.apks);
         switch (patchSet.getStatus()) {
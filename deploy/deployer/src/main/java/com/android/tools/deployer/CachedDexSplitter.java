@@ -19,7 +19,12 @@ import com.android.tools.deployer.model.ApkEntry;
 import com.android.tools.deployer.model.DexClass;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Predicate;
 
 public class CachedDexSplitter implements DexSplitter {
@@ -38,15 +43,56 @@ public class CachedDexSplitter implements DexSplitter {
         // Try a cached version
         Collection<DexClass> classes = db.getClasses(dex);
         if (classes.isEmpty() || keepCode != null) {
-            // TODO: Calling CacheDexSplitter.split() on a remote APK is fine but actually calling the real splitter on an remote
-            // APK is going to crash. Checking path == null isn't going to work as that gives the remote path of the APK.
-            // The File.exists() check is a temp fix. See b/135202430.
-            if (dex.getApk().path == null || Files.notExists(Paths.get(dex.getApk().path))) {
-                throw DeployerException.remoteApkNotFound();
-            }
+            checkLocalApk(dex);
             classes = splitter.split(dex, keepCode);
             db.addClasses(classes);
         }
         return classes;
     }
+
+    /**
+     * Looks up all the dex files in the database at once, and only splits the missing ones, which
+     * the underlying splitter may do concurrently.
+     */
+    @Override
+    public List<Collection<DexClass>> splitAll(List<ApkEntry> dexes, Predicate<DexClass> keepCode)
+            throws DeployerException {
+        Map<ApkEntry, List<DexClass>> cached =
+                keepCode == null ? db.getClasses(dexes) : Collections.emptyMap();
+        List<ApkEntry> missing = new ArrayList<>();
+        for (ApkEntry dex : dexes) {
+            List<DexClass> classes = cached.get(dex);
+            if (classes == null || classes.isEmpty()) {
+                checkLocalApk(dex);
+                missing.add(dex);
+            }
+        }
+
+        Map<ApkEntry, Collection<DexClass>> split = new HashMap<>();
+        if (!missing.isEmpty()) {
+            List<Collection<DexClass>> splitClasses = splitter.splitAll(missing, keepCode);
+            List<DexClass> added = new ArrayList<>();
+            for (int i = 0; i < missing.size(); i++) {
+                split.put(missing.get(i), splitClasses.get(i));
+                added.addAll(splitClasses.get(i));
+            }
+            db.addClasses(added);
+        }
+
+        List<Collection<DexClass>> classes = new ArrayList<>(dexes.size());
+        for (ApkEntry dex : dexes) {
+            Collection<DexClass> dexClasses = split.get(dex);
+            classes.add(dexClasses != null ? dexClasses : cached.get(dex));
+        }
+        return classes;
+    }
+
+    private static void checkLocalApk(ApkEntry dex) throws DeployerException {
+        // TODO: Calling CacheDexSplitter.split() on a remote APK is fine but actually calling the real splitter on an remote
+        // APK is going to crash. Checking path == null isn't going to work as that gives the remote path of the APK.
+        // The File.exists() check is a temp fix. See b/135202430.
+        if (dex.getApk().path == null || Files.notExists(Paths.get(dex.getApk().path))) {
+            throw DeployerException.remoteApkNotFound();
+        }
+    }
 }
@@ -31,18 +31,30 @@ import com.android.tools.r8.inspector.ValueInspector;
 import com.android.tools.r8.origin.Origin;
 import com.android.tools.r8.references.FieldReference;
 import com.android.tools.tracer.Trace;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -52,12 +64,93 @@ import java.util.zip.ZipFile;
 
 public class D8DexSplitter implements DexSplitter {
 
+    private static final int DEFAULT_MAX_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static final long MAX_CACHED_CODE_BYTES = 64 * 1024 * 1024;
+
+    /** The class cache shared by the splitters of all deployments. */
+    private static final Cache<String, DexClass> SHARED_CLASS_CACHE = newClassCache();
+
+    private final int maxThreads;
+
+    /**
+     * The classes whose code was extracted by previous splits, with their code and variable
+     * states, by name and D8 checksum. A class in this cache is not parsed again, e.g. when the
+     * same change is applied again, or when only some classes of a dex file changed since.
+     */
+    private final Cache<String, DexClass> classCache;
+
+    public D8DexSplitter() {
+        this(DEFAULT_MAX_THREADS);
+    }
+
+    /** @param maxThreads the maximum number of dex files split concurrently by splitAll(). */
+    public D8DexSplitter(int maxThreads) {
+        this(maxThreads, SHARED_CLASS_CACHE);
+    }
+
+    @VisibleForTesting
+    D8DexSplitter(int maxThreads, Cache<String, DexClass> classCache) {
+        this.maxThreads = maxThreads;
+        this.classCache = classCache;
+    }
+
+    /** Returns an empty cache of extracted classes, bounded by the size of their code. */
+    @VisibleForTesting
+    static Cache<String, DexClass> newClassCache() {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(MAX_CACHED_CODE_BYTES)
+                .<String, DexClass>weigher((key, clazz) -> clazz.code.length)
+                .build();
+    }
+
+    /** Splits the dex files concurrently, on at most maxThreads threads. */
+    @Override
+    public List<Collection<DexClass>> splitAll(
+            List<ApkEntry> dexes, Predicate<DexClass> keepCode) {
+        if (dexes.size() <= 1 || maxThreads <= 1) {
+            List<Collection<DexClass>> classes = new ArrayList<>(dexes.size());
+            for (ApkEntry dex : dexes) {
+                classes.add(split(dex, keepCode));
+            }
+            return classes;
+        }
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.min(maxThreads, dexes.size()),
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("d8-dex-splitter-%d")
+                                .setDaemon(true)
+                                .build());
+        try (Trace ignored = Trace.begin("splitAll " + dexes.size() + " dex files")) {
+            List<Future<Collection<DexClass>>> futures = new ArrayList<>(dexes.size());
+            for (ApkEntry dex : dexes) {
+                futures.add(executor.submit(() -> split(dex, keepCode)));
+            }
+            List<Collection<DexClass>> classes = new ArrayList<>(dexes.size());
+            for (Future<Collection<DexClass>> future : futures) {
+                classes.add(future.get());
+            }
+            return classes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /** @param keepCode Needs to be threadsafe. */
     @Override
     public Collection<DexClass> split(ApkEntry dex, Predicate<DexClass> keepCode) {
         try (Trace ignored = Trace.begin("split " + dex.getName())) {
             D8Command.Builder newBuilder = D8Command.builder();
-            DexConsumer consumer = new DexConsumer(dex, keepCode);
+            DexConsumer consumer = new DexConsumer(dex, keepCode, classCache);
             newBuilder.addDexProgramData(readDex(dex), Origin.unknown());
             newBuilder.setDexClassChecksumFilter(consumer::parseFilter);
             newBuilder.addOutputInspection(consumer);
@@ -65,24 +158,37 @@ public class D8DexSplitter implements DexSplitter {
             D8.run(newBuilder.build());
             consumer.join();
 
-            return consumer.classes.values().stream()
-                    .map(
-                            dexClass -> {
-                                Collection<Deploy.ClassDef.FieldReInitState> states =
-                                        consumer.variableStates.get(dexClass.name);
-                                if (states == null) {
-                                    return dexClass;
-                                } else {
-                                    return new DexClass(dexClass, ImmutableList.copyOf(states));
-                                }
-                            })
-                    .collect(Collectors.toList());
+            List<DexClass> classes =
+                    consumer.classes.values().stream()
+                            .map(
+                                    dexClass -> {
+                                        Collection<Deploy.ClassDef.FieldReInitState> states =
+                                                consumer.variableStates.get(dexClass.name);
+                                        // Classes from the cache already have their states.
+                                        if (states == null || states.isEmpty()) {
+                                            return dexClass;
+                                        } else {
+                                            return new DexClass(
+                                                    dexClass, ImmutableList.copyOf(states));
+                                        }
+                                    })
+                            .collect(Collectors.toList());
+            for (DexClass clazz : classes) {
+                if (clazz.code != null && consumer.parsedWithChecksum.contains(clazz.name)) {
+                    classCache.put(cacheKey(clazz.name, clazz.checksum), clazz);
+                }
+            }
+            return classes;
 
         } catch (InterruptedException | CompilationFailedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static String cacheKey(String className, long checksum) {
+        return className + "@" + checksum;
+    }
+
     protected byte[] readDex(ApkEntry dex) {
         // TODO Check if opening the file several times matters
         try (ZipFile file = new ZipFile(dex.getApk().path)) {
@@ -102,13 +208,19 @@ public class D8DexSplitter implements DexSplitter {
         private final Multimap<String, Deploy.ClassDef.FieldReInitState> variableStates =
                 ArrayListMultimap.create();
 
+        // Classes parsed after D8 gave us their checksum, and not taken from the cache.
+        private final Set<String> parsedWithChecksum = new HashSet<>();
+
         private final CountDownLatch finished = new CountDownLatch(1);
         private final Predicate<DexClass> keepCode;
         private final ApkEntry dex;
+        private final Cache<String, DexClass> classCache;
 
-        private DexConsumer(ApkEntry dex, Predicate<DexClass> keepCode) {
+        private DexConsumer(
+                ApkEntry dex, Predicate<DexClass> keepCode, Cache<String, DexClass> classCache) {
             this.dex = dex;
             this.keepCode = keepCode;
+            this.classCache = classCache;
         }
 
         @Override
@@ -138,11 +250,25 @@ public class D8DexSplitter implements DexSplitter {
             synchronized (this) {
                 classes.put(classDescriptor, c);
             }
-            if (keepCode != null) {
-                return keepCode.test(c);
-            } else {
+            if (keepCode == null || !keepCode.test(c)) {
                 return false;
             }
+            if (checksum == null) {
+                return true;
+            }
+            // Reuse the code extracted by a previous split, instead of parsing the class again.
+            DexClass cached = classCache.getIfPresent(cacheKey(c.name, c.checksum));
+            synchronized (this) {
+                if (cached != null) {
+                    classes.put(
+                            classDescriptor,
+                            new DexClass(
+                                    c.name, c.checksum, cached.code, dex, cached.variableStates));
+                    return false;
+                }
+                parsedWithChecksum.add(c.name);
+            }
+            return true;
         }
 
         @Override
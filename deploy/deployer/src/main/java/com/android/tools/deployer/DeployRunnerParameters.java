@@ -42,6 +42,7 @@ public class DeployRunnerParameters {
     private boolean optimisticInstall = false;
     private boolean skipPostInstallTasks = false;
     private boolean useRootPushInstall = false;
+    private boolean useChunkedPatches = false;
     private boolean jdwpClientSupport = true;
     private String installersPath = null;
     private String adbExecutablePath = null;
@@ -75,6 +76,8 @@ public class DeployRunnerParameters {
             skipPostInstallTasks = true;
         } else if (arg.startsWith("--use-root-push-install")) {
             useRootPushInstall = true;
+        } else if (arg.startsWith("--use-chunked-patches")) {
+            useChunkedPatches = true;
         } else if (arg.startsWith("--no-jdwp-client-support")) {
             jdwpClientSupport = false;
         } else if (arg.equals(PARAMETER_CREATE_ADBLIB_SESSION)) {
@@ -175,6 +178,10 @@ public class DeployRunnerParameters {
         return useRootPushInstall;
     }
 
+    public boolean getUseChunkedPatches() {
+        return useChunkedPatches;
+    }
+
     public boolean getJdwpClientSupport() {
         return jdwpClientSupport;
     }
@@ -214,7 +214,8 @@ public class Deployer {
             InstallMode installMode)
             throws DeployerException {
         logger.info("Deploying with package manager for install session %s", deploySessionUID);
-        ApkInstaller apkInstaller = new ApkInstaller(adb, service, installer, logger);
+        ApkInstaller apkInstaller =
+                new ApkInstaller(adb, service, installer, logger, options.useChunkedPatches);
         boolean skippedInstall =
                 !apkInstaller.install(app, installOptions, installMode, metrics.getDeployMetrics());
         return new InstallInfo(skippedInstall, app.getApks());
@@ -241,7 +242,9 @@ public class Deployer {
         boolean skippedInstall = false;
         if (!result.isSuccess() || !installSuccess.get()) {
             logger.info("Deploying with package manager for install session %s", deploySessionUID);
-            ApkInstaller apkInstaller = new ApkInstaller(adb, service, installer, logger);
+            ApkInstaller apkInstaller =
+                    new ApkInstaller(
+                            adb, service, installer, logger, options.useChunkedPatches);
             skippedInstall =
                     !apkInstaller.install(
                             app, installOptions, installMode, metrics.getDeployMetrics());
@@ -296,7 +299,9 @@ public class Deployer {
         boolean skippedInstall = false;
         if (!installSuccess) {
             logger.info("Deploying with package manager for session %s", deploySessionUID);
-            ApkInstaller apkInstaller = new ApkInstaller(adb, service, installer, logger);
+            ApkInstaller apkInstaller =
+                    new ApkInstaller(
+                            adb, service, installer, logger, options.useChunkedPatches);
             skippedInstall =
                     !apkInstaller.install(
                             app, installOptions, installMode, metrics.getDeployMetrics());
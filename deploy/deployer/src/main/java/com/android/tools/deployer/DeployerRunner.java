@@ -103,7 +103,9 @@ public class DeployerRunner {
             UIService service) {
         this.defaultInstallOptions = defaultInstallOptions;
         this.cacheDb = new DeploymentCacheDatabase(deployCacheFile);
-        this.dexDb = new SqlApkFileDatabase(databaseFile, null);
+        this.dexDb =
+                new SqlApkFileDatabase(
+                        databaseFile, null, new File(databaseFile.getPath() + ".index"));
         this.service = service;
         this.metrics = new MetricsRecorder();
     }
@@ -207,6 +209,7 @@ public class DeployerRunner {
                         .setAllowAssumeVerified(device.getVersion().isGreaterOrEqualThan(35))
                         .skipPostInstallTasks(parameters.getSkipPostInstallTasks())
                         .useRootPushInstall(parameters.getUseRootPushInstall())
+                        .useChunkedPatches(parameters.getUseChunkedPatches())
                         .build();
 
         Deployer deployer =
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.deployer;
+
+import com.android.SdkConstants;
+import com.android.tools.deployer.model.ApkEntry;
+import com.android.tools.deployer.model.DexClass;
+import com.android.tools.tracer.Trace;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent index of the classes of dex files, keyed by the checksum of the dex file.
+ *
+ * <p>Unlike {@link SqlApkFileDatabase}, looking up the classes of a dex file does not run a query:
+ * the file is memory-mapped and the dex checksum is binary searched in its table of contents, then
+ * only the classes of that dex file are decoded.
+ *
+ * <p>File layout, all numbers being big endian:
+ *
+ * <pre>
+ *   int     magic ("DXCI")
+ *   int     format version
+ *   int     length of the database version, followed by its UTF-8 bytes
+ *   int     number of dex files
+ *   (long dex checksum, int record offset, int record length)*, sorted by dex checksum
+ *   records, oldest first:
+ *     int   number of classes
+ *     (long class checksum, byte prefix length, short suffix length, suffix bytes)*
+ * </pre>
+ *
+ * Class names are sorted in each record and stored as the UTF-8 suffix they do not share with the
+ * previous name, since the classes of a dex file mostly share their packages.
+ *
+ * <p>Writes rewrite the whole index to a temporary file which then replaces the index, so readers
+ * of the index never see a partial write. The oldest dex files are dropped once there are more
+ * than the given maximum.
+ */
+public class DexClassIndex {
+
+    private static final int MAGIC = 0x44584349; // "DXCI"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int TOC_ENTRY_SIZE = Long.BYTES + Integer.BYTES * 2;
+    private static final int MAX_PREFIX_LENGTH = 0xFF;
+
+    private final File file;
+    private final byte[] version;
+    private final int maxDexFiles;
+
+    private boolean loaded;
+    private ByteBuffer buffer;
+    private int tocOffset;
+    private int dexCount;
+
+    /**
+     * @param file the file of the index, created on the first write
+     * @param version the index is discarded if it was written with another version, e.g. because
+     *     class checksums are computed differently
+     * @param maxDexFiles the number of dex files beyond which the oldest ones are dropped
+     */
+    public DexClassIndex(File file, String version, int maxDexFiles) {
+        this.file = file;
+        this.version = version.getBytes(StandardCharsets.UTF_8);
+        this.maxDexFiles = maxDexFiles;
+    }
+
+    /** Returns the classes of the dex file, or null if the dex file is not in the index. */
+    public synchronized List<DexClass> get(ApkEntry dex) {
+        loadIfNeeded();
+        int index = find(dex.getChecksum());
+        return index < 0 ? null : readClasses(index, dex);
+    }
+
+    /**
+     * Returns the classes of each of the dex files which are in the index. Dex files which are not
+     * in the index have no entry in the returned map.
+     */
+    public synchronized Map<ApkEntry, List<DexClass>> getAll(Collection<ApkEntry> dexes) {
+        try (Trace ignored = Trace.begin("DexClassIndex.getAll")) {
+            loadIfNeeded();
+            Map<ApkEntry, List<DexClass>> classes = new HashMap<>();
+            for (ApkEntry dex : dexes) {
+                int index = find(dex.getChecksum());
+                if (index >= 0) {
+                    classes.put(dex, readClasses(index, dex));
+                }
+            }
+            return classes;
+        }
+    }
+
+    /**
+     * Adds the classes of their dex files to the index, in a single write. Dex files already in the
+     * index are left untouched, since their classes only depend on their content.
+     */
+    public synchronized void putAll(Collection<DexClass> classes) {
+        loadIfNeeded();
+        Map<Long, List<DexClass>> added = new LinkedHashMap<>();
+        for (DexClass clazz : classes) {
+            long checksum = clazz.dex.getChecksum();
+            if (find(checksum) < 0) {
+                added.computeIfAbsent(checksum, k -> new ArrayList<>()).add(clazz);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        try (Trace ignored = Trace.begin("DexClassIndex.putAll")) {
+            write(added);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Returns the number of dex files in the index. */
+    public synchronized int size() {
+        loadIfNeeded();
+        return dexCount;
+    }
+
+    private void loadIfNeeded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        buffer = null;
+        dexCount = 0;
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            ByteBuffer content = map(randomAccessFile);
+            if (isValid(content)) {
+                buffer = content;
+                dexCount = content.getInt(tocOffset - Integer.BYTES);
+            }
+        } catch (IOException e) {
+            // The index is only a cache: if it cannot be read, it is rebuilt.
+            buffer = null;
+        }
+    }
+
+    private static ByteBuffer map(RandomAccessFile randomAccessFile) throws IOException {
+        // There is no method to unmap a MappedByteBuffer so we cannot use FileChannel.map() on
+        // Windows, where a mapped index could not be replaced.
+        if (SdkConstants.currentPlatform() == SdkConstants.PLATFORM_WINDOWS) {
+            byte[] content = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(content);
+            return ByteBuffer.wrap(content);
+        }
+        return randomAccessFile
+                .getChannel()
+                .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+    }
+
+    /** Checks the header and the table of contents, and sets {@link #tocOffset}. */
+    private boolean isValid(ByteBuffer content) {
+        int size = content.limit();
+        if (size < Integer.BYTES * 3 || content.getInt(0) != MAGIC) {
+            return false;
+        }
+        if (content.getInt(4) != FORMAT_VERSION) {
+            return false;
+        }
+        int versionLength = content.getInt(8);
+        if (versionLength != version.length || 12 + versionLength + Integer.BYTES > size) {
+            return false;
+        }
+        for (int i = 0; i < versionLength; i++) {
+            if (content.get(12 + i) != version[i]) {
+                return false;
+            }
+        }
+        tocOffset = 12 + versionLength + Integer.BYTES;
+        long count = content.getInt(tocOffset - Integer.BYTES);
+        if (count < 0 || tocOffset + count * TOC_ENTRY_SIZE > size) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int entry = tocOffset + i * TOC_ENTRY_SIZE;
+            long offset = content.getInt(entry + Long.BYTES);
+            long length = content.getInt(entry + Long.BYTES + Integer.BYTES);
+            if (offset < tocOffset || length < Integer.BYTES || offset + length > size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the position of the dex checksum in the table of contents, or -1. */
+    private int find(long checksum) {
+        int low = 0;
+        int high = dexCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = buffer.getLong(tocOffset + mid * TOC_ENTRY_SIZE);
+            if (value < checksum) {
+                low = mid + 1;
+            } else if (value > checksum) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private List<DexClass> readClasses(int index, ApkEntry dex) {
+        ByteBuffer record = getRecord(index);
+        int count = record.getInt();
+        List<DexClass> classes = new ArrayList<>(count);
+        byte[] name = new byte[256];
+        for (int i = 0; i < count; i++) {
+            long checksum = record.getLong();
+            int prefixLength = record.get() & 0xFF;
+            int suffixLength = record.getShort() & 0xFFFF;
+            int nameLength = prefixLength + suffixLength;
+            if (nameLength > name.length) {
+                name = Arrays.copyOf(name, Math.max(nameLength, name.length * 2));
+            }
+            record.get(name, prefixLength, suffixLength);
+            classes.add(
+                    new DexClass(
+                            new String(name, 0, nameLength, StandardCharsets.UTF_8),
+                            checksum,
+                            null,
+                            dex));
+        }
+        return classes;
+    }
+
+    /** Returns a view of the record of the dex file at the position in the table of contents. */
+    private ByteBuffer getRecord(int index) {
+        int entry = tocOffset + index * TOC_ENTRY_SIZE;
+        int offset = buffer.getInt(entry + Long.BYTES);
+        int length = buffer.getInt(entry + Long.BYTES + Integer.BYTES);
+        ByteBuffer record = buffer.duplicate();
+        record.limit(offset + length);
+        record.position(offset);
+        return record.slice();
+    }
+
+    private void write(Map<Long, List<DexClass>> added) throws IOException {
+        // Keep the newest of the existing records, in the order they were added.
+        int kept = Math.max(0, Math.min(dexCount, maxDexFiles - added.size()));
+        Integer[] existing = new Integer[dexCount];
+        for (int i = 0; i < dexCount; i++) {
+            existing[i] = i;
+        }
+        Arrays.sort(
+                existing,
+                Comparator.comparingInt(i -> buffer.getInt(tocOffset + i * TOC_ENTRY_SIZE + 8)));
+
+        List<Long> checksums = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        for (int i = dexCount - kept; i < dexCount; i++) {
+            checksums.add(buffer.getLong(tocOffset + existing[i] * TOC_ENTRY_SIZE));
+            records.add(getRecord(existing[i]));
+        }
+        List<Map.Entry<Long, List<DexClass>>> newRecords = new ArrayList<>(added.entrySet());
+        int first = Math.max(0, newRecords.size() - maxDexFiles);
+        for (Map.Entry<Long, List<DexClass>> entry : newRecords.subList(first, newRecords.size())) {
+            checksums.add(entry.getKey());
+            records.add(encode(entry.getValue()));
+        }
+
+        int count = checksums.size();
+        int newTocOffset = 12 + version.length + Integer.BYTES;
+        long size = newTocOffset + (long) count * TOC_ENTRY_SIZE;
+        for (ByteBuffer record : records) {
+            size += record.remaining();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Dex class index too large: " + size + " bytes");
+        }
+
+        Integer[] sorted = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, Comparator.comparingLong(checksums::get));
+        int[] offsets = new int[count];
+        int offset = newTocOffset + count * TOC_ENTRY_SIZE;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = offset;
+            offset += records.get(i).remaining();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(newTocOffset + count * TOC_ENTRY_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(version.length);
+        header.put(version);
+        header.putInt(count);
+        for (int i : sorted) {
+            header.putLong(checksums.get(i));
+            header.putInt(offsets[i]);
+            header.putInt(records.get(i).remaining());
+        }
+        header.flip();
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory: " + parent);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                FileChannel channel = out.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                for (ByteBuffer record : records) {
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+            }
+            buffer = null;
+            Files.move(
+                    tmp.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+            loaded = false;
+        }
+    }
+
+    private static ByteBuffer encode(List<DexClass> classes) {
+        List<DexClass> sorted = new ArrayList<>(classes);
+        sorted.sort(Comparator.comparing(clazz -> clazz.name));
+        List<byte[]> names = new ArrayList<>(sorted.size());
+        int size = Integer.BYTES;
+        for (DexClass clazz : sorted) {
+            byte[] name = clazz.name.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += Long.BYTES + 1 + Short.BYTES + name.length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(sorted.size());
+        byte[] previous = new byte[0];
+        for (int i = 0; i < sorted.size(); i++) {
+            byte[] name = names.get(i);
+            int prefixLength = 0;
+            int maxPrefixLength =
+                    Math.min(MAX_PREFIX_LENGTH, Math.min(name.length, previous.length));
+            while (prefixLength < maxPrefixLength && name[prefixLength] == previous[prefixLength]) {
+                prefixLength++;
+            }
+            record.putLong(sorted.get(i).checksum);
+            record.put((byte) prefixLength);
+            record.putShort((short) (name.length - prefixLength));
+            record.put(name, prefixLength, name.length - prefixLength);
+            previous = name;
+        }
+        record.flip();
+        return record;
+    }
+}
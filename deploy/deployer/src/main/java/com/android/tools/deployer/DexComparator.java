@@ -16,6 +16,7 @@
 package com.android.tools.deployer;
 
 import com.android.annotations.Trace;
+import com.android.tools.deployer.model.ApkEntry;
 import com.android.tools.deployer.model.DexClass;
 import com.android.tools.deployer.model.FileDiff;
 import java.util.ArrayList;
@@ -64,13 +65,15 @@ public class DexComparator {
         // received
 
         // Flatten the list of old files.
-        Map<String, Long> oldChecksums = new HashMap<>();
+        List<ApkEntry> oldFiles = new ArrayList<>();
         for (FileDiff diff : dexDiffs) {
             // If the dex is new, there is no old dex to open.
-            if (diff.status == FileDiff.Status.CREATED) {
-                continue;
+            if (diff.status != FileDiff.Status.CREATED) {
+                oldFiles.add(diff.oldFile);
             }
-            Collection<DexClass> klasses = splitter.split(diff.oldFile, null);
+        }
+        Map<String, Long> oldChecksums = new HashMap<>();
+        for (Collection<DexClass> klasses : splitter.splitAll(oldFiles, null)) {
             for (DexClass clz : klasses) {
                 // split() can return multiple entries but with the most recent ones first. Duplicated entries with
                 // We are going to assume the classes are actually the most recent one.
@@ -81,16 +84,20 @@ public class DexComparator {
         List<DexClass> newClasses = new ArrayList<>();
         List<DexClass> modifiedClasses = new ArrayList<>();
 
+        // Memory optimization to discard not needed code. The new files may be split concurrently,
+        // so oldChecksums is only updated once all of them are split.
+        Predicate<DexClass> keepCode =
+                (DexClass clz) -> {
+                    Long oldChecksum = oldChecksums.get(clz.name);
+                    // Keep the class if it is new or modifiedClasses.
+                    return oldChecksum == null || clz.checksum != oldChecksum;
+                };
+        List<ApkEntry> newFiles = new ArrayList<>();
         for (FileDiff diff : dexDiffs) {
-            // Memory optimization to discard not needed code
-            Predicate<DexClass> keepCode =
-                    (DexClass clz) -> {
-                        Long oldChecksum = oldChecksums.get(clz.name);
-                        // Keep the class if it is new or modifiedClasses.
-                        return oldChecksum == null || clz.checksum != oldChecksum;
-                    };
+            newFiles.add(diff.newFile);
+        }
 
-            Collection<DexClass> klasses = splitter.split(diff.newFile, keepCode);
+        for (Collection<DexClass> klasses : splitter.splitAll(newFiles, keepCode)) {
             for (DexClass klass : klasses) {
                 if (klass.code == null) {
                     // If we already decided this is unchanged, make it in the oldChecksums map as null. From now on we are going to
@@ -18,6 +18,7 @@ package com.android.tools.deployer;
 import com.android.tools.deployer.model.Apk;
 import com.android.tools.deployer.model.ApkEntry;
 import com.android.tools.deployer.model.DexClass;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Predicate;
@@ -25,13 +26,28 @@ import java.util.function.Predicate;
 public interface DexSplitter {
     Collection<DexClass> split(ApkEntry dex, Predicate<DexClass> keepCode) throws DeployerException;
 
+    /**
+     * Splits each of the dex files, returning their classes in the same order. Implementations may
+     * split the dex files concurrently, so keepCode needs to be threadsafe.
+     */
+    default List<Collection<DexClass>> splitAll(List<ApkEntry> dexes, Predicate<DexClass> keepCode)
+            throws DeployerException {
+        List<Collection<DexClass>> classes = new ArrayList<>(dexes.size());
+        for (ApkEntry dex : dexes) {
+            classes.add(split(dex, keepCode));
+        }
+        return classes;
+    }
+
     default boolean cache(List<Apk> apks) throws DeployerException {
         for (Apk apk : apks) {
+            List<ApkEntry> dexes = new ArrayList<>();
             for (ApkEntry file : apk.apkEntries.values()) {
                 if (file.getName().endsWith(".dex")) {
-                    split(file, null);
+                    dexes.add(file);
                 }
             }
+            splitAll(dexes, null);
         }
         return true;
     }
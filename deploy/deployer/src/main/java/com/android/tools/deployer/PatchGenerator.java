@@ -26,6 +26,7 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -41,12 +42,24 @@ public class PatchGenerator {
 
         final ByteBuffer data;
         final ByteBuffer instructions;
+        // (int32 dst offset, int32 src offset, int32 length) areas copied from the source apk.
+        final ByteBuffer copies;
         final String sourcePath; // Path to apk used as source of clean data on the device.
         final long destinationSize; // Size of apk to generate on the device.
 
         Patch(ByteBuffer data, ByteBuffer instructions, String sourcePath, long destinationSize) {
+            this(data, instructions, null, sourcePath, destinationSize);
+        }
+
+        Patch(
+                ByteBuffer data,
+                ByteBuffer instructions,
+                ByteBuffer copies,
+                String sourcePath,
+                long destinationSize) {
             this.data = data;
             this.instructions = instructions;
+            this.copies = copies;
             this.sourcePath = sourcePath;
             this.destinationSize = destinationSize;
             this.status = Status.Ok;
@@ -55,6 +68,7 @@ public class PatchGenerator {
         Patch(Status status) {
             this.data = null;
             this.instructions = null;
+            this.copies = null;
             this.sourcePath = null;
             this.destinationSize = 0;
             this.status = status;
@@ -63,8 +77,20 @@ public class PatchGenerator {
 
     private ILogger logger;
 
+    private final boolean useChunks;
+
     public PatchGenerator(ILogger logger) {
+        this(logger, false);
+    }
+
+    /**
+     * @param useChunks whether to send only the content-defined chunks of the dirty areas which
+     *     are not found anywhere in the remote apk, when the remote apk was deployed by this
+     *     process. See {@link ApkChunkIndex}.
+     */
+    public PatchGenerator(ILogger logger, boolean useChunks) {
         this.logger = logger;
+        this.useChunks = useChunks;
     }
 
     /**
@@ -75,6 +101,9 @@ public class PatchGenerator {
      * CD of each apks on the device (typically accounting for a few KiB), and then comparing CD
      * entries in the local apk on the host, a map of dirty areas is generated.
      *
+     * <p>When chunks are used, the dirty areas are further split into chunks, and the chunks which
+     * are already in the remote apk are copied from it on the device instead of being sent.
+     *
      * @return A Patch to apply to a file in order to turn the remoteApk into the localApk.
      */
     public Patch generate(Apk remoteApk, Apk localApk) throws IOException {
@@ -84,6 +113,16 @@ public class PatchGenerator {
         // Generate maps from each apk, based on the content directory.
         List<ApkMap.Area> dirtyAreas = generateDirtyMap(remoteApk, localApk);
 
+        if (useChunks) {
+            // The local apk is the remote apk of the next deployment.
+            ApkChunkIndex.record(localApk);
+            ApkChunkIndex remoteChunks = ApkChunkIndex.get(remoteApk);
+            if (remoteChunks != null) {
+                return generateFromChunks(
+                        remoteChunks, localApk, dirtyAreas, sourcePath, destinationSize);
+            }
+        }
+
         // Use the map of what is dirty and what is clean in the archive to build the patching
         // instruction.
         long patchSize = 0;
@@ -116,11 +155,98 @@ public class PatchGenerator {
         return new Patch(data, instructions, sourcePath, destinationSize);
     }
 
+    private Patch generateFromChunks(
+            ApkChunkIndex remoteChunks,
+            Apk localApk,
+            List<ApkMap.Area> dirtyAreas,
+            String sourcePath,
+            long destinationSize)
+            throws IOException {
+        List<int[]> dirtyChunks = new ArrayList<>(); // (dst offset, length)
+        List<int[]> copiedChunks = new ArrayList<>(); // (dst offset, src offset, length)
+        long[] patchSize = {0};
+
+        Trace.begin("chunking dirty areas");
+        try (FileChannel fileChannel =
+                FileChannel.open(Paths.get(localApk.path), StandardOpenOption.READ)) {
+            for (ApkMap.Area dirtyArea : dirtyAreas) {
+                ApkChunkIndex.chunk(
+                        fileChannel,
+                        dirtyArea.start,
+                        dirtyArea.end + 1,
+                        (offset, length, hash) -> {
+                            ApkChunkIndex.Chunk chunk = remoteChunks.find(hash);
+                            if (chunk != null) {
+                                addCopy(copiedChunks, (int) offset, (int) chunk.offset, length);
+                            } else {
+                                addDirty(dirtyChunks, (int) offset, length);
+                                patchSize[0] += length;
+                            }
+                        });
+            }
+            Trace.end();
+            logger.info(
+                    "Chunked patch: %d bytes sent, %d areas copied",
+                    patchSize[0], copiedChunks.size());
+
+            if (patchSize[0] > PatchSetGenerator.MAX_PATCHSET_SIZE) {
+                return new Patch(Patch.Status.SizeThresholdExceeded);
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(new byte[Math.toIntExact(patchSize[0])]);
+            ByteBuffer instructions =
+                    ByteBuffer.wrap(new byte[dirtyChunks.size() * 8])
+                            .order(ByteOrder.LITTLE_ENDIAN);
+            for (int[] dirtyChunk : dirtyChunks) {
+                instructions.putInt(dirtyChunk[0]);
+                instructions.putInt(dirtyChunk[1]);
+                data.limit(data.position() + dirtyChunk[1]);
+                ApkChunkIndex.readFully(fileChannel, data, dirtyChunk[0]);
+            }
+            ByteBuffer copies =
+                    ByteBuffer.wrap(new byte[copiedChunks.size() * 12])
+                            .order(ByteOrder.LITTLE_ENDIAN);
+            for (int[] copiedChunk : copiedChunks) {
+                copies.putInt(copiedChunk[0]);
+                copies.putInt(copiedChunk[1]);
+                copies.putInt(copiedChunk[2]);
+            }
+
+            data.rewind();
+            instructions.rewind();
+            copies.rewind();
+            return new Patch(data, instructions, copies, sourcePath, destinationSize);
+        }
+    }
+
+    // Adds a dirty chunk, merged with the previous one if they are contiguous.
+    private static void addDirty(List<int[]> dirtyChunks, int offset, int length) {
+        int[] last = dirtyChunks.isEmpty() ? null : dirtyChunks.get(dirtyChunks.size() - 1);
+        if (last != null && last[0] + last[1] == offset) {
+            last[1] += length;
+        } else {
+            dirtyChunks.add(new int[] {offset, length});
+        }
+    }
+
+    // Adds a copied chunk, merged with the previous one if they are contiguous in both apks.
+    private static void addCopy(List<int[]> copiedChunks, int offset, int source, int length) {
+        int[] last = copiedChunks.isEmpty() ? null : copiedChunks.get(copiedChunks.size() - 1);
+        if (last != null && last[0] + last[2] == offset && last[1] + last[2] == source) {
+            last[2] += length;
+        } else {
+            copiedChunks.add(new int[] {offset, source, length});
+        }
+    }
+
     // Generate a patch for an apk which will result in a no-op when the patch is applied to it
     // (a patch with no data and no instruction but correct path and dst filesize).
     public Patch generateCleanPatch(Apk remoteApk, Apk localApk) throws IOException {
         String sourcePath = remoteApk.path;
         long destinationSize = Files.size(Paths.get(localApk.path));
+        if (useChunks) {
+            ApkChunkIndex.record(localApk);
+        }
         return new Patch(null, null, sourcePath, destinationSize);
     }
 
@@ -37,6 +37,7 @@ public class PatchSetGenerator {
 
     private ILogger logger;
     private final WhenNoChanges whenNoChanges;
+    private final boolean useChunks;
 
     public enum WhenNoChanges {
         GENERATE_PATCH_ANYWAY, // This results in an apk patch containing the CD/EOCD.
@@ -44,8 +45,14 @@ public class PatchSetGenerator {
     }
 
     public PatchSetGenerator(WhenNoChanges whenNoChanges, ILogger logger) {
+        this(whenNoChanges, false, logger);
+    }
+
+    /** @param useChunks see {@link PatchGenerator#PatchGenerator(ILogger, boolean)}. */
+    public PatchSetGenerator(WhenNoChanges whenNoChanges, boolean useChunks, ILogger logger) {
         this.logger = logger;
         this.whenNoChanges = whenNoChanges;
+        this.useChunks = useChunks;
     }
 
     public PatchSet generateFromApks(List<Apk> localApks, List<Apk> remoteApks) {
@@ -116,7 +123,7 @@ public class PatchSetGenerator {
                 instruction = generateCleanPatch(remoteApk, localApk);
             } else {
                 PatchGenerator.Patch patch =
-                        new PatchGenerator(logger).generate(remoteApk, localApk);
+                        new PatchGenerator(logger, useChunks).generate(remoteApk, localApk);
                 switch (patch.status) {
                     case SizeThresholdExceeded:
                         return PatchSet.SIZE_THRESHOLD_EXCEEDED;
@@ -130,10 +137,14 @@ public class PatchSetGenerator {
                                 patch.destinationSize,
                                 patch.sourcePath,
                                 patch.instructions,
-                                patch.data);
+                                patch.data,
+                                patch.copies);
             }
 
-            patchSizes += instruction.getInstructions().size() + instruction.getPatches().size();
+            patchSizes +=
+                    instruction.getInstructions().size()
+                            + instruction.getPatches().size()
+                            + instruction.getCopies().size();
             if (patchSizes > MAX_PATCHSET_SIZE) {
                 return PatchSet.SIZE_THRESHOLD_EXCEEDED;
             }
@@ -145,12 +156,19 @@ public class PatchSetGenerator {
     }
 
     private Deploy.PatchInstruction buildPatchInstruction(
-            long size, String remotePath, ByteBuffer instruction, ByteBuffer data) {
+            long size,
+            String remotePath,
+            ByteBuffer instruction,
+            ByteBuffer data,
+            ByteBuffer copies) {
         Deploy.PatchInstruction.Builder patchInstructionBuilder =
                 Deploy.PatchInstruction.newBuilder();
         patchInstructionBuilder.setSrcAbsolutePath(remotePath);
         patchInstructionBuilder.setPatches(ByteString.copyFrom(data));
         patchInstructionBuilder.setInstructions(ByteString.copyFrom(instruction));
+        if (copies != null) {
+            patchInstructionBuilder.setCopies(ByteString.copyFrom(copies));
+        }
         patchInstructionBuilder.setDstFilesize(size);
 
         return patchInstructionBuilder.build();
@@ -162,7 +180,7 @@ public class PatchSetGenerator {
                 Deploy.PatchInstruction.newBuilder();
 
         PatchGenerator.Patch patch =
-                new PatchGenerator(logger).generateCleanPatch(remoteApk, localApk);
+                new PatchGenerator(logger, useChunks).generateCleanPatch(remoteApk, localApk);
         patchInstructionBuilder.setSrcAbsolutePath(patch.sourcePath);
         patchInstructionBuilder.setDstFilesize(patch.destinationSize);
         return patchInstructionBuilder.build();
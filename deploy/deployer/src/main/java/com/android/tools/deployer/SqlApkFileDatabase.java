@@ -28,17 +28,19 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Objects;
 
 public class SqlApkFileDatabase {
     // The SQLite use this property to determine where to temporary extract the .so / .dll during init.
@@ -47,6 +49,16 @@ public class SqlApkFileDatabase {
     public static final int DEFAULT_MAX_DEXFILE_ENTRIES = 200;
     public static final int SQLITE_MAX_LENGTH = 1_000_000;
 
+    // Older SQLite versions allow at most 999 parameters per statement.
+    private static final int MAX_QUERY_PARAMETERS = 500;
+    private static final String GET_CLASSES_QUERY =
+            "SELECT dexfiles.name as dexName, dexfiles.checksum as dexChecksum,"
+                    + "  classes.name as name, classes.checksum as checksum"
+                    + "  FROM dexfiles"
+                    + "  INNER JOIN archives on archives.dexfileId = dexfiles.id"
+                    + "  INNER JOIN classes on classes.dexfileId = dexfiles.id"
+                    + "  WHERE dexfiles.checksum IN (";
+
     // Purely a value-based check. No plans to make the cache database forward / backward compatible.
     //  IE: All tables will be dropped if version number on the file does not match this number.
 
@@ -63,6 +75,14 @@ public class SqlApkFileDatabase {
     private final String databaseVersion;
     private final File dbFile;
     private final String nativeLibraryTmpDir;
+    private final DexClassIndex index;
+
+    /**
+     * Classes found in the database by single dex file lookups, by dex checksum, which are not in
+     * the index yet. They are added with the next write of the index, since each write rewrites
+     * the whole index.
+     */
+    private final Map<Long, List<DexClass>> pendingIndexClasses = new LinkedHashMap<>();
 
     private boolean initialized;
     private int maxDexFilesEntries;
@@ -82,12 +102,38 @@ public class SqlApkFileDatabase {
                 DEFAULT_MAX_DEXFILE_ENTRIES);
     }
 
+    /**
+     * @param indexFile if not null, the classes of dex files are also stored in a {@link
+     *     DexClassIndex} in this file, which is looked up before the database.
+     */
+    public SqlApkFileDatabase(File file, String nativeLibraryTmpDir, File indexFile) {
+        this(
+                file,
+                nativeLibraryTmpDir,
+                CURRENT_DATABASE_VERSION_STRING,
+                DEFAULT_MAX_DEXFILE_ENTRIES,
+                indexFile);
+    }
+
     public SqlApkFileDatabase(
             File file, String nativeLibraryTmpDir, String databaseVersion, int maxDexFileEntries) {
+        this(file, nativeLibraryTmpDir, databaseVersion, maxDexFileEntries, null);
+    }
+
+    public SqlApkFileDatabase(
+            File file,
+            String nativeLibraryTmpDir,
+            String databaseVersion,
+            int maxDexFileEntries,
+            File indexFile) {
         this.databaseVersion = databaseVersion;
         this.maxDexFilesEntries = maxDexFileEntries;
         this.dbFile = file;
         this.nativeLibraryTmpDir = nativeLibraryTmpDir;
+        this.index =
+                indexFile == null
+                        ? null
+                        : new DexClassIndex(indexFile, databaseVersion, maxDexFileEntries);
         this.initialized = false;
     }
 
@@ -148,11 +194,17 @@ public class SqlApkFileDatabase {
 
     public void close() {
         try {
-            if (connection != null) {
-                connection.close();
+            if (index != null) {
+                putInIndex(Collections.emptyList());
+            }
+        } finally {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -233,30 +285,121 @@ public class SqlApkFileDatabase {
     }
 
     public List<DexClass> getClasses(ApkEntry dex) throws DeployerException {
+        if (index != null) {
+            List<DexClass> classes = index.get(dex);
+            if (classes != null) {
+                return classes;
+            }
+            List<DexClass> pending = pendingIndexClasses.get(dex.getChecksum());
+            if (pending != null) {
+                classes = new ArrayList<>(pending.size());
+                for (DexClass clazz : pending) {
+                    classes.add(new DexClass(clazz.name, clazz.checksum, null, dex));
+                }
+                return classes;
+            }
+        }
         initializeIfNeeded();
         try (Trace ignored = Trace.begin("SqlApkFileDatabase.getClasses");
-                Statement s = connection.createStatement();
-                ResultSet result =
-                        s.executeQuery(
+                PreparedStatement s =
+                        connection.prepareStatement(
                                 "SELECT classes.name as name, classes.checksum as checksum"
                                         + "  FROM dexfiles"
                                         + "  INNER JOIN archives on archives.dexfileId = dexfiles.id"
                                         + "  INNER JOIN classes on classes.dexfileId = dexfiles.id"
-                                        + "  WHERE dexfiles.name = \""
-                                        + dex.getName()
-                                        + "\" AND dexfiles.checksum = "
-                                        + dex.getChecksum()
+                                        + "  WHERE dexfiles.name = ? AND dexfiles.checksum = ?"
                                         + " ORDER BY id DESC")) {
+            s.setString(1, dex.getName());
+            s.setLong(2, dex.getChecksum());
             List<DexClass> classes = new ArrayList<>();
-            while (result.next()) {
-                String name = result.getString("name");
-                long checksum = result.getLong("checksum");
-                classes.add(new DexClass(name, checksum, null, dex));
+            try (ResultSet result = s.executeQuery()) {
+                while (result.next()) {
+                    String name = result.getString("name");
+                    long checksum = result.getLong("checksum");
+                    classes.add(new DexClass(name, checksum, null, dex));
+                }
+            }
+            if (index != null && !classes.isEmpty()) {
+                pendingIndexClasses.putIfAbsent(dex.getChecksum(), classes);
+            }
+            return classes;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the classes of each of the dex files, like {@link #getClasses(ApkEntry)} but with a
+     * single query for all the dex files (e.g. of an APK). Dex files without classes in the
+     * database are mapped to an empty list.
+     */
+    public Map<ApkEntry, List<DexClass>> getClasses(Collection<ApkEntry> dexes)
+            throws DeployerException {
+        Map<ApkEntry, List<DexClass>> classes = new HashMap<>();
+        if (index != null) {
+            classes.putAll(index.getAll(dexes));
+        }
+        // Dex files by name and checksum, since several APKs may have the same dex file.
+        Map<DexKey, List<ApkEntry>> missing = new HashMap<>();
+        for (ApkEntry dex : dexes) {
+            if (!classes.containsKey(dex)) {
+                classes.put(dex, new ArrayList<>());
+                missing.computeIfAbsent(new DexKey(dex), k -> new ArrayList<>()).add(dex);
+            }
+        }
+        if (missing.isEmpty()) {
+            if (index != null) {
+                putInIndex(Collections.emptyList());
             }
             return classes;
+        }
+
+        initializeIfNeeded();
+        List<DexClass> found = new ArrayList<>();
+        try (Trace ignored = Trace.begin("SqlApkFileDatabase.getClasses(bulk)")) {
+            List<Long> checksums = new ArrayList<>();
+            missing.keySet().forEach(key -> checksums.add(key.checksum));
+            for (int i = 0; i < checksums.size(); i += MAX_QUERY_PARAMETERS) {
+                List<Long> batch =
+                        checksums.subList(
+                                i, Math.min(checksums.size(), i + MAX_QUERY_PARAMETERS));
+                StringBuilder query = new StringBuilder(GET_CLASSES_QUERY).append("?");
+                for (int j = 1; j < batch.size(); j++) {
+                    query.append(", ?");
+                }
+                query.append(") ORDER BY id DESC");
+                try (PreparedStatement s = connection.prepareStatement(query.toString())) {
+                    for (int j = 0; j < batch.size(); j++) {
+                        s.setLong(j + 1, batch.get(j));
+                    }
+                    try (ResultSet result = s.executeQuery()) {
+                        while (result.next()) {
+                            DexKey key =
+                                    new DexKey(
+                                            result.getString("dexName"),
+                                            result.getLong("dexChecksum"));
+                            List<ApkEntry> entries = missing.get(key);
+                            if (entries == null) {
+                                continue;
+                            }
+                            String name = result.getString("name");
+                            long checksum = result.getLong("checksum");
+                            for (ApkEntry dex : entries) {
+                                DexClass clazz = new DexClass(name, checksum, null, dex);
+                                classes.get(dex).add(clazz);
+                                found.add(clazz);
+                            }
+                        }
+                    }
+                }
+            }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+        if (index != null) {
+            putInIndex(found);
+        }
+        return classes;
     }
 
     public void addClasses(Collection<DexClass> allClasses) throws DeployerException {
@@ -272,90 +415,73 @@ public class SqlApkFileDatabase {
                 }
                 multimap.put(clazz.dex, clazz);
             }
-            for (Map.Entry<Apk, Multimap<ApkEntry, DexClass>> entry : map.entrySet()) {
-                Multimap<ApkEntry, DexClass> classes = entry.getValue();
-                List<Integer> ids = new ArrayList<>();
-                for (ApkEntry dex : classes.keySet()) {
-                    numDex++;
-                    int id = addDexFile(dex.getChecksum(), dex.getName());
-                    ids.add(id);
-                    // TODO: Verify if writing all the classses in one go would help
-                    addClasses(id, classes.get(dex));
+            // Write everything in a single transaction, with one batch per table.
+            connection.setAutoCommit(false);
+            try (PreparedStatement insertDexFile =
+                            connection.prepareStatement(
+                                    "INSERT INTO dexfiles(name, checksum) VALUES (?, ?);");
+                    PreparedStatement insertClass =
+                            connection.prepareStatement(
+                                    "INSERT INTO classes (dexfileId, name, checksum)"
+                                            + " VALUES (?, ?, ?);");
+                    PreparedStatement insertArchive =
+                            connection.prepareStatement(
+                                    "INSERT INTO archives (dexfileId, checksum) VALUES (?, ?);")) {
+                for (Map.Entry<Apk, Multimap<ApkEntry, DexClass>> entry : map.entrySet()) {
+                    Multimap<ApkEntry, DexClass> classes = entry.getValue();
+                    for (ApkEntry dex : classes.keySet()) {
+                        numDex++;
+                        int id = addDexFile(insertDexFile, dex.getChecksum(), dex.getName());
+                        for (DexClass clazz : classes.get(dex)) {
+                            insertClass.setInt(1, id);
+                            insertClass.setString(2, clazz.name);
+                            insertClass.setLong(3, clazz.checksum);
+                            insertClass.addBatch();
+                        }
+                        insertArchive.setInt(1, id);
+                        insertArchive.setString(2, entry.getKey().checksum);
+                        insertArchive.addBatch();
+                    }
                 }
-                addDexFiles(entry.getKey().checksum, ids);
+                insertClass.executeBatch();
+                insertArchive.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
             flushOldCache(numDex);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
-    }
-
-    private int addDexFile(long checksum, String name) throws SQLException {
-        String insert =
-                String.format(
-                        "INSERT INTO dexfiles(name, checksum) VALUES (\"%s\", %d);",
-                        name, checksum);
-        try (Statement s = connection.createStatement()) {
-            int updated = s.executeUpdate(insert);
-            assert updated == 1;
-            try (ResultSet set = s.executeQuery("SELECT LAST_INSERT_ROWID();")) {
-                return set.getInt(1);
-            }
+        if (index != null) {
+            putInIndex(allClasses);
         }
     }
 
-    private void addClasses(int dexId, Collection<DexClass> classes) throws SQLException {
-        addClasses(dexId, classes.iterator());
-    }
-
-    private void addClasses(int dexId, Iterator<DexClass> classes) throws SQLException {
-        // Base Case: Nothing to do.
-        if (!classes.hasNext()) {
+    /** Adds the classes and the pending classes to the index, in a single write. */
+    private void putInIndex(Collection<DexClass> classes) {
+        if (classes.isEmpty() && pendingIndexClasses.isEmpty()) {
             return;
         }
-
-        // (Tail) Recursive Case: Insert roughly as much as we can under the SQL query limit
-        //                        and then recurse for the rest of the classes.
-        int numClassesInserted = 0;
-        StringBuilder insert =
-                new StringBuilder("INSERT INTO classes (dexfileId, name, checksum) VALUES ");
-        while (classes.hasNext()) {
-            DexClass next = classes.next();
-            if (numClassesInserted > 0) {
-                insert.append(",");
-            }
-            insert.append(String.format("(%d, \"%s\", %d)", dexId, next.name, next.checksum));
-            numClassesInserted++;
-
-            // Since we can't 'peak' the next element in the iterator, we are going to assume
-            // that we don't have enough room to add another class to the current INSERT statement
-            // if we have less than 10000 characters left. While not optimal, most DEX file should
-            // fit in one INSERT and on rare occasions two INSERTs.
-            if (insert.length() > (SQLITE_MAX_LENGTH - 10000)) {
-                break;
-            }
-        }
-
-        insert.append(";");
-        int updated = executeUpdate(insert.toString());
-        assert updated == numClassesInserted;
-
-        addClasses(dexId, classes);
+        List<DexClass> added = new ArrayList<>(classes);
+        pendingIndexClasses.values().forEach(added::addAll);
+        pendingIndexClasses.clear();
+        index.putAll(added);
     }
 
-    private void addDexFiles(String archiveChecksum, List<Integer> files) throws SQLException {
-        if (files.isEmpty()) {
-            return;
+    private int addDexFile(PreparedStatement insert, long checksum, String name)
+            throws SQLException {
+        insert.setString(1, name);
+        insert.setLong(2, checksum);
+        int updated = insert.executeUpdate();
+        assert updated == 1;
+        try (Statement s = connection.createStatement();
+                ResultSet set = s.executeQuery("SELECT LAST_INSERT_ROWID();")) {
+            return set.getInt(1);
         }
-
-        String values =
-                files.stream()
-                        .map(e -> String.format("(%d, \"%s\")", e, archiveChecksum))
-                        .collect(Collectors.joining(","));
-        String insert =
-                String.format("INSERT INTO archives (dexfileId, checksum) VALUES %s;", values);
-        int updated = executeUpdate(insert);
-        assert updated == files.size();
     }
 
     @VisibleForTesting
@@ -442,4 +568,33 @@ public class SqlApkFileDatabase {
             throw new RuntimeException(e);
         }
     }
+
+    /** The name and the checksum of a dex file, which identify it in the database. */
+    private static final class DexKey {
+        private final String name;
+        private final long checksum;
+
+        DexKey(ApkEntry dex) {
+            this(dex.getName(), dex.getChecksum());
+        }
+
+        DexKey(String name, long checksum) {
+            this.name = name;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DexKey)) {
+                return false;
+            }
+            DexKey other = (DexKey) o;
+            return checksum == other.checksum && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, checksum);
+        }
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.deployer;
+
+import com.android.tools.deployer.model.Apk;
+import com.android.tools.deployer.model.ApkEntry;
+import com.android.tools.deployer.model.DexClass;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CachedDexSplitterTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private SqlApkFileDatabase db;
+    private Apk apk;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new SqlApkFileDatabase(tmp.newFile("test.db"), null, "1.0", 10);
+        apk =
+                Apk.builder()
+                        .setName("base.apk")
+                        .setChecksum("ABCD")
+                        .setPath(tmp.newFile("base.apk").getPath())
+                        .build();
+    }
+
+    /** Verify that splitAll returns the classes of each dex file in order, split or cached. */
+    @Test
+    public void testSplitAllKeepsOrder() throws Exception {
+        List<ApkEntry> dexes = dexFiles(1, 2, 3);
+        CountingDexSplitter counting = new CountingDexSplitter();
+        CachedDexSplitter splitter = new CachedDexSplitter(db, counting);
+
+        // Only the second dex file is in the database.
+        splitter.split(dexes.get(1), null);
+        Assert.assertEquals(1, counting.splits);
+
+        List<Collection<DexClass>> classes = splitter.splitAll(dexes, null);
+        Assert.assertEquals(3, counting.splits);
+        assertClassesOf(dexes, classes);
+    }
+
+    /** Verify that splitAll matches split, once the classes are cached in the database. */
+    @Test
+    public void testSplitAllMatchesSplit() throws Exception {
+        List<ApkEntry> dexes = dexFiles(1, 2, 3);
+        CountingDexSplitter counting = new CountingDexSplitter();
+        CachedDexSplitter splitter = new CachedDexSplitter(db, counting);
+        List<Collection<DexClass>> split = splitter.splitAll(dexes, null);
+        Assert.assertEquals(3, counting.splits);
+
+        // The same dex files in another APK are looked up from the database.
+        Apk other =
+                Apk.builder().setName("base.apk").setChecksum("EFGH").setPath(apk.path).build();
+        List<ApkEntry> sameDexes = new ArrayList<>();
+        for (ApkEntry dex : dexes) {
+            sameDexes.add(new ApkEntry(dex.getName(), dex.getChecksum(), other));
+        }
+        List<Collection<DexClass>> cached = splitter.splitAll(sameDexes, null);
+        Assert.assertEquals(3, counting.splits);
+        assertClassesOf(sameDexes, cached);
+        for (int i = 0; i < dexes.size(); i++) {
+            assertSameClasses(split.get(i), cached.get(i));
+            assertSameClasses(splitter.split(sameDexes.get(i), null), cached.get(i));
+        }
+        Assert.assertEquals(3, counting.splits);
+    }
+
+    /** Verify that the dex files are split again when their code is needed. */
+    @Test
+    public void testSplitAllWithKeepCode() throws Exception {
+        List<ApkEntry> dexes = dexFiles(1, 2);
+        CountingDexSplitter counting = new CountingDexSplitter();
+        CachedDexSplitter splitter = new CachedDexSplitter(db, counting);
+        splitter.splitAll(dexes, null);
+        Assert.assertEquals(2, counting.splits);
+
+        List<Collection<DexClass>> classes = splitter.splitAll(dexes, clazz -> true);
+        Assert.assertEquals(4, counting.splits);
+        assertClassesOf(dexes, classes);
+        for (Collection<DexClass> dexClasses : classes) {
+            for (DexClass clazz : dexClasses) {
+                Assert.assertNotNull(clazz.code);
+            }
+        }
+    }
+
+    private List<ApkEntry> dexFiles(long... checksums) {
+        List<ApkEntry> dexes = new ArrayList<>();
+        for (long checksum : checksums) {
+            dexes.add(new ApkEntry("classes" + checksum + ".dex", checksum, apk));
+        }
+        return dexes;
+    }
+
+    /** Checks that each collection has the classes of the dex file at the same position. */
+    private static void assertClassesOf(List<ApkEntry> dexes, List<Collection<DexClass>> classes) {
+        Assert.assertEquals(dexes.size(), classes.size());
+        for (int i = 0; i < dexes.size(); i++) {
+            ApkEntry dex = dexes.get(i);
+            Assert.assertEquals(2, classes.get(i).size());
+            for (DexClass clazz : classes.get(i)) {
+                Assert.assertSame(dex, clazz.dex);
+                Assert.assertTrue(clazz.name, clazz.name.endsWith("." + dex.getChecksum()));
+            }
+        }
+    }
+
+    private static void assertSameClasses(
+            Collection<DexClass> expected, Collection<DexClass> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (DexClass clazz : expected) {
+            Assert.assertTrue(
+                    clazz.name,
+                    actual.stream()
+                            .anyMatch(
+                                    other ->
+                                            other.name.equals(clazz.name)
+                                                    && other.checksum == clazz.checksum));
+        }
+    }
+
+    /** Returns two classes per dex file, named and checksummed after the dex file. */
+    private static class CountingDexSplitter implements DexSplitter {
+        private int splits;
+
+        @Override
+        public Collection<DexClass> split(ApkEntry dex, Predicate<DexClass> keepCode) {
+            splits++;
+            List<DexClass> classes = new ArrayList<>();
+            for (String name : ImmutableList.of("A", "B")) {
+                DexClass clazz =
+                        new DexClass(
+                                name + "." + dex.getChecksum(),
+                                dex.getChecksum() * 16 + name.charAt(0),
+                                new byte[0],
+                                dex);
+                if (keepCode == null || !keepCode.test(clazz)) {
+                    clazz = new DexClass(clazz.name, clazz.checksum, null, dex);
+                }
+                classes.add(clazz);
+            }
+            return classes;
+        }
+    }
+}
@@ -24,11 +24,14 @@ import com.android.tools.r8.D8Command;
 import com.android.tools.r8.DexIndexedConsumer;
 import com.android.tools.r8.DiagnosticsHandler;
 import com.android.tools.r8.origin.Origin;
+import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.CRC32;
@@ -205,6 +208,93 @@ public class D8DexSplitterTest {
         Assert.assertEquals(0, Integer.parseInt(state.getValue()));
     }
 
+    /** Verify that splitAll returns the classes of each dex file in order, as split does. */
+    @Test
+    public void testSplitAllKeepsOrder() {
+        List<ApkEntry> dexes =
+                ImmutableList.of(
+                        new InMemoryDexFile(true, SimpleJavaClass.class),
+                        new InMemoryDexFile(true, StaticPrimitiveClass.class),
+                        new InMemoryDexFile(false, this.getClass()),
+                        new InMemoryDexFile(true, SimpleJavaClass.class, this.getClass()));
+
+        List<Collection<DexClass>> all = new D8InMemoryDexSplitter(4).splitAll(dexes, d -> true);
+        Assert.assertEquals(dexes.size(), all.size());
+        for (int i = 0; i < dexes.size(); i++) {
+            Collection<DexClass> expected =
+                    new D8InMemoryDexSplitter(1).split(dexes.get(i), d -> true);
+            assertSameClasses(expected, all.get(i));
+            for (DexClass clazz : all.get(i)) {
+                Assert.assertSame(dexes.get(i), clazz.dex);
+            }
+        }
+    }
+
+    /** Verify that a class taken from the cache is the same as the parsed one. */
+    @Test
+    public void testSplitReusesCachedClasses() {
+        Cache<String, DexClass> cache = D8DexSplitter.newClassCache();
+        Class<StaticPrimitiveClass> target = StaticPrimitiveClass.class;
+
+        ApkEntry first = new InMemoryDexFile(true, target);
+        DexClass parsed =
+                findClass(new D8InMemoryDexSplitter(1, cache).split(first, d -> true), target);
+        Assert.assertNotNull(parsed.code);
+        Assert.assertEquals(1, cache.size());
+
+        // Another dex file with the same class, split by another splitter sharing the cache.
+        ApkEntry second = new InMemoryDexFile(true, target, this.getClass());
+        Collection<DexClass> result =
+                new D8InMemoryDexSplitter(1, cache)
+                        .split(second, d -> d.name.equals(target.getName()));
+        DexClass cached = findClass(result, target);
+        Assert.assertSame(parsed.code, cached.code);
+        Assert.assertEquals(parsed.checksum, cached.checksum);
+        Assert.assertEquals(parsed.variableStates, cached.variableStates);
+        Assert.assertSame(second, cached.dex);
+        Assert.assertNull(findClass(result, this.getClass()).code);
+
+        // The cache does not change the outcome of a split.
+        assertSameClasses(
+                new D8InMemoryDexSplitter(1).split(second, d -> true),
+                new D8InMemoryDexSplitter(1, cache).split(second, d -> true));
+    }
+
+    /** Verify that only the classes whose code is kept are cached. */
+    @Test
+    public void testSplitOnlyCachesKeptCode() {
+        Cache<String, DexClass> cache = D8DexSplitter.newClassCache();
+        ApkEntry input = new InMemoryDexFile(true, SimpleJavaClass.class, this.getClass());
+
+        new D8InMemoryDexSplitter(1, cache).split(input, d -> false);
+        Assert.assertEquals(0, cache.size());
+
+        new D8InMemoryDexSplitter(1, cache)
+                .split(input, d -> d.name.equals(SimpleJavaClass.class.getName()));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    /** Compares the classes by name, checksum, code and variable states. */
+    private static void assertSameClasses(
+            Collection<DexClass> expected, Collection<DexClass> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        Map<String, DexClass> byName = new HashMap<>();
+        for (DexClass clazz : actual) {
+            byName.put(clazz.name, clazz);
+        }
+        for (DexClass clazz : expected) {
+            DexClass other = byName.get(clazz.name);
+            Assert.assertNotNull(clazz.name, other);
+            Assert.assertEquals(clazz.name, clazz.checksum, other.checksum);
+            Assert.assertArrayEquals(clazz.name, clazz.code, other.code);
+            // D8 does not report the fields in a stable order.
+            Assert.assertEquals(
+                    clazz.name,
+                    ImmutableSet.copyOf(clazz.variableStates),
+                    ImmutableSet.copyOf(other.variableStates));
+        }
+    }
+
     /** Return the first varaible state with a given variable name. */
     private static Deploy.ClassDef.FieldReInitState findVariableState(
             ImmutableList<Deploy.ClassDef.FieldReInitState> states, String name) {
@@ -217,6 +307,19 @@ public class D8DexSplitterTest {
     }
 
     private static class D8InMemoryDexSplitter extends D8DexSplitter {
+        private D8InMemoryDexSplitter() {
+            this(1);
+        }
+
+        private D8InMemoryDexSplitter(int maxThreads) {
+            // Each splitter has its own cache, so that tests do not depend on each other.
+            this(maxThreads, D8DexSplitter.newClassCache());
+        }
+
+        private D8InMemoryDexSplitter(int maxThreads, Cache<String, DexClass> cache) {
+            super(maxThreads, cache);
+        }
+
         @Override
         protected byte[] readDex(ApkEntry entry) {
             InMemoryDexFile dex =
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.deployer;
+
+import com.android.tools.deployer.model.Apk;
+import com.android.tools.deployer.model.ApkEntry;
+import com.android.tools.deployer.model.DexClass;
+import com.android.tools.perflogger.Benchmark;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DexClassIndexTest {
+
+    private static final Apk apk = Apk.builder().setName("a.apk").setChecksum("ABCD").build();
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        File file = new File(tmp.getRoot(), "index");
+        DexClassIndex index = new DexClassIndex(file, "1.0", 10);
+
+        ApkEntry classes01 = new ApkEntry("01.dex", 1234, apk);
+        ApkEntry classes02 = new ApkEntry("02.dex", 1235, apk);
+        ApkEntry classes03 = new ApkEntry("03.dex", 1236, apk);
+        DexClass c1 = new DexClass("com.example.B", 0xB1, null, classes01);
+        DexClass c2 = new DexClass("com.example.A", 0xA1, null, classes01);
+        DexClass c3 = new DexClass("com.example.a.été", -1, null, classes02);
+        index.putAll(ImmutableList.of(c1, c2, c3));
+
+        // A new instance reads the classes from the file.
+        index = new DexClassIndex(file, "1.0", 10);
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(describe(ImmutableList.of(c2, c1)), describe(index.get(classes01)));
+        Assert.assertEquals(describe(ImmutableList.of(c3)), describe(index.get(classes02)));
+        Assert.assertSame(classes02, index.get(classes02).get(0).dex);
+        Assert.assertNull(index.get(classes03));
+
+        Map<ApkEntry, List<DexClass>> all =
+                index.getAll(ImmutableList.of(classes01, classes02, classes03));
+        Assert.assertEquals(2, all.size());
+        Assert.assertEquals(describe(ImmutableList.of(c3)), describe(all.get(classes02)));
+    }
+
+    @Test
+    public void testOldestDexFilesAreDropped() throws Exception {
+        DexClassIndex index = new DexClassIndex(new File(tmp.getRoot(), "index"), "1.0", 2);
+
+        List<ApkEntry> dexes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            // Checksums in decreasing order, so that the oldest is not the first in the index.
+            ApkEntry dex = new ApkEntry(i + ".dex", 100 - i, apk);
+            dexes.add(dex);
+            index.putAll(ImmutableList.of(new DexClass("C" + i, i, null, dex)));
+        }
+
+        Assert.assertEquals(2, index.size());
+        Assert.assertNull(index.get(dexes.get(0)));
+        Assert.assertNull(index.get(dexes.get(1)));
+        Assert.assertEquals("C2", index.get(dexes.get(2)).get(0).name);
+        Assert.assertEquals("C3", index.get(dexes.get(3)).get(0).name);
+    }
+
+    @Test
+    public void testOtherVersionIsDiscarded() throws Exception {
+        File file = new File(tmp.getRoot(), "index");
+        ApkEntry dex = new ApkEntry("01.dex", 1234, apk);
+        new DexClassIndex(file, "1.0", 10)
+                .putAll(ImmutableList.of(new DexClass("A", 1, null, dex)));
+
+        DexClassIndex index = new DexClassIndex(file, "2.0", 10);
+        Assert.assertNull(index.get(dex));
+        index.putAll(ImmutableList.of(new DexClass("B", 2, null, dex)));
+        Assert.assertEquals("B", new DexClassIndex(file, "2.0", 10).get(dex).get(0).name);
+    }
+
+    @Test
+    public void testCorruptedIndexIsDiscarded() throws Exception {
+        File file = new File(tmp.getRoot(), "index");
+        ApkEntry dex = new ApkEntry("01.dex", 1234, apk);
+        new DexClassIndex(file, "1.0", 10)
+                .putAll(ImmutableList.of(new DexClass("A", 1, null, dex)));
+        byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length - 4));
+
+        Assert.assertNull(new DexClassIndex(file, "1.0", 10).get(dex));
+    }
+
+    @Test
+    public void testDatabaseLookupsAreIndexedInOneWrite() throws Exception {
+        File dbFile = new File(tmp.getRoot(), "test.db");
+        File file = new File(tmp.getRoot(), "index");
+        List<ApkEntry> dexes = new ArrayList<>();
+        List<DexClass> classes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ApkEntry dex = new ApkEntry(i + ".dex", 100 + i, apk);
+            dexes.add(dex);
+            classes.add(new DexClass("C" + i, i, null, dex));
+        }
+        SqlApkFileDatabase db = new SqlApkFileDatabase(dbFile, null, "1.0", 10);
+        db.addClasses(classes);
+        db.close();
+
+        // Classes found by single lookups are not written to the index one dex file at a time.
+        db = new SqlApkFileDatabase(dbFile, null, "1.0", 10, file);
+        Assert.assertEquals("C0", db.getClasses(dexes.get(0)).get(0).name);
+        Assert.assertEquals("C1", db.getClasses(dexes.get(1)).get(0).name);
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals("C0", db.getClasses(dexes.get(0)).get(0).name);
+
+        // The next lookup of several dex files writes them all at once.
+        Map<ApkEntry, List<DexClass>> all = db.getClasses(ImmutableList.of(dexes.get(2)));
+        Assert.assertEquals("C2", all.get(dexes.get(2)).get(0).name);
+        DexClassIndex index = new DexClassIndex(file, "1.0", 10);
+        Assert.assertEquals(3, index.size());
+        Assert.assertEquals("C1", index.get(dexes.get(1)).get(0).name);
+        db.close();
+    }
+
+    /** Compares the index with the SQL database on an app with 150k classes in 100 dex files. */
+    @Test
+    public void benchmarkAgainstSqlDatabase() throws Exception {
+        List<ApkEntry> dexes = new ArrayList<>();
+        List<DexClass> classes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ApkEntry dex = new ApkEntry("classes" + i + ".dex", 0x1000_0000L + i, apk);
+            dexes.add(dex);
+            for (int j = 0; j < 1500; j++) {
+                String name = "com.example.app.feature" + (j % 30) + ".Class" + i + "_" + j;
+                classes.add(new DexClass(name, (long) i << 32 | j, null, dex));
+            }
+        }
+
+        SqlApkFileDatabase db =
+                new SqlApkFileDatabase(tmp.newFile("dex.db"), null, "1.0", 200);
+        long start = System.nanoTime();
+        db.addClasses(classes);
+        long sqlWrite = System.nanoTime() - start;
+        start = System.nanoTime();
+        Map<ApkEntry, List<DexClass>> sqlClasses = db.getClasses(dexes);
+        long sqlRead = System.nanoTime() - start;
+        db.close();
+
+        File indexFile = new File(tmp.getRoot(), "dex.index");
+        DexClassIndex index = new DexClassIndex(indexFile, "1.0", 200);
+        start = System.nanoTime();
+        index.putAll(classes);
+        long indexWrite = System.nanoTime() - start;
+        index = new DexClassIndex(indexFile, "1.0", 200);
+        start = System.nanoTime();
+        Map<ApkEntry, List<DexClass>> indexClasses = index.getAll(dexes);
+        long indexRead = System.nanoTime() - start;
+
+        for (ApkEntry dex : dexes) {
+            Assert.assertEquals(describe(sqlClasses.get(dex)), describe(indexClasses.get(dex)));
+        }
+
+        long[] times = {sqlWrite, sqlRead, indexWrite, indexRead};
+        String[] metrics = {"sql_write", "sql_read", "index_write", "index_read"};
+        if ("true".equals(System.getProperty("dashboards.enabled"))) {
+            Benchmark benchmark =
+                    new Benchmark.Builder("DexClassIndex")
+                            .setProject("Android Studio Deployment")
+                            .build();
+            for (int i = 0; i < times.length; i++) {
+                benchmark.log(metrics[i] + "_time", times[i] / 1_000_000);
+            }
+        }
+        for (int i = 0; i < times.length; i++) {
+            System.out.printf("%s: %d ms%n", metrics[i], times[i] / 1_000_000);
+        }
+        System.out.printf(
+                "database: %d bytes, index: %d bytes%n",
+                new File(tmp.getRoot(), "dex.db").length(), indexFile.length());
+    }
+
+    private static List<String> describe(List<DexClass> classes) {
+        return classes.stream()
+                .sorted(Comparator.comparing(clazz -> clazz.name))
+                .map(clazz -> clazz.name + "=" + clazz.checksum + "@" + clazz.dex.getName())
+                .collect(Collectors.toList());
+    }
+}
@@ -30,6 +30,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.zip.Deflater;
 import org.junit.After;
 import org.junit.Assert;
@@ -164,4 +165,37 @@ public class PatchTest {
                 PatchGenerator.Patch.Status.SizeThresholdExceeded,
                 patch.status);
     }
+
+    @Test
+    public void testChunkedPatchOfShiftedContent() throws IOException, DeployerException {
+        byte[] bytes = new byte[4 * 1024 * 1024];
+        new Random(1).nextBytes(bytes);
+        Path remote = tempDirectory.resolve("remote.apk");
+        createSimpleZip(remote, bytes, "f");
+
+        // Insert a few bytes near the start of the entry, shifting the rest of its content.
+        byte[] newBytes = new byte[bytes.length + 3];
+        System.arraycopy(bytes, 0, newBytes, 0, 1000);
+        System.arraycopy(bytes, 1000, newBytes, 1003, bytes.length - 1000);
+        Path local = tempDirectory.resolve("local.apk");
+        createSimpleZip(local, newBytes, "f");
+
+        Apk remoteApk =
+                ApkParser.parsePaths(singletonList(remote.toAbsolutePath().toString())).get(0);
+        Apk localApk =
+                ApkParser.parsePaths(singletonList(local.toAbsolutePath().toString())).get(0);
+
+        // The remote apk was deployed by this process.
+        ApkChunkIndex.record(remoteApk);
+        PatchGenerator.Patch patch =
+                new PatchGenerator(new NullLogger(), true).generate(remoteApk, localApk);
+        Assert.assertSame(PatchGenerator.Patch.Status.Ok, patch.status);
+        Assert.assertTrue(
+                "Patch has " + patch.data.capacity() + " bytes",
+                patch.data.capacity() < 256 * 1024);
+
+        Path patched = tempDirectory.resolve("patched.apk");
+        new Patcher().apply(patch, patched.toFile());
+        Assert.assertArrayEquals(Files.readAllBytes(local), Files.readAllBytes(patched));
+    }
 }
@@ -37,12 +37,23 @@ public class Patcher {
         // Generate the truncated destination with adequate size.
         byte[] oldBytes = Files.readAllBytes(Paths.get(patch.sourcePath));
         OutputStream output = new FileOutputStream(destinationFile);
-        output.write(oldBytes, 0, (int) patch.destinationSize);
+        output.write(oldBytes, 0, (int) Math.min(oldBytes.length, patch.destinationSize));
         output.close();
 
         // Patch the old file to generate the new file.
         int dataCursor = 0;
         try (RandomAccessFile raf = new RandomAccessFile(destinationFile, "rw")) {
+            raf.setLength(patch.destinationSize);
+            if (patch.copies != null) {
+                IntBuffer copies = patch.copies.asIntBuffer();
+                while (copies.hasRemaining()) {
+                    int offset = copies.get();
+                    int source = copies.get();
+                    int size = copies.get();
+                    raf.seek(offset);
+                    raf.write(oldBytes, source, size);
+                }
+            }
             while (instructions.hasRemaining()) {
                 int offset = instructions.get();
                 int size = instructions.get();
@@ -111,7 +111,8 @@ bool BaseInstallCommand::SendApksToPackageManager(
   for (const proto::PatchInstruction& patch :
        install_info_.patchinstructions()) {
     // Skip if we are inheriting and this apk did not change
-    if (install_info_.inherit() && patch.patches().size() == 0) {
+    if (install_info_.inherit() && patch.patches().size() == 0 &&
+        patch.copies().size() == 0) {
       LogEvent("Skipping '"_s + patch.src_absolute_path() +
                "' since inheriting mode and apk did not change");
       continue;
@@ -19,6 +19,8 @@
 #include <fcntl.h>
 #include <unistd.h>
 
+#include <algorithm>
+
 #include "tools/base/deploy/common/event.h"
 #include "tools/base/deploy/common/io.h"
 #include "tools/base/deploy/common/utils.h"
@@ -108,10 +110,11 @@ bool PatchApplier::ApplyPatchToFD(const proto::PatchInstruction& patch,
   // Patch the apk now
   const std::string& patches = patch.patches();
   const std::string& instructions = patch.instructions();
+  const std::string& copies = patch.copies();
 
   // Special case where there is no patch, the apk has not changed, feed it back
   // to pm.
-  if (patches.size() == 0) {
+  if (patches.size() == 0 && copies.size() == 0) {
     bool fileSent = Sendfile(dst_fd, src_fd, nullptr, patch.dst_filesize());
     close(src_fd);
 
@@ -126,46 +129,60 @@ bool PatchApplier::ApplyPatchToFD(const proto::PatchInstruction& patch,
       reinterpret_cast<const uint8_t*>(patches.data());
   const int32_t* instIterator =
       reinterpret_cast<const int32_t*>(instructions.data());
-  int32_t writeOffset = 0;
-  size_t instruction_counter = instructions.size() / 8;
-
-  // Consume one instruction
-  int32_t dirtyOffset = *instIterator++;
-  int32_t length = *instIterator++;
-  instruction_counter--;
-
-  // Write dirty and clean sections to destination file descriptor.
-  while (writeOffset < patch.dst_filesize()) {
-    if (writeOffset < dirtyOffset) {
+  const int32_t* instEnd = instIterator + instructions.size() / 8 * 2;
+  const int32_t* copyIterator = reinterpret_cast<const int32_t*>(copies.data());
+  const int32_t* copyEnd = copyIterator + copies.size() / 12 * 3;
+  const int64_t dst_filesize = patch.dst_filesize();
+  int64_t writeOffset = 0;
+
+  // Write dirty, copied and clean sections to destination file descriptor.
+  while (writeOffset < dst_filesize) {
+    int64_t dirtyOffset =
+        instIterator < instEnd ? instIterator[0] : dst_filesize;
+    int64_t copyOffset =
+        copyIterator < copyEnd ? copyIterator[0] : dst_filesize;
+    int64_t nextOffset = std::min(dirtyOffset, copyOffset);
+    if (writeOffset < nextOffset) {
       // if there is non-dirty data before the next patch, take it from the
       // source apk.
       off_t offset = writeOffset;
-      size_t cleanLength = dirtyOffset - writeOffset;
+      size_t cleanLength = nextOffset - writeOffset;
       bool fileSent = Sendfile(dst_fd, src_fd, &offset, cleanLength);
       if (!fileSent) {
         ErrEvent("Sendfile failed:"_s + strerror(errno));
+        close(src_fd);
         return false;
       }
       writeOffset += cleanLength;
-    } else {
-      // otherwise take it from the patch
+    } else if (writeOffset == dirtyOffset) {
+      // take it from the patch
+      int32_t length = instIterator[1];
       int written = write(dst_fd, dataIterator, length);
       if (written < 0) {
         ErrEvent("Write failed:"_s + strerror(errno));
+        close(src_fd);
         return false;
       }
       dataIterator += length;
       writeOffset += length;
-
-      // Consume an instruction or create a fake one if there are no more.
-      if (instruction_counter > 0) {
-        dirtyOffset = *instIterator++;
-        length = *instIterator++;
-        instruction_counter--;
-      } else {
-        dirtyOffset = patch.dst_filesize();
-        length = 0;
+      instIterator += 2;
+    } else if (writeOffset == copyOffset) {
+      // take it from another offset of the source apk
+      off_t offset = copyIterator[1];
+      int32_t length = copyIterator[2];
+      bool fileSent = Sendfile(dst_fd, src_fd, &offset, length);
+      if (!fileSent) {
+        ErrEvent("Sendfile failed:"_s + strerror(errno));
+        close(src_fd);
+        return false;
       }
+      writeOffset += length;
+      copyIterator += 3;
+    } else {
+      ErrEvent("Overlapping patch instructions at "_s +
+               to_string(writeOffset));
+      close(src_fd);
+      return false;
     }
   }
   close(src_fd);
@@ -62,7 +62,7 @@ void RootPushInstallCommand::Run(proto::InstallerResponse* response) {
   for (const proto::PatchInstruction& patch :
        install_info.patchinstructions()) {
     // Skip if this apk did not change
-    if (patch.patches().size() == 0) {
+    if (patch.patches().size() == 0 && patch.copies().size() == 0) {
       LogEvent("rootpushinstall: skipping '"_s + patch.src_absolute_path() +
                "' since apk did not change");
       continue;
@@ -205,6 +205,35 @@ TEST_F(InstallerTest, TestFilePatching) {
   EXPECT_TRUE(patchedContent[2] == 'c');
 }
 
+TEST_F(InstallerTest, TestFilePatchingWithCopies) {
+  proto::PatchInstruction patchInstruction;
+  patchInstruction.set_src_absolute_path(
+      "tools/base/deploy/installer/tests/data/patchTest.txt");
+  // Patch index 1 with 1 byte from patch payload.
+  int32_t instructions[2] = {1, 1};
+  patchInstruction.set_instructions(reinterpret_cast<char*>(instructions), 8);
+  const char* patches = "x";
+  patchInstruction.set_patches(patches, 1);
+  // Copy index 0 from index 2 of the source file.
+  int32_t copies[3] = {0, 2, 1};
+  patchInstruction.set_copies(reinterpret_cast<char*>(copies), 12);
+  patchInstruction.set_dst_filesize(3);
+
+  int pipeBuffer[2];
+  pipe(pipeBuffer);
+  PatchApplier patchApplier;
+  EXPECT_TRUE(patchApplier.ApplyPatchToFD(patchInstruction, pipeBuffer[1]));
+  close(pipeBuffer[1]);
+
+  char patchedContent[3] = {'z', 'z', 'z'};
+  read(pipeBuffer[0], patchedContent, 3);
+  close(pipeBuffer[0]);
+
+  EXPECT_TRUE(patchedContent[0] == 'a');
+  EXPECT_TRUE(patchedContent[1] == 'x');
+  EXPECT_TRUE(patchedContent[2] == 'a');
+}
+
 // Test Highlander by spawning two child process. The first child
 // creates a Highlander, spawns a second child and sends itself to
 // the background via SIGSTOP where it should stay forever. The
@@ -59,7 +59,10 @@ class SyncCommandHandler : DeviceCommandHandler("sync") {
             // https://cs.android.com/android/platform/superproject/+/fbe41e9a47a57f0d20887ace0fc4d0022afd2f5f:packages/modules/adb/SYNC.TXT
             // Bytes 0-3: 'SEND', 'RECV', 'LIST', etc.
             when (val syncRequest = readSyncRequest(input)) {
-                "SEND" -> handleSendProtocol(device, input, output)
+                "SEND" -> if (!handleSendProtocol(device, input, output)) {
+                    // Like adbd, end the sync service once a push failed
+                    return
+                }
                 "RECV" -> handleRecvProtocol(device, input, output)
                 "STAT" -> handleStatProtocol(device, input, output)
                 else -> throwUnsupportedRequest(output, syncRequest)
@@ -69,8 +72,14 @@ class SyncCommandHandler : DeviceCommandHandler("sync") {
 
     /**
      * Data is sent by the peer using 'DATA' and 'DONE' packets
+     *
+     * Returns false if the file could not be written and the sync service must end.
      */
-    private fun handleSendProtocol(device: DeviceState, input: InputStream, output: OutputStream) {
+    private fun handleSendProtocol(
+        device: DeviceState,
+        input: InputStream,
+        output: OutputStream
+    ): Boolean {
         val (path, permission) = readSendHeader(input, output)
         val bytePackets = ArrayList<ByteArray>()
         while (true) {
@@ -85,12 +94,17 @@ class SyncCommandHandler : DeviceCommandHandler("sync") {
                     val bytes = bytePackets.flatMap { it.asIterable() }.toByteArray()
                     if (path.isEmpty()) {
                         sendSyncFail(output, "'$path' not a directory")
-                        return
+                        return true
+                    }
+                    val existingFile = device.getFile(path)
+                    if (existingFile != null && !existingFile.isOwnerWritable()) {
+                        sendSyncFail(output, "couldn't create file: Permission denied")
+                        return false
                     }
                     val file = DeviceFileState(path, permission, modifiedDate, bytes)
                     device.createFile(file)
                     sendSyncOkay(output)
-                    break
+                    return true
                 }
                 else -> {
                     throwUnsupportedRequest(output, sendRequest)
@@ -82,6 +82,28 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer other) {
+        mBufferSize = other.mBufferSize;
+        mPadding = other.mPadding;
+        mLength = other.mLength;
+        mByteBuffers = new ByteBuffer[other.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = other.mByteBuffers[i].duplicate().order(HPROF_BYTE_ORDER);
+        }
+        mCurrentPosition = 0;
+    }
+
+    /**
+     * Creates a buffer sharing the mapped memory of this buffer, with its own position. Each thread
+     * reading the file concurrently must use its own duplicate.
+     *
+     * The duplicate must not be disposed, and must not be used after this buffer is disposed.
+     */
+    @NonNull
+    public MemoryMappedFileBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
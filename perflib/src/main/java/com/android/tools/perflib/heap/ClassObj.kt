@@ -17,6 +17,7 @@ package com.android.tools.perflib.heap
 
 import com.google.common.annotations.VisibleForTesting
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.longs.LongArrayList
 
 open class ClassObj(
     id: Long, stack: StackTrace?, val className: String,
@@ -25,6 +26,9 @@ open class ClassObj(
     class HeapData {
         var shallowSize = 0
         var instances: MutableList<Instance> = ArrayList()
+        // Ids of the instances of indexed heaps, which are materialized on demand.
+        var instanceIds: LongArrayList? = null
+        val instanceCount: Int get() = instances.size + (instanceIds?.size ?: 0)
     }
 
     var superClassId: Long = 0
@@ -52,7 +56,11 @@ open class ClassObj(
             instance.size = instanceSize
         }
         val data = heapData[heapId] ?: HeapData().also { heapData.put(heapId, it) }
-        data.instances.add(instance)
+        if (instance.heap?.isIndexed == true) {
+            (data.instanceIds ?: LongArrayList().also { data.instanceIds = it }).add(instance.id)
+        } else {
+            data.instances.add(instance)
+        }
         data.shallowSize += instance.size
     }
 
@@ -117,10 +125,16 @@ open class ClassObj(
     val classLoader: Instance? get() = heap!!.mSnapshot.findInstance(classLoaderId)
     val instancesList: List<Instance> get() = heapData.keys.flatMap(::getHeapInstances)
 
-    fun getHeapInstances(heapId: Int): List<Instance> = heapData[heapId]?.instances ?: listOf()
-    fun getHeapInstancesCount(heapId: Int): Int = heapData[heapId]?.instances?.size ?: 0
+    fun getHeapInstances(heapId: Int): List<Instance> {
+        val data = heapData[heapId] ?: return listOf()
+        val ids = data.instanceIds ?: return data.instances
+        val heap = heap!!.mSnapshot.getHeap(heapId)!!
+        return data.instances + (0 until ids.size).mapNotNull { heap.getInstance(ids.getLong(it)) }
+    }
+
+    fun getHeapInstancesCount(heapId: Int): Int = heapData[heapId]?.instanceCount ?: 0
 
-    val instanceCount: Int get() = heapData.values.sumOf { (it as HeapData).instances.size }
+    val instanceCount: Int get() = heapData.values.sumOf { (it as HeapData).instanceCount }
     val shallowSize: Int get() = heapData.values.sumOf { (it as HeapData).shallowSize }
 
     val descendantClasses: Sequence<ClassObj>
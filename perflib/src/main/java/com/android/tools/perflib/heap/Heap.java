@@ -17,6 +17,7 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
@@ -24,12 +25,17 @@ import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.function.Function;
 
 import com.google.common.collect.*;
 
 public class Heap {
 
+    //  Maximum number of instances materialized from the index which are kept around.
+    static final int MATERIALIZED_CACHE_SIZE = 1 << 16;
+
     private final int mId;
 
     @NonNull
@@ -48,6 +54,25 @@ public class Heap {
     //  List of instances of above class definitions
     private final Long2ObjectMap<Instance> mInstances = new Long2ObjectOpenHashMap<>();
 
+    //  Offsets of the records of instances which are only materialized on demand, for snapshots
+    //  created by Snapshot.createIndexedSnapshot.
+    @Nullable
+    private InstanceIndex mIndex;
+
+    //  The most recently used instances materialized from mIndex, in access order, so that
+    //  repeated lookups of an instance in use return the same object.
+    @NonNull
+    private final Map<Long, Instance> mMaterialized =
+            new LinkedHashMap<Long, Instance>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Instance> eldest) {
+                    return size() > MATERIALIZED_CACHE_SIZE;
+                }
+            };
+
+    @Nullable
+    private HprofParser mDecoder;
+
     //  The snapshot that this heap is part of
     Snapshot mSnapshot;
 
@@ -77,8 +102,61 @@ public class Heap {
         mInstances.put(id, instance);
     }
 
+    final void addInstanceOffset(long id, long offset) {
+        if (mIndex == null) {
+            mIndex = new InstanceIndex();
+        }
+        mIndex.add(id, offset);
+    }
+
+    final void finishIndexing() {
+        if (mIndex != null) {
+            mIndex.sort();
+        }
+    }
+
+    /**
+     * Returns true if the instances of this heap are materialized on demand from the HPROF buffer.
+     * Only a bounded number of them are cached, so the same instance may be returned as different
+     * objects over time, and state set on an instance (references, retained or native size) is
+     * lost when it is evicted.
+     */
+    public final boolean isIndexed() {
+        return mIndex != null;
+    }
+
     public final Instance getInstance(long id) {
-        return mInstances.get(id);
+        Instance instance = mInstances.get(id);
+        if (instance != null || mIndex == null) {
+            return instance;
+        }
+
+        instance = mMaterialized.get(id);
+        if (instance == null) {
+            long offset = mIndex.find(id);
+            if (offset < 0) {
+                return null;
+            }
+            instance = materialize(offset);
+            mMaterialized.put(id, instance);
+        }
+        return instance;
+    }
+
+    @NonNull
+    private Instance materialize(long offset) {
+        if (mDecoder == null) {
+            mDecoder = HprofParser.newDecoder(mSnapshot);
+        }
+        Instance instance = mDecoder.decodeInstance(offset);
+        instance.setHeap(this);
+        if (instance instanceof ClassInstance) {
+            ClassObj classObj = instance.getClassObj();
+            if (classObj != null) {
+                instance.setSize(classObj.getInstanceSize());
+            }
+        }
+        return instance;
     }
 
     public final void addClass(long id, @NonNull ClassObj theClass) {
@@ -149,9 +227,23 @@ public class Heap {
                 return;
             }
         }
+
+        if (mIndex != null) {
+            // Instances are materialized without being cached, so that iterating does not evict
+            // the instances in use.
+            for (int i = 0; i < mIndex.size(); i++) {
+                Instance instance = mMaterialized.get(mIndex.getId(i));
+                if (instance == null) {
+                    instance = materialize(mIndex.getOffset(i));
+                }
+                if (!procedure.apply(instance)) {
+                    return;
+                }
+            }
+        }
     }
 
     public int getInstancesCount() {
-        return mInstances.size();
+        return mInstances.size() + (mIndex != null ? mIndex.size() : 0);
     }
 }
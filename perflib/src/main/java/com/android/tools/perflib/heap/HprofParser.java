@@ -17,7 +17,9 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.android.tools.proguard.ProguardMap;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
@@ -25,9 +27,15 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 class HprofParser {
 
@@ -122,6 +130,12 @@ class HprofParser {
 
     private static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
 
+    // Minimum number of bytes of heap dump segments decoded by a single parallel task.
+    private static final long SEGMENTS_BATCH_SIZE = 4 << 20;
+
+    // Marks the end of a heap dump segment in the events of a segments batch.
+    private static final Object SEGMENT_END = new Object();
+
     @NonNull
     private final DataBuffer mInput;
 
@@ -132,6 +146,32 @@ class HprofParser {
     @NonNull
     private final ProguardMap mProguardMap;
 
+    /*
+     * When indexing, instance dump records are only recorded in their heap index, see
+     * Snapshot.createIndexedSnapshot. When decoding, the instance dump record being read is kept
+     * in mDecoded instead of being added to the snapshot.
+     */
+    private final boolean mIndexOnly;
+
+    private final boolean mDecoding;
+
+    private Instance mDecoded;
+
+    /*
+     * When set, heap dumps are only scanned by this parser, and their segments are decoded in
+     * parallel on this pool.
+     */
+    @Nullable
+    private final ForkJoinPool mPool;
+
+    /*
+     * When decoding heap dump segments on a worker thread, the classes and instances which are
+     * decoded, in order, interleaved with the offsets of the records which are loaded when the
+     * segments are merged into the snapshot, and SEGMENT_END markers.
+     */
+    @Nullable
+    private List<Object> mSegmentEvents;
+
     /*
      * These are only needed while parsing so are not kept as part of the
      * heap data.
@@ -143,16 +183,108 @@ class HprofParser {
     @NonNull Int2ObjectMap<String> mClassNamesBySerial = new Int2ObjectOpenHashMap<>();
 
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
-        new HprofParser(snapshot, buffer, map).parse();
+        new HprofParser(snapshot, buffer, map, false, false, null).parse();
+    }
+
+    /**
+     * Parses the buffer like {@link #parseBuffer}, decoding the heap dump segments on the given
+     * pool. Strings, classes names and stacks are loaded first, then segments are decoded
+     * concurrently and merged into the snapshot in file order, so the result is the same as a
+     * sequential parse.
+     *
+     * <p>Heap dumps can only be read concurrently from a {@link MemoryMappedFileBuffer}, other
+     * buffers are parsed sequentially.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            @NonNull ForkJoinPool pool) {
+        boolean parallel = buffer instanceof MemoryMappedFileBuffer;
+        new HprofParser(snapshot, buffer, map, false, false, parallel ? pool : null).parse();
+    }
+
+    /**
+     * Parses the buffer like {@link #parseBuffer}, except that instances are not created: only the
+     * offset of their record is added to the index of their heap.
+     */
+    static void indexBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
+        new HprofParser(snapshot, buffer, map, true, false, null).parse();
     }
 
-    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
+    /**
+     * Returns a parser reading single instance dump records of an indexed snapshot, see
+     * {@link #decodeInstance(long)}.
+     */
+    @NonNull
+    static HprofParser newDecoder(@NonNull Snapshot snapshot) {
+        HprofParser decoder =
+                new HprofParser(snapshot, snapshot.getBuffer(), new ProguardMap(), false, true, null);
+        decoder.mIdSize = snapshot.getTypeSize(Type.OBJECT);
+        return decoder;
+    }
+
+    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            boolean indexOnly, boolean decoding, @Nullable ForkJoinPool pool) {
         mInput = buffer;
         mSnapshot = snapshot;
         mProguardMap = map;
+        mIndexOnly = indexOnly;
+        mDecoding = decoding;
+        mPool = pool;
+    }
+
+    /*
+     * Creates a parser decoding heap dump segments of the same file on a worker thread. The string
+     * and class tables of the parent are shared, they must not change while workers are running.
+     */
+    private HprofParser(@NonNull HprofParser parent, @NonNull DataBuffer buffer) {
+        this(parent.mSnapshot, buffer, parent.mProguardMap, false, false, null);
+        mIdSize = parent.mIdSize;
+        mStrings = parent.mStrings;
+        mClassNamesById = parent.mClassNamesById;
+        mClassNamesBySerial = parent.mClassNamesBySerial;
+        mSegmentEvents = new ArrayList<>();
+    }
+
+    /**
+     * Creates the instance of the dump record starting at the given offset, as recorded by
+     * {@link #indexBuffer}. The position of the buffer is preserved, so this can be called while
+     * other instances are reading their values. The returned instance is not added to a heap.
+     */
+    @NonNull
+    Instance decodeInstance(long recordOffset) {
+        assert mDecoding;
+        long position = mInput.position();
+        try {
+            mInput.setPosition(recordOffset);
+            int tag = readUnsignedByte();
+            switch (tag) {
+                case INSTANCE_DUMP:
+                    loadInstanceDump();
+                    break;
+
+                case OBJECT_ARRAY_DUMP:
+                    loadObjectArrayDump();
+                    break;
+
+                case PRIMITIVE_ARRAY_DUMP:
+                    loadPrimitiveArrayDump();
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(
+                            "No instance dump at offset " + recordOffset + ", found tag " + tag);
+            }
+            return mDecoded;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            mDecoded = null;
+            mInput.setPosition(position);
+        }
     }
 
     private void parse() {
+        LongArrayList segmentOffsets = new LongArrayList();
+        LongArrayList segmentLengths = new LongArrayList();
         try {
             try {
                 readNullTerminatedString();  // Version, ignored for now.
@@ -186,13 +318,15 @@ class HprofParser {
                             break;
 
                         case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
                         case HEAP_DUMP_SEGMENT:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
+                            if (mPool != null) {
+                                segmentOffsets.add(mInput.position());
+                                segmentLengths.add(length);
+                                skipFully(length);
+                            } else {
+                                loadHeapDump(length);
+                                mSnapshot.setToDefaultHeap();
+                            }
                             break;
 
                         default:
@@ -203,6 +337,14 @@ class HprofParser {
             } catch (EOFException eof) {
                 //  this is fine
             }
+            if (!segmentOffsets.isEmpty()) {
+                loadHeapDumpSegments(segmentOffsets, segmentLengths);
+            }
+            if (mIndexOnly) {
+                for (Heap heap : mSnapshot.getHeaps()) {
+                    heap.finishIndexing();
+                }
+            }
             mSnapshot.resolveClasses();
             mSnapshot.identifySoftReferences();
             // TODO: enable this after the dominators computation is also optimized.
@@ -216,6 +358,53 @@ class HprofParser {
         mStrings.clear();
     }
 
+    private void loadHeapDumpSegments(@NonNull LongArrayList offsets, @NonNull LongArrayList lengths)
+            throws IOException {
+        assert mPool != null;
+        MemoryMappedFileBuffer buffer = (MemoryMappedFileBuffer) mInput;
+
+        // Segments are usually small, decode consecutive segments in batches.
+        List<ForkJoinTask<List<Object>>> batches = new ArrayList<>();
+        int start = 0;
+        long batchSize = 0;
+        for (int i = 0; i < offsets.size(); i++) {
+            batchSize += lengths.getLong(i);
+            if (batchSize >= SEGMENTS_BATCH_SIZE || i == offsets.size() - 1) {
+                int from = start;
+                int to = i + 1;
+                batches.add(mPool.submit(() -> {
+                    HprofParser worker = new HprofParser(this, buffer.duplicate());
+                    for (int segment = from; segment < to; segment++) {
+                        worker.mInput.setPosition(offsets.getLong(segment));
+                        worker.loadHeapDump(lengths.getLong(segment));
+                        worker.mSegmentEvents.add(SEGMENT_END);
+                    }
+                    return worker.mSegmentEvents;
+                }));
+                start = to;
+                batchSize = 0;
+            }
+        }
+
+        // Merge batches in order while the next ones are being decoded.
+        for (ForkJoinTask<List<Object>> batch : batches) {
+            for (Object event : batch.join()) {
+                if (event == SEGMENT_END) {
+                    mSnapshot.setToDefaultHeap();
+                } else if (event instanceof ClassObj) {
+                    ClassObj theClass = (ClassObj) event;
+                    mSnapshot.addClass(theClass.getId(), theClass);
+                } else if (event instanceof Instance) {
+                    Instance instance = (Instance) event;
+                    mSnapshot.addInstance(instance.getId(), instance);
+                } else {
+                    mInput.setPosition((Long) event);
+                    loadHeapDumpRecord(readUnsignedByte());
+                }
+            }
+        }
+    }
+
     @NonNull
     private String readNullTerminatedString() throws IOException {
         StringBuilder s = new StringBuilder();
@@ -316,111 +505,144 @@ class HprofParser {
             int tag = readUnsignedByte();
             length--;
 
-            switch (tag) {
-                case ROOT_UNKNOWN:
-                    length -= loadBasicObj(RootType.UNKNOWN);
-                    break;
+            if (mSegmentEvents != null) {
+                long size = deferredRecordSize(tag);
+                if (size >= 0) {
+                    // Records which depend on or change the state of the snapshot are loaded
+                    // when the segment is merged.
+                    mSegmentEvents.add(mInput.position() - 1);
+                    skipFully(size);
+                    length -= size;
+                    continue;
+                }
+            }
 
-                case ROOT_JNI_GLOBAL:
-                    length -= loadBasicObj(RootType.NATIVE_STATIC);
-                    readId();   //  ignored
-                    length -= mIdSize;
-                    break;
+            length -= loadHeapDumpRecord(tag);
+        }
+    }
 
-                case ROOT_JNI_LOCAL:
-                    length -= loadJniLocal();
-                    break;
+    // Load the heap dump sub-record with the given tag, and return its size, excluding the tag.
+    private int loadHeapDumpRecord(int tag) throws IOException {
+        switch (tag) {
+            case ROOT_UNKNOWN:
+                return loadBasicObj(RootType.UNKNOWN);
 
-                case ROOT_JAVA_FRAME:
-                    length -= loadJavaFrame();
-                    break;
+            case ROOT_JNI_GLOBAL:
+                int size = loadBasicObj(RootType.NATIVE_STATIC);
+                readId();   //  ignored
+                return size + mIdSize;
 
-                case ROOT_NATIVE_STACK:
-                    length -= loadNativeStack();
-                    break;
+            case ROOT_JNI_LOCAL:
+                return loadJniLocal();
 
-                case ROOT_STICKY_CLASS:
-                    length -= loadBasicObj(RootType.SYSTEM_CLASS);
-                    break;
+            case ROOT_JAVA_FRAME:
+                return loadJavaFrame();
 
-                case ROOT_THREAD_BLOCK:
-                    length -= loadThreadBlock();
-                    break;
+            case ROOT_NATIVE_STACK:
+                return loadNativeStack();
 
-                case ROOT_MONITOR_USED:
-                    length -= loadBasicObj(RootType.BUSY_MONITOR);
-                    break;
+            case ROOT_STICKY_CLASS:
+                return loadBasicObj(RootType.SYSTEM_CLASS);
 
-                case ROOT_THREAD_OBJECT:
-                    length -= loadThreadObject();
-                    break;
+            case ROOT_THREAD_BLOCK:
+                return loadThreadBlock();
 
-                case CLASS_DUMP:
-                    length -= loadClassDump();
-                    break;
+            case ROOT_MONITOR_USED:
+                return loadBasicObj(RootType.BUSY_MONITOR);
 
-                case INSTANCE_DUMP:
-                    length -= loadInstanceDump();
-                    break;
+            case ROOT_THREAD_OBJECT:
+                return loadThreadObject();
 
-                case OBJECT_ARRAY_DUMP:
-                    length -= loadObjectArrayDump();
-                    break;
+            case CLASS_DUMP:
+                return loadClassDump();
 
-                case PRIMITIVE_ARRAY_DUMP:
-                    length -= loadPrimitiveArrayDump();
-                    break;
+            case INSTANCE_DUMP:
+                return loadInstanceDump();
 
-                case PRIMITIVE_ARRAY_NODATA:
-                    System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
-                    length -= loadPrimitiveArrayDump();
+            case OBJECT_ARRAY_DUMP:
+                return loadObjectArrayDump();
 
-                    throw new IllegalArgumentException(
-                            "Don't know how to load a nodata array");
+            case PRIMITIVE_ARRAY_DUMP:
+                return loadPrimitiveArrayDump();
 
-                case HEAP_DUMP_INFO:
-                    int heapId = mInput.readInt();
-                    long heapNameId = readId();
-                    String heapName = mStrings.get(heapNameId);
+            case PRIMITIVE_ARRAY_NODATA:
+                System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
+                loadPrimitiveArrayDump();
 
-                    mSnapshot.setHeapTo(heapId, heapName);
-                    length -= 4 + mIdSize;
-                    break;
+                throw new IllegalArgumentException(
+                        "Don't know how to load a nodata array");
 
-                case ROOT_INTERNED_STRING:
-                    length -= loadBasicObj(RootType.INTERNED_STRING);
-                    break;
+            case HEAP_DUMP_INFO:
+                int heapId = mInput.readInt();
+                long heapNameId = readId();
+                String heapName = mStrings.get(heapNameId);
 
-                case ROOT_FINALIZING:
-                    length -= loadBasicObj(RootType.FINALIZING);
-                    break;
+                mSnapshot.setHeapTo(heapId, heapName);
+                return 4 + mIdSize;
 
-                case ROOT_DEBUGGER:
-                    length -= loadBasicObj(RootType.DEBUGGER);
-                    break;
+            case ROOT_INTERNED_STRING:
+                return loadBasicObj(RootType.INTERNED_STRING);
 
-                case ROOT_REFERENCE_CLEANUP:
-                    length -= loadBasicObj(RootType.REFERENCE_CLEANUP);
-                    break;
+            case ROOT_FINALIZING:
+                return loadBasicObj(RootType.FINALIZING);
 
-                case ROOT_VM_INTERNAL:
-                    length -= loadBasicObj(RootType.VM_INTERNAL);
-                    break;
+            case ROOT_DEBUGGER:
+                return loadBasicObj(RootType.DEBUGGER);
 
-                case ROOT_JNI_MONITOR:
-                    length -= loadJniMonitor();
-                    break;
+            case ROOT_REFERENCE_CLEANUP:
+                return loadBasicObj(RootType.REFERENCE_CLEANUP);
 
-                case ROOT_UNREACHABLE:
-                    length -= loadBasicObj(RootType.UNREACHABLE);
-                    break;
+            case ROOT_VM_INTERNAL:
+                return loadBasicObj(RootType.VM_INTERNAL);
 
-                default:
-                    throw new IllegalArgumentException(
-                            "loadHeapDump loop with unknown tag " + tag
-                                    + " with " + mInput.remaining()
-                                    + " bytes possibly remaining");
-            }
+            case ROOT_JNI_MONITOR:
+                return loadJniMonitor();
+
+            case ROOT_UNREACHABLE:
+                return loadBasicObj(RootType.UNREACHABLE);
+
+            default:
+                throw new IllegalArgumentException(
+                        "loadHeapDump loop with unknown tag " + tag
+                                + " with " + mInput.remaining()
+                                + " bytes possibly remaining");
+        }
+    }
+
+    /*
+     * Return the size (excluding the tag) of the heap dump sub-records which are loaded when a
+     * segment decoded in parallel is merged: roots, threads and heap switches. Return -1 for class
+     * and instance dumps, which are decoded in parallel, and for unknown tags.
+     */
+    private int deferredRecordSize(int tag) {
+        switch (tag) {
+            case ROOT_UNKNOWN:
+            case ROOT_STICKY_CLASS:
+            case ROOT_MONITOR_USED:
+            case ROOT_INTERNED_STRING:
+            case ROOT_FINALIZING:
+            case ROOT_DEBUGGER:
+            case ROOT_REFERENCE_CLEANUP:
+            case ROOT_VM_INTERNAL:
+            case ROOT_UNREACHABLE:
+                return mIdSize;
+
+            case ROOT_JNI_GLOBAL:
+                return mIdSize + mIdSize;
+
+            case ROOT_NATIVE_STACK:
+            case ROOT_THREAD_BLOCK:
+            case HEAP_DUMP_INFO:
+                return mIdSize + 4;
+
+            case ROOT_JNI_LOCAL:
+            case ROOT_JAVA_FRAME:
+            case ROOT_THREAD_OBJECT:
+            case ROOT_JNI_MONITOR:
+                return mIdSize + 4 + 4;
+
+            default:
+                return -1;
         }
     }
 
@@ -563,12 +785,17 @@ class HprofParser {
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        if (mSegmentEvents != null) {
+            mSegmentEvents.add(theClass);
+        } else {
+            mSnapshot.addClass(id, theClass);
+        }
 
         return bytesRead;
     }
 
     private int loadInstanceDump() throws IOException {
+        long recordOffset = mInput.position() - 1;
         long id = readId();
         int stackId = mInput.readInt();
         StackTrace stack = mSnapshot.getStackTrace(stackId);
@@ -578,13 +805,14 @@ class HprofParser {
         long position = mInput.position();
         ClassInstance instance = new ClassInstance(id, stack, position);
         instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        addInstance(id, instance, recordOffset);
 
         skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
     }
 
     private int loadObjectArrayDump() throws IOException {
+        long recordOffset = mInput.position() - 1;
         final long id = readId();
         int stackId = mInput.readInt();
         StackTrace stack = mSnapshot.getStackTrace(stackId);
@@ -593,7 +821,7 @@ class HprofParser {
         ArrayInstance array =
                 new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
         array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        addInstance(id, array, recordOffset);
 
         int remaining = numElements * mIdSize;
         skipFully(remaining);
@@ -601,6 +829,7 @@ class HprofParser {
     }
 
     private int loadPrimitiveArrayDump() throws IOException {
+        long recordOffset = mInput.position() - 1;
         long id = readId();
         int stackId = mInput.readInt();
         StackTrace stack = mSnapshot.getStackTrace(stackId);
@@ -608,13 +837,25 @@ class HprofParser {
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
         ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        addInstance(id, array, recordOffset);
 
         int remaining = numElements * size;
         skipFully(remaining);
         return mIdSize + 4 + 4 + 1 + remaining;
     }
 
+    private void addInstance(long id, @NonNull Instance instance, long recordOffset) {
+        if (mDecoding) {
+            mDecoded = instance;
+        } else if (mSegmentEvents != null) {
+            mSegmentEvents.add(instance);
+        } else if (mIndexOnly) {
+            mSnapshot.addInstanceOffset(id, recordOffset);
+        } else {
+            mSnapshot.addInstance(id, instance);
+        }
+    }
+
     private int loadJniMonitor() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
@@ -90,7 +90,7 @@ abstract class Instance internal constructor(
      */
     open val isSoftReference: Boolean get() = false
 
-    protected val buffer: DataBuffer get() = heap!!.mSnapshot.buffer
+    protected val buffer: DataBuffer get() = heap!!.mSnapshot.readBuffer
 
     /**
      * Resolves all forward/reverse + hard/soft references for this instance.
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap;
+
+import java.util.Arrays;
+
+/**
+ * Maps instance ids to the offset of their dump record in the HPROF buffer, using two primitive
+ * arrays (16 bytes per instance) instead of one {@link Instance} object per instance.
+ *
+ * <p>Ids are appended in file order while parsing, then {@link #sort()} must be called once before
+ * any lookup.
+ */
+class InstanceIndex {
+
+    private long[] mIds = new long[1024];
+
+    private long[] mOffsets = new long[1024];
+
+    private int mSize;
+
+    private boolean mSorted = true;
+
+    void add(long id, long offset) {
+        if (mSize == mIds.length) {
+            int capacity = Math.max(16, mSize + (mSize >> 1));
+            mIds = Arrays.copyOf(mIds, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+        }
+        if (mSize > 0 && mIds[mSize - 1] > id) {
+            mSorted = false;
+        }
+        mIds[mSize] = id;
+        mOffsets[mSize] = offset;
+        mSize++;
+    }
+
+    /** Sorts the index by id and releases the unused capacity. */
+    void sort() {
+        mIds = Arrays.copyOf(mIds, mSize);
+        mOffsets = Arrays.copyOf(mOffsets, mSize);
+        if (!mSorted) {
+            it.unimi.dsi.fastutil.Arrays.quickSort(
+                    0,
+                    mSize,
+                    (a, b) -> Long.compare(mIds[a], mIds[b]),
+                    (a, b) -> {
+                        long id = mIds[a];
+                        mIds[a] = mIds[b];
+                        mIds[b] = id;
+                        long offset = mOffsets[a];
+                        mOffsets[a] = mOffsets[b];
+                        mOffsets[b] = offset;
+                    });
+            mSorted = true;
+        }
+    }
+
+    /** Returns the offset of the record of the instance with the given id, or -1 if unknown. */
+    long find(long id) {
+        assert mSorted;
+        int index = Arrays.binarySearch(mIds, 0, mSize, id);
+        return index >= 0 ? mOffsets[index] : -1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getId(int index) {
+        return mIds[index];
+    }
+
+    long getOffset(int index) {
+        return mOffsets[index];
+    }
+}
@@ -39,6 +39,17 @@ value class InstanceList private constructor(val raw: Any /* Instance | Array<In
     fun asList(): List<Instance> = onCases(::listOf, { it.asInstanceList() })
     fun asInstanceSequence(): Sequence<Instance> = onCases(::sequenceOf, { it.instanceSequence() })
 
+    /** Iterates over the elements without allocating. */
+    inline fun forEach(action: (Instance) -> Unit) {
+        if (raw is Instance) {
+            action(raw)
+        } else {
+            for (elem in raw as Array<*>) {
+                action(elem as Instance? ?: break)
+            }
+        }
+    }
+
     /**
      * Returns a new list including the element. This instance is (conceptually) destroyed
      * afterwards and should not be used elsewhere.
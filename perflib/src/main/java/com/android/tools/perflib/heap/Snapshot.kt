@@ -18,7 +18,9 @@ package com.android.tools.perflib.heap
 import com.google.common.annotations.VisibleForTesting
 import com.android.tools.perflib.analyzer.Capture
 import com.android.tools.perflib.captures.DataBuffer
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer
 import com.android.tools.perflib.heap.analysis.LinkEvalDominators
+import com.android.tools.perflib.heap.analysis.ReferenceGraph
 import com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor
 import com.android.tools.perflib.heap.ext.NativeRegistryPostProcessor
 import com.android.tools.perflib.heap.ext.SnapshotPostProcessor
@@ -26,7 +28,7 @@ import com.android.tools.proguard.ProguardMap
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet
-import kotlin.streams.asStream
+import java.util.concurrent.ForkJoinPool
 
 /*
  * A snapshot of all of the heaps, and related meta-data, for the runtime at a given instant.
@@ -55,6 +57,17 @@ class Snapshot @VisibleForTesting constructor(val buffer: DataBuffer) : Capture(
     var idSizeMask = 0x00000000ffffffffL
         private set
 
+    // Instances read their values through a duplicate of the buffer owned by the current thread
+    // when the buffer is memory mapped, so that values can be decoded from several threads.
+    private val threadBuffers: ThreadLocal<DataBuffer>? = (buffer as? MemoryMappedFileBuffer)
+        ?.let { mapped -> ThreadLocal.withInitial<DataBuffer> { mapped.duplicate() } }
+
+    /** True if the values of instances (fields, array elements) can be read concurrently. */
+    val supportsConcurrentReads: Boolean get() = threadBuffers != null
+
+    /** The buffer from which instances read their values, see [supportsConcurrentReads]. */
+    internal val readBuffer: DataBuffer get() = threadBuffers?.get() ?: buffer
+
     val heaps: Collection<Heap> get() = heapList
     val gcRoots: Collection<RootObj> get() = roots
 
@@ -118,6 +131,8 @@ class Snapshot @VisibleForTesting constructor(val buffer: DataBuffer) : Capture(
         instance.heap = currentHeap
     }
 
+    fun addInstanceOffset(id: Long, offset: Long) = currentHeap!!.addInstanceOffset(id, offset)
+
     fun addClass(id: Long, theClass: ClassObj) {
         currentHeap!!.addClass(id, theClass)
         theClass.heap = currentHeap
@@ -179,6 +194,7 @@ class Snapshot @VisibleForTesting constructor(val buffer: DataBuffer) : Capture(
     }
 
     fun resolveReferences() {
+        check(heapList.none { it.isIndexed }) { "References cannot be resolved in an indexed snapshot" }
         for (heap in heaps) {
             heap.classes.forEach(Instance::resolveReferences)
             heap.forEachInstance { instance ->
@@ -240,18 +256,31 @@ class Snapshot @VisibleForTesting constructor(val buffer: DataBuffer) : Capture(
     }
 
     private fun doComputeRetainedSizes() : LinkEvalDominators.Result<Instance> {
-        val result = LinkEvalDominators.computeDominators(
+        val graph = ReferenceGraph.build(
             gcRoots.mapNotNullTo(mutableSetOf(), RootObj::referredInstance),
-            { it.hardForwardReferences.asStream() },
+            { instance, visit -> instance._hardFwdRefs.forEach(visit) },
         )
-        val (instances, immDom) = result
+        val dominators = graph.computeDominators()
+        val order = dominators.order
+        val immDoms = dominators.immediateDominators
 
         // We only update the retained sizes of objects in the dominator tree (i.e. reachable).
         // It's important to traverse in reverse topological order
-        for (i in instances.indices.reversed()) {
-            immDom[i]?.addRetainedSizes(instances[i]!!)
+        for (i in order.size - 1 downTo 1) {
+            graph.node(immDoms[order[i]])?.addRetainedSizes(graph.node(order[i])!!)
         }
-        return result
+
+        // Views in DFS order, as returned by LinkEvalDominators.
+        val instances = object : AbstractList<Instance?>() {
+            override val size get() = order.size
+            override fun get(index: Int) = graph.node(order[index])
+        }
+        val immDom = object : AbstractList<Instance?>() {
+            override val size get() = order.size
+            override fun get(index: Int) =
+                if (index == 0) null else graph.node(immDoms[order[index]])
+        }
+        return LinkEvalDominators.Result(instances, immDom)
     }
 
     private inline fun forEachReachableInstance(crossinline visit: (Instance) -> Unit) =
@@ -284,20 +313,48 @@ class Snapshot @VisibleForTesting constructor(val buffer: DataBuffer) : Capture(
         @JvmField val SENTINEL_ROOT: Instance = RootObj(RootType.UNKNOWN)
         private const val DEFAULT_HEAP_ID = 0
 
+        /**
+         * Parses [buffer] into a new snapshot. When a [pool] is given and [buffer] is a
+         * [com.android.tools.perflib.captures.MemoryMappedFileBuffer], heap dump segments are
+         * decoded in parallel on it.
+         */
         @JvmOverloads @JvmStatic
         fun createSnapshot(
             buffer: DataBuffer,
             map: ProguardMap = ProguardMap(),
-            postProcessors: List<SnapshotPostProcessor> = listOf(NativeRegistryPostProcessor())
+            postProcessors: List<SnapshotPostProcessor> = listOf(NativeRegistryPostProcessor()),
+            pool: ForkJoinPool? = null
         ): Snapshot =
             try {
                 Snapshot(buffer).also { snapshot ->
-                    HprofParser.parseBuffer(snapshot, buffer, map)
+                    when (pool) {
+                        null -> HprofParser.parseBuffer(snapshot, buffer, map)
+                        else -> HprofParser.parseBuffer(snapshot, buffer, map, pool)
+                    }
                     postProcessors.forEach { it.postProcess(snapshot) }
                 }
             } catch (e: RuntimeException) {
                 buffer.dispose()
                 throw e
             }
+
+        /**
+         * Creates a snapshot which only records the offset of each instance in [buffer], and
+         * materializes [Instance]s from it when they are looked up. With a
+         * [com.android.tools.perflib.captures.MemoryMappedFileBuffer], this analyzes heap dumps
+         * much larger than the available memory.
+         *
+         * Classes, roots and stacks are loaded as usual. Whole-graph analyses which keep state on
+         * every instance, such as [resolveReferences] and [computeRetainedSizes], are not supported.
+         * See [Heap.isIndexed].
+         */
+        @JvmOverloads @JvmStatic
+        fun createIndexedSnapshot(buffer: DataBuffer, map: ProguardMap = ProguardMap()): Snapshot =
+            try {
+                Snapshot(buffer).also { snapshot -> HprofParser.indexBuffer(snapshot, buffer, map) }
+            } catch (e: RuntimeException) {
+                buffer.dispose()
+                throw e
+            }
     }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis
+
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap
+
+/**
+ * A reference graph in compressed sparse row form: the successors of node `i` are
+ * `edges[offsets[i] until offsets[i + 1]]`.
+ *
+ * Node 0 is an auxiliary root whose successors are the roots of the graph. The other nodes are the
+ * objects reachable from the roots, numbered in breadth-first order, see [node].
+ */
+class ReferenceGraph<T : Any> private constructor(
+    private val nodes: Array<Any?>,
+    val offsets: IntArray,
+    val edges: IntArray
+) {
+    val size: Int get() = nodes.size
+
+    /** Returns the object of node [index], or `null` for the auxiliary root. */
+    @Suppress("UNCHECKED_CAST")
+    fun node(index: Int): T? = nodes[index] as T?
+
+    /**
+     * Computes the dominator tree with the Lengauer-Tarjan algorithm (see [LinkEvalDominators]).
+     * Apart from the int arrays of the result and a few int arrays of working space, nothing is
+     * allocated.
+     */
+    fun computeDominators(): Dominators {
+        val n = size
+        // Predecessors, in the same compressed form as successors.
+        val predOffsets = IntArray(n + 1)
+        for (e in edges) {
+            predOffsets[e + 1]++
+        }
+        for (i in 0 until n) {
+            predOffsets[i + 1] += predOffsets[i]
+        }
+        val preds = IntArray(edges.size)
+        val fill = predOffsets.copyOf(n)
+        for (v in 0 until n) {
+            for (e in offsets[v] until offsets[v + 1]) {
+                preds[fill[edges[e]]++] = v
+            }
+        }
+
+        // Step 1: number nodes in DFS order, and record their parent in the DFS tree.
+        val order = IntArray(n) // DFS number -> node
+        val dfsNumbers = IntArray(n) { UNVISITED } // node -> DFS number
+        val parents = IntArray(n)
+        val stack = IntArray(n)
+        val cursors = fill // Reused: the next edge to visit of each node on the stack.
+        var count = 0
+        var top = 0
+        dfsNumbers[0] = count
+        order[count++] = 0
+        cursors[0] = offsets[0]
+        stack[top++] = 0
+        while (top > 0) {
+            val v = stack[top - 1]
+            if (cursors[v] == offsets[v + 1]) {
+                top--
+                continue
+            }
+            val w = edges[cursors[v]++]
+            if (dfsNumbers[w] == UNVISITED) {
+                dfsNumbers[w] = count
+                order[count++] = w
+                parents[w] = v
+                cursors[w] = offsets[w]
+                stack[top++] = w
+            }
+        }
+        assert(count == n) { "All nodes of the graph are reachable from the auxiliary root" }
+
+        // Semi-dominators are DFS numbers, other arrays are indexed by node.
+        val semis = dfsNumbers
+        val ancestors = IntArray(n) { INVALID_ANCESTOR }
+        val labels = IntArray(n) { it }
+        val bucketHeads = IntArray(n) { EMPTY_BUCKET }
+        val bucketNexts = IntArray(n)
+        val immDoms = IntArray(n)
+        for (i in n - 1 downTo 1) {
+            val w = order[i]
+            // Step 2: compute the semi-dominator of w.
+            for (p in predOffsets[w] until predOffsets[w + 1]) {
+                val u = eval(ancestors, labels, semis, stack, preds[p])
+                if (semis[u] < semis[w]) {
+                    semis[w] = semis[u]
+                }
+            }
+            val semiNode = order[semis[w]]
+            bucketNexts[w] = bucketHeads[semiNode]
+            bucketHeads[semiNode] = w
+            val parent = parents[w]
+            ancestors[w] = parent
+
+            // Step 3: implicitly define the immediate dominator of the nodes in parent's bucket.
+            var v = bucketHeads[parent]
+            while (v != EMPTY_BUCKET) {
+                val u = eval(ancestors, labels, semis, stack, v)
+                immDoms[v] = if (semis[u] < semis[v]) u else parent
+                v = bucketNexts[v]
+            }
+            bucketHeads[parent] = EMPTY_BUCKET
+        }
+
+        // Step 4: explicitly define the immediate dominators, in DFS order.
+        for (i in 1 until n) {
+            val w = order[i]
+            if (immDoms[w] != order[semis[w]]) {
+                immDoms[w] = immDoms[immDoms[w]]
+            }
+        }
+        immDoms[0] = NO_DOMINATOR
+        return Dominators(order, immDoms)
+    }
+
+    /**
+     * The dominator tree of a [ReferenceGraph].
+     *
+     * @property order the nodes in DFS order, which is a topological order of the dominator tree.
+     * @property immediateDominators the immediate dominator of each node, 0 (the auxiliary root)
+     *           for nodes which are not dominated by a single root, and -1 for the auxiliary root.
+     */
+    class Dominators(val order: IntArray, val immediateDominators: IntArray) {
+        /**
+         * Accumulates [values] (e.g. shallow sizes, indexed by node) up the dominator tree, in
+         * place. Afterwards, each value is the sum over the subtree of its node, e.g. the retained
+         * size.
+         */
+        fun accumulate(values: LongArray) {
+            for (i in order.size - 1 downTo 1) {
+                val node = order[i]
+                values[immediateDominators[node]] += values[node]
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Builds the graph of the objects reachable from [roots]. [forEachSuccessor] is called once
+         * per reachable object and must call its visitor with each successor of the object.
+         */
+        fun <T : Any> build(
+            roots: Collection<T>,
+            forEachSuccessor: (T, (T) -> Unit) -> Unit
+        ): ReferenceGraph<T> {
+            val indices = Reference2IntOpenHashMap<T>().apply { defaultReturnValue(-1) }
+            val nodes = ArrayList<Any?>().apply { add(null) }
+            val offsets = IntArrayList()
+            val edges = IntArrayList()
+            val addEdge = { node: T ->
+                var index = indices.getInt(node)
+                if (index < 0) {
+                    index = nodes.size
+                    indices.put(node, index)
+                    nodes.add(node)
+                }
+                edges.add(index)
+                Unit
+            }
+
+            offsets.add(0)
+            roots.forEach(addEdge)
+            var current = 1
+            while (current < nodes.size) {
+                offsets.add(edges.size)
+                @Suppress("UNCHECKED_CAST")
+                forEachSuccessor(nodes[current] as T, addEdge)
+                current++
+            }
+            offsets.add(edges.size)
+            return ReferenceGraph(nodes.toTypedArray(), offsets.toIntArray(), edges.toIntArray())
+        }
+    }
+}
+
+/** Same as eval() in LinkEvalDominators.kt, compressing paths with [stack] instead of a list. */
+private fun eval(
+    ancestors: IntArray, labels: IntArray, semis: IntArray, stack: IntArray, node: Int
+): Int {
+    if (ancestors[node] == INVALID_ANCESTOR) {
+        return node
+    }
+    var top = 0
+    var n = node
+    while (ancestors[ancestors[n]] != INVALID_ANCESTOR) {
+        stack[top++] = n
+        n = ancestors[n]
+    }
+    while (top > 0) {
+        val toCompress = stack[--top]
+        val ancestor = ancestors[toCompress]
+        if (semis[labels[ancestor]] < semis[labels[toCompress]]) {
+            labels[toCompress] = labels[ancestor]
+        }
+        ancestors[toCompress] = ancestors[ancestor]
+    }
+    return labels[node]
+}
+
+private const val UNVISITED = -1
+private const val INVALID_ANCESTOR = -1
+private const val EMPTY_BUCKET = -1
+private const val NO_DOMINATOR = -1
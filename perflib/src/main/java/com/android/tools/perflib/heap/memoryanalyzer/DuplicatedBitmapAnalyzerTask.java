@@ -3,7 +3,6 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.ArrayInstance;
 import com.android.tools.perflib.heap.ClassInstance;
-import com.android.tools.perflib.heap.ClassObj;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
 import java.util.ArrayList;
@@ -17,30 +16,55 @@ import java.util.Set;
 /**
  * Task for detecting duplicate bitmaps.
  */
-public final class DuplicatedBitmapAnalyzerTask extends MemoryAnalyzerTask {
+public final class DuplicatedBitmapAnalyzerTask
+        extends HeapTraversalTask<ReachableInstances<DuplicatedBitmapAnalyzerTask.BitmapBuffer>> {
 
     @Override
-    protected List<AnalysisResultEntry<?>> analyze(Configuration configuration, Snapshot snapshot) {
+    protected ReachableInstances<BitmapBuffer> createAccumulator(
+            Configuration configuration, Snapshot snapshot) {
+        // Bitmap buffers are decoded while visiting, in parallel.
+        return new ReachableInstances<>(snapshot.findClass("android.graphics.Bitmap"),
+                configuration.mHeaps, DuplicatedBitmapAnalyzerTask::decodeBuffer);
+    }
 
-        ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
-        if (bitmapClass == null) {
-            return Collections.emptyList();
+    @Override
+    protected void visit(ReachableInstances<BitmapBuffer> bitmaps, Instance instance) {
+        bitmaps.visit(instance);
+    }
+
+    @Override
+    protected ReachableInstances<BitmapBuffer> merge(
+            ReachableInstances<BitmapBuffer> first, ReachableInstances<BitmapBuffer> second) {
+        return first.merge(second);
+    }
+
+    private static BitmapBuffer decodeBuffer(Instance bitmap) {
+        Object buffer = ((ClassInstance) bitmap).getValues().stream()
+                .filter(fieldValue -> fieldValue.getField().getName().equals("mBuffer"))
+                .findFirst().get().getValue();
+        if (!(buffer instanceof ArrayInstance)) {
+            return null;
         }
+        ArrayInstance array = (ArrayInstance) buffer;
+        return new BitmapBuffer(array, array.getValues());
+    }
 
+    @Override
+    protected List<AnalysisResultEntry<?>> finish(
+            ReachableInstances<BitmapBuffer> bitmaps, Configuration configuration,
+            Snapshot snapshot) {
         Map<ArrayInstance, Instance> byteArrayToBitmapMap = new HashMap<>();
-        Set<ArrayInstance> byteArrays = new HashSet<>();
-
-        List<Instance> reachableInstances = new ArrayList<>();
-        configuration.mHeaps.stream().forEach(heap ->
-                bitmapClass.getHeapInstances(heap.getId()).stream()
-                        .filter(instance -> instance.getDistanceToGcRoot() != Integer.MAX_VALUE)
-                        .forEach(reachableInstances::add));
-        reachableInstances.forEach(instance -> byteArrayToBitmapMap
-                .put((ArrayInstance) ((ClassInstance) instance).getValues().stream()
-                        .filter(fieldValue -> fieldValue.getField().getName()
-                                .equals("mBuffer"))
-                        .findFirst().get().getValue(), instance));
-        byteArrays.addAll(byteArrayToBitmapMap.keySet());
+        // The values were decoded once while visiting, as getValues() recreates the array on
+        // every invocation.
+        Map<ArrayInstance, Object[]> cachedValues = new HashMap<>();
+        List<Instance> instances = bitmaps.getInstances();
+        List<BitmapBuffer> buffers = bitmaps.getValues();
+        for (int i = 0; i < instances.size(); i++) {
+            BitmapBuffer buffer = buffers.get(i);
+            byteArrayToBitmapMap.put(buffer.mArray, instances.get(i));
+            cachedValues.put(buffer.mArray, buffer.mValues);
+        }
+        Set<ArrayInstance> byteArrays = new HashSet<>(byteArrayToBitmapMap.keySet());
 
         if (byteArrays.size() <= 1) {
             return Collections.emptyList();
@@ -52,13 +76,6 @@ public final class DuplicatedBitmapAnalyzerTask extends MemoryAnalyzerTask {
         List<Set<ArrayInstance>> reducedPrefixSets = new ArrayList<>();
         commonPrefixSets.add(byteArrays);
 
-        // Cache the values since instance.getValues() recreates the array on every invocation.
-        Map<ArrayInstance, Object[]> cachedValues = new HashMap<>();
-        cachedValues.clear();
-        for (ArrayInstance instance : byteArrays) {
-            cachedValues.put(instance, instance.getValues());
-        }
-
         int columnIndex = 0;
         while (!commonPrefixSets.isEmpty()) {
             for (Set<ArrayInstance> commonPrefixArrays : commonPrefixSets) {
@@ -132,6 +149,19 @@ public final class DuplicatedBitmapAnalyzerTask extends MemoryAnalyzerTask {
         return "Detects duplicated bitmaps in the application.";
     }
 
+    /** The byte array of a bitmap and its decoded elements. */
+    static final class BitmapBuffer {
+
+        private final ArrayInstance mArray;
+
+        private final Object[] mValues;
+
+        private BitmapBuffer(ArrayInstance array, Object[] values) {
+            mArray = array;
+            mValues = values;
+        }
+    }
+
     /**
      * MemoryAnalysisResultEntry for DuplicatedBitmap task.
      */
@@ -18,42 +18,52 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.ClassInstance;
-import com.android.tools.perflib.heap.ClassObj;
-import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
 import com.google.common.collect.HashMultimap;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
-public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
+public class DuplicatedStringsAnalyzerTask extends HeapTraversalTask<ReachableInstances<String>> {
 
+    @NonNull
     @Override
-    protected List<AnalysisResultEntry<?>> analyze(@NonNull Configuration configuration,
-                                                   @NonNull Snapshot snapshot) {
-        List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
+    protected ReachableInstances<String> createAccumulator(@NonNull Configuration configuration,
+                                                           @NonNull Snapshot snapshot) {
+        // Strings are decoded while visiting, in parallel.
+        return new ReachableInstances<String>(snapshot.findClass("java.lang.String"),
+                configuration.mHeaps, instance -> {
+                    assert instance instanceof ClassInstance;
+                    return ((ClassInstance) instance).getAsString();
+                });
+    }
 
-        HashMultimap<String, ClassInstance> stringIndex = HashMultimap.create();
-        ClassObj stringClass = snapshot.findClass("java.lang.String");
-        if (stringClass == null) {
-            return Collections.emptyList();
-        }
+    @Override
+    protected void visit(@NonNull ReachableInstances<String> strings,
+                         @NonNull Instance instance) {
+        strings.visit(instance);
+    }
+
+    @NonNull
+    @Override
+    protected ReachableInstances<String> merge(@NonNull ReachableInstances<String> first,
+                                               @NonNull ReachableInstances<String> second) {
+        return first.merge(second);
+    }
 
-        for (Heap heap : configuration.mHeaps) {
-            List<Instance> instances = stringClass.getHeapInstances(heap.getId());
+    @NonNull
+    @Override
+    protected List<AnalysisResultEntry<?>> finish(@NonNull ReachableInstances<String> strings,
+                                                  @NonNull Configuration configuration,
+                                                  @NonNull Snapshot snapshot) {
+        List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
 
-            for (Instance instance : instances) {
-                assert instance instanceof ClassInstance;
-                ClassInstance stringInstance = (ClassInstance) instance;
-                if (stringInstance.getDistanceToGcRoot() != Integer.MAX_VALUE) {
-                    String text = stringInstance.getAsString();
-                    if (text != null) {
-                        stringIndex.put(text, stringInstance);
-                    }
-                }
-            }
+        HashMultimap<String, ClassInstance> stringIndex = HashMultimap.create();
+        List<Instance> instances = strings.getInstances();
+        List<String> texts = strings.getValues();
+        for (int i = 0; i < instances.size(); i++) {
+            stringIndex.put(texts.get(i), (ClassInstance) instances.get(i));
         }
 
         for (String key : stringIndex.keySet()) {
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Runs a set of {@link HeapTraversalTask}s in a single parallel pass over a snapshot.
+ *
+ * <p>The snapshot is split in slices of the existing per-class instance lists (and of the class
+ * objects of each heap), without copying them. Slices are grouped in about
+ * {@link #PARTITIONS_PER_THREAD} partitions per thread of the pool. Each partition is visited by
+ * all the tasks, each with its own accumulator, and the accumulators are merged in order.
+ *
+ * <p>Instances are only visited in parallel when they can be read concurrently, that is when the
+ * snapshot is memory mapped and none of its heaps is indexed. Otherwise, or when some instances
+ * are not attached to a class, the heaps are visited in place on a single thread.
+ */
+final class HeapTraversal {
+
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private static final int MIN_PARTITION_SIZE = 1 << 12;
+
+    private HeapTraversal() {
+    }
+
+    /**
+     * Runs the given tasks on {@code pool}, blocking until they are done.
+     *
+     * @return the results of all tasks, in the order of {@code tasks}.
+     */
+    @NonNull
+    static List<AnalysisResultEntry<?>> run(
+            @NonNull List<HeapTraversalTask<?>> tasks,
+            @NonNull MemoryAnalyzerTask.Configuration configuration,
+            @NonNull Snapshot snapshot,
+            @NonNull ForkJoinPool pool) {
+        Slices slices = Slices.of(snapshot, pool.getParallelism());
+        Object[] accumulators;
+        if (slices == null) {
+            Object[] serialAccumulators = createAccumulators(tasks, configuration, snapshot);
+            for (Heap heap : snapshot.getHeaps()) {
+                forEachInstance(heap, instance -> visitAll(tasks, serialAccumulators, instance));
+            }
+            accumulators = serialAccumulators;
+        } else {
+            accumulators = pool.invoke(
+                    new Partition(tasks, configuration, snapshot, slices, 0, slices.size()));
+        }
+
+        List<AnalysisResultEntry<?>> results = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            results.addAll(finish(tasks.get(i), accumulators[i], configuration, snapshot));
+        }
+        return results;
+    }
+
+    /**
+     * Visits the class objects and the instances of a heap in place, on the calling thread.
+     */
+    static void forEachInstance(@NonNull Heap heap, @NonNull Consumer<Instance> visitor) {
+        for (ClassObj classObj : heap.getClasses()) {
+            visitor.accept(classObj);
+        }
+        heap.forEachInstance(instance -> {
+            visitor.accept(instance);
+            return true;
+        });
+    }
+
+    @NonNull
+    private static Object[] createAccumulators(
+            @NonNull List<HeapTraversalTask<?>> tasks,
+            @NonNull MemoryAnalyzerTask.Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        Object[] accumulators = new Object[tasks.size()];
+        for (int i = 0; i < tasks.size(); i++) {
+            accumulators[i] = tasks.get(i).createAccumulator(configuration, snapshot);
+        }
+        return accumulators;
+    }
+
+    private static void visitAll(
+            @NonNull List<HeapTraversalTask<?>> tasks, @NonNull Object[] accumulators,
+            @NonNull Instance instance) {
+        for (int i = 0; i < tasks.size(); i++) {
+            visit(tasks.get(i), accumulators[i], instance);
+        }
+    }
+
+    /**
+     * Views of the lists of the class objects of each heap and of the instances of each class,
+     * split so that each one fits in a partition.
+     */
+    static final class Slices {
+
+        private final List<List<? extends Instance>> mLists = new ArrayList<>();
+
+        // Number of instances in the slices before each slice, and in all of them at the end.
+        private final IntArrayList mOffsets = new IntArrayList();
+
+        private final int mPartitionSize;
+
+        private Slices(int partitionSize) {
+            mPartitionSize = partitionSize;
+            mOffsets.add(0);
+        }
+
+        /** Returns the slices of the snapshot, or null if it cannot be visited in parallel. */
+        @Nullable
+        static Slices of(@NonNull Snapshot snapshot, int parallelism) {
+            if (!snapshot.getSupportsConcurrentReads()) {
+                return null;
+            }
+            int count = 0;
+            for (Heap heap : snapshot.getHeaps()) {
+                if (heap.isIndexed()) {
+                    return null;
+                }
+                count += heap.getClasses().size() + heap.getInstancesCount();
+            }
+
+            Slices slices = new Slices(
+                    Math.max(MIN_PARTITION_SIZE, count / (parallelism * PARTITIONS_PER_THREAD) + 1));
+            Int2IntOpenHashMap attachedInstances = new Int2IntOpenHashMap();
+            for (Heap heap : snapshot.getHeaps()) {
+                slices.add(new ArrayList<>(heap.getClasses()));
+                for (ClassObj classObj : heap.getClasses()) {
+                    IntIterator heapIds = classObj.getHeapData().keySet().iterator();
+                    while (heapIds.hasNext()) {
+                        int heapId = heapIds.nextInt();
+                        List<Instance> instances = classObj.getHeapInstances(heapId);
+                        attachedInstances.addTo(heapId, instances.size());
+                        slices.add(instances);
+                    }
+                }
+            }
+
+            // Instances which are not attached to a class are only found by iterating their heap.
+            for (Heap heap : snapshot.getHeaps()) {
+                if (attachedInstances.get(heap.getId()) != heap.getInstancesCount()) {
+                    return null;
+                }
+            }
+            return slices;
+        }
+
+        private void add(@NonNull List<? extends Instance> instances) {
+            for (int start = 0; start < instances.size(); start += mPartitionSize) {
+                int end = Math.min(instances.size(), start + mPartitionSize);
+                mLists.add(instances.subList(start, end));
+                mOffsets.add(mOffsets.getInt(mOffsets.size() - 1) + end - start);
+            }
+        }
+
+        int size() {
+            return mLists.size();
+        }
+
+        @NonNull
+        List<? extends Instance> get(int index) {
+            return mLists.get(index);
+        }
+
+        /** Returns the number of instances in the slices from {@code start} to {@code end}. */
+        int count(int start, int end) {
+            return mOffsets.getInt(end) - mOffsets.getInt(start);
+        }
+    }
+
+    private static final class Partition extends RecursiveTask<Object[]> {
+
+        private final List<HeapTraversalTask<?>> mTasks;
+
+        private final MemoryAnalyzerTask.Configuration mConfiguration;
+
+        private final Snapshot mSnapshot;
+
+        private final Slices mSlices;
+
+        private final int mStart;
+
+        private final int mEnd;
+
+        Partition(@NonNull List<HeapTraversalTask<?>> tasks,
+                @NonNull MemoryAnalyzerTask.Configuration configuration,
+                @NonNull Snapshot snapshot, @NonNull Slices slices, int start, int end) {
+            mTasks = tasks;
+            mConfiguration = configuration;
+            mSnapshot = snapshot;
+            mSlices = slices;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected Object[] compute() {
+            if (mEnd - mStart > 1 && mSlices.count(mStart, mEnd) > mSlices.mPartitionSize) {
+                int middle = (mStart + mEnd) >>> 1;
+                Partition second = new Partition(mTasks, mConfiguration, mSnapshot, mSlices,
+                        middle, mEnd);
+                second.fork();
+                Object[] accumulators = new Partition(mTasks, mConfiguration, mSnapshot,
+                        mSlices, mStart, middle).compute();
+                Object[] secondAccumulators = second.join();
+                for (int i = 0; i < mTasks.size(); i++) {
+                    accumulators[i] =
+                            merge(mTasks.get(i), accumulators[i], secondAccumulators[i]);
+                }
+                return accumulators;
+            }
+
+            Object[] accumulators = createAccumulators(mTasks, mConfiguration, mSnapshot);
+            for (int j = mStart; j < mEnd; j++) {
+                for (Instance instance : mSlices.get(j)) {
+                    visitAll(mTasks, accumulators, instance);
+                }
+            }
+            return accumulators;
+        }
+    }
+
+    // The helpers below capture the accumulator type of each task.
+
+    @SuppressWarnings("unchecked")
+    private static <A> void visit(
+            @NonNull HeapTraversalTask<A> task, @NonNull Object accumulator,
+            @NonNull Instance instance) {
+        task.visit((A) accumulator, instance);
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static <A> Object merge(
+            @NonNull HeapTraversalTask<A> task, @NonNull Object first, @NonNull Object second) {
+        return task.merge((A) first, (A) second);
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static <A> List<AnalysisResultEntry<?>> finish(
+            @NonNull HeapTraversalTask<A> task, @NonNull Object accumulator,
+            @NonNull MemoryAnalyzerTask.Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        return task.finish((A) accumulator, configuration, snapshot);
+    }
+}
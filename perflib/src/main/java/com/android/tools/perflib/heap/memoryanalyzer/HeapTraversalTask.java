@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import java.util.List;
+
+/**
+ * A {@link MemoryAnalyzerTask} which looks at each instance of a snapshot once, in any order.
+ *
+ * <p>{@link MemoryAnalyzer} runs all such tasks together, in a single pass over the snapshot split
+ * in partitions which are visited in parallel (see {@link HeapTraversal}). Each partition gets its
+ * own accumulator per task, and the accumulators of adjacent partitions are merged until one is
+ * left, from which the task creates its results.
+ *
+ * <p>{@link #visit} may read the values of an instance (fields, array elements): partitions are
+ * only visited in parallel when each thread reads the snapshot through its own buffer (see
+ * {@link Snapshot#getSupportsConcurrentReads()}). Expensive decoding therefore belongs in
+ * {@link #visit} rather than in {@link #finish}, which runs on a single thread.
+ *
+ * @param <A> the type of the accumulators of the task
+ */
+public abstract class HeapTraversalTask<A> extends MemoryAnalyzerTask {
+
+    /** Creates an empty accumulator for one partition of the given snapshot. */
+    @NonNull
+    protected abstract A createAccumulator(
+            @NonNull Configuration configuration, @NonNull Snapshot snapshot);
+
+    /** Adds an instance of the partition of {@code accumulator}. */
+    protected abstract void visit(@NonNull A accumulator, @NonNull Instance instance);
+
+    /**
+     * Merges two accumulators, where {@code second} covers the instances visited after those of
+     * {@code first}. Either one may be reused as the result.
+     */
+    @NonNull
+    protected abstract A merge(@NonNull A first, @NonNull A second);
+
+    /** Creates the results of the task, once all instances were visited. */
+    @NonNull
+    protected abstract List<AnalysisResultEntry<?>> finish(
+            @NonNull A accumulator,
+            @NonNull Configuration configuration,
+            @NonNull Snapshot snapshot);
+
+    /** Runs this task alone, visiting all instances on the current thread. */
+    @Override
+    protected List<AnalysisResultEntry<?>> analyze(
+            @NonNull Configuration configuration, @NonNull Snapshot snapshot) {
+        A accumulator = createAccumulator(configuration, snapshot);
+        for (Heap heap : snapshot.getHeaps()) {
+            HeapTraversal.forEachInstance(heap, instance -> visit(accumulator, instance));
+        }
+        return finish(accumulator, configuration, snapshot);
+    }
+}
@@ -37,9 +37,12 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 public class MemoryAnalyzer extends Analyzer {
 
+    @NonNull private final ForkJoinPool mTraversalPool;
+
     private Set<MemoryAnalyzerTask> mTasks = new HashSet<MemoryAnalyzerTask>();
 
     private AnalysisReport mOutstandingReport;
@@ -50,6 +53,18 @@ public class MemoryAnalyzer extends Analyzer {
 
     private boolean mAnalysisComplete = false;
 
+    public MemoryAnalyzer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param traversalPool the pool on which the instances of a snapshot are visited by all
+     *                      {@link HeapTraversalTask}s at once
+     */
+    public MemoryAnalyzer(@NonNull ForkJoinPool traversalPool) {
+        mTraversalPool = traversalPool;
+    }
+
     private static boolean accept(@NonNull Capture capture) {
         return Snapshot.TYPE_NAME.equals(capture.getTypeName());
     }
@@ -85,9 +100,16 @@ public class MemoryAnalyzer extends Analyzer {
             return mOutstandingReport;
         }
 
+        // Traversal tasks share a single pass over each snapshot, other tasks run on their own.
+        final List<HeapTraversalTask<?>> traversalTasks = new ArrayList<HeapTraversalTask<?>>();
+        List<MemoryAnalyzerTask> otherTasks = new ArrayList<MemoryAnalyzerTask>();
         for (AnalyzerTask task : tasks) {
-            if (task instanceof MemoryAnalyzerTask) {
-                mTasks.add((MemoryAnalyzerTask) task);
+            if (task instanceof MemoryAnalyzerTask && mTasks.add((MemoryAnalyzerTask) task)) {
+                if (task instanceof HeapTraversalTask) {
+                    traversalTasks.add((HeapTraversalTask<?>) task);
+                } else {
+                    otherTasks.add((MemoryAnalyzerTask) task);
+                }
             }
         }
 
@@ -114,36 +136,31 @@ public class MemoryAnalyzer extends Analyzer {
                 final MemoryAnalyzerTask.Configuration configuration
                         = new MemoryAnalyzerTask.Configuration(heapsToUse);
 
-                for (final MemoryAnalyzerTask task : mTasks) {
-                    final ListenableFutureTask<List<AnalysisResultEntry<?>>> futureTask =
-                            ListenableFutureTask.create(new Callable<List<AnalysisResultEntry<?>>>() {
-                                @Override
-                                public List<AnalysisResultEntry<?>> call() throws Exception {
-                                    if (mCancelAnalysis) {
-                                        return null;
-                                    }
-
-                                    return task.analyze(configuration, snapshot);
-                                }
-                            });
-                    Futures.addCallback(futureTask,
-                            new FutureCallback<List<AnalysisResultEntry<?>>>() {
-                                @Override
-                                public void onSuccess(List<AnalysisResultEntry<?>> result) {
-                                    if (mCancelAnalysis) {
-                                        return;
-                                    }
-
-                                    mOutstandingReport.addAnalysisResultEntries(result);
-                                }
-
-                                @Override
-                                public void onFailure(@Nullable Throwable t) {
-
-                                }
-                            }, synchronizingExecutor);
-                    taskExecutor.submit(futureTask);
-                    futuresList.add(futureTask);
+                if (!traversalTasks.isEmpty()) {
+                    futuresList.add(submit(new Callable<List<AnalysisResultEntry<?>>>() {
+                        @Override
+                        public List<AnalysisResultEntry<?>> call() throws Exception {
+                            if (mCancelAnalysis) {
+                                return null;
+                            }
+
+                            return HeapTraversal.run(
+                                    traversalTasks, configuration, snapshot, mTraversalPool);
+                        }
+                    }, synchronizingExecutor, taskExecutor));
+                }
+
+                for (final MemoryAnalyzerTask task : otherTasks) {
+                    futuresList.add(submit(new Callable<List<AnalysisResultEntry<?>>>() {
+                        @Override
+                        public List<AnalysisResultEntry<?>> call() throws Exception {
+                            if (mCancelAnalysis) {
+                                return null;
+                            }
+
+                            return task.analyze(configuration, snapshot);
+                        }
+                    }, synchronizingExecutor, taskExecutor));
                 }
             }
         }
@@ -166,6 +183,33 @@ public class MemoryAnalyzer extends Analyzer {
         return mOutstandingReport;
     }
 
+    @NonNull
+    private ListenableFutureTask<List<AnalysisResultEntry<?>>> submit(
+            @NonNull Callable<List<AnalysisResultEntry<?>>> callable,
+            @NonNull Executor synchronizingExecutor,
+            @NonNull ExecutorService taskExecutor) {
+        final ListenableFutureTask<List<AnalysisResultEntry<?>>> futureTask =
+                ListenableFutureTask.create(callable);
+        Futures.addCallback(futureTask,
+                new FutureCallback<List<AnalysisResultEntry<?>>>() {
+                    @Override
+                    public void onSuccess(List<AnalysisResultEntry<?>> result) {
+                        if (mCancelAnalysis) {
+                            return;
+                        }
+
+                        mOutstandingReport.addAnalysisResultEntries(result);
+                    }
+
+                    @Override
+                    public void onFailure(@Nullable Throwable t) {
+
+                    }
+                }, synchronizingExecutor);
+        taskExecutor.submit(futureTask);
+        return futureTask;
+    }
+
     @Override
     public void cancel() {
         if (mOutstandingReport == null || mAnalysisComplete) {
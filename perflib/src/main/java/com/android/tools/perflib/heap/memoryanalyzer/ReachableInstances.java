@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * An accumulator of {@link HeapTraversalTask}s collecting the reachable instances of a class (not
+ * including its subclasses) in some heaps, along with a value decoded from each of them while the
+ * partition is visited.
+ *
+ * @param <V> the type of the decoded values
+ */
+final class ReachableInstances<V> {
+
+    @Nullable private final ClassObj mClassObj;
+
+    @NonNull private final Set<Heap> mHeaps;
+
+    @NonNull private final Function<Instance, V> mDecoder;
+
+    @NonNull private final List<Instance> mInstances = new ArrayList<>();
+
+    @NonNull private final List<V> mValues = new ArrayList<>();
+
+    /**
+     * @param classObj the class to collect, or null if it is not in the snapshot.
+     * @param decoder decodes the value of a collected instance. Instances decoded to null are not
+     *     collected.
+     */
+    ReachableInstances(@Nullable ClassObj classObj, @NonNull Collection<Heap> heaps,
+            @NonNull Function<Instance, V> decoder) {
+        mClassObj = classObj;
+        mHeaps = new HashSet<>(heaps);
+        mDecoder = decoder;
+    }
+
+    void visit(@NonNull Instance instance) {
+        if (mClassObj != null
+                && instance.getClassObj() == mClassObj
+                && instance.getDistanceToGcRoot() != Integer.MAX_VALUE
+                && mHeaps.contains(instance.getHeap())) {
+            V value = mDecoder.apply(instance);
+            if (value != null) {
+                mInstances.add(instance);
+                mValues.add(value);
+            }
+        }
+    }
+
+    @NonNull
+    ReachableInstances<V> merge(@NonNull ReachableInstances<V> other) {
+        mInstances.addAll(other.mInstances);
+        mValues.addAll(other.mValues);
+        return this;
+    }
+
+    @NonNull
+    List<Instance> getInstances() {
+        return mInstances;
+    }
+
+    /** Returns the decoded values, in the order of {@link #getInstances()}. */
+    @NonNull
+    List<V> getValues() {
+        return mValues;
+    }
+}
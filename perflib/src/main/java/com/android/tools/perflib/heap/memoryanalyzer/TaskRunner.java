@@ -35,6 +35,8 @@ final class TaskRunner {
 
         final List<AnalysisResultEntry<?>> generatedEntries = new ArrayList<>();
 
+        // Tasks run one at a time as they all read the snapshot buffer, but HeapTraversalTasks
+        // visit the instances of each snapshot together, in parallel (see MemoryAnalyzer).
         final ExecutorService executorService = Executors.newSingleThreadExecutor();
 
         // Setup listeners - user supplied listeners from this.listeners, plus our own custom listener.
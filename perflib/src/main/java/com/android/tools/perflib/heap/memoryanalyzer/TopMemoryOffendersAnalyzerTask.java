@@ -5,16 +5,21 @@ import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * Gets the top memory offenders from a Snapshot in sorted order by retained size.
  */
-public final class TopMemoryOffendersAnalyzerTask extends MemoryAnalyzerTask {
+public final class TopMemoryOffendersAnalyzerTask
+        extends HeapTraversalTask<PriorityQueue<Instance>> {
 
     private static final int DEFAULT_NUM_ENTRIES = 5;
 
+    private static final Comparator<Instance> RETAINED_SIZE_ORDER =
+            Comparator.comparingLong(Instance::getTotalRetainedSize);
+
     private final int mNumEntries;
 
     public TopMemoryOffendersAnalyzerTask() {
@@ -27,14 +32,44 @@ public final class TopMemoryOffendersAnalyzerTask extends MemoryAnalyzerTask {
 
     @Override
     protected List<AnalysisResultEntry<?>> analyze(Configuration configuration, Snapshot snapshot) {
-        List<Instance> reachableInstances = snapshot.getReachableInstances();
-        Collections.sort(reachableInstances,
-                (a, b) -> Long.compare(a.getTotalRetainedSize(), b.getTotalRetainedSize()));
-        Collections.reverse(reachableInstances);
+        PriorityQueue<Instance> topInstances = createAccumulator(configuration, snapshot);
+        for (Instance instance : snapshot.getReachableInstances()) {
+            offer(topInstances, instance);
+        }
+        return finish(topInstances, configuration, snapshot);
+    }
+
+    /** Accumulators are min-heaps of the largest instances seen so far. */
+    @Override
+    protected PriorityQueue<Instance> createAccumulator(
+            Configuration configuration, Snapshot snapshot) {
+        return new PriorityQueue<>(Math.max(1, mNumEntries + 1), RETAINED_SIZE_ORDER);
+    }
+
+    @Override
+    protected void visit(PriorityQueue<Instance> topInstances, Instance instance) {
+        if (instance.isReachable()) {
+            offer(topInstances, instance);
+        }
+    }
+
+    @Override
+    protected PriorityQueue<Instance> merge(
+            PriorityQueue<Instance> first, PriorityQueue<Instance> second) {
+        for (Instance instance : second) {
+            offer(first, instance);
+        }
+        return first;
+    }
+
+    @Override
+    protected List<AnalysisResultEntry<?>> finish(
+            PriorityQueue<Instance> topInstances, Configuration configuration, Snapshot snapshot) {
+        List<Instance> sortedInstances = new ArrayList<>(topInstances);
+        sortedInstances.sort(RETAINED_SIZE_ORDER.reversed());
 
         List<AnalysisResultEntry<?>> entries = new ArrayList<>();
-        for (Instance instance : reachableInstances
-                .subList(0, Math.min(mNumEntries, reachableInstances.size()))) {
+        for (Instance instance : sortedInstances) {
             entries.add(
                     new TopMemoryOffendersEntry(
                             "Offender #" + (entries.size() + 1) + " (" + instance
@@ -45,6 +80,18 @@ public final class TopMemoryOffendersAnalyzerTask extends MemoryAnalyzerTask {
         return entries;
     }
 
+    private void offer(PriorityQueue<Instance> topInstances, Instance instance) {
+        if (mNumEntries <= 0) {
+            return;
+        }
+        if (topInstances.size() < mNumEntries) {
+            topInstances.add(instance);
+        } else if (RETAINED_SIZE_ORDER.compare(instance, topInstances.peek()) > 0) {
+            topInstances.poll();
+            topInstances.add(instance);
+        }
+    }
+
     @Override
     public String getTaskName() {
         return "Top Memory Offenders";
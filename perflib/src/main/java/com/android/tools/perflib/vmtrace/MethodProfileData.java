@@ -147,6 +147,14 @@ public class MethodProfileData {
         private long getInvocationCount() {
             return mInvocationCount;
         }
+
+        private void add(MethodStats other) {
+            mInclusiveThreadTime += other.mInclusiveThreadTime;
+            mExclusiveThreadTime += other.mExclusiveThreadTime;
+            mInclusiveGlobalTime += other.mInclusiveGlobalTime;
+            mExclusiveGlobalTime += other.mExclusiveGlobalTime;
+            mInvocationCount += other.mInvocationCount;
+        }
     }
 
     public static class Builder {
@@ -245,6 +253,30 @@ public class MethodProfileData {
             }
         }
 
+        /** Adds the statistics of {@code other}, e.g. computed for other threads. */
+        public void merge(Builder other) {
+            for (Map.Entry<Integer, MethodStats> entry
+                    : other.mPerThreadCumulativeStats.entrySet()) {
+                MethodStats stats = mPerThreadCumulativeStats.get(entry.getKey());
+                if (stats == null) {
+                    stats = new MethodStats();
+                    mPerThreadCumulativeStats.put(entry.getKey(), stats);
+                }
+                stats.add(entry.getValue());
+            }
+            for (Table.Cell<Integer, Long, MethodStats> cell
+                    : other.mPerThreadStatsByCaller.cellSet()) {
+                getMethodStatsFromTable(cell.getRowKey(), cell.getColumnKey(),
+                        mPerThreadStatsByCaller).add(cell.getValue());
+            }
+            for (Table.Cell<Integer, Long, MethodStats> cell
+                    : other.mPerThreadStatsByCallee.cellSet()) {
+                getMethodStatsFromTable(cell.getRowKey(), cell.getColumnKey(),
+                        mPerThreadStatsByCallee).add(cell.getValue());
+            }
+            mRecursive |= other.mRecursive;
+        }
+
         public MethodProfileData build() {
             return new MethodProfileData(this);
         }
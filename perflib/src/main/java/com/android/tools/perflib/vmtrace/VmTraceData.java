@@ -17,11 +17,15 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.SparseArray;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,6 +34,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -52,7 +58,7 @@ public class VmTraceData {
     private final long mElapsedTimeUs;
 
     /** Map from method id to method info. */
-    private final Map<Long, MethodInfo> mMethods;
+    private final Long2ObjectMap<MethodInfo> mMethods;
 
     /** Map from thread name to thread info. */
     private final Map<String, ThreadInfo> mThreadInfo;
@@ -228,8 +234,9 @@ public class VmTraceData {
         /** Map from thread ids to thread names. */
         private final SparseArray<String> mThreads = new SparseArray<String>(10);
 
-        /** Map from method id to method info. */
-        private final Map<Long,MethodInfo> mMethods = new HashMap<Long, MethodInfo>(100);
+        /** Map from method id to method info, without boxing the ids of each trace event. */
+        private final Long2ObjectMap<MethodInfo> mMethods =
+                new Long2ObjectOpenHashMap<MethodInfo>(100);
 
         /** Map from thread id to per thread stack call reconstructor. */
         private final SparseArray<CallStackReconstructor> mStackReconstructors
@@ -238,6 +245,29 @@ public class VmTraceData {
         /** Map from thread id to the top level call for that thread. */
         private final SparseArray<Call> mTopLevelCalls = new SparseArray<Call>(10);
 
+        /** The pool on which threads are processed in parallel, or null to process them here. */
+        @Nullable private final ForkJoinPool mPool;
+
+        /** With a pool, map from thread id to the events of that thread, until {@link #build()}. */
+        private final SparseArray<VmTraceStore.ThreadEvents> mThreadEvents
+                = new SparseArray<VmTraceStore.ThreadEvents>(10);
+
+        /** With a pool, map from thread id to the id of the top level call of that thread. */
+        private final SparseArray<Long> mTopLevelCallIds = new SparseArray<Long>(10);
+
+        public Builder() {
+            this(null);
+        }
+
+        /**
+         * @param pool if not null, the method events of each thread are only recorded while
+         *             parsing. {@link #build()} then reconstructs the call stacks and computes the
+         *             profile data of each thread in parallel on this pool.
+         */
+        public Builder(@Nullable ForkJoinPool pool) {
+            mPool = pool;
+        }
+
         @Override
         public void setVersion(int version) {
             mVersion = version;
@@ -299,6 +329,17 @@ public class VmTraceData {
                         mThreads.get(threadId), methodId, methodInfo.getShortName(), methodAction);
             }
 
+            if (mPool != null) {
+                VmTraceStore.ThreadEvents events = mThreadEvents.get(threadId);
+                if (events == null) {
+                    mTopLevelCallIds.put(threadId, createUniqueMethodIdForThread(threadId));
+                    events = new VmTraceStore.ThreadEvents();
+                    mThreadEvents.put(threadId, events);
+                }
+                events.add(methodId, methodAction, threadTime, globalTime);
+                return;
+            }
+
             CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
             if (reconstructor == null) {
                 long topLevelCallId = createUniqueMethodIdForThread(threadId);
@@ -319,6 +360,9 @@ public class VmTraceData {
         }
 
         public VmTraceData build() {
+            if (mPool != null) {
+                reconstructCallStacksInParallel(mPool);
+            }
             for (int i = 0; i < mStackReconstructors.size(); i++) {
                 int threadId = mStackReconstructors.keyAt(i);
                 CallStackReconstructor reconstructor = mStackReconstructors.valueAt(i);
@@ -335,15 +379,58 @@ public class VmTraceData {
             mStartTimeUs =  startTimeUs;
         }
 
+        private void reconstructCallStacksInParallel(@NonNull ForkJoinPool pool) {
+            List<ForkJoinTask<Call>> tasks = new ArrayList<ForkJoinTask<Call>>();
+            for (int i = 0; i < mThreadEvents.size(); i++) {
+                final int threadId = mThreadEvents.keyAt(i);
+                final VmTraceStore.ThreadEvents events = mThreadEvents.valueAt(i);
+                final long topLevelCallId = mTopLevelCallIds.get(threadId);
+                tasks.add(pool.submit(() -> {
+                    CallStackReconstructor reconstructor =
+                            new CallStackReconstructor(topLevelCallId);
+                    for (int index = 0; index < events.size(); index++) {
+                        reconstructor.addTraceAction(events.getMethodId(index),
+                                events.getAction(index), events.getThreadTime(index),
+                                events.getGlobalTime(index));
+                    }
+                    return reconstructor.getTopLevel();
+                }));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                mTopLevelCalls.put(mThreadEvents.keyAt(i), tasks.get(i).join());
+            }
+            mThreadEvents.clear();
+            mTopLevelCallIds.clear();
+        }
+
         private void computeTimingStatistics(VmTraceData data) {
             ProfileDataBuilder builder = new ProfileDataBuilder();
-            for (ThreadInfo thread : data.getThreads()) {
-                Call c = thread.getTopLevelCall();
-                if (c == null) {
-                    continue;
+            if (mPool != null) {
+                // Threads are independent: compute their statistics separately, then merge them.
+                List<ForkJoinTask<ProfileDataBuilder>> tasks =
+                        new ArrayList<ForkJoinTask<ProfileDataBuilder>>();
+                for (ThreadInfo thread : data.getThreads()) {
+                    Call c = thread.getTopLevelCall();
+                    if (c != null) {
+                        tasks.add(mPool.submit(() -> {
+                            ProfileDataBuilder threadBuilder = new ProfileDataBuilder();
+                            threadBuilder.computeCallStats(c, null, thread);
+                            return threadBuilder;
+                        }));
+                    }
+                }
+                for (ForkJoinTask<ProfileDataBuilder> task : tasks) {
+                    builder.merge(task.join());
                 }
+            } else {
+                for (ThreadInfo thread : data.getThreads()) {
+                    Call c = thread.getTopLevelCall();
+                    if (c == null) {
+                        continue;
+                    }
 
-                builder.computeCallStats(c, null, thread);
+                    builder.computeCallStats(c, null, thread);
+                }
             }
 
             for (Long methodId : builder.getMethodsWithProfileData()) {
@@ -381,6 +468,18 @@ public class VmTraceData {
             return builder;
         }
 
+        /** Adds the statistics of {@code other}, which must be of other threads. */
+        public void merge(@NonNull ProfileDataBuilder other) {
+            for (Map.Entry<Long, MethodProfileData.Builder> entry : other.mBuilderMap.entrySet()) {
+                MethodProfileData.Builder builder = mBuilderMap.get(entry.getKey());
+                if (builder == null) {
+                    mBuilderMap.put(entry.getKey(), entry.getValue());
+                } else {
+                    builder.merge(entry.getValue());
+                }
+            }
+        }
+
         public Set<Long> getMethodsWithProfileData() {
             return mBuilderMap.keySet();
         }
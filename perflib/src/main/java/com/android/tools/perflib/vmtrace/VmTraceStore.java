@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.SparseArray;
+import com.google.common.primitives.UnsignedInts;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The {@link VmTraceStore} class stores the events of a Dalvik method trace file in a compact,
+ * column-oriented form: for each thread, the method id and action, the thread time and the global
+ * time of each event are kept in primitive arrays (8 or 12 bytes per event), instead of a tree of
+ * {@link Call} objects.
+ *
+ * <p>{@link VmTraceData} (call trees and {@link MethodProfileData}) is only computed on request,
+ * for the whole trace or for the events of a time range, see {@link #getTraceData(long, long)}.
+ * This allows analyzing traces which are too large to be held entirely as call trees.
+ *
+ * <p>Usage: parse a trace file with a {@link Builder} as the {@link VmTraceHandler} of a
+ * {@link VmTraceParser}, then call {@link Builder#build()}.
+ */
+public class VmTraceStore {
+
+    /** Event times are unsigned 32 bit values, so all of them are before this time. */
+    private static final long END_OF_TRACE_US = 1L << 32;
+
+    private final int mVersion;
+    private final long mStartTimeUs;
+    private final Map<String, String> mProperties;
+
+    /** Map from thread ids to thread names. */
+    private final SparseArray<String> mThreads;
+
+    /** Map from method id to method info, as declared by the trace file. */
+    private final Long2ObjectMap<MethodInfo> mMethods;
+
+    /** Map from thread id to the events of that thread. */
+    private final SparseArray<ThreadEvents> mEvents;
+
+    private VmTraceStore(Builder b) {
+        mVersion = b.mVersion;
+        mStartTimeUs = b.mStartTimeUs;
+        mProperties = b.mProperties;
+        mThreads = b.mThreads;
+        mMethods = b.mMethods;
+        mEvents = b.mEvents;
+        for (int i = 0; i < mEvents.size(); i++) {
+            mEvents.valueAt(i).trim();
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public long getStartTimeUs() {
+        return mStartTimeUs;
+    }
+
+    /** Returns the number of method events of the given thread. */
+    public int getEventCount(int threadId) {
+        ThreadEvents events = mEvents.get(threadId);
+        return events == null ? 0 : events.size();
+    }
+
+    /** Builds the {@link VmTraceData} of the whole trace. */
+    @NonNull
+    public VmTraceData getTraceData() {
+        return getTraceData(0, END_OF_TRACE_US);
+    }
+
+    /**
+     * Builds the {@link VmTraceData} of the events whose global time is in
+     * [{@code startTimeUs}, {@code endTimeUs}), relative to the start of the trace.
+     *
+     * <p>Calls which were entered before the range and exited in or after it are included, with
+     * their actual entry time. Calls still running at the end of the range are closed as if the
+     * trace ended there.
+     */
+    @NonNull
+    public VmTraceData getTraceData(long startTimeUs, long endTimeUs) {
+        return getTraceData(startTimeUs, endTimeUs, null);
+    }
+
+    /**
+     * Same as {@link #getTraceData(long, long)}, building the call trees and profile data of each
+     * thread in parallel on the given pool, if any.
+     */
+    @NonNull
+    public VmTraceData getTraceData(
+            long startTimeUs, long endTimeUs, @Nullable ForkJoinPool pool) {
+        VmTraceData.Builder builder = new VmTraceData.Builder(pool);
+        builder.setVersion(mVersion);
+        builder.setStartTimeUs(mStartTimeUs);
+        for (Map.Entry<String, String> property : mProperties.entrySet()) {
+            builder.setProperty(property.getKey(), property.getValue());
+        }
+        for (int i = 0; i < mThreads.size(); i++) {
+            builder.addThread(mThreads.keyAt(i), mThreads.valueAt(i));
+        }
+        // The profile data of a trace is stored in its methods, so each trace gets its own copy.
+        for (MethodInfo info : mMethods.values()) {
+            builder.addMethod(info.id, new MethodInfo(info.id, info.className, info.methodName,
+                    info.signature, info.srcPath, info.srcLineNumber));
+        }
+
+        for (int i = 0; i < mEvents.size(); i++) {
+            int threadId = mEvents.keyAt(i);
+            ThreadEvents events = mEvents.valueAt(i);
+            int from = events.indexOf(startTimeUs);
+            int to = events.indexOf(endTimeUs);
+            if (from == to) {
+                continue;
+            }
+            for (int index : events.getOpenCalls(from)) {
+                events.replay(index, threadId, builder);
+            }
+            for (int index = from; index < to; index++) {
+                events.replay(index, threadId, builder);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The events of one thread, in columns.
+     *
+     * <p>An index keeps, for each block of {@link #BLOCK_SIZE} events, the call depth before its
+     * first event and the minimum call depth before any of its events, so that the calls open at
+     * any event can be found without walking the blocks which are nested deeper.
+     */
+    static final class ThreadEvents {
+
+        private static final int BLOCK_SHIFT = 10;
+
+        private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+        /** Method ids, with the ordinal of the {@link TraceAction} in the 2 low bits. */
+        private int[] mMethodActions = new int[BLOCK_SIZE];
+
+        private int[] mGlobalTimes = new int[BLOCK_SIZE];
+
+        /** Thread times, or null while they are the same as the global times. */
+        @Nullable private int[] mThreadTimes;
+
+        private int mSize;
+
+        private final IntArrayList mBlockStartDepths = new IntArrayList();
+
+        private final IntArrayList mBlockMinDepths = new IntArrayList();
+
+        /** The current call depth, which is negative after exiting calls entered before tracing. */
+        private int mDepth;
+
+        void add(long methodId, @NonNull TraceAction action, int threadTime, int globalTime) {
+            if (mSize == mMethodActions.length) {
+                int capacity = mSize + (mSize >> 1);
+                mMethodActions = Arrays.copyOf(mMethodActions, capacity);
+                mGlobalTimes = Arrays.copyOf(mGlobalTimes, capacity);
+                if (mThreadTimes != null) {
+                    mThreadTimes = Arrays.copyOf(mThreadTimes, capacity);
+                }
+            }
+            if (mThreadTimes == null && threadTime != globalTime) {
+                mThreadTimes = Arrays.copyOf(mGlobalTimes, mGlobalTimes.length);
+            }
+
+            if ((mSize & (BLOCK_SIZE - 1)) == 0) {
+                mBlockStartDepths.add(mDepth);
+                mBlockMinDepths.add(mDepth);
+            } else if (mDepth < mBlockMinDepths.getInt(mBlockMinDepths.size() - 1)) {
+                mBlockMinDepths.set(mBlockMinDepths.size() - 1, mDepth);
+            }
+            mDepth += action == TraceAction.METHOD_ENTER ? 1 : -1;
+
+            mMethodActions[mSize] = (int) methodId | action.ordinal();
+            mGlobalTimes[mSize] = globalTime;
+            if (mThreadTimes != null) {
+                mThreadTimes[mSize] = threadTime;
+            }
+            mSize++;
+        }
+
+        void trim() {
+            mMethodActions = Arrays.copyOf(mMethodActions, mSize);
+            mGlobalTimes = Arrays.copyOf(mGlobalTimes, mSize);
+            if (mThreadTimes != null) {
+                mThreadTimes = Arrays.copyOf(mThreadTimes, mSize);
+            }
+            mBlockStartDepths.trim();
+            mBlockMinDepths.trim();
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        long getMethodId(int index) {
+            return UnsignedInts.toLong(mMethodActions[index] & ~0x03);
+        }
+
+        @NonNull
+        TraceAction getAction(int index) {
+            return TraceAction.values()[mMethodActions[index] & 0x03];
+        }
+
+        int getThreadTime(int index) {
+            return mThreadTimes != null ? mThreadTimes[index] : mGlobalTimes[index];
+        }
+
+        int getGlobalTime(int index) {
+            return mGlobalTimes[index];
+        }
+
+        /** Returns the index of the first event at or after the given global time. */
+        int indexOf(long timeUs) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (UnsignedInts.toLong(mGlobalTimes[middle]) < timeUs) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns the indices of the enter events of the calls which are open (entered but not
+         * yet exited) before the event at {@code index}, outermost first.
+         */
+        @NonNull
+        int[] getOpenCalls(int index) {
+            IntArrayList openCalls = new IntArrayList();
+            int depth = getDepthBefore(index);
+            // Looking for the last enter event before index which got to this depth.
+            int level = depth;
+            int position = index;
+            while (position > 0) {
+                if ((position & (BLOCK_SIZE - 1)) == 0) {
+                    // Skip the blocks which do not get back to the depth before the call.
+                    int block = (position >> BLOCK_SHIFT) - 1;
+                    while (block >= 0 && mBlockMinDepths.getInt(block) > level - 1) {
+                        block--;
+                    }
+                    if (block < 0) {
+                        break;
+                    }
+                    position = (block + 1) << BLOCK_SHIFT;
+                    depth = getBlockStartDepth(block + 1);
+                }
+                position--;
+                depth -= isEnter(position) ? 1 : -1;
+                if (depth < level) {
+                    openCalls.add(position);
+                    level--;
+                }
+            }
+
+            int[] result = openCalls.toIntArray();
+            for (int i = 0, j = result.length - 1; i < j; i++, j--) {
+                int tmp = result[i];
+                result[i] = result[j];
+                result[j] = tmp;
+            }
+            return result;
+        }
+
+        void replay(int index, int threadId, @NonNull VmTraceHandler handler) {
+            handler.addMethodAction(threadId, getMethodId(index), getAction(index),
+                    getThreadTime(index), getGlobalTime(index));
+        }
+
+        private boolean isEnter(int index) {
+            return (mMethodActions[index] & 0x03) == TraceAction.METHOD_ENTER.ordinal();
+        }
+
+        private int getBlockStartDepth(int block) {
+            return block < mBlockStartDepths.size() ? mBlockStartDepths.getInt(block) : mDepth;
+        }
+
+        private int getDepthBefore(int index) {
+            int block = index >> BLOCK_SHIFT;
+            int depth = getBlockStartDepth(block);
+            for (int i = block << BLOCK_SHIFT; i < index; i++) {
+                depth += isEnter(i) ? 1 : -1;
+            }
+            return depth;
+        }
+    }
+
+    public static class Builder implements VmTraceHandler {
+        private int mVersion;
+        private long mStartTimeUs;
+        private final Map<String, String> mProperties = new LinkedHashMap<String, String>();
+        private final SparseArray<String> mThreads = new SparseArray<String>(10);
+        private final Long2ObjectMap<MethodInfo> mMethods =
+                new Long2ObjectOpenHashMap<MethodInfo>(100);
+        private final SparseArray<ThreadEvents> mEvents = new SparseArray<ThreadEvents>(10);
+
+        @Override
+        public void setVersion(int version) {
+            mVersion = version;
+        }
+
+        @Override
+        public void setProperty(String key, String value) {
+            mProperties.put(key, value);
+        }
+
+        @Override
+        public void addThread(int id, String name) {
+            mThreads.put(id, name);
+        }
+
+        @Override
+        public void addMethod(long id, MethodInfo info) {
+            mMethods.put(id, info);
+        }
+
+        @Override
+        public void addMethodAction(
+                int threadId,
+                long methodId,
+                TraceAction methodAction,
+                int threadTime,
+                int globalTime) {
+            ThreadEvents events = mEvents.get(threadId);
+            if (events == null) {
+                events = new ThreadEvents();
+                mEvents.put(threadId, events);
+            }
+            events.add(methodId, methodAction, threadTime, globalTime);
+        }
+
+        @Override
+        public void setStartTimeUs(long startTimeUs) {
+            mStartTimeUs = startTimeUs;
+        }
+
+        public VmTraceStore build() {
+            return new VmTraceStore(this);
+        }
+    }
+}
@@ -48,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import junit.framework.TestCase;
 import kotlin.sequences.SequencesKt;
 
@@ -236,6 +237,46 @@ public class HprofParserTest extends TestCase {
         assertTrue(subSubSoftReferenceClass.isSoftReference());
     }
 
+    public void testParallelParse() throws IOException {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        // Small shards so that segments are read across shard boundaries.
+        Snapshot parallelSnapshot =
+                Snapshot.createSnapshot(
+                        new MemoryMappedFileBuffer(file, 9973, 8),
+                        new ProguardMap(),
+                        new ArrayList<>(),
+                        pool);
+        try {
+            assertEquals(mSnapshot.getHeaps().size(), parallelSnapshot.getHeaps().size());
+            assertEquals(mSnapshot.getGcRoots().size(), parallelSnapshot.getGcRoots().size());
+            for (Heap heap : mSnapshot.getHeaps()) {
+                Heap parallelHeap = parallelSnapshot.getHeap(heap.getName());
+                assertNotNull(parallelHeap);
+                assertEquals(heap.getId(), parallelHeap.getId());
+                assertEquals(heap.getInstancesCount(), parallelHeap.getInstancesCount());
+                assertEquals(heap.getClasses().size(), parallelHeap.getClasses().size());
+                for (ClassObj classObj : heap.getClasses()) {
+                    ClassObj parallelClassObj = parallelHeap.getClass(classObj.getId());
+                    assertEquals(classObj.getClassName(), parallelClassObj.getClassName());
+                    assertEquals(classObj.getInstanceCount(), parallelClassObj.getInstanceCount());
+                    assertEquals(classObj.getShallowSize(), parallelClassObj.getShallowSize());
+                }
+            }
+
+            ClassInstance instance =
+                    (ClassInstance)
+                            parallelSnapshot
+                                    .findClass("java.lang.Thread$State")
+                                    .getStaticField(Type.OBJECT, "NEW");
+            ClassInstance name = (ClassInstance) instance.getFields("name").get(0).getValue();
+            assertEquals("NEW", name.getAsString());
+        } finally {
+            parallelSnapshot.dispose();
+            pool.shutdown();
+        }
+    }
+
     public void testHprofParser() throws IOException, ParseException {
         // Set up a heap dump with a single stack frame, stack trace, class,
         // and instance to test deobfuscation.
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import java.io.File;
+import junit.framework.TestCase;
+
+public class IndexedSnapshotTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private Snapshot mIndexedSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mIndexedSnapshot = Snapshot.createIndexedSnapshot(new MemoryMappedFileBuffer(file));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        mSnapshot.dispose();
+        mSnapshot = null;
+        mIndexedSnapshot.dispose();
+        mIndexedSnapshot = null;
+    }
+
+    public void testSameHeapsAndCounts() {
+        assertEquals(mSnapshot.getHeaps().size(), mIndexedSnapshot.getHeaps().size());
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap indexedHeap = mIndexedSnapshot.getHeap(heap.getId());
+            assertNotNull(indexedHeap);
+            assertFalse(heap.isIndexed());
+            assertEquals(heap.getInstancesCount(), indexedHeap.getInstancesCount());
+
+            for (ClassObj classObj : heap.getClasses()) {
+                ClassObj indexedClassObj = mIndexedSnapshot.findClass(classObj.getId());
+                assertNotNull(indexedClassObj);
+                assertEquals(classObj.getInstanceCount(), indexedClassObj.getInstanceCount());
+                assertEquals(classObj.getShallowSize(), indexedClassObj.getShallowSize());
+            }
+        }
+    }
+
+    public void testMaterializedInstances() {
+        ClassObj byteArray = mIndexedSnapshot.findClass("byte[]");
+        assertEquals(1406, byteArray.getInstancesList().size());
+        assertEquals(681489, byteArray.getShallowSize());
+
+        ArrayInstance byteArrayInstance =
+                (ArrayInstance) mIndexedSnapshot.findInstance(0xB0D60401);
+        assertEquals(byteArray, byteArrayInstance.getClassObj());
+        assertEquals(43224, byteArrayInstance.getSize());
+        assertSame(byteArrayInstance, mIndexedSnapshot.findInstance(0xB0D60401));
+
+        Instance missing = mIndexedSnapshot.findInstance(0x1);
+        assertNull(missing);
+    }
+
+    public void testFieldValues() {
+        ClassObj clazz = mIndexedSnapshot.findClass("java.lang.Thread$State");
+        Object enumValue = clazz.getStaticField(Type.OBJECT, "NEW");
+        assertTrue(enumValue instanceof ClassInstance);
+        ClassInstance instance = (ClassInstance) enumValue;
+        assertSame(clazz, instance.getClassObj());
+        assertEquals(mSnapshot.findClass("java.lang.Thread$State").getInstanceSize(),
+                instance.getSize());
+
+        // Reading the name materializes the String and its array while the enum values are read.
+        ClassInstance name = (ClassInstance) instance.getFields("name").get(0).getValue();
+        assertEquals("NEW", name.getAsString());
+        assertEquals(0, instance.getFields("ordinal").get(0).getValue());
+    }
+
+    public void testResolveReferencesNotSupported() {
+        try {
+            mIndexedSnapshot.resolveReferences();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
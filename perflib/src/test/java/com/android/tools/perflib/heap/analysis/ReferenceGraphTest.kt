@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis
+
+import junit.framework.Assert.assertEquals
+import junit.framework.TestCase
+
+class ReferenceGraphTest: TestCase() {
+
+    fun testCompressedRows() = with(build(Graph.Builder<Int>()
+                                              .addEdges(1, 2, 3)
+                                              .addEdges(2, 3)
+                                              .addRoots(1))) {
+        assertEquals(4, size)
+        assertEquals(null, node(0))
+        assertEquals(listOf(1), successors(0))
+        assertEquals(listOf(2, 3), successors(1))
+        assertEquals(listOf(3), successors(2))
+        assertEquals(listOf<Int>(), successors(3))
+    }
+
+    fun testSimpleGraph() = with (compute(Graph.Builder<Int>()
+                                              .addEdges(1, 2, 3)
+                                              .addEdges(2, 4, 6)
+                                              .addEdges(3, 4, 5)
+                                              .addEdges(4, 6)
+                                              .addRoots(1))) {
+        assertEquals(7, graph.size)
+        assertImmDominates(null, 1)
+        assertImmDominates(1, 2)
+        assertImmDominates(1, 3)
+        assertImmDominates(1, 4)
+        assertImmDominates(1, 6)
+        assertImmDominates(3, 5)
+    }
+
+    fun testCyclicGraph() = with(compute(Graph.Builder<Int>()
+                                             .addEdges(1, 2, 3, 4)
+                                             .addEdges(2, 3)
+                                             .addEdges(3, 4)
+                                             .addEdges(4, 2)
+                                             .addRoots(1))) {
+        assertImmDominates(1, 2)
+        assertImmDominates(1, 3)
+        assertImmDominates(1, 4)
+    }
+
+    fun testMultipleRoots() = with (compute(Graph.Builder<Int>()
+                                                .addEdges(1, 3)
+                                                .addEdges(2, 4)
+                                                .addEdges(3, 5)
+                                                .addEdges(4, 5)
+                                                .addEdges(5, 6)
+                                                .addRoots(1, 2))) {
+        assertImmDominates(1, 3)
+        assertImmDominates(2, 4)
+        // Node 5 is reachable via both roots, neither of which can be the sole dominator.
+        assertImmDominates(null, 5)
+        assertImmDominates(5, 6)
+    }
+
+    fun testMultiplePaths() = with(compute(Graph.Builder<Int>()
+                                               .addEdges(1, 7, 8)
+                                               .addEdges(7, 2, 3)
+                                               .addEdges(8, 2)
+                                               .addEdges(2, 4)
+                                               .addEdges(3, 5)
+                                               .addEdges(5, 4)
+                                               .addEdges(4, 6)
+                                               .addRoots(1))) {
+        assertImmDominates(1, 4)
+        assertImmDominates(4, 6)
+    }
+
+    fun testAccumulate() = with(compute(Graph.Builder<Int>()
+                                            .addEdges(1, 2, 3)
+                                            .addEdges(2, 4)
+                                            .addEdges(3, 4)
+                                            .addEdges(4, 5)
+                                            .addRoots(1))) {
+        // Each node weighs its own value.
+        val sizes = LongArray(graph.size) { graph.node(it)?.toLong() ?: 0 }
+        dominators.accumulate(sizes)
+        assertEquals(15L, sizes[0])
+        assertEquals(15L, sizes[indexOf(1)])
+        assertEquals(2L, sizes[indexOf(2)])
+        assertEquals(3L, sizes[indexOf(3)])
+        assertEquals(9L, sizes[indexOf(4)])
+        assertEquals(5L, sizes[indexOf(5)])
+    }
+
+    fun testMatchesLinkEvalDominators() {
+        // A deterministic pseudo-random graph with many cross and back edges. Nodes are kept below
+        // 128 so that boxed nodes are the same objects, as both implementations use identity.
+        val builder = Graph.Builder<Int>().addRoots(0, 1, 2)
+        var seed = 42L
+        for (from in 0 until 120) {
+            for (edge in 0 until 2) {
+                seed = (seed * 6364136223846793005L + 1442695040888963407L)
+                builder.addEdges(from, ((seed ushr 33) % 120).toInt())
+            }
+        }
+        val g = builder.build()
+        val expected = LinkEvalDominators.computeDominators(g.roots, g.next)
+        val actual = compute(builder)
+        for (i in 1 until expected.topoOrder.size) {
+            assertEquals(expected.immediateDominator[i], actual.immDom(expected.topoOrder[i]!!))
+        }
+        assertEquals(expected.topoOrder.size, actual.graph.size)
+    }
+
+    private class Computed<T : Any>(val graph: ReferenceGraph<T>) {
+        val dominators = graph.computeDominators()
+
+        fun indexOf(node: T) = (0 until graph.size).first { graph.node(it) == node }
+
+        fun immDom(node: T): T? = graph.node(dominators.immediateDominators[indexOf(node)])
+
+        fun assertImmDominates(er: T?, ee: T) = assertEquals(er, immDom(ee))
+    }
+
+    private fun<T : Any> build(g: Graph.Builder<T>) = with(g.build()) {
+        ReferenceGraph.build(roots) { node, visit -> next(node).forEach(visit) }
+    }
+
+    private fun<T : Any> compute(g: Graph.Builder<T>) = Computed(build(g))
+}
+
+private fun<T : Any> ReferenceGraph<T>.successors(index: Int) =
+    (offsets[index] until offsets[index + 1]).map { node(edges[it]) }
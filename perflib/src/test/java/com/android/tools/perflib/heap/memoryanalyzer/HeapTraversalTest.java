@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class HeapTraversalTest {
+
+    private Snapshot mSnapshot;
+
+    private MemoryAnalyzerTask.Configuration mConfiguration;
+
+    private ForkJoinPool mPool;
+
+    @Before
+    public void setUp() throws IOException {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mSnapshot.computeRetainedSizes();
+        mConfiguration =
+                new MemoryAnalyzerTask.Configuration(
+                        Collections.singletonList(mSnapshot.getHeap("app")));
+        mPool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+        mSnapshot.dispose();
+    }
+
+    @Test
+    public void slicesCoverInstancesAndClasses() {
+        int count = 0;
+        for (Heap heap : mSnapshot.getHeaps()) {
+            count += heap.getClasses().size() + heap.getInstancesCount();
+        }
+        HeapTraversal.Slices slices = HeapTraversal.Slices.of(mSnapshot, 4);
+        assertNotNull(slices);
+        assertEquals(count, slices.count(0, slices.size()));
+
+        Set<Instance> instances = new HashSet<>();
+        for (int i = 0; i < slices.size(); i++) {
+            instances.addAll(slices.get(i));
+        }
+        assertEquals(count, instances.size());
+    }
+
+    @Test
+    public void sharedTraversalMatchesSeparateRuns() {
+        TopMemoryOffendersAnalyzerTask topOffenders = new TopMemoryOffendersAnalyzerTask(20);
+        DuplicatedStringsAnalyzerTask duplicatedStrings = new DuplicatedStringsAnalyzerTask();
+
+        List<AnalysisResultEntry<?>> expected = new ArrayList<>();
+        expected.addAll(topOffenders.analyze(mConfiguration, mSnapshot));
+        expected.addAll(duplicatedStrings.analyze(mConfiguration, mSnapshot));
+
+        List<AnalysisResultEntry<?>> actual =
+                HeapTraversal.run(
+                        Arrays.asList(topOffenders, duplicatedStrings),
+                        mConfiguration,
+                        mSnapshot,
+                        mPool);
+
+        assertEquals(expected.size(), actual.size());
+        // The top offenders come first, in order (ties may be swapped).
+        for (int i = 0; i < 20; i++) {
+            assertEquals(retainedSize(expected.get(i)), retainedSize(actual.get(i)));
+        }
+        Set<String> duplicatedMessages = messages(expected.subList(20, expected.size()));
+        assertFalse(duplicatedMessages.isEmpty());
+        assertEquals(duplicatedMessages, messages(actual.subList(20, actual.size())));
+    }
+
+    private static long retainedSize(AnalysisResultEntry<?> entry) {
+        return ((Instance) entry.getOffender().getOffenders().get(0)).getTotalRetainedSize();
+    }
+
+    private static Set<String> messages(List<AnalysisResultEntry<?>> entries) {
+        Set<String> messages = new HashSet<>();
+        for (AnalysisResultEntry<?> entry : entries) {
+            messages.add(entry.getWarningMessage());
+        }
+        return messages;
+    }
+}
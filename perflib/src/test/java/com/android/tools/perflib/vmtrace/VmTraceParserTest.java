@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import junit.framework.TestCase;
 
@@ -426,6 +427,54 @@ public class VmTraceParserTest extends TestCase {
         doTestMethodProfilingData(traceData, okHttp);
     }
 
+    public void testParallelBuild() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (String trace : Arrays.asList("/streaming.trace", "/non_streaming.trace")) {
+                VmTraceData expected = getVmTraceData(trace);
+                VmTraceData.Builder dataBuilder = new VmTraceData.Builder(pool);
+                new VmTraceParser(getFile(trace), dataBuilder).parse();
+                VmTraceData actual = dataBuilder.build();
+
+                assertEquals(expected.getMethods().keySet(), actual.getMethods().keySet());
+                for (ThreadInfo thread : expected.getThreads()) {
+                    ThreadInfo actualThread = actual.getThread(thread.getName());
+                    assertEquals(String.valueOf(thread.getTopLevelCall()),
+                            String.valueOf(actualThread.getTopLevelCall()));
+                    for (MethodInfo method : expected.getMethods().values()) {
+                        MethodProfileData expectedData = method.getProfileData();
+                        MethodProfileData actualData = actual.getMethod(method.id).getProfileData();
+                        if (expectedData == null) {
+                            assertNull(actualData);
+                            continue;
+                        }
+                        assertEquals(expectedData.isRecursive(), actualData.isRecursive());
+                        assertEquals(expectedData.getInvocationCount(thread),
+                                actualData.getInvocationCount(actualThread));
+                        for (ClockType clock : ClockType.values()) {
+                            assertEquals(
+                                    expectedData.getInclusiveTime(
+                                            thread, clock, TimeUnit.NANOSECONDS),
+                                    actualData.getInclusiveTime(
+                                            actualThread, clock, TimeUnit.NANOSECONDS));
+                            assertEquals(
+                                    expectedData.getExclusiveTime(
+                                            thread, clock, TimeUnit.NANOSECONDS),
+                                    actualData.getExclusiveTime(
+                                            actualThread, clock, TimeUnit.NANOSECONDS));
+                        }
+                        assertEquals(expectedData.getCallers(thread),
+                                actualData.getCallers(actualThread));
+                        assertEquals(expectedData.getCallees(thread),
+                                actualData.getCallees(actualThread));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
         VmTraceData.Builder dataBuilder = new VmTraceData.Builder();
         VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), dataBuilder);
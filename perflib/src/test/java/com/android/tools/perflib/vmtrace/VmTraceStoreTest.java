@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.testutils.TestResources;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class VmTraceStoreTest extends TestCase {
+
+    public void testSameCallTrees() throws IOException {
+        for (String trace : Arrays.asList("/non_streaming.trace", "/basic-api10.trace",
+                "/streaming.trace", "/exception.trace")) {
+            File file = TestResources.getFile(getClass(), trace);
+            VmTraceData.Builder dataBuilder = new VmTraceData.Builder();
+            new VmTraceParser(file, dataBuilder).parse();
+            VmTraceData expected = dataBuilder.build();
+
+            VmTraceStore.Builder storeBuilder = new VmTraceStore.Builder();
+            new VmTraceParser(file, storeBuilder).parse();
+            VmTraceData actual = storeBuilder.build().getTraceData();
+
+            assertEquals(expected.getVersion(), actual.getVersion());
+            assertEquals(expected.getVmClockType(), actual.getVmClockType());
+            assertEquals(expected.getElapsedTimeUs(), actual.getElapsedTimeUs());
+            assertEquals(expected.getMethods().size(), actual.getMethods().size());
+            assertEquals(expected.getThreads().size(), actual.getThreads().size());
+            for (ThreadInfo thread : expected.getThreads()) {
+                Call expectedCall = thread.getTopLevelCall();
+                Call actualCall = actual.getThread(thread.getName()).getTopLevelCall();
+                if (expectedCall == null) {
+                    assertNull(actualCall);
+                } else {
+                    assertEquals(expectedCall.toString(), actualCall.toString());
+                    MethodProfileData expectedProfile =
+                            expected.getMethod(expectedCall.getMethodId()).getProfileData();
+                    MethodProfileData actualProfile =
+                            actual.getMethod(actualCall.getMethodId()).getProfileData();
+                    assertEquals(
+                            expectedProfile.getInclusiveTime(
+                                    thread, ClockType.GLOBAL, TimeUnit.MICROSECONDS),
+                            actualProfile.getInclusiveTime(
+                                    thread, ClockType.GLOBAL, TimeUnit.MICROSECONDS));
+                }
+            }
+        }
+    }
+
+    public void testTimeRange() throws IOException {
+        File file = TestResources.getFile(getClass(), "/streaming.trace");
+        VmTraceStore.Builder storeBuilder = new VmTraceStore.Builder();
+        new VmTraceParser(file, storeBuilder).parse();
+        VmTraceStore store = storeBuilder.build();
+
+        ThreadInfo main = store.getTraceData().getThread("main");
+        Call top = main.getTopLevelCall();
+        long start = top.getEntryTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+        long end = top.getExitTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+        long rangeStart = start + (end - start) / 3;
+        long rangeEnd = start + 2 * (end - start) / 3;
+
+        Call rangeTop =
+                store.getTraceData(rangeStart, rangeEnd).getThread("main").getTopLevelCall();
+        assertNotNull(rangeTop);
+        int count = 0;
+        Iterator<Call> calls = rangeTop.getCallHierarchyIterator();
+        while (calls.hasNext()) {
+            Call call = calls.next();
+            if (call == rangeTop) {
+                continue;
+            }
+            count++;
+            // All calls overlap the range.
+            assertTrue(call.getExitTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS) >= rangeStart);
+            assertTrue(call.getEntryTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS) < rangeEnd);
+        }
+        assertTrue(count > 0);
+        assertTrue(count < countCalls(top));
+    }
+
+    public void testOpenCalls() {
+        // A random sequence of calls, which also exits calls entered before tracing.
+        VmTraceStore.ThreadEvents events = new VmTraceStore.ThreadEvents();
+        Random random = new Random(1);
+        List<int[]> expectedOpenCalls = new ArrayList<>();
+        List<Integer> stack = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            expectedOpenCalls.add(stack.stream().mapToInt(Integer::intValue).toArray());
+            // Favor deep stacks, so that blocks are skipped.
+            boolean enter = stack.isEmpty() ? random.nextInt(4) != 0 : random.nextInt(100) < 51;
+            if (enter) {
+                stack.add(i);
+            } else if (!stack.isEmpty()) {
+                stack.remove(stack.size() - 1);
+            }
+            events.add(4 * i, enter ? TraceAction.METHOD_ENTER : TraceAction.METHOD_EXIT, i, i);
+        }
+        expectedOpenCalls.add(stack.stream().mapToInt(Integer::intValue).toArray());
+        events.trim();
+
+        for (int i = 0; i <= events.size(); i++) {
+            assertTrue("at " + i,
+                    Arrays.equals(expectedOpenCalls.get(i), events.getOpenCalls(i)));
+        }
+        assertEquals(4L * 123, events.getMethodId(123));
+        assertEquals(123, events.indexOf(123));
+    }
+
+    private static int countCalls(Call call) {
+        int count = 0;
+        Iterator<Call> calls = call.getCallHierarchyIterator();
+        while (calls.hasNext()) {
+            calls.next();
+            count++;
+        }
+        return count - 1;
+    }
+}
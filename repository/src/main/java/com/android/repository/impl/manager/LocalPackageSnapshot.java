@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.repository.impl.manager;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.io.CancellableFileIo;
+import com.android.repository.api.LocalPackage;
+import com.android.repository.api.SchemaModule;
+import com.android.repository.impl.meta.LocalPackageImpl;
+import com.google.common.collect.Maps;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.xml.bind.annotation.XmlTransient;
+
+/**
+ * A binary snapshot of the {@link LocalPackage}s found by {@link LocalRepoLoaderImpl}, which can be
+ * read back without parsing any {@code package.xml}.
+ *
+ * <p>The snapshot records the directories the packages were found in, and the modification time
+ * of their {@code package.xml}. It is only used if the same directories are found again, and none
+ * of these files changed since.
+ *
+ * <p>Packages are written field by field, as the JAXB classes of the {@link SchemaModule}s they
+ * belong to. The fields of each class are recorded along with their values, so that a snapshot
+ * written by a different version of these classes is discarded rather than misread. Anything else
+ * than these classes, enums, strings, boxed primitives and lists makes the packages unsuitable for
+ * a snapshot.
+ */
+final class LocalPackageSnapshot {
+
+    private static final int MAGIC = 0x4c504b53; // "LPKS"
+
+    private static final int VERSION = 1;
+
+    private static final int MAX_DEPTH = 32;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte SHORT = 5;
+    private static final byte BYTE = 6;
+    private static final byte CHARACTER = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte BIG_INTEGER = 10;
+    private static final byte BIG_DECIMAL = 11;
+    private static final byte ENUM = 12;
+    private static final byte LIST = 13;
+    private static final byte OBJECT = 14;
+
+    private LocalPackageSnapshot() {}
+
+    /**
+     * Reads the snapshot, returning {@code null} if it doesn't exist, is invalid, or doesn't
+     * match the given package directories and the {@code package.xml} files in them.
+     */
+    @Nullable
+    static Map<String, LocalPackage> read(
+            @NonNull Path snapshot,
+            @NonNull Path root,
+            @NonNull Collection<SchemaModule<?>> modules,
+            @NonNull Set<Path> packageDirs) {
+        if (CancellableFileIo.notExists(snapshot)) {
+            return null;
+        }
+        try {
+            DataInputStream in =
+                    new DataInputStream(
+                            new ByteArrayInputStream(CancellableFileIo.readAllBytes(snapshot)));
+            if (in.readInt() != MAGIC
+                    || in.readInt() != VERSION
+                    || !readString(in).equals(root.toAbsolutePath().toString())
+                    || !readString(in).equals(getModulesFingerprint(modules))) {
+                return null;
+            }
+
+            int dirCount = in.readInt();
+            if (dirCount != packageDirs.size()) {
+                return null;
+            }
+            for (int i = 0; i < dirCount; i++) {
+                Path dir = root.resolve(readString(in));
+                long modified = in.readLong();
+                if (!packageDirs.contains(dir)
+                        || getLastModifiedTime(dir.resolve(LocalRepoLoaderImpl.PACKAGE_XML_FN))
+                                != modified) {
+                    return null;
+                }
+            }
+
+            Decoder decoder = new Decoder(in, getClassLoaders(modules));
+            Map<String, LocalPackage> packages = Maps.newHashMap();
+            for (int i = in.readInt(); i > 0; i--) {
+                Path location = root.resolve(readString(in));
+                Object p = decoder.readValue(0);
+                if (!(p instanceof LocalPackageImpl)) {
+                    return null;
+                }
+                ((LocalPackageImpl) p).setInstalledPath(location);
+                packages.put(((LocalPackage) p).getPath(), (LocalPackage) p);
+            }
+            return packages;
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            // Corrupted, or written with different classes; parse the packages instead.
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot.
+     *
+     * @param modifiedTimes The modification time of the {@code package.xml} in each package
+     *     directory, as observed before parsing it.
+     * @throws IOException if the snapshot cannot be written, or if the packages contain values
+     *     which cannot be written to it.
+     */
+    static void write(
+            @NonNull Path snapshot,
+            @NonNull Path root,
+            @NonNull Collection<SchemaModule<?>> modules,
+            @NonNull Map<Path, Long> modifiedTimes,
+            @NonNull Collection<LocalPackage> packages)
+            throws IOException {
+        Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, root.toAbsolutePath().toString());
+            writeString(out, getModulesFingerprint(modules));
+
+            out.writeInt(modifiedTimes.size());
+            for (Map.Entry<Path, Long> entry : modifiedTimes.entrySet()) {
+                writeString(out, root.relativize(entry.getKey()).toString());
+                out.writeLong(entry.getValue());
+            }
+
+            Encoder encoder = new Encoder(out, getClassLoaders(modules).keySet());
+            out.writeInt(packages.size());
+            for (LocalPackage p : packages) {
+                writeString(out, root.relativize(p.getLocation()).toString());
+                encoder.writeValue(p, 0);
+            }
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        try {
+            Files.move(
+                    temp,
+                    snapshot,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static long getLastModifiedTime(@NonNull Path path) {
+        try {
+            return CancellableFileIo.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** Identifies the schema versions the packages may be made of. */
+    @NonNull
+    private static String getModulesFingerprint(@NonNull Collection<SchemaModule<?>> modules) {
+        Set<String> factories = new TreeSet<>();
+        for (SchemaModule<?> module : modules) {
+            for (SchemaModule<?>.SchemaModuleVersion<?> version :
+                    module.getNamespaceVersionMap().values()) {
+                factories.add(version.getNamespace() + "=" + version.getObjectFactory().getName());
+            }
+        }
+        return String.join(";", factories);
+    }
+
+    /** Returns the class loader of the generated classes, by package name. */
+    @NonNull
+    private static Map<String, ClassLoader> getClassLoaders(
+            @NonNull Collection<SchemaModule<?>> modules) {
+        Map<String, ClassLoader> classLoaders = Maps.newHashMap();
+        for (SchemaModule<?> module : modules) {
+            for (SchemaModule<?>.SchemaModuleVersion<?> version :
+                    module.getNamespaceVersionMap().values()) {
+                Class<?> factory = version.getObjectFactory();
+                classLoaders.put(factory.getPackage().getName(), factory.getClassLoader());
+            }
+        }
+        return classLoaders;
+    }
+
+    /** Returns the fields holding the state of instances of the class. */
+    @NonNull
+    private static List<Field> getFields(@NonNull Class<?> c) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass()) {
+            for (Field field : k.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers)
+                        || Modifier.isTransient(modifiers)
+                        || field.isSynthetic()
+                        || field.isAnnotationPresent(XmlTransient.class)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    @NonNull
+    private static String describe(@NonNull Field field) {
+        return field.getDeclaringClass().getName()
+                + "#"
+                + field.getName()
+                + ":"
+                + field.getGenericType().getTypeName();
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static final class Encoder {
+        private final DataOutputStream mOut;
+        private final Set<String> mPackages;
+        private final Map<Class<?>, Integer> mClassIds = Maps.newHashMap();
+        private final Map<Class<?>, List<Field>> mFields = Maps.newHashMap();
+
+        Encoder(@NonNull DataOutputStream out, @NonNull Set<String> packages) {
+            mOut = out;
+            mPackages = packages;
+        }
+
+        void writeValue(@Nullable Object value, int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("Too deep");
+            }
+            if (value == null) {
+                mOut.writeByte(NULL);
+            } else if (value instanceof String) {
+                mOut.writeByte(STRING);
+                writeString(mOut, (String) value);
+            } else if (value instanceof Boolean) {
+                mOut.writeByte(BOOLEAN);
+                mOut.writeBoolean((Boolean) value);
+            } else if (value instanceof Integer) {
+                mOut.writeByte(INTEGER);
+                mOut.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                mOut.writeByte(LONG);
+                mOut.writeLong((Long) value);
+            } else if (value instanceof Short) {
+                mOut.writeByte(SHORT);
+                mOut.writeShort((Short) value);
+            } else if (value instanceof Byte) {
+                mOut.writeByte(BYTE);
+                mOut.writeByte((Byte) value);
+            } else if (value instanceof Character) {
+                mOut.writeByte(CHARACTER);
+                mOut.writeChar((Character) value);
+            } else if (value instanceof Float) {
+                mOut.writeByte(FLOAT);
+                mOut.writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                mOut.writeByte(DOUBLE);
+                mOut.writeDouble((Double) value);
+            } else if (value.getClass() == BigInteger.class) {
+                mOut.writeByte(BIG_INTEGER);
+                writeString(mOut, value.toString());
+            } else if (value.getClass() == BigDecimal.class) {
+                mOut.writeByte(BIG_DECIMAL);
+                writeString(mOut, value.toString());
+            } else if (value instanceof Enum) {
+                mOut.writeByte(ENUM);
+                writeClass(((Enum<?>) value).getDeclaringClass());
+                writeString(mOut, ((Enum<?>) value).name());
+            } else if (value.getClass() == ArrayList.class) {
+                List<?> list = (List<?>) value;
+                mOut.writeByte(LIST);
+                mOut.writeInt(list.size());
+                for (Object element : list) {
+                    writeValue(element, depth + 1);
+                }
+            } else {
+                mOut.writeByte(OBJECT);
+                writeClass(value.getClass());
+                try {
+                    for (Field field : mFields.get(value.getClass())) {
+                        writeValue(field.get(value), depth + 1);
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        /** Writes the id of the class, preceded by its description the first time. */
+        private void writeClass(@NonNull Class<?> c) throws IOException {
+            Integer id = mClassIds.get(c);
+            if (id != null) {
+                mOut.writeInt(id);
+                return;
+            }
+            Package p = c.getPackage();
+            if (p == null || !mPackages.contains(p.getName())) {
+                throw new IOException("Unsupported class " + c.getName());
+            }
+            id = mClassIds.size();
+            mClassIds.put(c, id);
+            mOut.writeInt(id);
+            writeString(mOut, c.getName());
+            if (!c.isEnum()) {
+                List<Field> fields = getFields(c);
+                mFields.put(c, fields);
+                mOut.writeInt(fields.size());
+                for (Field field : fields) {
+                    writeString(mOut, describe(field));
+                }
+            }
+        }
+    }
+
+    private static final class Decoder {
+        private final DataInputStream mIn;
+        private final Map<String, ClassLoader> mClassLoaders;
+        private final List<Class<?>> mClasses = new ArrayList<>();
+        private final Map<Class<?>, List<Field>> mFields = Maps.newHashMap();
+
+        Decoder(@NonNull DataInputStream in, @NonNull Map<String, ClassLoader> classLoaders) {
+            mIn = in;
+            mClassLoaders = classLoaders;
+        }
+
+        @Nullable
+        Object readValue(int depth) throws IOException, ReflectiveOperationException {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("Too deep");
+            }
+            byte tag = mIn.readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString(mIn);
+                case BOOLEAN:
+                    return mIn.readBoolean();
+                case INTEGER:
+                    return mIn.readInt();
+                case LONG:
+                    return mIn.readLong();
+                case SHORT:
+                    return mIn.readShort();
+                case BYTE:
+                    return mIn.readByte();
+                case CHARACTER:
+                    return mIn.readChar();
+                case FLOAT:
+                    return mIn.readFloat();
+                case DOUBLE:
+                    return mIn.readDouble();
+                case BIG_INTEGER:
+                    return new BigInteger(readString(mIn));
+                case BIG_DECIMAL:
+                    return new BigDecimal(readString(mIn));
+                case ENUM:
+                    {
+                        Class<?> c = readClass();
+                        if (!c.isEnum()) {
+                            throw new IOException("Not an enum: " + c.getName());
+                        }
+                        return readEnum(c, readString(mIn));
+                    }
+                case LIST:
+                    {
+                        int size = mIn.readInt();
+                        if (size < 0 || size > mIn.available()) {
+                            throw new IOException("Invalid list size " + size);
+                        }
+                        List<Object> list = new ArrayList<>(size);
+                        for (int i = 0; i < size; i++) {
+                            list.add(readValue(depth + 1));
+                        }
+                        return list;
+                    }
+                case OBJECT:
+                    {
+                        Class<?> c = readClass();
+                        Constructor<?> constructor = c.getDeclaredConstructor();
+                        constructor.setAccessible(true);
+                        Object value = constructor.newInstance();
+                        for (Field field : mFields.get(c)) {
+                            field.set(value, readValue(depth + 1));
+                        }
+                        return value;
+                    }
+                default:
+                    throw new IOException("Invalid tag " + tag);
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        @NonNull
+        private static Enum<?> readEnum(@NonNull Class<?> c, @NonNull String name) {
+            return Enum.valueOf((Class) c, name);
+        }
+
+        /**
+         * Reads the id of a class, preceded by its description the first time, which must match
+         * the current one.
+         */
+        @NonNull
+        private Class<?> readClass() throws IOException, ClassNotFoundException {
+            int id = mIn.readInt();
+            if (id < mClasses.size()) {
+                return mClasses.get(id);
+            }
+            if (id != mClasses.size()) {
+                throw new IOException("Invalid class id " + id);
+            }
+            String name = readString(mIn);
+            int dot = name.lastIndexOf('.');
+            ClassLoader classLoader = mClassLoaders.get(dot < 0 ? "" : name.substring(0, dot));
+            if (classLoader == null) {
+                throw new IOException("Unexpected class " + name);
+            }
+            Class<?> c = Class.forName(name, false, classLoader);
+            if (!c.isEnum()) {
+                List<Field> fields = getFields(c);
+                int count = mIn.readInt();
+                if (count != fields.size()) {
+                    throw new IOException("Fields of " + name + " changed");
+                }
+                for (Field field : fields) {
+                    if (!readString(mIn).equals(describe(field))) {
+                        throw new IOException("Fields of " + name + " changed");
+                    }
+                }
+                mFields.put(c, fields);
+            }
+            mClasses.add(c);
+            return c;
+        }
+    }
+}
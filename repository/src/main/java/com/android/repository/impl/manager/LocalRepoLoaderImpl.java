@@ -42,6 +42,9 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -54,6 +57,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 import javax.xml.bind.JAXBException;
 
@@ -81,6 +88,22 @@ public final class LocalRepoLoaderImpl implements LocalRepoLoader {
     @VisibleForTesting
     static final String KNOWN_PACKAGES_HASH_FN = ".knownPackages";
 
+    /**
+     * The name of the file where we store a snapshot of the packages found, so that they can be
+     * loaded without parsing each {@code package.xml}.
+     */
+    @VisibleForTesting
+    static final String LOCAL_PACKAGES_SNAPSHOT_FN = ".localPackages";
+
+    /**
+     * A {@code package.xml} modified less than this long before it is parsed could be modified
+     * again without its modification time changing, so the packages aren't snapshotted then.
+     */
+    private static final long SNAPSHOT_MODIFICATION_WINDOW_MS = 2000;
+
+    /** The maximum number of threads parsing {@code package.xml} files. */
+    private static final int MAX_PARSING_THREADS = 8;
+
     /**
      * Top-level directories where resources are cached; these should not be scanned for packages.
      */
@@ -129,7 +152,15 @@ public final class LocalRepoLoaderImpl implements LocalRepoLoader {
     public Map<String, LocalPackage> getPackages(@NonNull ProgressIndicator progress) {
         if (mPackages == null) {
             Set<Path> possiblePackageDirs = collectPackages();
-            mPackages = parsePackages(possiblePackageDirs, progress);
+            mPackages =
+                    LocalPackageSnapshot.read(
+                            mRoot.resolve(LOCAL_PACKAGES_SNAPSHOT_FN),
+                            mRoot,
+                            mRepoManager.getSchemaModules(),
+                            possiblePackageDirs);
+            if (mPackages == null) {
+                mPackages = parsePackages(possiblePackageDirs, progress);
+            }
             if (!mPackages.isEmpty()) {
                 writeHashFile(getLocalPackagesHash());
             }
@@ -158,13 +189,25 @@ public final class LocalRepoLoaderImpl implements LocalRepoLoader {
     @NonNull
     private Map<String, LocalPackage> parsePackages(
             @NonNull Collection<Path> possiblePackageDirs, @NonNull ProgressIndicator progress) {
+        // Modification times of the package.xml files, taken before parsing them.
+        Map<Path, Long> modifiedTimes = Maps.newLinkedHashMap();
+        for (Path packageDir : possiblePackageDirs) {
+            Path packageXml = packageDir.resolve(PACKAGE_XML_FN);
+            if (CancellableFileIo.exists(packageXml)) {
+                modifiedTimes.put(packageDir, LocalPackageSnapshot.getLastModifiedTime(packageXml));
+            }
+        }
+        Map<Path, Future<LocalPackage>> parsed = startParsing(modifiedTimes.keySet(), progress);
+        boolean snapshot = modifiedTimes.size() == possiblePackageDirs.size();
+
         Map<String, LocalPackage> result = Maps.newHashMap();
         for (Path packageDir : possiblePackageDirs) {
             Path packageXml = packageDir.resolve(PACKAGE_XML_FN);
             LocalPackage p = null;
-            if (CancellableFileIo.exists(packageXml)) {
+            Future<LocalPackage> future = parsed.get(packageDir);
+            if (future != null) {
                 try {
-                    p = parsePackage(packageXml, progress);
+                    p = getParsedPackage(future);
                 }
                 catch (Exception e) {
                     ProgressManagerAdapter.throwIfCancellation(e);
@@ -172,6 +215,9 @@ public final class LocalRepoLoaderImpl implements LocalRepoLoader {
                     progress.logWarning("Found corrupted package.xml at " + packageXml);
                 }
             }
+            if (p == null || p.getDisplayName().startsWith("Unknown")) {
+                snapshot = false;
+            }
             // Note: Android Studio 2.x was generating a local package.xml file with "Unknown" display name
             // if the name could not be found in source.properties. For AS 3.x we are extending the code
             // to be less strict (ie we use info from manifest.ini too). Checking "Unknown" allows re-generation
@@ -200,9 +246,93 @@ public final class LocalRepoLoaderImpl implements LocalRepoLoader {
                 addPackage(p, result, progress);
             }
         }
+        if (snapshot) {
+            writeSnapshot(modifiedTimes, result.values());
+        }
         return result;
     }
 
+    /**
+     * Starts parsing the {@code package.xml} in each of the given directories, on up to {@link
+     * #MAX_PARSING_THREADS} threads.
+     */
+    @NonNull
+    private Map<Path, Future<LocalPackage>> startParsing(
+            @NonNull Collection<Path> packageDirs, @NonNull ProgressIndicator progress) {
+        ExecutorService executor = createParsingExecutor(packageDirs.size());
+        // Only logging is thread-safe.
+        ProgressIndicator loggingOnlyProgress = new LoggingOnlyProgressIndicator(progress);
+        Map<Path, Future<LocalPackage>> parsed = Maps.newHashMap();
+        for (Path packageDir : packageDirs) {
+            Path packageXml = packageDir.resolve(PACKAGE_XML_FN);
+            parsed.put(
+                    packageDir,
+                    executor.submit(() -> parsePackage(packageXml, loggingOnlyProgress)));
+        }
+        // The threads exit once the submitted files are parsed.
+        executor.shutdown();
+        return parsed;
+    }
+
+    /**
+     * Creates the executor parsing the given number of {@code package.xml} files, which runs them
+     * on the calling thread if there is only one.
+     */
+    @NonNull
+    private static ExecutorService createParsingExecutor(int count) {
+        int threads =
+                Math.min(
+                        count,
+                        Math.min(MAX_PARSING_THREADS, Runtime.getRuntime().availableProcessors()));
+        if (threads <= 1) {
+            return MoreExecutors.newDirectExecutorService();
+        }
+        return Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("local-repo-loader-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    @Nullable
+    private static LocalPackage getParsedPackage(@NonNull Future<LocalPackage> future)
+            throws Exception {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the packages, unless a {@code package.xml} was modified so recently that
+     * a later modification may not change its modification time.
+     */
+    private void writeSnapshot(
+            @NonNull Map<Path, Long> modifiedTimes, @NonNull Collection<LocalPackage> packages) {
+        long now = System.currentTimeMillis();
+        for (long modified : modifiedTimes.values()) {
+            if (modified < 0 || now - modified < SNAPSHOT_MODIFICATION_WINDOW_MS) {
+                return;
+            }
+        }
+        try {
+            LocalPackageSnapshot.write(
+                    mRoot.resolve(LOCAL_PACKAGES_SNAPSHOT_FN),
+                    mRoot,
+                    mRepoManager.getSchemaModules(),
+                    modifiedTimes,
+                    packages);
+        } catch (IOException ignore) {
+            // Probably the SDK is read-only; the packages will be parsed again next time.
+        }
+    }
+
     /** Gets a sorted set of all paths that might contain packages. */
     @NonNull
     private Set<Path> collectPackages() {
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.repository.impl.manager;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.repository.api.DelegatingProgressIndicator;
+import com.android.repository.api.ProgressIndicator;
+
+/**
+ * A thread-safe implementation of {@link DelegatingProgressIndicator} which does not report the
+ * fraction, but preserves the ability to report the errors/warnings, as most underlying logging
+ * implementations are thread-safe.
+ */
+class LoggingOnlyProgressIndicator extends DelegatingProgressIndicator {
+    LoggingOnlyProgressIndicator(@NonNull ProgressIndicator progress) {
+        super(progress);
+    }
+
+    @Override
+    public void setFraction(double fraction) {}
+
+    @Override
+    public double getFraction() {
+        return 0;
+    }
+
+    @Override
+    public void setText(@Nullable String text) {}
+
+    @Override
+    public void setSecondaryText(@Nullable String text) {}
+
+    @Override
+    public ProgressIndicator createSubProgress(double max) {
+        return this;
+    }
+}
@@ -19,7 +19,6 @@ package com.android.repository.impl.manager;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.repository.api.Channel;
-import com.android.repository.api.DelegatingProgressIndicator;
 import com.android.repository.api.Downloader;
 import com.android.repository.api.FallbackRemoteRepoLoader;
 import com.android.repository.api.ProgressIndicator;
@@ -362,34 +361,4 @@ public class RemoteRepoLoaderImpl implements RemoteRepoLoader {
             // ignored
         }
     }
-
-    /**
-     * A thread-safe implementation of {@link DelegatingProgressIndicator} which does not report the
-     * fraction, but preserves the ability to report the errors/warnings, as most underlying logging
-     * implementations are thread-safe.
-     */
-    private static class LoggingOnlyProgressIndicator extends DelegatingProgressIndicator {
-        LoggingOnlyProgressIndicator(@NonNull ProgressIndicator progress) {
-            super(progress);
-        }
-
-        @Override
-        public void setFraction(double fraction) {}
-
-        @Override
-        public double getFraction() {
-            return 0;
-        }
-
-        @Override
-        public void setText(@Nullable String text) {}
-
-        @Override
-        public void setSecondaryText(@Nullable String text) {}
-
-        @Override
-        public ProgressIndicator createSubProgress(double max) {
-            return this;
-        }
-    }
 }
@@ -86,7 +86,8 @@ public class SchemaModuleUtil {
      * Creates a {@link JAXBContext} from the XSDs in the given {@link SchemaModule}s.
      */
     @NonNull
-    private static JAXBContext getContext(@NonNull Collection<SchemaModule<?>> possibleModules) {
+    private static synchronized JAXBContext getContext(
+            @NonNull Collection<SchemaModule<?>> possibleModules) {
         List<String> packages = Lists.newArrayList();
         for (SchemaModule<?> module : possibleModules) {
             for (SchemaModule<?>.SchemaModuleVersion<?> version : module
@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.io.CancellableFileIo;
 import com.android.repository.Revision;
+import com.android.repository.api.Checksum;
 import com.android.repository.api.Dependency;
 import com.android.repository.api.License;
 import com.android.repository.api.LocalPackage;
@@ -38,32 +39,24 @@ import com.android.repository.impl.meta.LocalPackageImpl;
 import com.android.repository.impl.meta.RepositoryPackages;
 import com.android.repository.impl.meta.RevisionType;
 import com.android.repository.impl.meta.SchemaModuleUtil;
-import com.android.repository.io.FileOpUtils;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
-import org.apache.commons.compress.archivers.zip.ZipFile;
 
 /**
  * Utility methods for {@link PackageOperation} implementations.
@@ -91,117 +84,45 @@ public class InstallerUtil {
             long expectedSize,
             @NonNull ProgressIndicator progress)
             throws IOException {
+        unzip(in, out, expectedSize, null, progress);
+    }
+
+    /**
+     * Unzips the given zipped input stream into the given directory, inflating independent entries
+     * concurrently.
+     *
+     * @param in The (zipped) input stream.
+     * @param out The directory into which to expand the files. Must exist.
+     * @param expectedSize Compressed size of the stream.
+     * @param checksum If not {@code null}, the checksum of {@code in}, verified while unzipping.
+     * @param progress A {@link ProgressIndicator}, to show unzip progress and throughput, and
+     *     facilitate logging.
+     * @throws IOException If we're unable to read or write, or if the content doesn't match {@code
+     *     checksum} or the CRC-32 of the entries.
+     */
+    public static void unzip(
+            @NonNull Path in,
+            @NonNull Path out,
+            long expectedSize,
+            @Nullable Checksum checksum,
+            @NonNull ProgressIndicator progress)
+            throws IOException {
         if (!CancellableFileIo.exists(out) || !CancellableFileIo.isDirectory(out)) {
             throw new IllegalArgumentException("out must exist and be a directory.");
         }
 
         progress.setText("Unzipping...");
-        ZipFile zipFile = new ZipFile(Files.newByteChannel(in));
-        boolean indeterminate = false;
         if (expectedSize == 0) {
             progress.setIndeterminate(true);
-            indeterminate = true;
         }
         try {
-            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
             progress.setFraction(0);
-            double progressMax = 0;
-            while (entries.hasMoreElements()) {
-                ZipArchiveEntry entry = entries.nextElement();
-                String name = entry.getName();
-                Path entryFile = out.resolve(name);
-                progress.setSecondaryText(name);
-                if (entry.isUnixSymlink()) {
-                    ByteArrayOutputStream targetByteStream = new ByteArrayOutputStream();
-                    progressMax += (double) entry.getCompressedSize() / expectedSize;
-                    readZipEntry(
-                            zipFile,
-                            entry,
-                            targetByteStream,
-                            indeterminate ? progress : progress.createSubProgress(progressMax));
-                    if (!indeterminate) {
-                        progress.setFraction(progressMax);
-                    }
-                    Path linkTarget = out.getFileSystem().getPath(targetByteStream.toString());
-                    if (!Files.isDirectory(entryFile.getParent())) {
-                        Files.createDirectories(entryFile.getParent());
-                    }
-                    Files.createSymbolicLink(entryFile, linkTarget);
-                } else if (entry.isDirectory()) {
-                    Files.createDirectories(entryFile);
-                } else {
-                    if (Files.isSymbolicLink(entryFile)) {
-                        Files.delete(entryFile);
-                    }
-                    if (!CancellableFileIo.exists(entryFile)) {
-                        Path parent = entryFile.getParent();
-                        if (parent != null && !CancellableFileIo.exists(parent)) {
-                            Files.createDirectories(parent);
-                        }
-                        Files.createFile(entryFile);
-                    }
-
-                    OutputStream unzippedOutput = Files.newOutputStream(entryFile);
-                    progressMax += (double) entry.getCompressedSize() / expectedSize;
-                    if (readZipEntry(
-                            zipFile,
-                            entry,
-                            unzippedOutput,
-                            indeterminate ? progress : progress.createSubProgress(progressMax))) {
-                        return;
-                    }
-                    if (!indeterminate) {
-                        progress.setFraction(progressMax);
-                    }
-                    if (!FileOpUtils.isWindows()) {
-                        // get the mode and test if it contains the executable bit
-                        int mode = entry.getUnixMode();
-                        //noinspection OctalInteger
-                        if ((mode & 0111) != 0) {
-                            try {
-                                FileOpUtils.setExecutablePermission(entryFile);
-                            } catch (IOException ignore) {
-                            }
-                        }
-                    }
-                }
-            }
+            new ZipExtractor(in, out, expectedSize, checksum, progress).extract();
         }
         finally {
             progress.setIndeterminate(false);
             progress.setFraction(1);
-            ZipFile.closeQuietly(zipFile);
-        }
-    }
-
-    private static boolean readZipEntry(
-            ZipFile zipFile,
-            ZipArchiveEntry entry,
-            OutputStream dest,
-            @NonNull ProgressIndicator progress)
-            throws IOException {
-        int size;
-        byte[] buf = new byte[8192];
-        double fraction = 0;
-        int prevPercent = 0;
-        try (BufferedOutputStream bufferedDest = new BufferedOutputStream(dest);
-             InputStream s = new BufferedInputStream(zipFile.getInputStream(entry))) {
-            while ((size = s.read(buf)) > -1) {
-                bufferedDest.write(buf, 0, size);
-                fraction += (double) size / entry.getSize();
-                int percent = (int) (fraction * 100);
-                if (percent != prevPercent) {
-                    // Don't update too often
-                    progress.setFraction(fraction);
-                    prevPercent = percent;
-                }
-                if (progress.isCanceled()) {
-                    return true;
-                }
-            }
         }
-        progress.setFraction(1);
-        return false;
     }
 
     public static void writePendingPackageXml(
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.repository.util;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.repository.api.Checksum;
+import com.android.repository.api.ProgressIndicator;
+import com.android.repository.io.FileOpUtils;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * Extracts a zip archive, inflating its files on several threads.
+ *
+ * <p>Directories and symbolic links are created first, in the order of the archive, so that files
+ * are written in the same place they would be if the archive was extracted sequentially. The
+ * content of each file is then checked against the CRC-32 recorded in the archive as it is
+ * written. If a {@link Checksum} of the whole archive is given, the archive is hashed on the
+ * calling thread while the files are being extracted.
+ */
+final class ZipExtractor {
+
+    private static final int MAX_THREADS = 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    private final Path mArchive;
+
+    private final Path mOut;
+
+    private final long mExpectedSize;
+
+    @Nullable private final Checksum mChecksum;
+
+    private final ProgressIndicator mProgress;
+
+    /** The compressed bytes of the archive extracted so far, estimated for partial entries. */
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+
+    /** The bytes written so far. */
+    private final AtomicLong mWrittenBytes = new AtomicLong();
+
+    private volatile boolean mCancelled;
+
+    /** The entry which most recently started being extracted, for display purposes. */
+    private volatile String mCurrentEntry = "";
+
+    /**
+     * @param archive The zip file.
+     * @param out The directory into which to expand the files. Must exist.
+     * @param expectedSize Compressed size of the archive, or 0 if unknown.
+     * @param checksum If not {@code null}, the checksum of the archive.
+     * @param progress For showing progress, which must be determinate if {@code expectedSize} is
+     *     known.
+     */
+    ZipExtractor(
+            @NonNull Path archive,
+            @NonNull Path out,
+            long expectedSize,
+            @Nullable Checksum checksum,
+            @NonNull ProgressIndicator progress) {
+        mArchive = archive;
+        mOut = out;
+        mExpectedSize = expectedSize;
+        mChecksum = checksum;
+        mProgress = progress;
+    }
+
+    /**
+     * Extracts the archive.
+     *
+     * @return {@code false} if cancelled, in which case only part of the archive was extracted.
+     * @throws IOException If the archive cannot be read, a file cannot be written, or the archive
+     *     doesn't match its checksum or the CRC-32 of its entries.
+     */
+    boolean extract() throws IOException {
+        try (ZipFile zipFile = new ZipFile(Files.newByteChannel(mArchive))) {
+            List<ZipArchiveEntry> files = createDirectoriesAndLinks(zipFile);
+            return files != null && extractFiles(zipFile, files);
+        }
+    }
+
+    /**
+     * Creates the directories and symbolic links of the archive, and the directories containing
+     * its files.
+     *
+     * @return The file entries, or {@code null} if cancelled.
+     */
+    @Nullable
+    private List<ZipArchiveEntry> createDirectoriesAndLinks(@NonNull ZipFile zipFile)
+            throws IOException {
+        List<ZipArchiveEntry> files = new ArrayList<>();
+        Set<Path> parents = new HashSet<>();
+        Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+        while (entries.hasMoreElements()) {
+            if (mProgress.isCanceled()) {
+                return null;
+            }
+            ZipArchiveEntry entry = entries.nextElement();
+            Path entryFile = mOut.resolve(entry.getName());
+            if (entry.isUnixSymlink()) {
+                ByteArrayOutputStream target = new ByteArrayOutputStream();
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buf)) > 0) {
+                        target.write(buf, 0, read);
+                    }
+                }
+                mCompressedBytes.addAndGet(entry.getCompressedSize());
+                Path linkTarget = mOut.getFileSystem().getPath(target.toString());
+                if (!Files.isDirectory(entryFile.getParent())) {
+                    Files.createDirectories(entryFile.getParent());
+                }
+                Files.createSymbolicLink(entryFile, linkTarget);
+            } else if (entry.isDirectory()) {
+                Files.createDirectories(entryFile);
+            } else {
+                Path parent = entryFile.getParent();
+                if (parent != null && parents.add(parent)) {
+                    Files.createDirectories(parent);
+                }
+                files.add(entry);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Extracts the files on a thread pool, while the calling thread hashes the archive and reports
+     * progress.
+     *
+     * @return {@code false} if cancelled.
+     */
+    private boolean extractFiles(@NonNull ZipFile zipFile, @NonNull List<ZipArchiveEntry> files)
+            throws IOException {
+        ExecutorService executor = createExecutor(files.size());
+        try (InputStream hashed =
+                mChecksum == null ? null : Files.newInputStream(mArchive)) {
+            long start = System.nanoTime();
+            CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+            for (ZipArchiveEntry entry : files) {
+                completion.submit(() -> extractFile(zipFile, entry), null);
+            }
+
+            Hasher hasher = mChecksum == null ? null : newHasher(mChecksum);
+            byte[] hashBuffer = hasher == null ? null : new byte[HASH_BUFFER_SIZE];
+            boolean hashing = hasher != null;
+            int remaining = files.size();
+            while (remaining > 0) {
+                if (mProgress.isCanceled()) {
+                    return false;
+                }
+                Future<Void> done;
+                if (hashing) {
+                    int read = hashed.read(hashBuffer);
+                    if (read > 0) {
+                        hasher.putBytes(hashBuffer, 0, read);
+                    } else {
+                        hashing = false;
+                    }
+                    done = completion.poll();
+                } else {
+                    done = completion.poll(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+                for (; done != null; done = completion.poll()) {
+                    getResult(done);
+                    remaining--;
+                }
+                reportProgress(start);
+            }
+
+            if (hasher != null) {
+                int read;
+                while ((read = hashed.read(hashBuffer)) > 0) {
+                    if (mProgress.isCanceled()) {
+                        return false;
+                    }
+                    hasher.putBytes(hashBuffer, 0, read);
+                }
+                String actual = hasher.hash().toString();
+                if (!actual.equalsIgnoreCase(mChecksum.getValue())) {
+                    throw new IOException(
+                            String.format(
+                                    "%1$s checksum mismatch for %2$s: expected %3$s, got %4$s",
+                                    mChecksum.getType(),
+                                    mArchive.getFileName(),
+                                    mChecksum.getValue(),
+                                    actual));
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while unzipping " + mArchive);
+        } finally {
+            // Stops the remaining entries when cancelled or failed.
+            mCancelled = true;
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    /** Inflates a file entry, checking its CRC-32. */
+    private void extractFile(@NonNull ZipFile zipFile, @NonNull ZipArchiveEntry entry) {
+        if (mCancelled) {
+            return;
+        }
+        String name = entry.getName();
+        mCurrentEntry = name;
+        Path entryFile = mOut.resolve(name);
+        long size = entry.getSize();
+        long compressedSize = entry.getCompressedSize();
+        long reported = 0;
+        try {
+            if (Files.isSymbolicLink(entryFile)) {
+                Files.delete(entryFile);
+            }
+            CRC32 crc = new CRC32();
+            byte[] buf = new byte[BUFFER_SIZE];
+            long written = 0;
+            try (InputStream in = zipFile.getInputStream(entry);
+                    FileChannel channel =
+                            FileChannel.open(
+                                    entryFile,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    crc.update(buf, 0, read);
+                    ByteBuffer buffer = ByteBuffer.wrap(buf, 0, read);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    written += read;
+                    mWrittenBytes.addAndGet(read);
+                    if (size > 0) {
+                        long compressed =
+                                Math.min(
+                                        compressedSize,
+                                        (long) ((double) written / size * compressedSize));
+                        mCompressedBytes.addAndGet(compressed - reported);
+                        reported = compressed;
+                    }
+                }
+            }
+            if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()) {
+                throw new IOException(
+                        String.format("CRC-32 mismatch for %1$s in %2$s", name, mArchive));
+            }
+            if (!FileOpUtils.isWindows()) {
+                // get the mode and test if it contains the executable bit
+                int mode = entry.getUnixMode();
+                //noinspection OctalInteger
+                if ((mode & 0111) != 0) {
+                    try {
+                        FileOpUtils.setExecutablePermission(entryFile);
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ExtractionException(e);
+        } finally {
+            mCompressedBytes.addAndGet(compressedSize - reported);
+        }
+    }
+
+    private void reportProgress(long start) {
+        if (mExpectedSize > 0) {
+            mProgress.setFraction(
+                    Math.min(1, (double) mCompressedBytes.get() / mExpectedSize));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (seconds > 0) {
+            mProgress.setSecondaryText(
+                    String.format(
+                            "%1$s (%2$.1f MB/s)",
+                            mCurrentEntry, mWrittenBytes.get() / seconds / (1024 * 1024)));
+        }
+    }
+
+    private static void getResult(@NonNull Future<Void> future)
+            throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ExtractionException) {
+                throw ((ExtractionException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void awaitTermination(@NonNull ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates the executor extracting the given number of files. There is always at least one
+     * thread, so that the calling thread remains free to report progress.
+     */
+    @NonNull
+    private static ExecutorService createExecutor(int count) {
+        int threads =
+                Math.min(count, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        return Executors.newFixedThreadPool(
+                Math.max(1, threads),
+                new ThreadFactoryBuilder().setNameFormat("sdk-unzip-%d").setDaemon(true).build());
+    }
+
+    @NonNull
+    private static Hasher newHasher(@NonNull Checksum checksum) {
+        return (checksum.getType().equalsIgnoreCase("sha-256")
+                        ? Hashing.sha256()
+                        : Hashing.sha1())
+                .newHasher();
+    }
+
+    /** Carries an {@link IOException} out of a worker thread. */
+    private static final class ExtractionException extends RuntimeException {
+        ExtractionException(@NonNull IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -165,4 +165,60 @@ public class LocalRepoLoaderImplTest {
         assertEquals(1, localPackages.size());
         assertEquals(package2.getParent(), localPackages.values().iterator().next().getLocation());
     }
+
+    @Test
+    public void testPackagesSnapshot() throws Exception {
+        FakeProgressIndicator progress = new FakeProgressIndicator();
+        Path repoRoot = InMemoryFileSystems.createInMemoryFileSystemAndFolder("repo");
+        Path snapshotFile = repoRoot.resolve(LocalRepoLoaderImpl.LOCAL_PACKAGES_SNAPSHOT_FN);
+        RepoManager mgr = new RepoManagerImpl();
+        Path package1 = repoRoot.resolve("foo/package.xml");
+        InMemoryFileSystems.recordExistingFile(package1, LOCAL_PACKAGE);
+        Path package2 = repoRoot.resolve("bar/package.xml");
+        InMemoryFileSystems.recordExistingFile(package2, LOCAL_PACKAGE_2);
+
+        // Files modified just now could be modified again without their timestamp changing, so
+        // there is no snapshot yet.
+        new LocalRepoLoaderImpl(repoRoot, mgr, null).getPackages(progress);
+        assertFalse(Files.exists(snapshotFile));
+
+        Files.setLastModifiedTime(package1, FileTime.fromMillis(1000L));
+        Files.setLastModifiedTime(package2, FileTime.fromMillis(1000L));
+        Map<String, LocalPackage> parsed =
+                new LocalRepoLoaderImpl(repoRoot, mgr, null).getPackages(progress);
+        assertEquals(2, parsed.size());
+        assertTrue(Files.exists(snapshotFile));
+
+        // The packages are read from the snapshot, so an unchanged timestamp hides this.
+        InMemoryFileSystems.recordExistingFile(package2, "invalid");
+        Files.setLastModifiedTime(package2, FileTime.fromMillis(1000L));
+        Map<String, LocalPackage> loaded =
+                new LocalRepoLoaderImpl(repoRoot, mgr, null).getPackages(progress);
+        assertEquals(parsed.keySet(), loaded.keySet());
+        for (LocalPackage p : parsed.values()) {
+            LocalPackage l = loaded.get(p.getPath());
+            assertEquals(p, l);
+            assertEquals(p.getDisplayName(), l.getDisplayName());
+            assertEquals(p.obsolete(), l.obsolete());
+            assertEquals(p.getLocation(), l.getLocation());
+            assertEquals(p.getTypeDetails().getClass(), l.getTypeDetails().getClass());
+        }
+        assertTrue(progress.getWarnings().isEmpty());
+
+        // Once the timestamp changes, the package is parsed again.
+        Files.setLastModifiedTime(package2, FileTime.fromMillis(2000L));
+        loaded = new LocalRepoLoaderImpl(repoRoot, mgr, null).getPackages(progress);
+        assertEquals(1, loaded.size());
+        assertEquals(package1.getParent(), loaded.get("foo").getLocation());
+        assertFalse(progress.getWarnings().isEmpty());
+
+        // As it is when a package is added.
+        InMemoryFileSystems.recordExistingFile(package2, LOCAL_PACKAGE_2);
+        Files.setLastModifiedTime(package2, FileTime.fromMillis(1000L));
+        new LocalRepoLoaderImpl(repoRoot, mgr, null).getPackages(progress);
+        InMemoryFileSystems.recordExistingFile(
+                repoRoot.resolve("baz/package.xml"), LOCAL_PACKAGE.replace("\"foo\"", "\"baz\""));
+        loaded = new LocalRepoLoaderImpl(repoRoot, mgr, null).getPackages(progress);
+        assertEquals(3, loaded.size());
+    }
 }
@@ -19,6 +19,7 @@ import static com.android.repository.testframework.FakePackage.FakeLocalPackage;
 import static com.android.repository.testframework.FakePackage.FakeRemotePackage;
 
 import com.android.repository.Revision;
+import com.android.repository.api.Checksum;
 import com.android.repository.api.RemotePackage;
 import com.android.repository.api.RepoManager;
 import com.android.repository.impl.manager.RepoManagerImpl;
@@ -27,8 +28,10 @@ import com.android.repository.testframework.FakeDependency;
 import com.android.repository.testframework.FakeProgressIndicator;
 import com.android.testutils.file.InMemoryFileSystems;
 import com.android.utils.PathUtils;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -711,4 +714,47 @@ public class InstallerUtilTest extends TestCase {
         assertTrue(Files.isSameFile(resultLink, resultFile));
         assertEquals("content", new String(Files.readAllBytes(resultLink)));
     }
+
+    public void testUnzipWithChecksum() throws Exception {
+        Path tmp = Files.createTempDirectory("InstallerUtilTest_testUnzipWithChecksum");
+        try {
+            Path root = tmp.resolve("to_zip");
+            for (int i = 0; i < 100; i++) {
+                Path file = root.resolve("dir" + (i % 7)).resolve("file" + i);
+                Files.createDirectories(file.getParent());
+                Files.write(file, Strings.repeat("content" + i, i).getBytes());
+            }
+            Path outZip = tmp.resolve("out.zip");
+            zipDirectory(outZip, root, false);
+            long size = Files.size(outZip);
+            String sha256 = Hashing.sha256().hashBytes(Files.readAllBytes(outZip)).toString();
+
+            Path unzipped = tmp.resolve("unzipped");
+            Files.createDirectories(unzipped);
+            FakeProgressIndicator progress = new FakeProgressIndicator(true);
+            InstallerUtil.unzip(
+                    outZip, unzipped, size, Checksum.create(sha256, "sha-256"), progress);
+            progress.assertNoErrorsOrWarnings();
+            for (int i = 0; i < 100; i++) {
+                Path file = unzipped.resolve("dir" + (i % 7)).resolve("file" + i);
+                assertEquals(Strings.repeat("content" + i, i), new String(Files.readAllBytes(file)));
+            }
+
+            Path unzipped2 = tmp.resolve("unzipped2");
+            Files.createDirectories(unzipped2);
+            try {
+                InstallerUtil.unzip(
+                        outZip,
+                        unzipped2,
+                        size,
+                        Checksum.create(Strings.repeat("0", 64), "sha-256"),
+                        new FakeProgressIndicator(true));
+                fail("Expected a checksum mismatch");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().contains("checksum mismatch"));
+            }
+        } finally {
+            PathUtils.deleteRecursivelyIfExists(tmp);
+        }
+    }
 }
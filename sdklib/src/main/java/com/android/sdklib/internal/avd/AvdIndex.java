@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.sdklib.internal.avd;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.io.CancellableFileIo;
+import com.android.sdklib.PathFileWrapper;
+import com.android.utils.ILogger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * An index of the AVD .ini files, kept in the AVD folder so that only the files which changed since
+ * they were last read are parsed again, even by a new process.
+ *
+ * <p>Each file is indexed with its size and modification time, and the list of AVD .ini files with
+ * the modification time of the AVD folder, which changes when an AVD is added or removed. Files
+ * and folders modified in the last few seconds are not indexed, since they could be modified again
+ * without their modification time changing.
+ *
+ * <p>The index file is rewritten in place, so that saving it doesn't change the modification time
+ * of the AVD folder, and ends with a CRC-32 of its content to detect partial writes.
+ */
+final class AvdIndex {
+
+    static final String INDEX_FN = ".avdindex";
+
+    private static final int MAGIC = 0x41564458; // "AVDX"
+
+    private static final int VERSION = 1;
+
+    private static final long MODIFICATION_WINDOW_MS = 2000;
+
+    private static final class Entry {
+        final long mModified;
+        final long mSize;
+        @NonNull final ImmutableMap<String, String> mValues;
+
+        Entry(long modified, long size, @NonNull ImmutableMap<String, String> values) {
+            mModified = modified;
+            mSize = size;
+            mValues = values;
+        }
+    }
+
+    @NonNull private final Path mFolder;
+
+    @NonNull private final Path mIndexFile;
+
+    @GuardedBy("this")
+    private final Map<Path, Entry> mEntries = new HashMap<>();
+
+    /** The AVD .ini files in the folder, or {@code null} if not indexed. */
+    @GuardedBy("this")
+    @Nullable
+    private ImmutableList<Path> mIniFiles;
+
+    @GuardedBy("this")
+    private long mFolderModified = -1;
+
+    @GuardedBy("this")
+    private boolean mLoaded;
+
+    @GuardedBy("this")
+    private boolean mDirty;
+
+    AvdIndex(@NonNull Path avdFolder) {
+        mFolder = avdFolder;
+        mIndexFile = avdFolder.resolve(INDEX_FN);
+    }
+
+    /**
+     * Returns the AVD .ini files of the folder, calling {@code lister} only if the folder changed
+     * since it was last listed.
+     */
+    @NonNull
+    List<Path> listIniFiles(@NonNull Supplier<List<Path>> lister) {
+        long modified = getLastModifiedTime(mFolder);
+        synchronized (this) {
+            load();
+            if (mIniFiles != null && modified != -1 && modified == mFolderModified) {
+                return mIniFiles;
+            }
+        }
+        List<Path> iniFiles = lister.get();
+        synchronized (this) {
+            if (isSettled(modified)) {
+                mIniFiles = ImmutableList.copyOf(iniFiles);
+                mFolderModified = modified;
+            } else {
+                mIniFiles = null;
+                mFolderModified = -1;
+            }
+            mDirty = true;
+        }
+        return iniFiles;
+    }
+
+    /**
+     * Returns the (key,value) pairs of the .ini file, parsing it only if it changed since it was
+     * indexed.
+     *
+     * @return a new modifiable map, or {@code null} if the file cannot be parsed.
+     * @see AvdManager#parseIniFile
+     */
+    @Nullable
+    Map<String, String> parseIniFile(@NonNull Path iniFile, @Nullable ILogger log) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = CancellableFileIo.readAttributes(iniFile, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attributes = null;
+        }
+        if (attributes != null) {
+            long modified = attributes.lastModifiedTime().toMillis();
+            synchronized (this) {
+                load();
+                Entry entry = mEntries.get(iniFile);
+                if (entry != null
+                        && entry.mModified == modified
+                        && entry.mSize == attributes.size()) {
+                    return new HashMap<>(entry.mValues);
+                }
+            }
+        }
+
+        Map<String, String> values = AvdManager.parseIniFile(new PathFileWrapper(iniFile), log);
+        synchronized (this) {
+            if (attributes != null
+                    && values != null
+                    && isSettled(attributes.lastModifiedTime().toMillis())) {
+                mEntries.put(
+                        iniFile,
+                        new Entry(
+                                attributes.lastModifiedTime().toMillis(),
+                                attributes.size(),
+                                ImmutableMap.copyOf(values)));
+                mDirty = true;
+            } else if (mEntries.remove(iniFile) != null) {
+                mDirty = true;
+            }
+        }
+        return values;
+    }
+
+    /** Writes the index if it changed, dropping the files which no longer exist. */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        for (Iterator<Path> it = mEntries.keySet().iterator(); it.hasNext(); ) {
+            if (CancellableFileIo.notExists(it.next())) {
+                it.remove();
+            }
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mFolderModified);
+            if (mIniFiles == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(mIniFiles.size());
+                for (Path iniFile : mIniFiles) {
+                    writeString(out, iniFile.getFileName().toString());
+                }
+            }
+            out.writeInt(mEntries.size());
+            for (Map.Entry<Path, Entry> entry : mEntries.entrySet()) {
+                writeString(out, entry.getKey().toString());
+                out.writeLong(entry.getValue().mModified);
+                out.writeLong(entry.getValue().mSize);
+                out.writeInt(entry.getValue().mValues.size());
+                for (Map.Entry<String, String> value : entry.getValue().mValues.entrySet()) {
+                    writeString(out, value.getKey());
+                    writeString(out, value.getValue());
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            // Overwrites the existing file, which leaves the modification time of the folder as is.
+            Files.write(mIndexFile, bytes.toByteArray());
+            mDirty = false;
+        } catch (IOException ignore) {
+            // The files will be parsed again next time.
+        }
+    }
+
+    @GuardedBy("this")
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (CancellableFileIo.notExists(mIndexFile)) {
+            return;
+        }
+        Map<Path, Entry> entries = new HashMap<>();
+        try {
+            byte[] bytes = CancellableFileIo.readAllBytes(mIndexFile);
+            if (bytes.length < Long.BYTES) {
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - Long.BYTES);
+            if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - Long.BYTES, Long.BYTES)
+                    .getLong()) {
+                return;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            long folderModified = in.readLong();
+            ImmutableList<Path> iniFiles = null;
+            int iniFileCount = in.readInt();
+            if (iniFileCount >= 0) {
+                ImmutableList.Builder<Path> builder = ImmutableList.builder();
+                for (int i = 0; i < iniFileCount; i++) {
+                    builder.add(mFolder.resolve(readString(in)));
+                }
+                iniFiles = builder.build();
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                Path iniFile = mFolder.getFileSystem().getPath(readString(in));
+                long modified = in.readLong();
+                long size = in.readLong();
+                ImmutableMap.Builder<String, String> values = ImmutableMap.builder();
+                for (int j = in.readInt(); j > 0; j--) {
+                    values.put(readString(in), readString(in));
+                }
+                entries.put(iniFile, new Entry(modified, size, values.build()));
+            }
+            mEntries.putAll(entries);
+            mIniFiles = iniFiles;
+            mFolderModified = folderModified;
+        } catch (IOException | RuntimeException ignore) {
+            // A corrupted index; the files will be parsed again.
+        }
+    }
+
+    private static boolean isSettled(long modified) {
+        return modified != -1 && System.currentTimeMillis() - modified >= MODIFICATION_WINDOW_MS;
+    }
+
+    private static long getLastModifiedTime(@NonNull Path path) {
+        try {
+            return CancellableFileIo.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
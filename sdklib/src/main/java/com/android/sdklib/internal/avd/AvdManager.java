@@ -56,6 +56,7 @@ import com.android.utils.PathUtils;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Closeables;
 
 import java.io.BufferedReader;
@@ -142,6 +143,8 @@ public class AvdManager {
 
     @NonNull private final DeviceManager mDeviceManager;
 
+    @NonNull private final AvdIndex mIndex;
+
     @GuardedBy("mAllAvdList")
     private final ArrayList<AvdInfo> mAllAvdList = new ArrayList<>();
 
@@ -160,6 +163,7 @@ public class AvdManager {
         mBaseAvdFolder = baseAvdFolder;
         mLog = log;
         mDeviceManager = deviceManager;
+        mIndex = new AvdIndex(baseAvdFolder);
         try {
             buildAvdList(mAllAvdList);
         } catch (AndroidLocationsException e) {
@@ -1204,21 +1208,26 @@ public class AvdManager {
             return null;
         }
 
-        Path[] avds = new Path[0];
+        // The folder is only listed again if an AVD was added or removed since the last time.
+        return mIndex.listIniFiles(this::listAvdIniFiles).toArray(new Path[0]);
+    }
+
+    @NonNull
+    private List<Path> listAvdIniFiles() {
+        List<Path> avds = new ArrayList<>();
         try (Stream<Path> contents = CancellableFileIo.list(mBaseAvdFolder)) {
-            avds =
-                    contents.filter(
-                                    path -> {
-                                        if (INI_NAME_PATTERN
-                                                .matcher(path.getFileName().toString())
-                                                .matches()) {
-                                            // check it's a file and not a folder
-                                            return Files.isRegularFile(path);
-                                        }
-
-                                        return false;
-                                    })
-                            .toArray(Path[]::new);
+            contents.filter(
+                            path -> {
+                                if (INI_NAME_PATTERN
+                                        .matcher(path.getFileName().toString())
+                                        .matches()) {
+                                    // check it's a file and not a folder
+                                    return Files.isRegularFile(path);
+                                }
+
+                                return false;
+                            })
+                    .forEach(avds::add);
         } catch (IOException ignore) {
         }
         return avds;
@@ -1240,42 +1249,103 @@ public class AvdManager {
                 }
             }
         }
+        mIndex.save();
     }
 
     /**
-     * Parses an AVD .ini file to create an {@link AvdInfo}.
+     * Returns the properties of the config.ini file of each AVD, without validating their system
+     * image and device as {@link #reloadAvds()} does. The .ini files which didn't change since the
+     * last time they were read are not parsed again.
      *
-     * @param metadataIniFile The path to the AVD .ini file
-     * @return A new {@link AvdInfo} with an {@link AvdStatus} indicating whether this AVD is valid
-     *     or not.
+     * @param keys the properties to return, or none to return all the properties.
+     * @return a map from AVD name to properties. The properties of an AVD whose config.ini cannot
+     *     be read are empty.
+     * @throws AndroidLocationsException if there's a problem getting android root directory.
      */
-    @VisibleForTesting
     @Slow
-    AvdInfo parseAvdInfo(@NonNull Path metadataIniFile) {
-        Map<String, String> metadata = parseIniFile(new PathFileWrapper(metadataIniFile), mLog);
-
-        Path avdFolder = null;
-        if (metadata != null) {
-            String path = metadata.get(MetadataKey.ABS_PATH);
-            avdFolder = path == null ? null : metadataIniFile.resolve(path);
-            if (avdFolder == null
-                    || !(CancellableFileIo.isDirectory(mBaseAvdFolder.resolve(avdFolder)))) {
-                // Try to fallback on the relative path, if present.
-                String relPath = metadata.get(MetadataKey.REL_PATH);
-                if (relPath != null) {
-                    Path androidFolder = mSdkHandler.getAndroidFolder();
-                    Path f =
-                            androidFolder == null
-                                    ? mSdkHandler.toCompatiblePath(relPath)
-                                    : androidFolder.resolve(relPath);
-                    if (CancellableFileIo.isDirectory(f)) {
-                        avdFolder = f;
+    @NonNull
+    public ImmutableMap<String, ImmutableMap<String, String>> getAvdProperties(
+            @NonNull String... keys) throws AndroidLocationsException {
+        ImmutableMap.Builder<String, ImmutableMap<String, String>> result = ImmutableMap.builder();
+        Path[] avds = buildAvdFilesList();
+        if (avds != null) {
+            for (Path avd : avds) {
+                Map<String, String> properties = null;
+                Map<String, String> metadata = mIndex.parseIniFile(avd, mLog);
+                Path avdFolder = metadata == null ? null : findAvdFolder(avd, metadata);
+                if (avdFolder != null) {
+                    Path configIni = mBaseAvdFolder.resolve(avdFolder).resolve(CONFIG_INI);
+                    if (CancellableFileIo.exists(configIni)) {
+                        properties = mIndex.parseIniFile(configIni, mLog);
                     }
                 }
+                ImmutableMap.Builder<String, String> values = ImmutableMap.builder();
+                if (properties != null) {
+                    if (keys.length == 0) {
+                        values.putAll(properties);
+                    } else {
+                        for (String key : keys) {
+                            String value = properties.get(key);
+                            if (value != null) {
+                                values.put(key, value);
+                            }
+                        }
+                    }
+                }
+                String name = avd.getFileName().toString();
+                result.put(
+                        name.substring(0, name.length() - INI_EXTENSION.length()), values.build());
+            }
+        }
+        mIndex.save();
+        return result.build();
+    }
+
+    /**
+     * Returns the data folder of an AVD from the absolute path in its .ini file, or else from the
+     * path relative to the Android folder, or null if neither is an existing folder.
+     */
+    @Nullable
+    private Path findAvdFolder(
+            @NonNull Path metadataIniFile, @NonNull Map<String, String> metadata) {
+        String path = metadata.get(MetadataKey.ABS_PATH);
+        Path avdFolder = path == null ? null : metadataIniFile.resolve(path);
+        if (avdFolder == null
+                || !(CancellableFileIo.isDirectory(mBaseAvdFolder.resolve(avdFolder)))) {
+            // Try to fallback on the relative path, if present.
+            String relPath = metadata.get(MetadataKey.REL_PATH);
+            if (relPath != null) {
+                Path androidFolder = mSdkHandler.getAndroidFolder();
+                Path f =
+                        androidFolder == null
+                                ? mSdkHandler.toCompatiblePath(relPath)
+                                : androidFolder.resolve(relPath);
+                if (CancellableFileIo.isDirectory(f)) {
+                    avdFolder = f;
+                }
             }
         }
         if (avdFolder == null
                 || !(CancellableFileIo.isDirectory(mBaseAvdFolder.resolve(avdFolder)))) {
+            return null;
+        }
+        return avdFolder;
+    }
+
+    /**
+     * Parses an AVD .ini file to create an {@link AvdInfo}.
+     *
+     * @param metadataIniFile The path to the AVD .ini file
+     * @return A new {@link AvdInfo} with an {@link AvdStatus} indicating whether this AVD is valid
+     *     or not.
+     */
+    @VisibleForTesting
+    @Slow
+    AvdInfo parseAvdInfo(@NonNull Path metadataIniFile) {
+        Map<String, String> metadata = mIndex.parseIniFile(metadataIniFile, mLog);
+
+        Path avdFolder = metadata == null ? null : findAvdFolder(metadataIniFile, metadata);
+        if (avdFolder == null) {
             // Corrupted .ini file
             return new AvdInfo(
                     metadataIniFile,
@@ -1297,13 +1367,14 @@ public class AvdManager {
                 };
 
         // load the AVD properties.
-        configIniFile = new PathFileWrapper(mBaseAvdFolder.resolve(avdFolder).resolve(CONFIG_INI));
+        Path configIni = mBaseAvdFolder.resolve(avdFolder).resolve(CONFIG_INI);
+        configIniFile = new PathFileWrapper(configIni);
 
         if (!configIniFile.exists()) {
             mLog.warning("Missing file '%1$s'.", configIniFile.getOsLocation());
             configIniFile = null;
         } else {
-            properties = parseIniFile(configIniFile, mLog);
+            properties = mIndex.parseIniFile(configIni, mLog);
         }
 
         // Check if the value of image.sysdir.1 is valid.
@@ -1411,7 +1482,14 @@ public class AvdManager {
             }
         }
 
-        Map<String, String> userSettings = AvdInfo.parseUserSettingsFile(avdFolder, mLog);
+        Map<String, String> userSettings = null;
+        Path userSettingsFile = AvdInfo.getUserSettingsPath(avdFolder);
+        if (CancellableFileIo.exists(userSettingsFile)) {
+            userSettings = mIndex.parseIniFile(userSettingsFile, mLog);
+        }
+        if (userSettings == null) {
+            userSettings = new HashMap<>();
+        }
 
         AvdInfo info =
                 new AvdInfo(metadataIniFile, avdFolder, sysImage, properties, userSettings, status);
@@ -58,10 +58,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.OptionalLong;
@@ -912,6 +914,58 @@ public final class AvdManagerTest {
         assertEquals(AvdInfo.AvdStatus.ERROR_IMAGE_MISSING, avd.getStatus());
     }
 
+    @Test
+    public void avdIndex() throws Exception {
+        AvdInfo avd =
+                mAvdManager.createAvd(
+                        mAvdFolder,
+                        name.getMethodName(),
+                        systemImages.getApi23().getImage(),
+                        null,
+                        null,
+                        null,
+                        null,
+                        null,
+                        false,
+                        false,
+                        false);
+        assertNotNull("Could not create AVD", avd);
+
+        // Files modified in the last couple of seconds are not indexed.
+        FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        Files.setLastModifiedTime(avd.getIniFile(), past);
+        Files.setLastModifiedTime(avd.getConfigFile(), past);
+        Files.setLastModifiedTime(mAvdManager.getBaseAvdFolder(), past);
+        mAvdManager.reloadAvds();
+        Path index = mAvdManager.getBaseAvdFolder().resolve(AvdIndex.INDEX_FN);
+        assertTrue(CancellableFileIo.exists(index));
+        assertEquals(
+                ImmutableMap.of(
+                        name.getMethodName(),
+                        ImmutableMap.of(
+                                ConfigKey.IMAGES_1, avd.getProperties().get(ConfigKey.IMAGES_1))),
+                mAvdManager.getAvdProperties(ConfigKey.IMAGES_1, "no.such.key"));
+
+        // A modified config.ini is parsed again, also by a new AvdManager reading the index.
+        Files.write(
+                avd.getConfigFile(),
+                "test.key=1234\n".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(
+                avd.getConfigFile(), FileTime.fromMillis(past.toMillis() + 1000));
+        AvdManager avdManager =
+                AvdManager.createInstance(
+                        mAndroidSdkHandler,
+                        mAvdManager.getBaseAvdFolder(),
+                        DeviceManager.createInstance(mAndroidSdkHandler, NullLogger.getLogger()),
+                        NullLogger.getLogger());
+        assertEquals(
+                "1234",
+                avdManager.getAvdProperties().get(name.getMethodName()).get("test.key"));
+        assertEquals(
+                "1234", avdManager.getAvd(name.getMethodName(), false).getProperty("test.key"));
+    }
+
     @Test
     public void playStoreProperty() {
         MockLog log = new MockLog();
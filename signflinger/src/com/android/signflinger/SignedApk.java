@@ -26,6 +26,7 @@ import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
 import com.android.zipflinger.Archive;
 import com.android.zipflinger.BytesSource;
+import com.android.zipflinger.Entry;
 import com.android.zipflinger.Source;
 import com.android.zipflinger.Zip64;
 import com.android.zipflinger.ZipArchive;
@@ -38,6 +39,7 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
@@ -47,6 +49,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
@@ -106,7 +109,14 @@ public class SignedApk implements Archive {
             return;
         }
 
-        if (!options.v1TrustManifest) {
+        V1SigningState previousState = null;
+        Map<String, Entry> initialEntries = null;
+        if (options.v1StateFile != null && Files.exists(archive.getPath())) {
+            initialEntries = ZipArchive.listEntries(archive.getPath());
+            previousState = V1SigningState.load(options.v1StateFile.toPath(), initialEntries);
+        }
+
+        if (!options.v1TrustManifest && previousState == null) {
             archive.delete(MANIFEST_ENTRY_NAME);
         }
 
@@ -126,6 +136,18 @@ public class SignedApk implements Archive {
         // If the archive contains entries that were not already signed, let the engine know
         // so it can sign then now.
         filesToSign.removeAll(signedEntries);
+
+        // Without full trust, the manifest digests are only kept for entries which did not change
+        // since the state was saved. Everything else is digested again.
+        if (!options.v1TrustManifest && previousState != null) {
+            for (String entryName : signedEntries) {
+                Entry entry = initialEntries.get(entryName);
+                if (entry == null || !previousState.isUnchanged(entry)) {
+                    filesToSign.add(entryName);
+                }
+            }
+        }
+
         for (String entryName : filesToSign) {
             ApkSignerEngine.InspectJarEntryRequest req = signer.outputJarEntry(entryName);
             processRequest(req);
@@ -201,6 +223,7 @@ public class SignedApk implements Archive {
             finishSigning();
             // At this point the archive has been closed.
             // V4 can be done if needed.
+            saveV1State();
             signV4();
         } finally {
             signer.close();
@@ -218,6 +241,14 @@ public class SignedApk implements Archive {
         }
     }
 
+    private void saveV1State() throws IOException {
+        if (!options.v1Enabled || options.v1StateFile == null) {
+            return;
+        }
+        Map<String, Entry> entries = ZipArchive.listEntries(archive.getPath());
+        V1SigningState.save(options.v1StateFile.toPath(), entries);
+    }
+
     private void signV4() throws IOException {
         if (!options.v4Enabled) {
             return;
@@ -68,6 +68,7 @@ public class SignedApkOptions {
     final String v1CreatedBy;
     final String v1BuiltBy;
     final boolean v1TrustManifest;
+    final File v1StateFile;
 
     final int minSdkVersion;
     final byte[] sdkDependencies;
@@ -87,6 +88,7 @@ public class SignedApkOptions {
             String v1CreatedBy,
             String v1BuiltBy,
             boolean v1TrustManifest,
+            File v1StateFile,
             int minSdkVersion) {
         this.name = name;
         this.privateKey = privateKey;
@@ -102,6 +104,7 @@ public class SignedApkOptions {
         this.v1CreatedBy = v1CreatedBy;
         this.v1BuiltBy = v1BuiltBy;
         this.v1TrustManifest = v1TrustManifest;
+        this.v1StateFile = v1StateFile;
         this.minSdkVersion = minSdkVersion;
     }
 
@@ -155,6 +158,7 @@ public class SignedApkOptions {
         String v1CreatedBy = "Signflinger";
         String v1BuiltBy = "Signflinger";
         boolean v1TrustManifest;
+        File v1StateFile = null;
         int minSdkVersion;
 
         public Builder setName(@NonNull String name) {
@@ -228,6 +232,17 @@ public class SignedApkOptions {
             return this;
         }
 
+        /**
+         * Persist the crc32 and sizes of all entries to this file when the archive is closed. On
+         * the next incremental signing, the digests found in the existing MANIFEST.MF are trusted
+         * for entries which did not change since, and only modified or added entries are
+         * digested again. The file is ignored if it does not match the archive MANIFEST.MF.
+         */
+        public Builder setV1StateFile(@NonNull File stateFile) {
+            v1StateFile = stateFile;
+            return this;
+        }
+
         public Builder setMinSdkVersion(int minSdkVersion) {
             this.minSdkVersion = minSdkVersion;
             return this;
@@ -250,6 +265,7 @@ public class SignedApkOptions {
                     v1CreatedBy,
                     v1BuiltBy,
                     v1TrustManifest,
+                    v1StateFile,
                     minSdkVersion);
         }
     }
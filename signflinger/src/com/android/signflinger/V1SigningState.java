@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.signflinger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.zipflinger.Entry;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * A record of the entries of an APK at the time its v1 signature (MANIFEST.MF) was generated.
+ *
+ * The manifest holds the digest of each entry but nothing to tell whether an entry changed since
+ * the manifest was written. Saving the crc32 and size of the uncompressed content of all entries
+ * (which is what v1 digests cover) next to the APK allows a later SignedApk to trust the manifest
+ * digests of unchanged entries and re-digest only the others.
+ *
+ * The state is only valid for the MANIFEST.MF it was saved with (identified by its crc32).
+ */
+class V1SigningState {
+
+    private static final int MAGIC = 0x56315354; // "V1ST"
+    private static final int VERSION = 1;
+
+    private static class EntryState {
+        final int crc;
+        final long uncompressedSize;
+
+        EntryState(int crc, long uncompressedSize) {
+            this.crc = crc;
+            this.uncompressedSize = uncompressedSize;
+        }
+
+        boolean matches(@NonNull Entry entry) {
+            return crc == entry.getCrc() && uncompressedSize == entry.getUncompressedSize();
+        }
+    }
+
+    private final Map<String, EntryState> entries;
+
+    private V1SigningState(@NonNull Map<String, EntryState> entries) {
+        this.entries = entries;
+    }
+
+    // Return true if the entry is known and unchanged since the state was saved.
+    boolean isUnchanged(@NonNull Entry entry) {
+        EntryState state = entries.get(entry.getName());
+        return state != null && state.matches(entry);
+    }
+
+    // Load a state which applies to the current archive entries. Return null if there is no state
+    // or if it was saved with a different MANIFEST.MF.
+    @Nullable
+    static V1SigningState load(@NonNull Path file, @NonNull Map<String, Entry> archiveEntries) {
+        Entry manifest = archiveEntries.get(SignedApk.MANIFEST_ENTRY_NAME);
+        if (manifest == null || !Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (in.readInt() != manifest.getCrc()) {
+                return null;
+            }
+            int numEntries = in.readInt();
+            Map<String, EntryState> entries = new HashMap<>(numEntries * 2);
+            for (int i = 0; i < numEntries; i++) {
+                String name = in.readUTF();
+                int crc = in.readInt();
+                long uncompressedSize = in.readLong();
+                entries.put(name, new EntryState(crc, uncompressedSize));
+            }
+            return new V1SigningState(entries);
+        } catch (IOException e) {
+            // A corrupted state is equivalent to no state, everything will be digested.
+            return null;
+        }
+    }
+
+    // Save the state of the archive entries. If the archive has no MANIFEST.MF, any previous state
+    // is deleted.
+    static void save(@NonNull Path file, @NonNull Map<String, Entry> archiveEntries)
+            throws IOException {
+        Entry manifest = archiveEntries.get(SignedApk.MANIFEST_ENTRY_NAME);
+        if (manifest == null) {
+            Files.deleteIfExists(file);
+            return;
+        }
+
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(manifest.getCrc());
+            out.writeInt(archiveEntries.size());
+            for (Entry entry : archiveEntries.values()) {
+                out.writeUTF(entry.getName());
+                out.writeInt(entry.getCrc());
+                out.writeLong(entry.getUncompressedSize());
+            }
+        }
+    }
+}
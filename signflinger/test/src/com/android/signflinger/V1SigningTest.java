@@ -111,6 +111,47 @@ public class V1SigningTest extends BaseSigning {
         Utils.verifyApk(zipFile);
     }
 
+    @Test
+    public void incrementalWithStateFile() throws Exception {
+        File androidManifest = workspace.getDummyAndroidManifest();
+        File zipFile = workspace.createZip(50, 2000, "testStateFile.zip", androidManifest);
+        File stateFile = workspace.getTestOutputFile("testStateFile.v1state");
+
+        SignerConfig signerConfig = Signers.getDefaultRSASigner(workspace);
+        SignedApkOptions options =
+                new SignedApkOptions.Builder()
+                        .setV2Enabled(false)
+                        .setV1Enabled(true)
+                        .setV1StateFile(stateFile)
+                        .setMinSdkVersion(21)
+                        .setPrivateKey(signerConfig.getPrivateKey())
+                        .setCertificates(signerConfig.getCertificates())
+                        .build();
+
+        try (SignedApk signedApk = new SignedApk(zipFile, options)) {}
+        Utils.verifyApk(zipFile);
+        Assert.assertTrue("State file was not written", stateFile.exists());
+
+        // Replace an entry with different content. Its digest must be recomputed while the
+        // others are taken from the existing manifest.
+        String replaced = ZipArchive.listEntries(zipFile.toPath()).keySet().iterator().next();
+        try (SignedApk signedApk = new SignedApk(zipFile, options)) {
+            signedApk.delete(replaced);
+            signedApk.add(new BytesSource(new byte[] {1, 2, 3}, replaced, 0));
+            signedApk.add(new BytesSource(new byte[100], "added", 0));
+        }
+        Utils.verifyApk(zipFile);
+
+        // Modify the archive behind signflinger's back. The state no longer matches the content
+        // so the modified entry must be re-digested.
+        try (ZipArchive zipArchive = new ZipArchive(zipFile.toPath())) {
+            zipArchive.delete("added");
+            zipArchive.add(new BytesSource(new byte[50], "added", 0));
+        }
+        try (SignedApk signedApk = new SignedApk(zipFile, options)) {}
+        Utils.verifyApk(zipFile);
+    }
+
     @Test
     public void avoidVirtualEntry() throws Exception {
         HashMap<String, String> manifestAttributes = new HashMap<>();
@@ -19,6 +19,8 @@ package com.android.zipflinger;
 import com.android.annotations.NonNull;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public interface Archive extends Closeable {
 
@@ -40,6 +42,25 @@ public interface Archive extends Closeable {
      */
     void add(@NonNull ZipSource sources) throws IOException;
 
+    /**
+     * Add a batch of sources to the archive. Implementations may prepare (read and deflate) the
+     * sources concurrently on the provided executor but must write them in list order so the
+     * resulting archive is identical to adding each source one after the other.
+     *
+     * <p>The default implementation adds the sources serially and ignores the executor.
+     *
+     * @param sources The sources to add to this zip archive, in the order they will be written.
+     * @param executor The executor used to prepare the sources.
+     * @throws IllegalStateException if an entry name already exists in the archive.
+     * @throws IOException if preparing a source or writing to the zip archive fails.
+     */
+    default void add(@NonNull List<? extends Source> sources, @NonNull Executor executor)
+            throws IOException {
+        for (Source source : sources) {
+            add(source);
+        }
+    }
+
     /**
      * Delete an entry from this archive. If the entry did not exist, this method does nothing. To
      * avoid creating "holes" in the archive, it is mendatory to delete all entries first and add
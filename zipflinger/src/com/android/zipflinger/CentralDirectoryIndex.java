@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.zipflinger;
+
+import com.android.annotations.NonNull;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * A compact index over a raw Central Directory buffer. Records are not decoded, only their
+ * offset in the CD and a hash of their name bytes are kept, sorted by hash, in a single long
+ * array (hash in the high 32 bits, offset in the low 32 bits).
+ *
+ * Looking up a name is a binary search followed by a byte comparison against the CD buffer.
+ */
+class CentralDirectoryIndex {
+
+    static final int OFFSET_TO_NAME_LENGTH = 28;
+
+    private final ByteBuffer cd;
+
+    // Sorted (hash << 32 | offset) keys. Entries with the same hash are sorted by offset so
+    // the last record wins when names are duplicated, as it does with eager parsing.
+    private final long[] keys;
+
+    // Offsets of all records, in CD order (including records with an empty name).
+    private final int[] offsets;
+
+    private CentralDirectoryIndex(@NonNull ByteBuffer cd, @NonNull int[] offsets, int count) {
+        this.cd = cd;
+        this.offsets = Arrays.copyOf(offsets, count);
+
+        long[] k = new long[count];
+        int numNamed = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = offsets[i];
+            int nameLength = nameLength(offset);
+            if (nameLength == 0) {
+                continue;
+            }
+            int hash = hash(cd, offset + CentralDirectoryRecord.SIZE, nameLength);
+            k[numNamed++] = ((long) hash << 32) | offset;
+        }
+        keys = Arrays.copyOf(k, numNamed);
+        Arrays.sort(keys);
+    }
+
+    // Scan the CD and record the offset of each record. Nothing is decoded.
+    @NonNull
+    static CentralDirectoryIndex build(@NonNull ByteBuffer cd) {
+        ByteBuffer buf = cd.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.rewind();
+        int[] offsets = new int[1024];
+        int count = 0;
+        while (buf.remaining() >= CentralDirectoryRecord.SIZE
+                && buf.getInt(buf.position()) == CentralDirectoryRecord.SIGNATURE) {
+            int offset = buf.position();
+            int nameLength = Ints.ushortToInt(buf.getShort(offset + OFFSET_TO_NAME_LENGTH));
+            int extraLength = Ints.ushortToInt(buf.getShort(offset + OFFSET_TO_NAME_LENGTH + 2));
+            int commentLength =
+                    Ints.ushortToInt(buf.getShort(offset + OFFSET_TO_NAME_LENGTH + 4));
+            int recordSize = CentralDirectoryRecord.SIZE + nameLength + extraLength + commentLength;
+            if (recordSize > buf.remaining()) {
+                throw new IllegalStateException(
+                        String.format("CD record at offset %d overflows the CD", offset));
+            }
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+            buf.position(offset + recordSize);
+        }
+        return new CentralDirectoryIndex(buf, offsets, count);
+    }
+
+    int size() {
+        return offsets.length;
+    }
+
+    // Return the offset of the record at index i, in CD order.
+    int offsetAt(int i) {
+        return offsets[i];
+    }
+
+    // Return the offset in the CD of the record named "name", or -1 if there is none.
+    int find(@NonNull String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length == 0) {
+            return -1;
+        }
+        int hash = hash(ByteBuffer.wrap(nameBytes), 0, nameBytes.length);
+
+        // Find the first key with this hash.
+        long target = (long) hash << 32;
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        int found = -1;
+        for (int i = low; i < keys.length && (int) (keys[i] >> 32) == hash; i++) {
+            int offset = (int) keys[i];
+            if (nameEquals(offset, nameBytes)) {
+                found = offset;
+            }
+        }
+        return found;
+    }
+
+    // Return a view of the CD positioned right after the signature of the record at offset,
+    // as expected by ZipMap.parseCentralDirectoryRecord.
+    @NonNull
+    ByteBuffer recordAt(int offset) {
+        ByteBuffer buf = cd.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(offset + 4);
+        return buf;
+    }
+
+    private int nameLength(int offset) {
+        return Ints.ushortToInt(cd.getShort(offset + OFFSET_TO_NAME_LENGTH));
+    }
+
+    private boolean nameEquals(int offset, @NonNull byte[] nameBytes) {
+        if (nameLength(offset) != nameBytes.length) {
+            return false;
+        }
+        int start = offset + CentralDirectoryRecord.SIZE;
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (cd.get(start + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(@NonNull ByteBuffer buf, int start, int length) {
+        int hash = 1;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buf.get(i);
+        }
+        return hash;
+    }
+}
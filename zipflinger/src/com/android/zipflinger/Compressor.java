@@ -69,6 +69,22 @@ public class Compressor {
         return out.getByteBuffer();
     }
 
+    // Inflate the remaining bytes of the buffer without copying them to the heap first.
+    @NonNull
+    public static ByteBuffer inflate(@NonNull ByteBuffer deflated, long expectedSize)
+            throws IOException {
+        byte[] inflated = new byte[Math.toIntExact(expectedSize)];
+        int total = 0;
+        try (InputStream in = wrapToInflate(new ByteBufferInputStream(deflated))) {
+            int read;
+            while (total < inflated.length
+                    && (read = in.read(inflated, total, inflated.length - total)) != -1) {
+                total += read;
+            }
+        }
+        return ByteBuffer.wrap(inflated, 0, total);
+    }
+
     // Exhaust input content into output, inflate / deflate data as needed.
     // Closes both streams once piping is done.
     public static void pipe(
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.zipflinger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * A source which postpones reading and deflating its content into a BytesSource until prepare()
+ * is called. This allows a batch of sources to be prepared concurrently (see
+ * ZipArchive.add(List, Executor)) instead of compressing on the thread which created them.
+ */
+class DeferredBytesSource extends Source {
+
+    @Nullable private byte[] bytes;
+    @Nullable private Path file;
+    private final int compressionLevel;
+    @Nullable private BytesSource delegate;
+
+    DeferredBytesSource(@NonNull byte[] bytes, @NonNull String name, int compressionLevel) {
+        super(name);
+        this.bytes = bytes;
+        this.compressionLevel = compressionLevel;
+    }
+
+    DeferredBytesSource(@NonNull Path file, @NonNull String name, int compressionLevel) {
+        super(name);
+        this.file = file;
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public synchronized void prepare() throws IOException {
+        if (delegate != null) {
+            return;
+        }
+        byte[] content = bytes != null ? bytes : Files.readAllBytes(file);
+        delegate = new BytesSource(content, getName(), compressionLevel);
+        crc = delegate.getCrc();
+        compressedSize = delegate.getCompressedSize();
+        uncompressedSize = delegate.getUncompressedSize();
+        compressionFlag = delegate.getCompressionFlag();
+
+        // Release references to the input, the payload is now held by the delegate.
+        bytes = null;
+        file = null;
+    }
+
+    @Override
+    public long writeTo(@NonNull ZipWriter writer) throws IOException {
+        if (delegate == null) {
+            throw new IllegalStateException("Source '" + getName() + "' was not prepared");
+        }
+        return delegate.writeTo(writer);
+    }
+}
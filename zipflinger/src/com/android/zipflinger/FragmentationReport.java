@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.zipflinger;
+
+import com.android.annotations.NonNull;
+import java.util.Locale;
+
+/**
+ * A snapshot of the free space ("holes") left in an archive payload area by incremental
+ * delete/add operations. Holes are filled with virtual entries when the archive is closed, so
+ * they are wasted bytes in the final file.
+ *
+ * <p>Use {@link #getFragmentation()} to decide whether rewriting the archive from scratch is
+ * worth it compared to keeping on updating it in place.
+ */
+public class FragmentationReport {
+
+    private final long payloadSize;
+    private final long numHoles;
+    private final long holesSize;
+    private final long largestHoleSize;
+    private final long unusableHolesSize;
+
+    FragmentationReport(
+            long payloadSize,
+            long numHoles,
+            long holesSize,
+            long largestHoleSize,
+            long unusableHolesSize) {
+        this.payloadSize = payloadSize;
+        this.numHoles = numHoles;
+        this.holesSize = holesSize;
+        this.largestHoleSize = largestHoleSize;
+        this.unusableHolesSize = unusableHolesSize;
+    }
+
+    /** Size of the payload area (entries and holes), up to where the Central Directory starts. */
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
+    public long getNumHoles() {
+        return numHoles;
+    }
+
+    /** Total number of free bytes within the payload area. */
+    public long getHolesSize() {
+        return holesSize;
+    }
+
+    public long getLargestHoleSize() {
+        return largestHoleSize;
+    }
+
+    /** Number of free bytes in holes too small to ever host an entry. */
+    public long getUnusableHolesSize() {
+        return unusableHolesSize;
+    }
+
+    /** Ratio (between 0 and 1) of the payload area which is free space. */
+    public double getFragmentation() {
+        if (payloadSize == 0) {
+            return 0;
+        }
+        return (double) holesSize / payloadSize;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "payload=%d, holes=%d, holesSize=%d, largestHole=%d, unusable=%d, frag=%.2f%%",
+                payloadSize,
+                numHoles,
+                holesSize,
+                largestHoleSize,
+                unusableHolesSize,
+                getFragmentation() * 100);
+    }
+}
@@ -18,52 +18,39 @@ package com.android.zipflinger;
 import com.android.annotations.NonNull;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 // This works like a memory allocator except it deals with file address space instead of
 // memory address space.
+//
+// Free zones are indexed twice: by offset (to find neighbours when freeing and merging) and by
+// size (to find the best fit when allocating). Both lookups are O(log n).
 class FreeStore {
 
     static final long DEFAULT_ALIGNMENT = 4;
     static final long PAGE_ALIGNMENT = 4096;
 
-    private Zone head;
-
     // A zone tracks the free file address space. Two consecutive zones are never contiguous which
     // mean that upon modification, if two zone "touch" each others, they are merged together into
     // a bigger free zone.
     //
-    // Used space is not tracked but inferred from each gap between free zones.
-    protected static class Zone {
-        public Zone next;
-        public Zone prev;
-        public Location loc;
-
-        public Zone() {
-            this.next = null;
-            this.prev = null;
-        }
+    // Used space is not tracked but inferred from each gap between free zones. The last zone
+    // always extends to the end of the file address space.
+    private final TreeMap<Long, Location> zonesByOffset = new TreeMap<>();
 
-        public void shrinkBy(long amount) {
-            assert loc.size() > amount;
-            loc = new Location(loc.first + amount, loc.size() - amount);
-
-            // If the zone is empty, remove it from the list.
-            if (loc.size() == 0) {
-                prev.next = next;
-                if (next != null) {
-                    next.prev = prev;
-                }
-            }
-        }
-    }
+    // Free zones sorted by size, then by offset so that among equally sized zones the lowest
+    // address wins.
+    private final NavigableSet<Location> zonesBySize =
+            new TreeSet<>(
+                    Comparator.comparingLong(Location::size)
+                            .thenComparingLong((Location loc) -> loc.first));
 
     FreeStore(@NonNull Map<String, Entry> zipEntries) {
-        // Create an immutable marker of unusable space which make "insert on head" ugly code go away.
-        head = new Zone();
-        head.loc = new Location(-1, 1);
-
         // Use zip entries location (used space) to build the free zones list.
         List<Location> usedLocations = new ArrayList<>();
         for (Entry entry : zipEntries.values()) {
@@ -71,49 +58,53 @@ class FreeStore {
         }
         Collections.sort(usedLocations);
 
-        Zone prevFreeZone = head;
-        Location prevUsedLoc = prevFreeZone.loc;
+        long prevUsedLast = -1;
         for (Location usedLoc : usedLocations) {
             // If there is a gap, mark is as FREE space.
-            long gap = usedLoc.first - prevUsedLoc.last - 1;
+            long gap = usedLoc.first - prevUsedLast - 1;
             if (gap > 0) {
-                Zone free = new Zone();
-                prevFreeZone.next = free;
-                free.prev = prevFreeZone;
-                free.loc = new Location(prevUsedLoc.last + 1, gap);
-                prevFreeZone = free;
+                addZone(new Location(prevUsedLast + 1, gap));
             }
-            prevUsedLoc = usedLoc;
+            prevUsedLast = usedLoc.last;
         }
 
         // Mark everything remaining as a free zone.
-        Zone remainingZone = new Zone();
-        remainingZone.prev = prevFreeZone;
-        remainingZone.next = null;
-        prevFreeZone.next = remainingZone;
-        remainingZone.loc =
-                new Location(prevUsedLoc.last + 1, Long.MAX_VALUE - 1 - prevUsedLoc.last);
+        addZone(new Location(prevUsedLast + 1, Long.MAX_VALUE - 1 - prevUsedLast));
+    }
+
+    private void addZone(@NonNull Location loc) {
+        zonesByOffset.put(loc.first, loc);
+        zonesBySize.add(loc);
+    }
+
+    private void removeZone(@NonNull Location loc) {
+        zonesByOffset.remove(loc.first);
+        zonesBySize.remove(loc);
+    }
+
+    // Consume the first "amount" bytes of a zone. Empty zones are dropped.
+    private void shrinkBy(@NonNull Location zone, long amount) {
+        assert zone.size() >= amount;
+        removeZone(zone);
+        if (zone.size() > amount) {
+            addZone(new Location(zone.first + amount, zone.size() - amount));
+        }
     }
 
     // Performs unaligned allocation.
     @NonNull
     Location ualloc(long requestedSize) {
-        Zone cursor;
-        for (cursor = head.next; cursor != null; cursor = cursor.next) {
-            // We are searching for a block big enough to contain:
-            // - The requested size
-            // - Post-padding space for potentially needed virtual entry to fill holes.
-            if (cursor.loc.size() >= requestedSize + LocalFileHeader.VIRTUAL_HEADER_SIZE) {
-                break;
-            }
-        }
-
-        if (cursor == null) {
+        // We are searching for the smallest block big enough to contain:
+        // - The requested size
+        // - Post-padding space for potentially needed virtual entry to fill holes.
+        long needed = requestedSize + LocalFileHeader.VIRTUAL_HEADER_SIZE;
+        Location zone = zonesBySize.ceiling(new Location(Long.MIN_VALUE, needed));
+        if (zone == null) {
             throw new IllegalStateException("Out of file address space.");
         }
 
-        Location allocated = new Location(cursor.loc.first, requestedSize);
-        cursor.shrinkBy(requestedSize);
+        Location allocated = new Location(zone.first, requestedSize);
+        shrinkBy(zone, requestedSize);
         return allocated;
     }
 
@@ -123,89 +114,95 @@ class FreeStore {
     // be consumed by an "extra" field.
     @NonNull
     Location alloc(long requestedSize, long payloadOffset, long alignment) {
-        Zone cursor;
-        for (cursor = head.next; cursor != null; cursor = cursor.next) {
-            long padding = padFor(cursor.loc.first, payloadOffset, alignment);
-            // We are searching for a block big enough to contain:
-            // - The requested size
-            // - Pre-padding space for extra field ALIGNMENT
-            // - Post-padding space for potentially needed virtual entry to fill holes.
-            if (cursor.loc.size()
-                    >= requestedSize + padding + LocalFileHeader.VIRTUAL_HEADER_SIZE) {
-                requestedSize += padding;
+        // We are searching for the smallest block big enough to contain:
+        // - The requested size
+        // - Pre-padding space for extra field ALIGNMENT
+        // - Post-padding space for potentially needed virtual entry to fill holes.
+        // Padding depends on the zone address so candidates are walked by increasing size. Since
+        // padding is less than alignment, only zones smaller than needed + alignment may be
+        // rejected.
+        long needed = requestedSize + LocalFileHeader.VIRTUAL_HEADER_SIZE;
+        Location fit = null;
+        long padding = 0;
+        for (Location zone : zonesBySize.tailSet(new Location(Long.MIN_VALUE, needed), true)) {
+            padding = padFor(zone.first, payloadOffset, alignment);
+            if (zone.size() >= needed + padding) {
+                fit = zone;
                 break;
             }
         }
 
-        if (cursor == null) {
+        if (fit == null) {
             throw new IllegalStateException("Out of file address space.");
         }
 
-        Location allocated = new Location(cursor.loc.first, requestedSize);
-        cursor.shrinkBy(requestedSize);
+        requestedSize += padding;
+        Location allocated = new Location(fit.first, requestedSize);
+        shrinkBy(fit, requestedSize);
         return allocated;
     }
 
     // Mark an area of the file available for allocation. This will merge up to two zones into one
     // if they touch each others.
     void free(@NonNull Location loc) {
-        Zone cursor = head.next;
-        while (cursor != null) {
-            if (loc.first > cursor.prev.loc.last && loc.last < cursor.loc.first) {
-                break;
-            }
-            cursor = cursor.next;
-        }
-
-        if (cursor == null) {
+        Map.Entry<Long, Location> lower = zonesByOffset.floorEntry(loc.first);
+        Map.Entry<Long, Location> higher = zonesByOffset.higherEntry(loc.first);
+
+        // The freed area must sit entirely in used space, between two free zones. Since the last
+        // zone extends to the end of the address space, there is always a higher zone.
+        if ((lower != null && lower.getValue().last >= loc.first)
+                || higher == null
+                || loc.last >= higher.getValue().first) {
             throw new IllegalStateException("Double free");
         }
 
-        // Insert a free zone
-        Zone newFreeZone = new Zone();
-        newFreeZone.loc = loc;
-        newFreeZone.prev = cursor.prev;
-        newFreeZone.next = cursor;
-        cursor.prev.next = newFreeZone;
-        cursor.prev = newFreeZone;
-        cursor = newFreeZone;
+        Location merged = loc;
 
         // If previous zone is contiguous, merge this zone into previous.
-        if (cursor.prev.loc.last + 1 == cursor.loc.first && cursor.prev != head) {
-            Zone prev = cursor.prev;
-            prev.next = cursor.next;
-            cursor.next.prev = prev;
-            prev.loc = new Location(prev.loc.first, prev.loc.size() + cursor.loc.size());
-            cursor = prev;
+        if (lower != null && lower.getValue().last + 1 == merged.first) {
+            Location prev = lower.getValue();
+            removeZone(prev);
+            merged = new Location(prev.first, prev.size() + merged.size());
         }
 
         // If next zone is contiguous, merge this zone into next.
-        if (cursor.next != null && cursor.next.loc.first - 1 == cursor.loc.last) {
-            Zone next = cursor.next;
-            next.prev = cursor.prev;
-            cursor.prev.next = next;
-            next.loc = new Location(cursor.loc.first, cursor.loc.size() + next.loc.size());
+        Location next = higher.getValue();
+        if (next.first - 1 == merged.last) {
+            removeZone(next);
+            merged = new Location(merged.first, merged.size() + next.size());
         }
+
+        addZone(merged);
     }
 
     @NonNull
     Location getLastFreeLocation() {
-        Zone zone = head.next;
-        while (zone.next != null) {
-            zone = zone.next;
-        }
-        return zone.loc;
+        return zonesByOffset.lastEntry().getValue();
     }
 
     @NonNull
     List<Location> getFreeLocations() {
-        List<Location> locs = new ArrayList<>();
-        Zone cursor = head.next;
-        while (cursor != null) {
-            locs.add(cursor.loc);
-            cursor = cursor.next;
+        return new ArrayList<>(zonesByOffset.values());
+    }
+
+    // Summarize how much of the archive payload area is made of holes.
+    @NonNull
+    FragmentationReport getFragmentationReport() {
+        Location last = getLastFreeLocation();
+        long holes = 0;
+        long holesSize = 0;
+        long largestHole = 0;
+        long unusableHolesSize = 0;
+        for (Location zone : zonesByOffset.headMap(last.first, false).values()) {
+            holes++;
+            holesSize += zone.size();
+            largestHole = Math.max(largestHole, zone.size());
+            if (zone.size() < LocalFileHeader.VIRTUAL_HEADER_SIZE) {
+                unusableHolesSize += zone.size();
+            }
         }
-        return locs;
+        return new FragmentationReport(
+                last.first, holes, holesSize, largestHole, unusableHolesSize);
     }
 
     // How much padding is needed if this address+offset is not aligned (a.k.a: An extra field will
@@ -129,7 +129,9 @@ public abstract class Source {
     }
 
     // Guaranteed to be called before writeTo. After this method has been called, every fields
-    // in an entry must be known (csize, size, crc32, and compressionFlag).
+    // in an entry must be known (csize, size, crc32, and compressionFlag). It may be called more
+    // than once, and on another thread than writeTo: calls after the first one must not change
+    // the entry.
     public abstract void prepare() throws IOException;
 
     // Return the number of bytes written.
@@ -51,6 +51,21 @@ public class Sources {
         }
     }
 
+    /**
+     * Create a source which reads and compresses its content only when it is prepared. Adding a
+     * batch of such sources via {@link ZipArchive#add(java.util.List,
+     * java.util.concurrent.Executor)} deflates them concurrently.
+     */
+    public static Source deferred(
+            @NonNull byte[] bytes, @NonNull String name, int compressionLevel) {
+        return new DeferredBytesSource(bytes, name, compressionLevel);
+    }
+
+    /** See {@link #deferred(byte[], String, int)}. */
+    public static Source deferred(@NonNull Path path, @NonNull String name, int compressionLevel) {
+        return new DeferredBytesSource(path, name, compressionLevel);
+    }
+
     public static Source from(InputStream in, String name, int compressionLevel)
             throws IOException {
         return from(in, name, compressionLevel, LARGE_LIMIT);
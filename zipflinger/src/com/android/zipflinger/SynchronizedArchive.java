@@ -18,6 +18,8 @@ package com.android.zipflinger;
 
 import com.android.annotations.NonNull;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class SynchronizedArchive implements Archive {
 
@@ -41,6 +43,14 @@ public class SynchronizedArchive implements Archive {
         }
     }
 
+    @Override
+    public void add(@NonNull List<? extends Source> sources, @NonNull Executor executor)
+            throws IOException {
+        synchronized (archive) {
+            archive.add(sources, executor);
+        }
+    }
+
     @Override
     public void delete(@NonNull String name) throws IOException {
         synchronized (archive) {
@@ -20,13 +20,18 @@ import com.android.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class ZipArchive implements Archive {
     private final FreeStore freestore;
@@ -167,6 +172,59 @@ public class ZipArchive implements Archive {
         }
     }
 
+    /**
+     * See Archive.add documentation. Sources are prepared (read, crc32-ed, and deflated) in
+     * parallel on the executor then written in list order, which produces the same archive as
+     * adding them one by one. To benefit from this, sources should defer their compression until
+     * prepare() is called (see {@link Sources#deferred}).
+     */
+    @Override
+    public void add(@NonNull List<? extends Source> sources, @NonNull Executor executor)
+            throws IOException {
+        if (closed) {
+            throw new IllegalStateException(
+                    String.format("Cannot add sources to closed archive %s", file));
+        }
+
+        prepareAll(sources, executor);
+        for (Source source : sources) {
+            writePreparedSource(source);
+        }
+    }
+
+    // Call prepare() on all sources using the executor and wait for all of them to complete.
+    private static void prepareAll(@NonNull List<? extends Source> sources, @NonNull Executor executor)
+            throws IOException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            futures.add(CompletableFuture.runAsync(() -> prepare(source), executor));
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void prepare(@NonNull Source source) {
+        try {
+            source.prepare();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /** See Archive.delete documentation */
     @Override
     public void delete(@NonNull String name) {
@@ -204,6 +262,16 @@ public class ZipArchive implements Archive {
         return zipInfo;
     }
 
+    /**
+     * Report how much free space the pending delete/add operations leave within the archive
+     * payload. A high fragmentation means a full rewrite would produce a smaller archive than an
+     * in-place update.
+     */
+    @NonNull
+    public FragmentationReport getFragmentationReport() {
+        return freestore.getFragmentationReport();
+    }
+
     @NonNull
     public Path getPath() {
         return file;
@@ -293,6 +361,11 @@ public class ZipArchive implements Archive {
     }
 
     private void writeSource(@NonNull Source source) throws IOException {
+        source.prepare();
+        writePreparedSource(source);
+    }
+
+    private void writePreparedSource(@NonNull Source source) throws IOException {
         // If this is a directory and it is already in the archive, just no-op.
         if (Source.isNameDirectory(source.getName()) && cd.contains(source.getName())) {
             return;
@@ -300,7 +373,6 @@ public class ZipArchive implements Archive {
 
         modified = true;
         validateName(source);
-        source.prepare();
 
         // Calculate the size we need (header + payload)
         LocalFileHeader lfh = new LocalFileHeader(source);
@@ -16,8 +16,11 @@
 package com.android.zipflinger;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -25,8 +28,9 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class ZipMap {
+public class ZipMap implements Closeable {
     private final Map<String, Entry> entries = new LinkedHashMap<>();
     private CentralDirectory cd = null;
 
@@ -35,6 +39,15 @@ public class ZipMap {
     // if zip entries are deleted/added.
     private final boolean accountDataDescriptors;
 
+    // Only set for lazy maps. Entries are decoded from the index when they are requested, possibly
+    // from several threads. The channel stays open until close() so that a lookup does not have to
+    // reopen the archive to read the Local File Header.
+    @Nullable private CentralDirectoryIndex index = null;
+    @Nullable private FileChannel lazyChannel = null;
+    private final Map<String, Entry> decodedEntries = new ConcurrentHashMap<>();
+    private volatile boolean allEntriesDecoded = true;
+    private Zip64.Policy policy;
+
     private final Path zipFile;
     private long fileSize;
 
@@ -76,10 +89,31 @@ public class ZipMap {
             @NonNull Path zipFile, boolean accountDataDescriptors, Zip64.Policy policy)
             throws IOException {
         ZipMap map = new ZipMap(zipFile, accountDataDescriptors);
-        map.parse(policy);
+        map.parse(policy, false);
         return map;
     }
 
+    /**
+     * Create a map which only indexes the Central Directory instead of decoding all its records.
+     * {@link Entry} objects are decoded on demand by {@link #getEntry(String)}. Calling {@link
+     * #getEntries()} decodes all entries. A lazy map cannot be used to modify an archive.
+     *
+     * <p>A lazy map keeps the archive open until it is closed, either directly or by closing the
+     * {@link ZipRepo} it was given to. {@link #getEntry(String)} may be called from several threads.
+     */
+    @NonNull
+    public static ZipMap lazyFrom(@NonNull Path zipFile, Zip64.Policy policy) throws IOException {
+        ZipMap map = new ZipMap(zipFile, false);
+        map.parse(policy, true);
+        map.lazyChannel = FileChannel.open(zipFile, StandardOpenOption.READ);
+        return map;
+    }
+
+    @NonNull
+    public static ZipMap lazyFrom(@NonNull Path zipFile) throws IOException {
+        return lazyFrom(zipFile, Zip64.Policy.ALLOW);
+    }
+
     @NonNull
     public Location getPayloadLocation() {
         return payloadLocation;
@@ -95,7 +129,8 @@ public class ZipMap {
         return eocdLocation;
     }
 
-    private void parse(Zip64.Policy policy) throws IOException {
+    private void parse(Zip64.Policy policy, boolean lazy) throws IOException {
+        this.policy = policy;
         try (FileChannel channel = FileChannel.open(zipFile, StandardOpenOption.READ)) {
             fileSize = channel.size();
 
@@ -128,7 +163,11 @@ public class ZipMap {
                         String.format("Could not find CD in '%s'", zipFile));
             }
 
-            parseCentralDirectory(channel, cdLocation, policy);
+            if (lazy) {
+                indexCentralDirectory(channel, cdLocation);
+            } else {
+                parseCentralDirectory(channel, cdLocation, policy);
+            }
 
             payloadLocation = new Location(0, cdLocation.first);
         }
@@ -159,6 +198,74 @@ public class ZipMap {
         sanityCheck(location);
     }
 
+    private void indexCentralDirectory(@NonNull FileChannel channel, @NonNull Location location)
+            throws IOException {
+        if (location.size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("CD larger than 2GiB not supported");
+        }
+        ByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, location.first, location.size());
+        index = CentralDirectoryIndex.build(buf);
+        allEntriesDecoded = false;
+    }
+
+    @NonNull
+    private Entry decodeEntry(@NonNull FileChannel channel, int offset) throws IOException {
+        Entry entry = new Entry();
+        parseCentralDirectoryRecord(index.recordAt(offset), channel, entry);
+        checkPolicy(entry, policy);
+        sanityCheck(entry, cdLocation);
+        return entry;
+    }
+
+    /**
+     * Return the entry named "name" or null if the archive does not contain it. With a lazy map,
+     * this only decodes the requested entry.
+     */
+    @Nullable
+    public Entry getEntry(@NonNull String name) throws IOException {
+        if (allEntriesDecoded) {
+            return entries.get(name);
+        }
+
+        Entry entry = decodedEntries.get(name);
+        if (entry != null) {
+            return entry;
+        }
+
+        int offset = index.find(name);
+        if (offset < 0) {
+            return null;
+        }
+        // Two threads missing on the same name both decode it; only the first result is kept so
+        // that callers always observe the same Entry instance.
+        entry = decodeEntry(lazyChannel, offset);
+        Entry previous = decodedEntries.putIfAbsent(name, entry);
+        return previous != null ? previous : entry;
+    }
+
+    private synchronized void decodeAllEntries() throws IOException {
+        if (allEntriesDecoded) {
+            return;
+        }
+        for (int i = 0; i < index.size(); i++) {
+            Entry entry = decodeEntry(lazyChannel, index.offsetAt(i));
+            if (!entry.getName().isEmpty()) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+        allEntriesDecoded = true;
+        decodedEntries.clear();
+    }
+
+    /** Release the archive held open by a lazy map. This is a no-op for other maps. */
+    @Override
+    public void close() throws IOException {
+        if (lazyChannel != null) {
+            lazyChannel.close();
+        }
+    }
+
     private static void checkPolicy(@NonNull Entry entry, Zip64.Policy policy) {
         if (policy == Zip64.Policy.ALLOW) {
             return;
@@ -182,29 +289,39 @@ public class ZipMap {
         //Sanity check that:
         //  - All payload locations are within the file (and not in the CD).
         for (Entry e : entries.values()) {
-            Location loc = e.getLocation();
-            if (loc.first < 0) {
-                throw new IllegalStateException("Invalid first loc '" + e.getName() + "' " + loc);
-            }
-            if (loc.last >= fileSize) {
-                throw new IllegalStateException(
-                        fileSize + "Invalid last loc '" + e.getName() + "' " + loc);
-            }
-            Location cdLoc = e.getCdLocation();
-            if (cdLoc.first < 0) {
-                throw new IllegalStateException(
-                        "Invalid first cdloc '" + e.getName() + "' " + cdLoc);
-            }
-            long cdSize = cdLocation.size();
-            if (cdLoc.last >= cdSize) {
-                throw new IllegalStateException(
-                        cdSize + "Invalid last loc '" + e.getName() + "' " + cdLoc);
-            }
+            sanityCheck(e, cdLocation);
+        }
+    }
+
+    private void sanityCheck(@NonNull Entry e, @NonNull Location cdLocation) {
+        Location loc = e.getLocation();
+        if (loc.first < 0) {
+            throw new IllegalStateException("Invalid first loc '" + e.getName() + "' " + loc);
+        }
+        if (loc.last >= fileSize) {
+            throw new IllegalStateException(
+                    fileSize + "Invalid last loc '" + e.getName() + "' " + loc);
+        }
+        Location cdLoc = e.getCdLocation();
+        if (cdLoc.first < 0) {
+            throw new IllegalStateException("Invalid first cdloc '" + e.getName() + "' " + cdLoc);
+        }
+        long cdSize = cdLocation.size();
+        if (cdLoc.last >= cdSize) {
+            throw new IllegalStateException(
+                    cdSize + "Invalid last loc '" + e.getName() + "' " + cdLoc);
         }
     }
 
     @NonNull
     public Map<String, Entry> getEntries() {
+        if (!allEntriesDecoded) {
+            try {
+                decodeAllEntries();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         return entries;
     }
 
@@ -16,6 +16,7 @@
 package com.android.zipflinger;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,6 +32,13 @@ public class ZipRepo implements Closeable {
     private final FileChannel channel;
     private final Path file;
 
+    // Whether payloads are accessed via memory mapping instead of FileChannel reads.
+    private final boolean memoryMapped;
+
+    // The whole archive, mapped once. Null if the repo is not memory mapped or if the archive is
+    // too large to fit in a single mapping, in which case each payload is mapped on demand.
+    @Nullable private final ByteBuffer mappedArchive;
+
     public ZipRepo(@NonNull String filePath) throws IOException {
         this(ZipMap.from(Paths.get(filePath), false, Zip64.Policy.ALLOW));
     }
@@ -40,9 +48,38 @@ public class ZipRepo implements Closeable {
     }
 
     public ZipRepo(@NonNull ZipMap zipMap) throws IOException {
+        this(zipMap, false);
+    }
+
+    private ZipRepo(@NonNull ZipMap zipMap, boolean memoryMapped) throws IOException {
         this.zipMap = zipMap;
         this.channel = FileChannel.open(zipMap.getPath(), StandardOpenOption.READ);
         this.file = zipMap.getPath();
+        this.memoryMapped = memoryMapped;
+        if (memoryMapped && channel.size() <= Integer.MAX_VALUE) {
+            mappedArchive = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } else {
+            mappedArchive = null;
+        }
+    }
+
+    /**
+     * Open a read-only repo which memory maps the archive instead of copying payloads to the
+     * heap. {@link #getContent(String)} returns read-only views of the mapping for stored entries
+     * and {@link #getInputStream(String)} streams directly from the mapping.
+     *
+     * <p>Buffers returned by a mapped repo remain valid after it is closed. On some platforms
+     * (e.g: Windows) the archive cannot be modified or deleted while a mapping is reachable.
+     */
+    @NonNull
+    public static ZipRepo mapped(@NonNull Path path) throws IOException {
+        return mapped(ZipMap.from(path, false, Zip64.Policy.ALLOW));
+    }
+
+    /** See {@link #mapped(Path)}. */
+    @NonNull
+    public static ZipRepo mapped(@NonNull ZipMap zipMap) throws IOException {
+        return new ZipRepo(zipMap, true);
     }
 
     @NonNull
@@ -57,7 +94,11 @@ public class ZipRepo implements Closeable {
 
     @Override
     public void close() throws IOException {
-        channel.close();
+        try {
+            channel.close();
+        } finally {
+            zipMap.close();
+        }
     }
 
     public boolean isOpen() {
@@ -65,8 +106,8 @@ public class ZipRepo implements Closeable {
     }
 
     @NonNull
-    private Entry getEntry(@NonNull String entryName) {
-        Entry entry = zipMap.getEntries().get(entryName);
+    private Entry getEntry(@NonNull String entryName) throws IOException {
+        Entry entry = zipMap.getEntry(entryName);
         if (entry == null) {
             String msg = String.format("No entry '%s' in file '%s'", entryName, file);
             throw new IllegalArgumentException(msg);
@@ -79,7 +120,12 @@ public class ZipRepo implements Closeable {
     public InputStream getInputStream(@NonNull String entryName) throws IOException {
         Entry entry = getEntry(entryName);
         Location payloadLocation = entry.getPayloadLocation();
-        InputStream inputStream = new PayloadInputStream(channel, payloadLocation);
+        InputStream inputStream;
+        if (memoryMapped) {
+            inputStream = new ByteBufferInputStream(mapPayload(payloadLocation));
+        } else {
+            inputStream = new PayloadInputStream(channel, payloadLocation);
+        }
 
         if (!entry.isCompressed()) {
             return inputStream;
@@ -92,6 +138,14 @@ public class ZipRepo implements Closeable {
     public ByteBuffer getContent(@NonNull String entryName) throws IOException {
         Entry entry = getEntry(entryName);
         Location payloadLocation = entry.getPayloadLocation();
+        if (memoryMapped) {
+            ByteBuffer payload = mapPayload(payloadLocation);
+            if (entry.isCompressed()) {
+                return Compressor.inflate(payload, entry.getUncompressedSize());
+            }
+            return payload;
+        }
+
         ByteBuffer payloadByteBuffer = ByteBuffer.allocate(Math.toIntExact(payloadLocation.size()));
         channel.read(payloadByteBuffer, payloadLocation.first);
         payloadByteBuffer.rewind();
@@ -103,6 +157,18 @@ public class ZipRepo implements Closeable {
         }
     }
 
+    // Return a read-only view of the payload without copying it.
+    @NonNull
+    private ByteBuffer mapPayload(@NonNull Location location) throws IOException {
+        if (mappedArchive == null) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, location.first, location.size());
+        }
+        ByteBuffer view = mappedArchive.duplicate();
+        view.position(Math.toIntExact(location.first));
+        view.limit(Math.toIntExact(location.first + location.size()));
+        return view.slice();
+    }
+
     @NonNull
     public byte[] getComment() {
         return zipMap.getComment();
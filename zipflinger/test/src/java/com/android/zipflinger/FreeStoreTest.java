@@ -104,6 +104,61 @@ public class FreeStoreTest extends AbstractZipflingerTest {
                 "Rest  Location", new Location(200, Long.MAX_VALUE - 200), freeLocations.get(1));
     }
 
+    @Test
+    public void testAllocBestFit() {
+        long hole = LocalFileHeader.VIRTUAL_HEADER_SIZE;
+        FreeStore store = new FreeStore(new HashMap<>());
+        store.ualloc(1000);
+        // Create a large hole first and a smaller one after it.
+        store.free(new Location(100, 10 + 4 * hole));
+        store.free(new Location(500, 10 + hole));
+
+        // The allocation must land in the smallest hole that fits, not the first one.
+        Location allocated = store.ualloc(10);
+        Assert.assertEquals("Best fit allocation", new Location(500, 10), allocated);
+
+        List<Location> freeLocations = store.getFreeLocations();
+        Assert.assertEquals("Num free zones", 3, freeLocations.size());
+        Assert.assertEquals(
+                "Large hole untouched", new Location(100, 10 + 4 * hole), freeLocations.get(0));
+        Assert.assertEquals("Small hole remainder", new Location(510, hole), freeLocations.get(1));
+    }
+
+    @Test
+    public void testAlignedAllocBestFit() {
+        long alignment = FreeStore.PAGE_ALIGNMENT;
+        long hole = LocalFileHeader.VIRTUAL_HEADER_SIZE;
+        FreeStore store = new FreeStore(new HashMap<>());
+        store.ualloc(10 * alignment);
+        store.free(new Location(alignment, 2 * alignment));
+        store.free(new Location(6 * alignment, 100 + hole));
+
+        Location allocated = store.alloc(100, 0, alignment);
+        Assert.assertEquals("Aligned best fit", new Location(6 * alignment, 100), allocated);
+    }
+
+    @Test
+    public void testFragmentationReport() {
+        FreeStore store = new FreeStore(new HashMap<>());
+        store.ualloc(1000);
+
+        FragmentationReport report = store.getFragmentationReport();
+        Assert.assertEquals("Payload size", 1000, report.getPayloadSize());
+        Assert.assertEquals("No holes", 0, report.getNumHoles());
+        Assert.assertEquals("No fragmentation", 0, report.getFragmentation(), 0);
+
+        store.free(new Location(0, 100));
+        store.free(new Location(200, 5));
+        store.free(new Location(500, 150));
+
+        report = store.getFragmentationReport();
+        Assert.assertEquals("Num holes", 3, report.getNumHoles());
+        Assert.assertEquals("Holes size", 255, report.getHolesSize());
+        Assert.assertEquals("Largest hole", 150, report.getLargestHoleSize());
+        Assert.assertEquals("Unusable holes", 5, report.getUnusableHolesSize());
+        Assert.assertEquals("Fragmentation", 0.255, report.getFragmentation(), 0.0001);
+    }
+
     @Test
     public void testFree() {
         FreeStore store = new FreeStore(new HashMap<>());
@@ -18,7 +18,13 @@ package com.android.zipflinger;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.junit.Assert;
@@ -100,4 +106,88 @@ public class ParsingTest extends AbstractZipflingerTest {
     public void testStripped() throws Exception {
         ZipMap map = ZipMap.from(getPath("stripped.ap_"), true);
     }
+
+    @Test
+    public void testLazyMapMatchesEagerMap() throws Exception {
+        Path archiveFile = getTestPath("testLazyMap.zip");
+        createZip(2_000, 10, archiveFile);
+
+        ZipMap eager = ZipMap.from(archiveFile);
+        try (ZipMap lazy = ZipMap.lazyFrom(archiveFile)) {
+            checkLazyMap(eager, lazy);
+        }
+    }
+
+    private static void checkLazyMap(ZipMap eager, ZipMap lazy) throws Exception {
+        // Decode a few entries on demand.
+        for (String name : new String[] {"file000000", "file001234", "file001999"}) {
+            Entry expected = eager.getEntries().get(name);
+            Entry actual = lazy.getEntry(name);
+            Assert.assertNotNull("Lazy entry " + name, actual);
+            Assert.assertEquals("Name", expected.getName(), actual.getName());
+            Assert.assertEquals("Crc", expected.getCrc(), actual.getCrc());
+            Assert.assertEquals("Location", expected.getLocation(), actual.getLocation());
+            Assert.assertEquals(
+                    "Payload location", expected.getPayloadLocation(), actual.getPayloadLocation());
+        }
+        Assert.assertNull("Missing entry", lazy.getEntry("file002000"));
+        Assert.assertNull("Empty name", lazy.getEntry(""));
+
+        // Decoding everything must produce the same entries, in the same order.
+        Assert.assertEquals(
+                "Entry names",
+                new ArrayList<>(eager.getEntries().keySet()),
+                new ArrayList<>(lazy.getEntries().keySet()));
+    }
+
+    @Test
+    public void testLazyRepo() throws Exception {
+        Path archiveFile = getTestPath("testLazyRepo.zip");
+        try (ZipArchive archive = new ZipArchive(archiveFile)) {
+            archive.add(new BytesSource(new byte[] {1, 2, 3}, "a", Deflater.NO_COMPRESSION));
+            archive.add(new BytesSource(new byte[] {4, 5, 6}, "b", Deflater.BEST_SPEED));
+        }
+
+        try (ZipRepo repo = new ZipRepo(ZipMap.lazyFrom(archiveFile))) {
+            Assert.assertArrayEquals(
+                    "Content of b", new byte[] {4, 5, 6}, toByteArray(repo.getContent("b")));
+            Assert.assertArrayEquals(
+                    "Content of a", new byte[] {1, 2, 3}, toByteArray(repo.getContent("a")));
+        }
+    }
+
+    @Test
+    public void testLazyMapConcurrentLookups() throws Exception {
+        Path archiveFile = getTestPath("testLazyMapConcurrent.zip");
+        createZip(500, 10, archiveFile);
+
+        ZipMap eager = ZipMap.from(archiveFile);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (ZipMap lazy = ZipMap.lazyFrom(archiveFile)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    for (Entry expected : eager.getEntries().values()) {
+                                        Entry actual = lazy.getEntry(expected.getName());
+                                        Assert.assertNotNull(expected.getName(), actual);
+                                        Assert.assertEquals(
+                                                expected.getLocation(), actual.getLocation());
+                                    }
+                                    return null;
+                                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            // Every thread must have been handed the same decoded instance.
+            for (String name : eager.getEntries().keySet()) {
+                Assert.assertSame(name, lazy.getEntry(name), lazy.getEntry(name));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -80,6 +80,41 @@ public class RepoTest extends AbstractZipflingerTest {
         }
     }
 
+    @Test
+    public void testMappedGetContentAndInputStream() throws Exception {
+        byte[][] files = new byte[2][100_000];
+
+        Random r = new Random(0);
+        for (byte[] bytes : files) {
+            r.nextBytes(bytes);
+        }
+
+        Path file = getTestPath("testMappedGetContent.zip");
+        try (ZipArchive archive = new ZipArchive(file)) {
+            for (int i = 0; i < files.length; i++) {
+                archive.add(
+                        new BytesSource(
+                                files[i], Integer.toString(i), Deflater.NO_COMPRESSION + i));
+            }
+        }
+
+        try (ZipRepo repo = ZipRepo.mapped(file)) {
+            for (int i = 0; i < files.length; i++) {
+                String entryName = Integer.toString(i);
+                ByteBuffer content = repo.getContent(entryName);
+                Assert.assertArrayEquals("Content does not match", files[i], toByteArray(content));
+                try (InputStream inputStream = repo.getInputStream(entryName)) {
+                    assertZipEntryMatch(inputStream, files[i]);
+                }
+            }
+
+            // Stored entries are returned as views of the mapping, not heap copies.
+            ByteBuffer stored = repo.getContent("0");
+            Assert.assertTrue("Stored content should be mapped", stored.isDirect());
+            Assert.assertTrue("Stored content should be read-only", stored.isReadOnly());
+        }
+    }
+
     private void assertZipEntryMatch(InputStream inputStream, byte[] content) throws IOException {
         NoCopyByteArrayOutputStream outputStream = new NoCopyByteArrayOutputStream(content.length);
         byte[] buffer = new byte[8192];
@@ -28,9 +28,13 @@ import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.Deflater;
 import org.junit.Assert;
 import org.junit.Test;
@@ -1192,4 +1196,62 @@ public class ZipFlingerTest extends AbstractZipflingerTest {
             Assert.assertEquals("", Source.PERMISSION_DIR_DEFAULT, dir.getExternalAttributes());
         }
     }
+
+    @Test
+    public void testParallelAddMatchesSerialAdd() throws Exception {
+        Path serialPath = getTestPath("testParallelAddSerial.zip");
+        Path parallelPath = getTestPath("testParallelAddParallel.zip");
+
+        Random random = new Random(1);
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = new byte[random.nextInt(100_000)];
+            // Half random (incompressible), half zeros (compressible).
+            random.nextBytes(bytes);
+            Arrays.fill(bytes, 0, bytes.length / 2, (byte) 0);
+            payloads.add(bytes);
+        }
+
+        try (ZipArchive archive = new ZipArchive(serialPath)) {
+            for (int i = 0; i < payloads.size(); i++) {
+                int level = i % 2 == 0 ? COMP_SPED : COMP_NONE;
+                archive.add(new BytesSource(payloads.get(i), "file" + i, level));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (ZipArchive archive = new ZipArchive(parallelPath)) {
+            List<Source> sources = new ArrayList<>();
+            for (int i = 0; i < payloads.size(); i++) {
+                int level = i % 2 == 0 ? COMP_SPED : COMP_NONE;
+                sources.add(Sources.deferred(payloads.get(i), "file" + i, level));
+            }
+            archive.add(sources, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertArrayEquals(
+                "Parallel and serial archives differ",
+                Files.readAllBytes(serialPath),
+                Files.readAllBytes(parallelPath));
+        verifyArchive(parallelPath);
+    }
+
+    @Test
+    public void testParallelAddPropagatesIOException() throws Exception {
+        Path archPath = getTestPath("testParallelAddIOException.zip");
+        Path missing = getTestPath("missing.txt");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (ZipArchive archive = new ZipArchive(archPath)) {
+            List<Source> sources = new ArrayList<>();
+            sources.add(Sources.deferred(new byte[10], "present", COMP_SPED));
+            sources.add(Sources.deferred(missing, "missing", COMP_SPED));
+            archive.add(sources, executor);
+            Assert.fail("Adding a missing file should have failed");
+        } catch (IOException expected) {
+        } finally {
+            executor.shutdown();
+        }
+    }
 }